@@ -30,6 +30,7 @@ import beast.inference.mcmc.MCMC;
 import beast.inference.mcmc.MCMCOptions;
 import beast.inference.mcmcmc.MCMCMC;
 import beast.inference.mcmcmc.MCMCMCOptions;
+import beast.inference.profiler.Profiler;
 import beast.math.MathUtils;
 import beast.util.ErrorLogHandler;
 import beast.util.MessageLogHandler;
@@ -279,6 +280,12 @@ public class BeastMain {
             infoLogger.severe("Error resuming analysis: " + ex.getMessage());
             throw new RuntimeException("Terminate");
         }
+        final long randomCheckpoint = MathUtils.getStateSerializer().getCheckpoint();
+        if (serializer.getCheckpoint() >= 0 && randomCheckpoint >= 0 && randomCheckpoint != serializer.getCheckpoint()) {
+            infoLogger.severe("Error resuming analysis: the random number generator state is from state " + randomCheckpoint +
+                    " but the chain state is from state " + serializer.getCheckpoint() + ".");
+            throw new RuntimeException("Terminate");
+        }
         final MCMC mcmc = serializer.getObject();
         mcmc.setSerializer(serializer);
         String message = "Resuming MCMC analysis";
@@ -350,6 +357,9 @@ public class BeastMain {
                         new Arguments.Option("java", "Use Java only, no native implementations"),
                         new Arguments.RealOption("threshold", 0.0, Double.MAX_VALUE, "Full evaluation test threshold (default 1E-6)"),
 
+                        new Arguments.Option("profile", "Profile likelihood evaluations and operator moves (also switchable via JMX)"),
+                        new Arguments.StringOption("profile_file", "FILENAME", "Periodically write the profile to this file (implies -profile)"),
+                        new Arguments.IntegerOption("profile_every", 1, Integer.MAX_VALUE, "Seconds between profile file updates (default 60)"),
                         new Arguments.Option("resume", "Resume a terminated analysis"),
                         new Arguments.StringOption("random", "state file", "State file name for random number generator."),
                         new Arguments.LongOption("length", "New chain length from resuming an analysis"),
@@ -433,6 +443,14 @@ public class BeastMain {
             System.setProperty("mcmc.evaluation.threshold", Double.toString(evaluationThreshold));
         }
 
+        if (arguments.hasOption("profile") || arguments.hasOption("profile_file")) {
+            Profiler.setEnabled(true);
+        }
+        if (arguments.hasOption("profile_file")) {
+            final int profileEvery = arguments.hasOption("profile_every") ? arguments.getIntegerOption("profile_every") : 60;
+            Profiler.startWriting(new File(arguments.getStringOption("profile_file")), profileEvery);
+        }
+
         int threadCount = -1;
 
         if (arguments.hasOption("java")) {
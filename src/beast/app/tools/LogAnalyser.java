@@ -0,0 +1,361 @@
+/*
+ * LogAnalyser.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.app.tools;
+
+import beast.app.util.Arguments;
+import beast.inference.trace.BinaryTraceReader;
+import beast.inference.trace.StreamingTraceStatistics;
+import beast.inference.trace.TraceCorrelation;
+import beast.inference.trace.TraceDistribution;
+import beast.inference.trace.TraceFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Summarizes the columns of one or more MCMC logs, text or binary, without loading them.
+ * Rows are read in blocks and each block is added to the statistics of every column in
+ * parallel; each column keeps exact moments and a bounded, thinned sample from which the
+ * median and 95% HPD are estimated. The ESS and autocorrelation time are computed from the
+ * autocorrelation of the sample as long as it is complete, and by batch means once it has
+ * been thinned.
+ * <p>
+ * Logs from independent chains are combined: burn-in is removed from each, the moments
+ * and samples are pooled, and the ESS is the sum of the ESS of each chain.
+ *
+ * @author BEAST Developers
+ */
+public class LogAnalyser {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final double HPD_LEVEL = 0.95;
+
+    /**
+     * The summary of a column over all chains.
+     */
+    public static class Summary {
+        public final String label;
+        public final long count;
+        public final double mean, stdev, stdErrorOfMean, minimum, maximum, geometricMean;
+        public final double median, lowerHPD, upperHPD, ACT, ESS;
+
+        Summary(String label, StreamingTraceStatistics combined, double median, double lowerHPD,
+                double upperHPD, double ACT, double ESS) {
+            this.label = label;
+            this.count = combined.getCount();
+            this.mean = combined.getMean();
+            this.stdev = Math.sqrt(combined.getVariance());
+            this.stdErrorOfMean = stdev / Math.sqrt(ESS);
+            this.minimum = combined.getMinimum();
+            this.maximum = combined.getMaximum();
+            this.geometricMean = combined.getGeometricMean();
+            this.median = median;
+            this.lowerHPD = lowerHPD;
+            this.upperHPD = upperHPD;
+            this.ACT = ACT;
+            this.ESS = ESS;
+        }
+    }
+
+    private final long burnin;
+    private final int maxSamples;
+
+    private String[] labels = null;
+    private boolean[] numeric;
+    // statistics of each column, for each chain
+    private final List<StreamingTraceStatistics[]> chains = new ArrayList<StreamingTraceStatistics[]>();
+    private final List<Long> stepSizes = new ArrayList<Long>();
+
+    /**
+     * @param burnin the number of states to discard from the start of each log, or -1 for
+     *               the first 10% of each log
+     */
+    public LogAnalyser(long burnin) {
+        this(burnin, StreamingTraceStatistics.DEFAULT_MAX_SAMPLES);
+    }
+
+    public LogAnalyser(long burnin, int maxSamples) {
+        this.burnin = burnin;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Reads a log as a further chain. All logs must have the same columns.
+     */
+    public void addLog(File file) throws IOException {
+        if (LogConverter.isBinary(file)) {
+            try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+                final Chain chain = new Chain(reader.getLabels(), getBurnin(reader.getLastState()));
+                reader.readRows(new BinaryTraceReader.RowHandler() {
+                    public void row(long state, double[] values) {
+                        chain.row(state, values);
+                    }
+                });
+                chain.finish();
+            }
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                Chain chain = null;
+                double[] values = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("#") || line.trim().length() == 0) {
+                        continue;
+                    }
+                    String[] fields = line.split("\t");
+                    if (chain == null) {
+                        chain = new Chain(Arrays.copyOfRange(fields, 1, fields.length), getBurnin(getLastState(file)));
+                        values = new double[fields.length - 1];
+                        continue;
+                    }
+                    if (fields.length != values.length + 1) {
+                        // an incomplete last line
+                        break;
+                    }
+                    for (int i = 0; i < values.length; i++) {
+                        try {
+                            values[i] = Double.parseDouble(fields[i + 1]);
+                        } catch (NumberFormatException nfe) {
+                            values[i] = Double.NaN;
+                            numeric[i] = false;
+                        }
+                    }
+                    chain.row(Long.parseLong(fields[0]), values);
+                }
+                if (chain == null) {
+                    throw new RuntimeException("No column labels found in " + file);
+                }
+                chain.finish();
+            }
+        }
+    }
+
+    private long getBurnin(long lastState) {
+        return burnin >= 0 ? burnin : lastState / 10;
+    }
+
+    /**
+     * @return the state of the last complete line of a text log
+     */
+    private static long getLastState(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            int tail = (int) Math.min(length, 1 << 16);
+            byte[] bytes = new byte[tail];
+            in.seek(length - tail);
+            in.readFully(bytes);
+            String[] lines = new String(bytes, "UTF-8").split("\n");
+            for (int i = lines.length - 1; i >= 0; i--) {
+                int tab = lines[i].indexOf('\t');
+                if (tab > 0) {
+                    try {
+                        return Long.parseLong(lines[i].substring(0, tab).trim());
+                    } catch (NumberFormatException nfe) {
+                        // a partial or header line
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Buffers the rows of one log after burn-in and adds them to the column statistics a
+     * block at a time.
+     */
+    private final class Chain {
+        private final long burnin;
+        private final StreamingTraceStatistics[] statistics;
+        private final double[][] block;
+        private int rows = 0;
+        private long firstState = -1, secondState = -1;
+
+        Chain(String[] labels, long burnin) {
+            if (LogAnalyser.this.labels == null) {
+                LogAnalyser.this.labels = labels;
+                numeric = new boolean[labels.length];
+                Arrays.fill(numeric, true);
+            } else if (!Arrays.equals(LogAnalyser.this.labels, labels)) {
+                throw new RuntimeException("Logs to be combined must have the same columns");
+            }
+            this.burnin = burnin;
+            statistics = new StreamingTraceStatistics[labels.length];
+            for (int i = 0; i < statistics.length; i++) {
+                statistics[i] = new StreamingTraceStatistics(maxSamples);
+            }
+            block = new double[labels.length][BLOCK_SIZE];
+        }
+
+        void row(long state, double[] values) {
+            if (state < burnin) {
+                return;
+            }
+            if (firstState < 0) {
+                firstState = state;
+            } else if (secondState < 0) {
+                secondState = state;
+            }
+            for (int i = 0; i < values.length; i++) {
+                block[i][rows] = values[i];
+            }
+            rows++;
+            if (rows == BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            final int n = rows;
+            IntStream.range(0, statistics.length).parallel().forEach(i -> {
+                for (int j = 0; j < n; j++) {
+                    statistics[i].add(block[i][j]);
+                }
+            });
+            rows = 0;
+        }
+
+        void finish() {
+            flush();
+            chains.add(statistics);
+            stepSizes.add(secondState > firstState ? secondState - firstState : 1L);
+        }
+    }
+
+    public String[] getLabels() {
+        return labels == null ? new String[0] : labels.clone();
+    }
+
+    /**
+     * @return the summaries of the numeric columns, computed in parallel
+     */
+    public List<Summary> analyse() {
+        if (labels == null) {
+            throw new RuntimeException("No logs have been read");
+        }
+        Summary[] summaries = new Summary[labels.length];
+        IntStream.range(0, labels.length).parallel().forEach(i -> {
+            if (numeric[i]) {
+                summaries[i] = analyse(i);
+            }
+        });
+        List<Summary> result = new ArrayList<Summary>();
+        for (Summary summary : summaries) {
+            if (summary != null) {
+                result.add(summary);
+            }
+        }
+        return result;
+    }
+
+    private Summary analyse(int column) {
+        List<StreamingTraceStatistics> traces = new ArrayList<StreamingTraceStatistics>();
+        int thinning = 1;
+        for (StreamingTraceStatistics[] chain : chains) {
+            traces.add(chain[column]);
+            thinning = Math.max(thinning, chain[column].getThinning());
+        }
+        StreamingTraceStatistics combined = StreamingTraceStatistics.combine(traces);
+        if (combined.getCount() == 0) {
+            return null;
+        }
+        if (combined.getMinimum() == combined.getMaximum()) {
+            double value = combined.getMinimum();
+            return new Summary(labels[column], combined, value, value, value, Double.NaN, Double.NaN);
+        }
+
+        double ESS = 0.0;
+        long states = 0;
+        List<Double> pooled = new ArrayList<Double>();
+        for (int k = 0; k < traces.size(); k++) {
+            StreamingTraceStatistics trace = traces.get(k);
+            if (trace.getCount() == 0) continue;
+            states += trace.getCount() * stepSizes.get(k);
+            List<Double> samples = trace.getSamples();
+            if (trace.getThinning() > 1) {
+                // the kept samples are too sparse for the autocorrelation of the chain
+                ESS += trace.getBatchMeansESS();
+            } else if (samples.size() > 1) {
+                TraceCorrelation<Double> correlation = new TraceCorrelation<Double>(samples,
+                        TraceFactory.TraceType.DOUBLE, (int) Math.min(stepSizes.get(k), Integer.MAX_VALUE));
+                if (correlation.isValid()) {
+                    ESS += correlation.getESS();
+                }
+            }
+            // pool the chains at a common thinning so that each is weighted by its length
+            pooled.addAll(trace.getSamples(thinning));
+        }
+
+        TraceDistribution<Double> distribution = new TraceDistribution<Double>(pooled, TraceFactory.TraceType.DOUBLE);
+        return new Summary(labels[column], combined, distribution.getMedian(), distribution.getLowerHPD(),
+                distribution.getUpperHPD(), states / ESS, ESS);
+    }
+
+    public static void print(List<Summary> summaries, PrintStream out) {
+        out.println("statistic\tmean\tstderr\tstdev\tmedian\t" + Math.round(HPD_LEVEL * 100) + "%HPDlower\t" +
+                Math.round(HPD_LEVEL * 100) + "%HPDupper\tACT\tESS");
+        for (Summary s : summaries) {
+            out.println(s.label + "\t" + format(s.mean) + "\t" + format(s.stdErrorOfMean) + "\t" + format(s.stdev) +
+                    "\t" + format(s.median) + "\t" + format(s.lowerHPD) + "\t" + format(s.upperHPD) + "\t" +
+                    format(s.ACT) + "\t" + format(s.ESS));
+        }
+    }
+
+    private static String format(double value) {
+        return Double.isNaN(value) ? "-" : String.format("%.6g", value);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Arguments arguments = new Arguments(
+                new Arguments.Option[]{
+                        new Arguments.LongOption("burnin", "the number of states to discard from each log (default 10%)"),
+                        new Arguments.Option("help", "Print this information and stop")
+                });
+
+        try {
+            arguments.parseArguments(args);
+        } catch (Arguments.ArgumentException ae) {
+            System.out.println(ae.getMessage());
+            arguments.printUsage("loganalyser", "<log-file-name> [<log-file-name> ...]");
+            System.exit(1);
+        }
+
+        String[] files = arguments.getLeftoverArguments();
+        if (arguments.hasOption("help") || files.length == 0) {
+            arguments.printUsage("loganalyser", "<log-file-name> [<log-file-name> ...]");
+            System.exit(0);
+        }
+
+        LogAnalyser analyser = new LogAnalyser(arguments.hasOption("burnin") ? arguments.getLongOption("burnin") : -1);
+        for (String file : files) {
+            analyser.addLog(new File(file));
+        }
+        print(analyser.analyse(), System.out);
+    }
+}
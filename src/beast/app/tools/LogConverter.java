@@ -0,0 +1,148 @@
+/*
+ * LogConverter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.app.tools;
+
+import beast.app.util.Arguments;
+import beast.inference.loggers.BinaryLogFormatter;
+import beast.inference.loggers.LogFormatter;
+import beast.inference.loggers.TabDelimitedFormatter;
+import beast.inference.trace.BinaryTraceReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Converts between tab delimited text logs and binary trace files. The direction is
+ * decided by the input: a binary trace is written out as text and anything else is
+ * parsed as a text log and written as a binary trace.
+ *
+ * @author BEAST Developers
+ */
+public class LogConverter {
+
+    public static boolean isBinary(File file) throws IOException {
+        if (file.length() < 4) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == BinaryLogFormatter.MAGIC;
+        }
+    }
+
+    /**
+     * Copies a text log into a binary trace. Comment lines make up the title, the first
+     * other line holds the labels and the remaining lines the values.
+     */
+    public static void textToBinary(File input, File output) throws IOException {
+        LogFormatter formatter = new BinaryLogFormatter(new FileOutputStream(output));
+        try (BufferedReader reader = new BufferedReader(new FileReader(input))) {
+            formatter.startLogging(null);
+            boolean labelled = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    if (!labelled) {
+                        formatter.logHeading(line.startsWith("# ") ? line.substring(2) : line.substring(1));
+                    }
+                } else if (line.trim().length() > 0) {
+                    String[] fields = line.split("\t");
+                    if (labelled) {
+                        formatter.logValues(fields);
+                    } else {
+                        formatter.logLabels(fields);
+                        labelled = true;
+                    }
+                }
+            }
+        } finally {
+            formatter.stopLogging();
+        }
+    }
+
+    /**
+     * Writes a binary trace out as a text log, with values at full precision.
+     */
+    public static void binaryToText(File input, File output) throws IOException {
+        try (BinaryTraceReader reader = new BinaryTraceReader(input)) {
+            final LogFormatter formatter = new TabDelimitedFormatter(
+                    new PrintWriter(new BufferedWriter(new FileWriter(output))), true);
+            formatter.setAutoFlush(false);
+
+            String[] labels = reader.getLabels();
+            String[] header = new String[labels.length + 1];
+            header[0] = "state";
+            System.arraycopy(labels, 0, header, 1, labels.length);
+
+            if (reader.getTitle().length() > 0) {
+                formatter.logHeading(reader.getTitle());
+            }
+            formatter.logLabels(header);
+
+            final String[] fields = new String[labels.length + 1];
+            reader.readRows(new BinaryTraceReader.RowHandler() {
+                public void row(long state, double[] values) {
+                    fields[0] = Long.toString(state);
+                    for (int i = 0; i < values.length; i++) {
+                        fields[i + 1] = Double.toString(values[i]);
+                    }
+                    formatter.logValues(fields);
+                }
+            });
+            formatter.stopLogging();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Arguments arguments = new Arguments(
+                new Arguments.Option[]{
+                        new Arguments.Option("help", "Print this information and stop")
+                });
+
+        try {
+            arguments.parseArguments(args);
+        } catch (Arguments.ArgumentException ae) {
+            System.out.println(ae.getMessage());
+            arguments.printUsage("logconverter", "<input-file-name> <output-file-name>");
+            System.exit(1);
+        }
+
+        String[] files = arguments.getLeftoverArguments();
+        if (arguments.hasOption("help") || files.length != 2) {
+            arguments.printUsage("logconverter", "<input-file-name> <output-file-name>");
+            System.exit(0);
+        }
+
+        File input = new File(files[0]);
+        File output = new File(files[1]);
+        if (isBinary(input)) {
+            binaryToText(input, output);
+        } else {
+            textToBinary(input, output);
+        }
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * TreeSummarizer.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.app.tools;
+
+import beast.app.util.Arguments;
+import beast.evolution.io.Importer;
+import beast.evolution.io.MappedTreeImporter;
+import beast.evolution.tree.FlexibleTree;
+import beast.evolution.tree.NewickWriter;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeTrait;
+import beast.evolution.tree.TreeTraitProvider;
+import beast.math.DiscreteStatistics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Summarizes a posterior sample of trees by its maximum clade credibility (MCC) tree.
+ * The tree log is divided into chunks that are read in parallel with fork-join, three
+ * times: to count clades, to find the tree with the highest product of clade
+ * frequencies, and to collect the heights of the clades of that tree. Clades are
+ * hashed as bitsets of taxa, and only clade counts, the best tree of each chunk and the
+ * heights of the MCC clades are kept in memory.
+ * <p>
+ * Internal nodes of the MCC tree are annotated with posterior, height, height_median
+ * and height_95%_HPD, and their heights are set to the mean or median height of their
+ * clade, or kept.
+ *
+ * @author BEAST Developers
+ */
+public class TreeSummarizer {
+
+    public enum HeightsSummary {
+        MEAN, MEDIAN, KEEP
+    }
+
+    public static final String POSTERIOR = "posterior";
+    public static final String HEIGHT = "height";
+    public static final String HEIGHT_MEDIAN = "height_median";
+    public static final String HEIGHT_HPD = "height_95%_HPD";
+
+    private static final double HPD_LEVEL = 0.95;
+
+    private final File treeFile;
+    private final long burnin;
+    private final int threadCount;
+    private HeightsSummary heightsSummary = HeightsSummary.MEAN;
+
+    private long[] offsets;
+    private Map<String, Integer> taxonIndices;
+    private String[] taxonIds;
+    private long treeCount = 0;
+    private int cladeCount = 0;
+
+    /**
+     * @param treeFile    a NEXUS tree log
+     * @param burnin      trees with states before burnin are discarded
+     * @param threadCount the number of threads reading the log
+     */
+    public TreeSummarizer(File treeFile, long burnin, int threadCount) {
+        this.treeFile = treeFile;
+        this.burnin = burnin;
+        this.threadCount = threadCount;
+    }
+
+    public void setHeightsSummary(HeightsSummary heightsSummary) {
+        this.heightsSummary = heightsSummary;
+    }
+
+    /**
+     * @return the number of trees summarized, after burn-in
+     */
+    public long getTreeCount() {
+        return treeCount;
+    }
+
+    /**
+     * @return the number of distinct clades in the trees summarized
+     */
+    public int getCladeCount() {
+        return cladeCount;
+    }
+
+    /**
+     * @return the annotated maximum clade credibility tree
+     */
+    public FlexibleTree summarize() throws IOException, Importer.ImportException {
+        readTaxa();
+        offsets = MappedTreeImporter.split(treeFile, Math.max(1, 4 * threadCount));
+        int chunkCount = offsets.length - 1;
+
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        try {
+            Map<BitSet, long[]> counts = pool.invoke(new ChunkTask<Map<BitSet, long[]>>(new CladeCounter(), 0, chunkCount));
+            // every tree has the clade of all taxa at its root
+            BitSet all = new BitSet(taxonIds.length);
+            all.set(0, taxonIds.length);
+            treeCount = counts.containsKey(all) ? counts.get(all)[0] : 0;
+            if (treeCount == 0) {
+                throw new RuntimeException("No trees left after a burn-in of " + burnin);
+            }
+            cladeCount = counts.size();
+
+            Best best = pool.invoke(new ChunkTask<Best>(new CredibilityScorer(counts, treeCount), 0, chunkCount));
+            FlexibleTree tree = best.tree;
+
+            // the clades of the MCC tree, by node number
+            Map<BitSet, Integer> clades = new HashMap<BitSet, Integer>();
+            BitSet[] bits = getClades(tree, new BitSet[tree.getNodeCount()]);
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                NodeRef node = tree.getInternalNode(i);
+                clades.put(bits[node.getNumber()], node.getNumber());
+            }
+            HeightSamples heights = pool.invoke(new ChunkTask<HeightSamples>(
+                    new HeightCollector(clades, tree.getNodeCount()), 0, chunkCount));
+
+            annotate(tree, bits, counts, heights);
+            return tree;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void readTaxa() throws IOException, Importer.ImportException {
+        MappedTreeImporter importer = new MappedTreeImporter(treeFile);
+        try {
+            importer.setTopologyOnly(true);
+            Tree tree = importer.importNextTree();
+            if (tree == null) {
+                throw new RuntimeException("No trees found in " + treeFile);
+            }
+            taxonIds = new String[tree.getTaxonCount()];
+            for (int i = 0; i < taxonIds.length; i++) {
+                taxonIds[i] = tree.getTaxonId(i);
+            }
+            Arrays.sort(taxonIds);
+            taxonIndices = new HashMap<String, Integer>();
+            for (int i = 0; i < taxonIds.length; i++) {
+                taxonIndices.put(taxonIds[i], i);
+            }
+        } finally {
+            importer.close();
+        }
+    }
+
+    private void annotate(FlexibleTree tree, BitSet[] bits, Map<BitSet, long[]> counts, HeightSamples heights) {
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+            NodeRef node = tree.getInternalNode(i);
+            int number = node.getNumber();
+            tree.setNodeAttribute(node, POSTERIOR, (double) counts.get(bits[number])[0] / treeCount);
+
+            double[] values = heights.get(number);
+            Arrays.sort(values);
+            int[] indices = new int[values.length];
+            for (int j = 0; j < indices.length; j++) {
+                indices[j] = j;
+            }
+            double mean = DiscreteStatistics.mean(values);
+            double median = DiscreteStatistics.median(values, indices);
+            tree.setNodeAttribute(node, HEIGHT, mean);
+            tree.setNodeAttribute(node, HEIGHT_MEDIAN, median);
+            tree.setNodeAttribute(node, HEIGHT_HPD, DiscreteStatistics.HPDInterval(HPD_LEVEL, values, indices));
+        }
+        if (heightsSummary != HeightsSummary.KEEP) {
+            String attribute = heightsSummary == HeightsSummary.MEAN ? HEIGHT : HEIGHT_MEDIAN;
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                NodeRef node = tree.getInternalNode(i);
+                tree.setNodeHeight(node, (Double) tree.getNodeAttribute(node, attribute));
+            }
+        }
+    }
+
+    /**
+     * Fills clades with the set of taxon indices below each internal node, by node number.
+     */
+    private BitSet[] getClades(Tree tree, BitSet[] clades) {
+        NodeRef node = tree.getRoot();
+        do {
+            node = Tree.Utils.postorderSuccessor(tree, node);
+            int number = node.getNumber();
+            if (clades[number] == null) {
+                clades[number] = new BitSet(taxonIds.length);
+            } else {
+                clades[number].clear();
+            }
+            if (tree.isExternal(node)) {
+                Integer index = taxonIndices.get(tree.getNodeTaxon(node).getId());
+                if (index == null) {
+                    throw new RuntimeException("Taxon " + tree.getNodeTaxon(node).getId() + " is not in every tree");
+                }
+                clades[number].set(index);
+            } else {
+                for (int i = 0; i < tree.getChildCount(node); i++) {
+                    clades[number].or(clades[tree.getChild(node, i).getNumber()]);
+                }
+            }
+        } while (node != tree.getRoot());
+        return clades;
+    }
+
+    private static long getState(Tree tree) {
+        String id = tree.getId();
+        if (id != null) {
+            try {
+                return Long.parseLong(id.substring(id.lastIndexOf('_') + 1));
+            } catch (NumberFormatException nfe) {
+                // no state in the name
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Work done for each tree after burn-in, and how the results of two chunks combine.
+     */
+    private interface TreeVisitor<R> {
+        R newResult();
+
+        void visit(R result, FlexibleTree tree, BitSet[] clades);
+
+        R merge(R left, R right);
+    }
+
+    private final class ChunkTask<R> extends RecursiveTask<R> {
+        private final TreeVisitor<R> visitor;
+        private final int from, to;
+
+        ChunkTask(TreeVisitor<R> visitor, int from, int to) {
+            this.visitor = visitor;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected R compute() {
+            if (to - from == 1) {
+                return readChunk(from);
+            }
+            int middle = (from + to) >>> 1;
+            ChunkTask<R> left = new ChunkTask<R>(visitor, from, middle);
+            left.fork();
+            R right = new ChunkTask<R>(visitor, middle, to).compute();
+            return visitor.merge(left.join(), right);
+        }
+
+        private R readChunk(int chunk) {
+            R result = visitor.newResult();
+            try {
+                MappedTreeImporter importer = new MappedTreeImporter(treeFile, offsets[chunk], offsets[chunk + 1]);
+                try {
+                    importer.setTopologyOnly(true);
+                    BitSet[] clades = new BitSet[0];
+                    Tree tree;
+                    while ((tree = importer.importNextTree()) != null) {
+                        if (burnin > 0) {
+                            long state = getState(tree);
+                            if (state < 0) {
+                                throw new RuntimeException("Tree '" + tree.getId() + "' has no state to apply the burn-in to");
+                            }
+                            if (state < burnin) {
+                                continue;
+                            }
+                        }
+                        if (clades.length < tree.getNodeCount()) {
+                            clades = new BitSet[tree.getNodeCount()];
+                        }
+                        visitor.visit(result, (FlexibleTree) tree, getClades(tree, clades));
+                    }
+                } finally {
+                    importer.close();
+                }
+            } catch (IOException | Importer.ImportException e) {
+                throw new RuntimeException("Unable to read " + treeFile + ": " + e.getMessage(), e);
+            }
+            return result;
+        }
+    }
+
+    private static final class CladeCounter implements TreeVisitor<Map<BitSet, long[]>> {
+        public Map<BitSet, long[]> newResult() {
+            return new HashMap<BitSet, long[]>();
+        }
+
+        public void visit(Map<BitSet, long[]> counts, FlexibleTree tree, BitSet[] clades) {
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                BitSet clade = clades[tree.getInternalNode(i).getNumber()];
+                long[] count = counts.get(clade);
+                if (count == null) {
+                    counts.put((BitSet) clade.clone(), new long[]{1});
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+
+        public Map<BitSet, long[]> merge(Map<BitSet, long[]> left, Map<BitSet, long[]> right) {
+            if (left.size() < right.size()) {
+                Map<BitSet, long[]> swap = left;
+                left = right;
+                right = swap;
+            }
+            for (Map.Entry<BitSet, long[]> entry : right.entrySet()) {
+                long[] count = left.get(entry.getKey());
+                if (count == null) {
+                    left.put(entry.getKey(), entry.getValue());
+                } else {
+                    count[0] += entry.getValue()[0];
+                }
+            }
+            return left;
+        }
+    }
+
+    private static final class Best {
+        double score = Double.NEGATIVE_INFINITY;
+        FlexibleTree tree = null;
+    }
+
+    private static final class CredibilityScorer implements TreeVisitor<Best> {
+        private final Map<BitSet, long[]> counts;
+        private final double logTreeCount;
+
+        CredibilityScorer(Map<BitSet, long[]> counts, long treeCount) {
+            this.counts = counts;
+            this.logTreeCount = Math.log(treeCount);
+        }
+
+        public Best newResult() {
+            return new Best();
+        }
+
+        public void visit(Best best, FlexibleTree tree, BitSet[] clades) {
+            double score = 0.0;
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                score += Math.log(counts.get(clades[tree.getInternalNode(i).getNumber()])[0]) - logTreeCount;
+            }
+            if (score > best.score) {
+                best.score = score;
+                best.tree = tree;
+            }
+        }
+
+        public Best merge(Best left, Best right) {
+            // the earlier tree wins a tie
+            return right.score > left.score ? right : left;
+        }
+    }
+
+    private static final class HeightSamples {
+        final double[][] values;
+        final int[] sizes;
+
+        HeightSamples(int nodeCount) {
+            values = new double[nodeCount][];
+            sizes = new int[nodeCount];
+        }
+
+        void add(int node, double value) {
+            if (values[node] == null) {
+                values[node] = new double[16];
+            } else if (sizes[node] == values[node].length) {
+                values[node] = Arrays.copyOf(values[node], 2 * sizes[node]);
+            }
+            values[node][sizes[node]++] = value;
+        }
+
+        double[] get(int node) {
+            return values[node] == null ? new double[0] : Arrays.copyOf(values[node], sizes[node]);
+        }
+    }
+
+    private static final class HeightCollector implements TreeVisitor<HeightSamples> {
+        private final Map<BitSet, Integer> clades;
+        private final int nodeCount;
+
+        HeightCollector(Map<BitSet, Integer> clades, int nodeCount) {
+            this.clades = clades;
+            this.nodeCount = nodeCount;
+        }
+
+        public HeightSamples newResult() {
+            return new HeightSamples(nodeCount);
+        }
+
+        public void visit(HeightSamples heights, FlexibleTree tree, BitSet[] clades) {
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                NodeRef node = tree.getInternalNode(i);
+                Integer number = this.clades.get(clades[node.getNumber()]);
+                if (number != null) {
+                    heights.add(number, tree.getNodeHeight(node));
+                }
+            }
+        }
+
+        public HeightSamples merge(HeightSamples left, HeightSamples right) {
+            for (int i = 0; i < nodeCount; i++) {
+                for (int j = 0; j < right.sizes[i]; j++) {
+                    left.add(i, right.values[i][j]);
+                }
+            }
+            return left;
+        }
+    }
+
+    /**
+     * Writes the tree as a NEXUS file with a translate table and its node annotations.
+     */
+    public void writeTree(FlexibleTree tree, PrintWriter out) {
+        Map<String, Integer> idMap = new HashMap<String, Integer>();
+        out.println("#NEXUS");
+        out.println();
+        out.println("Begin taxa;");
+        out.println("\tDimensions ntax=" + taxonIds.length + ";");
+        out.println("\tTaxlabels");
+        for (String id : taxonIds) {
+            out.println("\t\t" + quote(id));
+        }
+        out.println("\t\t;");
+        out.println("End;");
+        out.println();
+        out.println("Begin trees;");
+        out.println("\tTranslate");
+        for (int i = 0; i < taxonIds.length; i++) {
+            idMap.put(taxonIds[i], i + 1);
+            out.println("\t\t" + (i + 1) + " " + quote(taxonIds[i]) + (i < taxonIds.length - 1 ? "," : ""));
+        }
+        out.println("\t\t;");
+
+        TreeTraitProvider annotations = new TreeTraitProvider.Helper(new TreeTrait[]{
+                new AttributeTrait(POSTERIOR), new AttributeTrait(HEIGHT),
+                new AttributeTrait(HEIGHT_MEDIAN), new AttributeTrait(HEIGHT_HPD)
+        });
+        NewickWriter writer = new NewickWriter(tree, false, Tree.BranchLengthType.LENGTHS_AS_TIME, null, null,
+                new TreeTraitProvider[]{annotations}, idMap);
+        out.println("tree TREE1 = [&R] " + writer.toNewick());
+        out.println("End;");
+    }
+
+    private static String quote(String id) {
+        if (id.matches(".*[\\s\\.;,\"\'].*")) {
+            return id.contains("\'") ? "\"" + id + "\"" : "\'" + id + "\'";
+        }
+        return id;
+    }
+
+    /**
+     * Writes a node attribute of the summary tree.
+     */
+    private static final class AttributeTrait extends TreeTrait.S {
+        private final String name;
+
+        AttributeTrait(String name) {
+            this.name = name;
+        }
+
+        public String getTraitName() {
+            return name;
+        }
+
+        public Intent getIntent() {
+            return Intent.NODE;
+        }
+
+        public String getTrait(Tree tree, NodeRef node) {
+            Object value = tree.getNodeAttribute(node, name);
+            if (value instanceof double[]) {
+                return TreeTrait.DA.formatTrait((double[]) value);
+            }
+            return value == null ? null : value.toString();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, Importer.ImportException {
+        Arguments arguments = new Arguments(
+                new Arguments.Option[]{
+                        new Arguments.LongOption("burnin", "the number of states to discard as burn-in"),
+                        new Arguments.StringOption("heights", new String[]{"mean", "median", "keep"}, false,
+                                "the node heights of the summary tree (default mean)"),
+                        new Arguments.IntegerOption("threads", "the number of threads (default the number of processors)"),
+                        new Arguments.Option("help", "Print this information and stop")
+                });
+
+        try {
+            arguments.parseArguments(args);
+        } catch (Arguments.ArgumentException ae) {
+            System.out.println(ae.getMessage());
+            arguments.printUsage("treesummarizer", "<input-file-name> <output-file-name>");
+            System.exit(1);
+        }
+
+        String[] files = arguments.getLeftoverArguments();
+        if (arguments.hasOption("help") || files.length != 2) {
+            arguments.printUsage("treesummarizer", "<input-file-name> <output-file-name>");
+            System.exit(0);
+        }
+
+        long burnin = arguments.hasOption("burnin") ? arguments.getLongOption("burnin") : 0;
+        int threads = arguments.hasOption("threads") ? arguments.getIntegerOption("threads")
+                : Runtime.getRuntime().availableProcessors();
+
+        TreeSummarizer summarizer = new TreeSummarizer(new File(files[0]), burnin, threads);
+        if (arguments.hasOption("heights")) {
+            summarizer.setHeightsSummary(HeightsSummary.valueOf(arguments.getStringOption("heights").toUpperCase()));
+        }
+        FlexibleTree tree = summarizer.summarize();
+        System.out.println("Summarized " + summarizer.getTreeCount() + " trees with " +
+                summarizer.getCladeCount() + " distinct clades");
+
+        PrintWriter out = new PrintWriter(new FileWriter(files[1]));
+        summarizer.writeTree(tree, out);
+        out.close();
+    }
+}
@@ -700,6 +700,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
         if (branchUpdateIndices == null) {
             branchUpdateIndices = new int[nodeCount];
             branchLengths = new double[nodeCount];
+            branchRates = new double[nodeCount];
             scaleBufferIndices = new int[internalNodeCount];
             storedScaleBufferIndices = new int[internalNodeCount];
         }
@@ -760,6 +761,8 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
             operationCount[0] = 0;
         }
 
+        branchRateModel.getBranchRates(treeModel, branchRates);
+
         final NodeRef root = treeModel.getRoot();
         traverse(treeModel, root, null, true);
 
@@ -989,7 +992,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
         // First update the transition probability matrix(ices) for this branch
         if (parent != null && updateNode[nodeNum]) {
 
-            final double branchRate = branchRateModel.getBranchRate(tree, node);
+            final double branchRate = branchRates[nodeNum];
 
             final double parentHeight = tree.getNodeHeight(parent);
             final double nodeHeight = tree.getNodeHeight(node);
@@ -1098,6 +1101,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
 
     private int[] branchUpdateIndices;
     private double[] branchLengths;
+    private double[] branchRates;
     private int branchUpdateCount;
 
     private int[] scaleBufferIndices;
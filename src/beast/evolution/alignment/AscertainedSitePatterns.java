@@ -177,15 +177,15 @@ public class AscertainedSitePatterns extends SitePatterns {
     }
 
     private int addAscertainmentPattern(int[] pattern) {
-        for (int i = 0; i < patternCount; i++) {
-            if (comparePatterns(patterns[i], pattern)) {
-                return i;
-            }
+        final int existing = findPattern(pattern);
+        if (existing >= 0) {
+            return existing;
         }
         int index = patternCount;
         patterns[index] = pattern;
         weights[index] = 0.0;  /* do not affect weight */
         patternCount++;
+        indexPattern(pattern, index);
 
         return index;
     }
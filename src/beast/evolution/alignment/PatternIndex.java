@@ -0,0 +1,117 @@
+/*
+ * PatternIndex.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evolution.alignment;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A hash index from site patterns to their position in a pattern list, used to
+ * find duplicate patterns without comparing against every existing pattern.
+ * Also reads blocks of site patterns from a SiteList in parallel.
+ *
+ * @author BEAST Developers
+ */
+final class PatternIndex {
+
+    /**
+     * the number of sites read and hashed at a time
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    private static final int TAXON_BLOCK_SIZE = 64;
+
+    private final Map<Key, Integer> map = new HashMap<Key, Integer>();
+
+    /**
+     * @return the index of the pattern, or -1 if it is not in the index
+     */
+    int get(int[] pattern) {
+        return get(pattern, Arrays.hashCode(pattern));
+    }
+
+    int get(int[] pattern, int hash) {
+        final Integer index = map.get(new Key(pattern, hash));
+        return index != null ? index : -1;
+    }
+
+    void put(int[] pattern, int index) {
+        put(pattern, Arrays.hashCode(pattern), index);
+    }
+
+    void put(int[] pattern, int hash, int index) {
+        map.put(new Key(pattern, hash), index);
+    }
+
+    void remove(int[] pattern) {
+        map.remove(new Key(pattern, Arrays.hashCode(pattern)));
+    }
+
+    void clear() {
+        map.clear();
+    }
+
+    /**
+     * Reads the patterns of the given sites, and their hash codes, into the arrays provided.
+     * Taxa are read in parallel (so that each thread touches separate sequences) and the
+     * patterns are then hashed in parallel. Missing sites are read as gaps.
+     */
+    static void readSitePatterns(final SiteList siteList, final int[] sites, final int offset, final int count,
+                                 final int[][] patterns, final int[] hashes) {
+        final int taxonCount = siteList.getPatternLength();
+        for (int k = 0; k < count; k++) {
+            patterns[k] = new int[taxonCount];
+        }
+
+        final int taxonBlocks = (taxonCount + TAXON_BLOCK_SIZE - 1) / TAXON_BLOCK_SIZE;
+        IntStream.range(0, taxonBlocks).parallel().forEach(block -> {
+            final int end = Math.min(taxonCount, (block + 1) * TAXON_BLOCK_SIZE);
+            for (int taxon = block * TAXON_BLOCK_SIZE; taxon < end; taxon++) {
+                for (int k = 0; k < count; k++) {
+                    patterns[k][taxon] = siteList.getState(taxon, sites[offset + k]);
+                }
+            }
+        });
+
+        IntStream.range(0, count).parallel().forEach(k -> hashes[k] = Arrays.hashCode(patterns[k]));
+    }
+
+    private static final class Key {
+
+        private final int[] pattern;
+        private final int hash;
+
+        Key(int[] pattern, int hash) {
+            this.pattern = pattern;
+            this.hash = hash;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(((Key) o).pattern, pattern);
+        }
+    }
+}
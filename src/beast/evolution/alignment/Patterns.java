@@ -34,6 +34,7 @@ import beast.xml.XMLParser;
 import beast.xml.XMLSyntaxRule;
 import beast.xml.XORRule;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -76,6 +77,8 @@ public class Patterns implements PatternList {
 
     protected TaxonList taxonList = null;
 
+    private transient PatternIndex patternIndex = null;
+
     /**
      * Constructor
      */
@@ -146,6 +149,7 @@ public class Patterns implements PatternList {
             weights = newWeights;
 
             patternCount = newPatternCount;
+            patternIndex = null;
         }
     }
 
@@ -185,16 +189,31 @@ public class Patterns implements PatternList {
         if (every <= 0)
             every = 1;
 
-        for (int i = from; i <= to; i += every) {
-            int[] pattern = siteList.getSitePattern(i);
+        final int[] sites = new int[(to - from) / every + 1];
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = from + i * every;
+        }
 
-            // don't add patterns that are all gaps or all ambiguous
-            if (pattern != null && (!isInvariant(pattern) ||
-                    (!isGapped(pattern) &&
-                            !isAmbiguous(pattern) &&
-                            !isUnknown(pattern)))) {
+        // blocks of sites are read and hashed in parallel, then added in order
+        final int blockSize = Math.min(PatternIndex.BLOCK_SIZE, sites.length);
+        final int[][] block = new int[blockSize][];
+        final int[] hashes = new int[blockSize];
+
+        for (int offset = 0; offset < sites.length; offset += blockSize) {
+            final int count = Math.min(blockSize, sites.length - offset);
+            PatternIndex.readSitePatterns(siteList, sites, offset, count, block, hashes);
 
-                addPattern(pattern, 1.0);
+            for (int k = 0; k < count; k++) {
+                final int[] pattern = block[k];
+
+                // don't add patterns that are all gaps or all ambiguous
+                if (!isInvariant(pattern) ||
+                        (!isGapped(pattern) &&
+                                !isAmbiguous(pattern) &&
+                                !isUnknown(pattern))) {
+
+                    addPattern(pattern, 1.0, hashes[k]);
+                }
             }
         }
 
@@ -246,6 +265,10 @@ public class Patterns implements PatternList {
      * adds a pattern to the pattern list
      */
     public void addPattern(int[] pattern, double weight) {
+        addPattern(pattern, weight, Arrays.hashCode(pattern));
+    }
+
+    private void addPattern(int[] pattern, double weight, int hash) {
 
         if (patternLength == 0) {
             patternLength = pattern.length;
@@ -255,13 +278,10 @@ public class Patterns implements PatternList {
             throw new IllegalArgumentException("Added pattern's length (" + pattern.length + ") does not match those of existing patterns (" + patternLength + ")");
         }
 
-        for (int i = 0; i < patternCount; i++) {
-
-            if (comparePatterns(patterns[i], pattern)) {
-
-                weights[i] += weight;
-                return;
-            }
+        final int existing = getPatternIndex().get(pattern, hash);
+        if (existing >= 0) {
+            weights[existing] += weight;
+            return;
         }
 
         if (patternCount == patterns.length) {
@@ -277,6 +297,7 @@ public class Patterns implements PatternList {
 
         patterns[patternCount] = pattern;
         weights[patternCount] = weight;
+        getPatternIndex().put(pattern, hash, patternCount);
         patternCount++;
     }
 
@@ -285,23 +306,21 @@ public class Patterns implements PatternList {
      */
     public void removePattern(int[] pattern) {
 
-        int index = -1;
-        for (int i = 0; i < patternCount; i++) {
-
-            if (comparePatterns(patterns[i], pattern)) {
-                index = i;
-                break;
-            }
-        }
+        final PatternIndex index = getPatternIndex();
+        final int i = index.get(pattern);
 
-        if (index == -1) throw new IllegalArgumentException("Pattern not found");
+        if (i == -1) throw new IllegalArgumentException("Pattern not found");
 
-        weights[index] -= 1;
-        if (weights[index] == 0 && patternCount > 1) {
-            patterns[index] = patterns[patternCount - 1];
+        weights[i] -= 1;
+        if (weights[i] == 0 && patternCount > 1) {
+            index.remove(patterns[i]);
+            patterns[i] = patterns[patternCount - 1];
             patterns[patternCount - 1] = null;
-            weights[index] = weights[patternCount - 1];
+            weights[i] = weights[patternCount - 1];
             patternCount--;
+            if (i < patternCount) {
+                index.put(patterns[i], i);
+            }
         }
 
     }
@@ -312,6 +331,18 @@ public class Patterns implements PatternList {
     public void removeAllPatterns() {
         patternCount = 0;
         for (int i = 0; i < patterns.length; i++) patterns[i] = null;
+        patternIndex = null;
+    }
+
+    private PatternIndex getPatternIndex() {
+        if (patternIndex == null) {
+            // not checkpointed, so rebuilt on first use after resuming
+            patternIndex = new PatternIndex();
+            for (int i = 0; i < patternCount; i++) {
+                patternIndex.put(patterns[i], i);
+            }
+        }
+        return patternIndex;
     }
 
     /**
@@ -25,11 +25,14 @@ package beast.evolution.alignment;
 
 import beast.evolution.datatype.DataType;
 import beast.evolution.datatype.Nucleotides;
+import beast.evolution.io.FastaImporter;
 import beast.evolution.sequence.Sequence;
 import beast.evolution.sequence.Sequences;
 import beast.evolution.util.Taxon;
 import beast.evolution.util.TaxonList;
+import beast.util.FileHelpers;
 import beast.xml.AbstractXMLObjectParser;
+import beast.xml.AttributeRule;
 import beast.xml.ElementRule;
 import beast.xml.StringAttributeRule;
 import beast.xml.XMLObject;
@@ -39,6 +42,8 @@ import beast.xml.XMLParser;
 import beast.xml.XMLSyntaxRule;
 import beast.xml.XORRule;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
@@ -630,6 +635,19 @@ public class SimpleAlignment extends Sequences implements Alignment, beast.util.
                 }
             }
 
+            if (xo.hasAttribute(FileHelpers.FILE_NAME)) {
+                final File file = FileHelpers.getFile(xo.getStringAttribute(FileHelpers.FILE_NAME));
+                try {
+                    FastaImporter.importAlignment(file, alignment);
+                } catch (IOException | IllegalArgumentException e) {
+                    throw new XMLParseException("Unable to read FASTA file " + file + ": " + e.getMessage());
+                }
+            }
+
+            if (alignment.getSequenceCount() == 0) {
+                throw new XMLParseException("alignment element has no sequences");
+            }
+
             final java.util.logging.Logger logger = java.util.logging.Logger.getLogger("beast.evoxml");
             logger.info("Read alignment" + (xo.hasAttribute(XMLParser.ID) ? ": " + xo.getId() : "") +
                     "\n  Sequences = " + alignment.getSequenceCount() +
@@ -640,7 +658,9 @@ public class SimpleAlignment extends Sequences implements Alignment, beast.util.
         }
 
         public String getParserDescription() {
-            return "This element represents an alignment of molecular sequences.";
+            return "This element represents an alignment of molecular sequences, given as sequence " +
+                    "elements and/or read from the FASTA file named by the fileName attribute. Taxa for " +
+                    "sequences read from a file are created from the FASTA names.";
         }
 
         public Class getReturnType() {
@@ -679,7 +699,9 @@ public class SimpleAlignment extends Sequences implements Alignment, beast.util.
                                 DataType.getRegisteredDataTypeNames(), false),
                         new ElementRule(DataType.class)
                 ),
-                new ElementRule(Sequence.class, 1, Integer.MAX_VALUE)
+                AttributeRule.newStringRule(FileHelpers.FILE_NAME, true,
+                        "A FASTA file of sequences to add to the alignment"),
+                new ElementRule(Sequence.class, 0, Integer.MAX_VALUE)
         };
     };
 }// END: class
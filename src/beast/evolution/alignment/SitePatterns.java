@@ -36,6 +36,7 @@ import beast.xml.XMLParser;
 import beast.xml.XMLSyntaxRule;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
@@ -97,6 +98,8 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
 
     protected boolean unique = true; // Compress into weighted list of unique patterns
 
+    private transient PatternIndex patternIndex = null;
+
     /**
      * Constructor
      */
@@ -254,6 +257,7 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
         siteCount = ((to - from) / every) + 1;
 
         patternCount = 0;
+        patternIndex = null;
 
         patterns = new int[siteCount][];
 
@@ -275,23 +279,11 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
             }
         }
 
-        int site = 0;
-
-        for (int i = from; i <= to; i += every) {
-            int[] pattern = siteList.getSitePattern(i);
-
-            if (!strip || !isInvariant(pattern) ||
-                    (!isGapped(pattern) &&
-                            !isAmbiguous(pattern) &&
-                            !isUnknown(pattern))) {
-
-                sitePatternIndices[site] = addPattern(pattern);
-
-            }  else {
-                sitePatternIndices[site] = -1;
-            }
-            site++;
+        final int[] sites = new int[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            sites[i] = from + i * every;
         }
+        addSitePatterns(siteList, sites);
     }
 
     /**
@@ -311,6 +303,7 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
         siteCount = siteList.getSiteCount();
 
         patternCount = 0;
+        patternIndex = null;
 
         patterns = new int[siteCount][];
 
@@ -318,26 +311,44 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
         weights = new double[siteCount];
 
         invariantCount = 0;
-        int[] pattern;
-
-        int site = 0;
 
+        int maskedCount = 0;
+        final int[] sites = new int[siteCount];
         for (int i = from; i <= to; i += every) {
-            pattern = siteList.getSitePattern(i);
-
             if (mask[i]) {
+                sites[maskedCount] = i;
+                maskedCount++;
+            }
+        }
+        addSitePatterns(siteList, Arrays.copyOf(sites, maskedCount));
+    }
+
+    /**
+     * Adds the patterns of the given sites in order. Blocks of sites are read and hashed
+     * in parallel and then merged sequentially, so the resulting pattern order is the same
+     * as adding the sites one at a time.
+     */
+    private void addSitePatterns(final SiteList siteList, final int[] sites) {
+        final int blockSize = Math.min(PatternIndex.BLOCK_SIZE, sites.length);
+        final int[][] block = new int[blockSize][];
+        final int[] hashes = new int[blockSize];
+
+        for (int offset = 0; offset < sites.length; offset += blockSize) {
+            final int count = Math.min(blockSize, sites.length - offset);
+            PatternIndex.readSitePatterns(siteList, sites, offset, count, block, hashes);
+
+            for (int k = 0; k < count; k++) {
+                final int[] pattern = block[k];
                 if (!strip || !isInvariant(pattern) ||
                         (!isGapped(pattern) &&
                                 !isAmbiguous(pattern) &&
-                                !isUnknown(pattern))
-                        ) {
+                                !isUnknown(pattern))) {
 
-                    sitePatternIndices[site] = addPattern(pattern);
+                    sitePatternIndices[offset + k] = addPattern(pattern, 1, hashes[k]);
 
                 }  else {
-                    sitePatternIndices[site] = -1;
+                    sitePatternIndices[offset + k] = -1;
                 }
-                site++;
             }
         }
     }
@@ -358,11 +369,14 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
      * @return the index of the pattern in the pattern list
      */
     private int addPattern(int[] pattern, int weight) {
+        return addPattern(pattern, weight, Arrays.hashCode(pattern));
+    }
 
-        for (int i = 0; i < patternCount; i++) {
-
-            if (unique && comparePatterns(patterns[i], pattern)) {
+    private int addPattern(int[] pattern, int weight, int hash) {
 
+        if (unique) {
+            final int i = getPatternIndex().get(pattern, hash);
+            if (i >= 0) {
                 weights[i] += weight;
                 return i;
             }
@@ -377,9 +391,40 @@ public class SitePatterns implements SiteList, beast.util.XHTMLable {
         weights[index] = weight;
         patternCount++;
 
+        if (unique) {
+            getPatternIndex().put(pattern, hash, index);
+        }
+
         return index;
     }
 
+    /**
+     * @return the index of an identical pattern already in the list, or -1
+     */
+    protected int findPattern(int[] pattern) {
+        return getPatternIndex().get(pattern);
+    }
+
+    /**
+     * Records a pattern added directly to the patterns array by a subclass.
+     */
+    protected void indexPattern(int[] pattern, int index) {
+        getPatternIndex().put(pattern, index);
+    }
+
+    private PatternIndex getPatternIndex() {
+        if (patternIndex == null) {
+            // not checkpointed, so rebuilt on first use after resuming
+            patternIndex = new PatternIndex();
+            for (int i = 0; i < patternCount; i++) {
+                if (patternIndex.get(patterns[i]) < 0) {
+                    patternIndex.put(patterns[i], i);
+                }
+            }
+        }
+        return patternIndex;
+    }
+
     /**
      * @return true if the pattern is invariant
      */
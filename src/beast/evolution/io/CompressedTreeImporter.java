@@ -0,0 +1,337 @@
+/*
+ * CompressedTreeImporter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.io;
+
+import beast.evolution.tree.SimpleNode;
+import beast.evolution.tree.SimpleTree;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeTrait;
+import beast.evolution.util.Taxon;
+import beast.evolution.util.TaxonList;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads tree files written by CompressedTreeWriter. Blocks are inflated one at a time
+ * as the file is read, and a sample is only turned into a tree when it is imported,
+ * so trees can be counted or skipped cheaply. A truncated final block, as left by an
+ * interrupted run, is ignored.
+ *
+ * @author BEAST Developers
+ */
+public class CompressedTreeImporter implements TreeImporter {
+
+    private final DataInputStream in;
+    private final String[] taxonIds;
+    private final String[] traitNames;
+    private final TreeTrait.Intent[] traitIntents;
+    private final List<int[]> topologies = new ArrayList<int[]>();
+
+    private DataInputStream block = null;
+    private long validLength;
+    private boolean finished = false;
+
+    // the sample that hasTree has read ahead
+    private boolean pending = false;
+    private long state;
+    private int topology;
+    private double[] heights;
+    private Object[][] traitValues;
+    private String[] attributes;
+
+    public CompressedTreeImporter(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        try {
+            if (in.readInt() != CompressedTreeWriter.MAGIC) {
+                throw new IOException("Not a compressed tree file");
+            }
+            int version = in.readInt();
+            if (version != CompressedTreeWriter.VERSION) {
+                throw new IOException("Unsupported compressed tree file version " + version);
+            }
+            taxonIds = new String[in.readInt()];
+            validLength = 12;
+            for (int i = 0; i < taxonIds.length; i++) {
+                taxonIds[i] = in.readUTF();
+                validLength += 2 + utfLength(taxonIds[i]);
+            }
+            traitNames = new String[in.readInt()];
+            traitIntents = new TreeTrait.Intent[traitNames.length];
+            validLength += 4;
+            for (int i = 0; i < traitNames.length; i++) {
+                traitNames[i] = in.readUTF();
+                traitIntents[i] = TreeTrait.Intent.values()[in.readByte()];
+                validLength += 3 + utfLength(traitNames[i]);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated compressed tree file header", e);
+        }
+    }
+
+    public String[] getTaxonIds() {
+        return taxonIds.clone();
+    }
+
+    public String[] getTraitNames() {
+        return traitNames.clone();
+    }
+
+    /**
+     * @return the topologies read so far, in order of id
+     */
+    public List<int[]> getTopologies() {
+        return Collections.unmodifiableList(topologies);
+    }
+
+    /**
+     * @return the length of the file up to the end of the last complete block read
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    /**
+     * @return the state of the next tree; only valid after hasTree returns true
+     */
+    public long getNextState() {
+        if (!pending) throw new IllegalStateException("No tree has been read ahead");
+        return state;
+    }
+
+    /**
+     * Discards the next tree without building it.
+     */
+    public void skipTree() throws IOException {
+        if (hasTree()) {
+            pending = false;
+        }
+    }
+
+    public boolean hasTree() throws IOException {
+        if (pending) return true;
+
+        while (!finished) {
+            if (block == null || block.available() == 0) {
+                if (!readBlock()) {
+                    finished = true;
+                    break;
+                }
+                continue;
+            }
+
+            byte type = block.readByte();
+            if (type == CompressedTreeWriter.TOPOLOGY) {
+                int[] codes = new int[block.readInt()];
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] = block.readInt();
+                }
+                topologies.add(codes);
+            } else if (type == CompressedTreeWriter.SAMPLE) {
+                readSample();
+                pending = true;
+                return true;
+            } else {
+                throw new IOException("Corrupt compressed tree file: unknown record " + type);
+            }
+        }
+        return false;
+    }
+
+    public Tree importNextTree() throws IOException {
+        return importNextTree(null);
+    }
+
+    public Tree importTree(TaxonList taxonList) throws IOException {
+        return importNextTree(taxonList);
+    }
+
+    public Tree[] importTrees(TaxonList taxonList) throws IOException {
+        List<Tree> trees = new ArrayList<Tree>();
+        while (hasTree()) {
+            trees.add(importNextTree(taxonList));
+        }
+        return trees.toArray(new Tree[trees.size()]);
+    }
+
+    /**
+     * @param taxonList taxa to use for the tips, matched by id, or null to create them
+     * @return the next tree, or null if there are no more
+     */
+    public Tree importNextTree(TaxonList taxonList) throws IOException {
+        if (!hasTree()) return null;
+        pending = false;
+
+        int[] codes = topologies.get(topology);
+        SimpleNode[] stack = new SimpleNode[codes.length];
+        int top = 0;
+        for (int i = 0; i < codes.length; i++) {
+            SimpleNode node = new SimpleNode();
+            if (codes[i] >= 0) {
+                node.setTaxon(getTaxon(codes[i], taxonList));
+            } else {
+                int childCount = -codes[i];
+                top -= childCount;
+                for (int j = 0; j < childCount; j++) {
+                    node.addChild(stack[top + j]);
+                }
+            }
+            node.setHeight(heights[i]);
+            for (int t = 0; t < traitNames.length; t++) {
+                if (traitValues[t][i] != null) {
+                    node.setAttribute(traitNames[t], traitValues[t][i]);
+                }
+            }
+            stack[top++] = node;
+        }
+
+        SimpleTree tree = new SimpleTree(stack[0]);
+        tree.setId("STATE_" + state);
+        for (int i = 0; i + 1 < attributes.length; i += 2) {
+            tree.setAttribute(attributes[i], attributes[i + 1]);
+        }
+        return tree;
+    }
+
+    private Taxon getTaxon(int index, TaxonList taxonList) throws IOException {
+        if (taxonList == null) {
+            return new Taxon(taxonIds[index]);
+        }
+        int i = taxonList.getTaxonIndex(taxonIds[index]);
+        if (i < 0) {
+            throw new IOException("Unknown taxon " + taxonIds[index]);
+        }
+        return taxonList.getTaxon(i);
+    }
+
+    private void readSample() throws IOException {
+        state = block.readLong();
+        topology = block.readInt();
+        if (topology < 0 || topology >= topologies.size()) {
+            throw new IOException("Corrupt compressed tree file: unknown topology " + topology);
+        }
+        int nodeCount = topologies.get(topology).length;
+        heights = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            heights[i] = block.readDouble();
+        }
+        traitValues = new Object[traitNames.length][nodeCount];
+        for (int t = 0; t < traitNames.length; t++) {
+            for (int i = 0; i < nodeCount; i++) {
+                traitValues[t][i] = readValue();
+            }
+        }
+        attributes = new String[2 * block.readInt()];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = block.readUTF();
+        }
+    }
+
+    private Object readValue() throws IOException {
+        byte tag = block.readByte();
+        switch (tag) {
+            case CompressedTreeWriter.NULL_VALUE:
+                return null;
+            case CompressedTreeWriter.DOUBLE_VALUE:
+                return block.readDouble();
+            case CompressedTreeWriter.INTEGER_VALUE:
+                return block.readInt();
+            case CompressedTreeWriter.DOUBLE_ARRAY_VALUE: {
+                double[] values = new double[block.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = block.readDouble();
+                }
+                return values;
+            }
+            case CompressedTreeWriter.INTEGER_ARRAY_VALUE: {
+                int[] values = new int[block.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = block.readInt();
+                }
+                return values;
+            }
+            case CompressedTreeWriter.STRING_VALUE:
+                return block.readUTF();
+            default:
+                throw new IOException("Corrupt compressed tree file: unknown value " + tag);
+        }
+    }
+
+    /**
+     * @return false at the end of the file or at a truncated block
+     */
+    private boolean readBlock() throws IOException {
+        final int rawLength;
+        final byte[] compressed;
+        try {
+            rawLength = in.readInt();
+            int length = in.readInt();
+            if (rawLength < 0 || length < 0) {
+                throw new IOException("Corrupt compressed tree file block");
+            }
+            compressed = new byte[length];
+            in.readFully(compressed);
+        } catch (EOFException e) {
+            return false;
+        }
+
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < rawLength) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Corrupt compressed tree file block");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed tree file block", e);
+        } finally {
+            inflater.end();
+        }
+
+        validLength += 8 + compressed.length;
+        block = new DataInputStream(new ByteArrayInputStream(raw));
+        return true;
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * CompressedTreeWriter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.io;
+
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeTrait;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a sample of trees in a compact binary form. Each distinct rooted topology is
+ * written once, as a canonical postorder encoding in which children are ordered by
+ * the smallest taxon below them; each sample then refers to its topology by id and
+ * stores the node heights and trait values in that canonical node order. Records
+ * are gathered into independently deflated blocks, so a file can be appended to and
+ * a truncated final block can be dropped. See CompressedTreeImporter for the reader.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ * int MAGIC, int VERSION, int taxonCount, taxonCount x UTF taxon id,
+ * int traitCount, traitCount x (UTF name, byte intent)
+ * block*: int rawLength, int compressedLength, deflated records
+ * record: byte TOPOLOGY, int nodeCount, nodeCount x int code
+ *                (a tip's taxon index, or minus the number of children of an internal node)
+ *       | byte SAMPLE, long state, int topology, nodeCount x double height,
+ *                traitCount x nodeCount x tagged value, int attributeCount, attributeCount x (UTF, UTF)
+ * </pre>
+ *
+ * @author BEAST Developers
+ */
+public class CompressedTreeWriter {
+
+    public static final int MAGIC = 0x42335454; // "B3TT"
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".ctrees";
+
+    static final byte TOPOLOGY = 1;
+    static final byte SAMPLE = 2;
+
+    static final byte NULL_VALUE = 0;
+    static final byte DOUBLE_VALUE = 1;
+    static final byte INTEGER_VALUE = 2;
+    static final byte DOUBLE_ARRAY_VALUE = 3;
+    static final byte INTEGER_ARRAY_VALUE = 4;
+    static final byte STRING_VALUE = 5;
+
+    private static final int BLOCK_BYTES = 1 << 20;
+
+    /**
+     * A topology's canonical encoding, compared by content.
+     */
+    static final class Topology {
+        final int[] codes;
+        private final int hash;
+
+        Topology(int[] codes) {
+            this.codes = codes;
+            this.hash = Arrays.hashCode(codes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Topology && hash == ((Topology) o).hash && Arrays.equals(codes, ((Topology) o).codes);
+        }
+    }
+
+    private final OutputStream out;
+    private final String[] taxonIds;
+    private final Map<String, Integer> taxonIndices = new HashMap<String, Integer>();
+    private final TreeTrait[] traits;
+    private final Map<Topology, Integer> topologies = new HashMap<Topology, Integer>();
+
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + (BLOCK_BYTES >> 2));
+    private final DataOutputStream records = new DataOutputStream(block);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] compressed = new byte[BLOCK_BYTES];
+
+    private NodeRef[] order = new NodeRef[0];
+    private int[] codes = new int[0];
+    private int[] minTaxon = new int[0];
+    private int orderCount;
+
+    /**
+     * Starts a new file.
+     *
+     * @param taxonIds the ids of the taxa, ideally indexed by tip node number
+     * @param traits   the traits to store for every node
+     */
+    public CompressedTreeWriter(OutputStream out, String[] taxonIds, TreeTrait[] traits) throws IOException {
+        this(out, taxonIds, traits, Collections.<int[]>emptyList());
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(taxonIds.length);
+        for (String id : taxonIds) {
+            header.writeUTF(id);
+        }
+        header.writeInt(traits.length);
+        for (TreeTrait trait : traits) {
+            header.writeUTF(trait.getTraitName());
+            header.writeByte(trait.getIntent().ordinal());
+        }
+        header.flush();
+    }
+
+    /**
+     * Appends to an existing file, which must already have been truncated to its last
+     * complete block.
+     *
+     * @param taxonIds   the ids of the taxa in the file
+     * @param topologies the topologies already in the file, in order of id
+     */
+    public CompressedTreeWriter(OutputStream out, String[] taxonIds, TreeTrait[] traits, List<int[]> topologies) {
+        this.out = out;
+        this.taxonIds = taxonIds;
+        this.traits = traits;
+        for (int i = 0; i < taxonIds.length; i++) {
+            taxonIndices.put(taxonIds[i], i);
+        }
+        for (int[] topology : topologies) {
+            this.topologies.put(new Topology(topology), this.topologies.size());
+        }
+    }
+
+    public int getTopologyCount() {
+        return topologies.size();
+    }
+
+    /**
+     * Adds a tree to the current block, along with its topology if it is new.
+     *
+     * @param attributes alternating labels and values of tree-wide attributes, or null
+     */
+    public void writeTree(long state, Tree tree, String[] attributes) throws IOException {
+        int nodeCount = tree.getNodeCount();
+        if (order.length != nodeCount) {
+            order = new NodeRef[nodeCount];
+            codes = new int[nodeCount];
+            minTaxon = new int[nodeCount];
+        }
+
+        computeMinTaxon(tree, tree.getRoot());
+        orderCount = 0;
+        canonicalize(tree, tree.getRoot());
+
+        Topology probe = new Topology(codes);
+        Integer id = topologies.get(probe);
+        if (id == null) {
+            id = topologies.size();
+            topologies.put(new Topology(codes.clone()), id);
+
+            records.writeByte(TOPOLOGY);
+            records.writeInt(nodeCount);
+            for (int code : codes) {
+                records.writeInt(code);
+            }
+        }
+
+        records.writeByte(SAMPLE);
+        records.writeLong(state);
+        records.writeInt(id);
+        for (int i = 0; i < nodeCount; i++) {
+            records.writeDouble(tree.getNodeHeight(order[i]));
+        }
+        for (TreeTrait trait : traits) {
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = order[i];
+                Object value = trait.getIntent() == TreeTrait.Intent.BRANCH && tree.isRoot(node) ?
+                        null : trait.getTrait(tree, node);
+                writeValue(value);
+            }
+        }
+        if (attributes == null) {
+            records.writeInt(0);
+        } else {
+            records.writeInt(attributes.length / 2);
+            for (String attribute : attributes) {
+                records.writeUTF(attribute);
+            }
+        }
+
+        if (block.size() >= BLOCK_BYTES) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes out the current block.
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        try {
+            writeBlock();
+            out.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The index of a tip's taxon in the file; tips are normally numbered in taxon order.
+     */
+    private int taxonIndex(Tree tree, NodeRef tip) {
+        int k = tip.getNumber();
+        String id = tree.getTaxonId(k);
+        if (k < taxonIds.length && taxonIds[k].equals(id)) {
+            return k;
+        }
+        Integer index = taxonIndices.get(id);
+        if (index == null) {
+            throw new IllegalArgumentException("Taxon " + id + " is not in the tree log");
+        }
+        return index;
+    }
+
+    private int computeMinTaxon(Tree tree, NodeRef node) {
+        if (tree.isExternal(node)) {
+            return taxonIndex(tree, node);
+        }
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < tree.getChildCount(node); i++) {
+            min = Math.min(min, computeMinTaxon(tree, tree.getChild(node, i)));
+        }
+        minTaxon[node.getNumber()] = min;
+        return min;
+    }
+
+    private int minTaxonBelow(Tree tree, NodeRef node) {
+        return tree.isExternal(node) ? taxonIndex(tree, node) : minTaxon[node.getNumber()];
+    }
+
+    /**
+     * Fills order and codes with the nodes in canonical postorder.
+     */
+    private void canonicalize(Tree tree, NodeRef node) {
+        int childCount = tree.getChildCount(node);
+        if (childCount == 0) {
+            order[orderCount] = node;
+            codes[orderCount] = taxonIndex(tree, node);
+            orderCount++;
+            return;
+        }
+
+        if (childCount == 2) {
+            NodeRef first = tree.getChild(node, 0);
+            NodeRef second = tree.getChild(node, 1);
+            if (minTaxonBelow(tree, first) > minTaxonBelow(tree, second)) {
+                canonicalize(tree, second);
+                canonicalize(tree, first);
+            } else {
+                canonicalize(tree, first);
+                canonicalize(tree, second);
+            }
+        } else {
+            NodeRef[] children = new NodeRef[childCount];
+            for (int i = 0; i < childCount; i++) {
+                children[i] = tree.getChild(node, i);
+            }
+            Arrays.sort(children, (a, b) -> Integer.compare(minTaxonBelow(tree, a), minTaxonBelow(tree, b)));
+            for (NodeRef child : children) {
+                canonicalize(tree, child);
+            }
+        }
+
+        order[orderCount] = node;
+        codes[orderCount] = -childCount;
+        orderCount++;
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            records.writeByte(NULL_VALUE);
+        } else if (value instanceof Double || value instanceof Float) {
+            records.writeByte(DOUBLE_VALUE);
+            records.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Integer) {
+            records.writeByte(INTEGER_VALUE);
+            records.writeInt((Integer) value);
+        } else if (value instanceof double[]) {
+            double[] values = (double[]) value;
+            records.writeByte(DOUBLE_ARRAY_VALUE);
+            records.writeInt(values.length);
+            for (double v : values) {
+                records.writeDouble(v);
+            }
+        } else if (value instanceof int[]) {
+            int[] values = (int[]) value;
+            records.writeByte(INTEGER_ARRAY_VALUE);
+            records.writeInt(values.length);
+            for (int v : values) {
+                records.writeInt(v);
+            }
+        } else {
+            records.writeByte(STRING_VALUE);
+            records.writeUTF(value.toString());
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.size() == 0) return;
+
+        records.flush();
+        byte[] raw = block.toByteArray();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(raw.length);
+        header.writeInt(length);
+        out.write(compressed, 0, length);
+        block.reset();
+    }
+}
@@ -28,9 +28,15 @@ import beast.evolution.sequence.SequenceList;
 import beast.evolution.util.Taxon;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Class for importing PHYLIP sequential file format
@@ -97,6 +103,100 @@ public class FastaImporter extends Importer implements SequenceImporter {
         return importAlignment();
     }
 
+    /**
+     * Imports an alignment by memory-mapping the file and copying each sequence's
+     * symbols straight into the byte storage of a Sequence, bypassing the character
+     * reader. Produces the same alignment as the reader-based importAlignment.
+     */
+    public static Alignment importAlignment(File file) throws IOException {
+        SimpleAlignment alignment = new SimpleAlignment();
+        importAlignment(file, alignment);
+        return alignment.getSequenceCount() > 0 ? alignment : null;
+    }
+
+    /**
+     * Memory-maps a FASTA file and adds its sequences to the given alignment, whose
+     * data type (if already set) is used to check them. Used by the alignment parser
+     * for its fileName attribute.
+     */
+    public static void importAlignment(File file, SimpleAlignment alignment) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedInput in = new MappedInput(raf.getChannel());
+
+            int b = in.read();
+            while (b != -1 && b != FASTA_FIRST_CHAR) {
+                b = in.read();
+            }
+
+            byte[] name = new byte[256];
+            int capacity = 1024;
+            while (b == FASTA_FIRST_CHAR) {
+                int nameLength = 0;
+                b = in.read();
+                while (b != -1 && b != '\n' && b != '\r') {
+                    if (nameLength == name.length) {
+                        name = Arrays.copyOf(name, name.length * 2);
+                    }
+                    name[nameLength++] = (byte) b;
+                    b = in.read();
+                }
+
+                // sequences in an alignment share a length, so size the buffer on the last one
+                byte[] symbols = new byte[capacity];
+                int length = 0;
+                while (b != -1 && b != FASTA_FIRST_CHAR) {
+                    if (!Character.isWhitespace(b)) {
+                        if (b >= 'a' && b <= 'z') {
+                            b -= 'a' - 'A';
+                        }
+                        if (length == symbols.length) {
+                            symbols = Arrays.copyOf(symbols, symbols.length * 2);
+                        }
+                        symbols[length++] = (byte) b;
+                    }
+                    b = in.read();
+                }
+                if (length != symbols.length) {
+                    symbols = Arrays.copyOf(symbols, length);
+                }
+                capacity = Math.max(length, 1);
+
+                String taxon = new String(name, 0, nameLength, StandardCharsets.UTF_8).trim();
+                alignment.addSequence(new Sequence(new Taxon(taxon), symbols, length));
+            }
+        }
+    }
+
+    /**
+     * Sequential byte reader over a file channel, mapping it in windows so that
+     * files larger than a single mapping can be read.
+     */
+    private static final class MappedInput {
+        private static final long WINDOW = 1L << 30;
+
+        private final FileChannel channel;
+        private final long size;
+        private long position = 0;
+        private MappedByteBuffer buffer = null;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        int read() throws IOException {
+            if (buffer == null || !buffer.hasRemaining()) {
+                if (position >= size) {
+                    return -1;
+                }
+                long length = Math.min(WINDOW, size - position);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                position += length;
+            }
+            return buffer.get() & 0xFF;
+        }
+    }
+
     private DataType dataType;
     private int maxNameLength = 10;
 }
\ No newline at end of file
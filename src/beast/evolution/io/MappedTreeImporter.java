@@ -0,0 +1,771 @@
+/*
+ * MappedTreeImporter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.io;
+
+import beast.evolution.tree.FlexibleNode;
+import beast.evolution.tree.FlexibleTree;
+import beast.evolution.tree.Tree;
+import beast.evolution.util.Taxon;
+import beast.evolution.util.TaxonList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the trees of a NEXUS tree log (or a file of newick trees) from a memory-mapped
+ * file. The header and TRANSLATE table are read once and trees are parsed one at a time,
+ * directly from the mapped bytes, as they are requested. Taxa are shared between the
+ * trees. The trees are FlexibleTrees numbered as NexusImporter numbers them.
+ * <p>
+ * With setTopologyOnly, comments and node labels are skipped so only the topology and
+ * branch lengths are read. A file can be divided with split into byte ranges that start
+ * at tree statements, and each range can then be read by its own importer in parallel.
+ *
+ * @author BEAST Developers
+ */
+public class MappedTreeImporter implements TreeImporter {
+
+    private static final long WINDOW = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long end;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long windowLength = 0;
+
+    private final boolean nexus;
+    private final long firstTree;
+    private long position;
+
+    // the TRANSLATE table, as labels and taxon names, resolved against a taxon list on first use
+    private final Map<String, String> translateTable = new LinkedHashMap<String, String>();
+    private Map<String, Taxon> translation = null;
+    private Map<Taxon, Integer> taxonNumberMap = null;
+    private final Map<String, Taxon> taxa = new HashMap<String, Taxon>();
+
+    private boolean topologyOnly = false;
+    private boolean finished = false;
+    private Tree nextTree = null;
+
+    // reused while parsing
+    private final List<FlexibleNode> stack = new ArrayList<FlexibleNode>();
+    private final StringBuilder token = new StringBuilder();
+    private byte[] bytes = new byte[256];
+
+    public MappedTreeImporter(File file) throws IOException, Importer.ImportException {
+        this(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads only the trees whose statements start in [start, end). The header is always
+     * read from the beginning of the file.
+     */
+    public MappedTreeImporter(File file, long start, long end) throws IOException, Importer.ImportException {
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+        size = channel.size();
+        this.end = Math.min(end, size);
+
+        long p = skipSpace(0);
+        nexus = matchesWord(p, "#NEXUS");
+        if (nexus) {
+            firstTree = readHeader(p + 6);
+        } else {
+            firstTree = p;
+        }
+        position = start <= firstTree ? firstTree : nextStatement(start);
+    }
+
+    /**
+     * Splits the trees of a file into byte ranges of roughly equal size.
+     *
+     * @return parts + 1 offsets; range i is [offsets[i], offsets[i + 1])
+     */
+    public static long[] split(File file, int parts) throws IOException, Importer.ImportException {
+        MappedTreeImporter importer = new MappedTreeImporter(file);
+        try {
+            long[] offsets = new long[parts + 1];
+            offsets[0] = importer.firstTree;
+            offsets[parts] = importer.size;
+            long length = importer.size - importer.firstTree;
+            for (int i = 1; i < parts; i++) {
+                long target = importer.firstTree + length * i / parts;
+                offsets[i] = importer.nextStatement(Math.max(target, offsets[i - 1]));
+            }
+            return offsets;
+        } finally {
+            importer.close();
+        }
+    }
+
+    /**
+     * @param topologyOnly if true, node attributes, node labels and tree comments are not read
+     */
+    public void setTopologyOnly(boolean topologyOnly) {
+        this.topologyOnly = topologyOnly;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    public boolean hasTree() throws IOException, Importer.ImportException {
+        return hasTree(null);
+    }
+
+    private boolean hasTree(TaxonList taxonList) throws IOException, Importer.ImportException {
+        if (nextTree == null && !finished) {
+            if (translation == null) {
+                resolveTranslation(taxonList);
+            }
+            nextTree = readTree();
+        }
+        return nextTree != null;
+    }
+
+    public Tree importNextTree() throws IOException, Importer.ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = nextTree;
+        nextTree = null;
+        return tree;
+    }
+
+    /**
+     * Imports the next tree, using the taxa in taxonList for the TRANSLATE table if this is
+     * the first tree read.
+     */
+    public Tree importTree(TaxonList taxonList) throws IOException, Importer.ImportException {
+        if (!hasTree(taxonList)) {
+            throw new NexusImporter.MissingBlockException("No trees found");
+        }
+        Tree tree = nextTree;
+        nextTree = null;
+        return tree;
+    }
+
+    public Tree[] importTrees(TaxonList taxonList) throws IOException, Importer.ImportException {
+        List<Tree> trees = new ArrayList<Tree>();
+        while (hasTree(taxonList)) {
+            trees.add(nextTree);
+            nextTree = null;
+        }
+        return trees.toArray(new Tree[trees.size()]);
+    }
+
+    /**
+     * Discards the next tree without parsing it.
+     *
+     * @return false if there are no more trees
+     */
+    public boolean skipTree() throws IOException, Importer.ImportException {
+        if (nextTree != null) {
+            nextTree = null;
+            return true;
+        }
+        long start = nextCommand();
+        if (start < 0) {
+            return false;
+        }
+        position = statementEnd(start) + 1;
+        return true;
+    }
+
+    // header
+
+    private long readHeader(long p) throws IOException, Importer.ImportException {
+        while (true) {
+            p = skipSpace(p);
+            if (p >= size) {
+                // no TREES block
+                return size;
+            }
+            p = readToken(p, "=;");
+            if (token.toString().equalsIgnoreCase("BEGIN")) {
+                p = readToken(p, ";");
+                boolean trees = token.toString().equalsIgnoreCase("TREES");
+                p = skipTo(p, ';') + 1;
+                if (trees) {
+                    break;
+                }
+            } else {
+                p = skipTo(p, ';') + 1;
+            }
+        }
+
+        long command = skipSpace(p);
+        p = readToken(command, ";");
+        if (!token.toString().equalsIgnoreCase("TRANSLATE")) {
+            return command;
+        }
+        int delimiter;
+        do {
+            p = readToken(p, ",;");
+            String label = token.toString();
+            p = readToken(p, ",;");
+            String name = token.toString();
+            p = skipSpace(p);
+            delimiter = byteAt(p);
+            if (label.isEmpty() || name.isEmpty() || (delimiter != ',' && delimiter != ';')) {
+                throw new Importer.BadFormatException("Badly formatted TRANSLATE command in TREES block");
+            }
+            translateTable.put(label, name);
+            p++;
+        } while (delimiter != ';');
+        return skipSpace(p);
+    }
+
+    private void resolveTranslation(TaxonList taxonList) throws Importer.ImportException {
+        translation = new HashMap<String, Taxon>();
+        if (translateTable.isEmpty()) {
+            return;
+        }
+        taxonNumberMap = new HashMap<Taxon, Integer>();
+        int count = 0;
+        for (Map.Entry<String, String> entry : translateTable.entrySet()) {
+            Taxon taxon;
+            if (taxonList != null) {
+                int index = taxonList.getTaxonIndex(entry.getValue());
+                if (index == -1) {
+                    throw new Importer.UnknownTaxonException(entry.getValue());
+                }
+                taxon = taxonList.getTaxon(index);
+            } else {
+                taxon = new Taxon(entry.getValue());
+            }
+            translation.put(entry.getKey(), taxon);
+
+            int number;
+            try {
+                number = Integer.parseInt(entry.getKey()) - 1;
+            } catch (NumberFormatException nfe) {
+                number = count;
+            }
+            taxonNumberMap.put(taxon, number);
+            count++;
+        }
+    }
+
+    // tree statements
+
+    /**
+     * @return the start of the next tree statement, or -1 if there are no more trees
+     */
+    private long nextCommand() throws IOException, Importer.ImportException {
+        if (finished) {
+            return -1;
+        }
+        long p = skipSpace(position);
+        if (p >= size || p >= end) {
+            finished = true;
+            return -1;
+        }
+        if (nexus) {
+            readToken(p, "=;");
+            String command = token.toString();
+            if (command.equalsIgnoreCase("END") || command.equalsIgnoreCase("ENDBLOCK")) {
+                finished = true;
+                return -1;
+            }
+            if (!command.equalsIgnoreCase("TREE") && !command.equalsIgnoreCase("UTREE")) {
+                throw new Importer.BadFormatException("Unknown command '" + command + "' in TREES block");
+            }
+        }
+        return p;
+    }
+
+    private Tree readTree() throws IOException, Importer.ImportException {
+        long start = nextCommand();
+        if (start < 0) {
+            return null;
+        }
+        long statementEnd = statementEnd(start);
+        if (statementEnd - start >= WINDOW) {
+            throw new Importer.BadFormatException("Tree statement is too long");
+        }
+        if (start < windowStart || statementEnd >= windowStart + windowLength) {
+            map(start);
+        }
+        position = statementEnd + 1;
+
+        long p = start;
+        String name = null;
+        String comment = null;
+        String special = null;
+        if (nexus) {
+            p = skipWhitespace(readToken(p, "=;"));
+            if (byteAt(p) == '*') {
+                p++;
+            }
+            p = readToken(p, "=;");
+            name = token.toString();
+            // comments before the '=' are tree attributes, those after it are options such as [&R]
+            while (true) {
+                p = skipWhitespace(p);
+                int ch = byteAt(p);
+                if (ch == '[') {
+                    long close = commentEnd(p);
+                    if (byteAt(p + 1) == '&') {
+                        comment = join(comment, decode(p + 2, close));
+                    }
+                    p = close + 1;
+                } else if (ch == '=') {
+                    p = skipWhitespace(p + 1);
+                    break;
+                } else {
+                    throw new Importer.BadFormatException("Missing label for tree '" + name + "' or missing '=' in TREE command of TREES block");
+                }
+            }
+            while (byteAt(p) == '[') {
+                long close = commentEnd(p);
+                if (byteAt(p + 1) == '&') {
+                    special = join(special, decode(p + 2, close));
+                }
+                p = skipWhitespace(close + 1);
+            }
+        }
+        if (byteAt(p) != '(') {
+            throw new Importer.BadFormatException("Missing tree definition in TREE command of TREES block");
+        }
+
+        FlexibleNode root = readNewick(p, statementEnd);
+        FlexibleTree tree = new FlexibleTree(root, false, true, taxonNumberMap);
+        if (name != null) {
+            tree.setId(name);
+        }
+        if (!topologyOnly) {
+            if (special != null) {
+                setWeight(tree, special);
+            }
+            if (comment != null) {
+                try {
+                    NexusImporter.parseMetaCommentPairs(comment, tree);
+                } catch (Importer.BadFormatException e) {
+                    tree.setAttribute("comment", comment);
+                }
+            }
+        }
+        return tree;
+    }
+
+    private static String join(String comments, String comment) {
+        return comments == null ? comment : comments + ";" + comment;
+    }
+
+    private static void setWeight(Tree tree, String special) {
+        for (String part : special.split(";")) {
+            if (part.startsWith("W")) {
+                try {
+                    tree.setAttribute("weight", Float.valueOf(part.substring(1).trim()));
+                } catch (NumberFormatException ex) {
+                    // don't fail, ignore
+                }
+            }
+        }
+    }
+
+    private FlexibleNode readNewick(long p, long statementEnd) throws Importer.ImportException {
+        stack.clear();
+        FlexibleNode root = null;
+        FlexibleNode last = null;
+        boolean closed = false;
+
+        while (p < statementEnd) {
+            int ch = byteAt(p);
+            switch (ch) {
+                case '(':
+                    stack.add(new FlexibleNode());
+                    last = null;
+                    closed = false;
+                    p++;
+                    break;
+                case ',':
+                    last = null;
+                    closed = false;
+                    p++;
+                    break;
+                case ')':
+                    if (stack.isEmpty()) {
+                        throw new Importer.BadFormatException("Unbalanced ')' in tree");
+                    }
+                    last = stack.remove(stack.size() - 1);
+                    if (stack.isEmpty()) {
+                        root = last;
+                    } else {
+                        stack.get(stack.size() - 1).addChild(last);
+                    }
+                    closed = true;
+                    p++;
+                    break;
+                case ':':
+                    p = readLength(p + 1, statementEnd, last);
+                    break;
+                case '[':
+                    long close = commentEnd(p);
+                    if (!topologyOnly && last != null && byteAt(p + 1) == '&') {
+                        try {
+                            NexusImporter.parseMetaCommentPairs(decode(p + 2, close), last);
+                        } catch (Importer.BadFormatException bfe) {
+                            // ignore it
+                        }
+                    }
+                    p = close + 1;
+                    break;
+                case ' ': case '\t': case '\n': case '\r':
+                    p++;
+                    break;
+                default:
+                    p = readToken(p, ":,()[;");
+                    if (closed) {
+                        if (!topologyOnly && token.length() > 0) {
+                            last.setAttribute("label", token.toString());
+                        }
+                    } else {
+                        last = new FlexibleNode();
+                        last.setTaxon(getTaxon(token.toString()));
+                        if (stack.isEmpty()) {
+                            root = last;
+                        } else {
+                            stack.get(stack.size() - 1).addChild(last);
+                        }
+                    }
+                    break;
+            }
+        }
+        if (root == null || !stack.isEmpty()) {
+            throw new Importer.BadFormatException("Missing closing ')' in tree in TREES block");
+        }
+        // in case the root has a branch length, ignore it
+        root.setLength(0.0);
+        return root;
+    }
+
+    private Taxon getTaxon(String label) throws Importer.UnknownTaxonException {
+        if (translation.size() > 0) {
+            Taxon taxon = translation.get(label);
+            if (taxon == null) {
+                throw new Importer.UnknownTaxonException("Taxon in tree, '" + label + "' is unknown");
+            }
+            return taxon;
+        }
+        Taxon taxon = taxa.get(label);
+        if (taxon == null) {
+            taxon = new Taxon(label);
+            taxa.put(label, taxon);
+        }
+        return taxon;
+    }
+
+    /**
+     * Reads a branch length. Lengths with at most 15 significant digits and no exponent are
+     * converted with a single correctly rounded division, others by Double.parseDouble.
+     */
+    private long readLength(long p, long statementEnd, FlexibleNode node) throws Importer.ImportException {
+        while (p < statementEnd && byteAt(p) == '[') {
+            // a comment between the ':' and the length
+            long close = commentEnd(p);
+            if (!topologyOnly && node != null && byteAt(p + 1) == '&') {
+                try {
+                    NexusImporter.parseMetaCommentPairs(decode(p + 2, close), node);
+                } catch (Importer.BadFormatException bfe) {
+                    // ignore it
+                }
+            }
+            p = close + 1;
+        }
+
+        long start = p;
+        boolean negative = false;
+        if (byteAt(p) == '-') {
+            negative = true;
+            p++;
+        } else if (byteAt(p) == '+') {
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean simple = true;
+        while (p < statementEnd) {
+            int ch = byteAt(p);
+            if (ch >= '0' && ch <= '9') {
+                if (mantissa != 0 || ch != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (ch - '0');
+                if (point) {
+                    scale++;
+                }
+            } else if (ch == '.' && !point) {
+                point = true;
+            } else if (ch == 'e' || ch == 'E' || ch == '-' || ch == '+' || Character.isLetter(ch)) {
+                simple = false;
+            } else {
+                break;
+            }
+            if (digits > 15) {
+                simple = false;
+            }
+            p++;
+        }
+
+        double length;
+        if (simple && scale < POWERS_OF_TEN.length && p > start) {
+            length = mantissa / POWERS_OF_TEN[scale];
+            if (negative) {
+                length = -length;
+            }
+        } else {
+            try {
+                length = Double.parseDouble(decode(start, p));
+            } catch (NumberFormatException nfe) {
+                throw new Importer.BadFormatException("Badly formatted branch length in tree");
+            }
+        }
+        if (node != null) {
+            node.setLength(length);
+        }
+        return p;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // bytes
+
+    private void map(long start) throws IOException {
+        window = null;
+        windowStart = start;
+        windowLength = Math.min(WINDOW, size - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, windowLength);
+    }
+
+    private int byteAt(long p) {
+        long offset = p - windowStart;
+        if (offset < 0 || offset >= windowLength) {
+            if (p >= size) {
+                return -1;
+            }
+            try {
+                map(p);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to map tree file: " + e.getMessage(), e);
+            }
+            offset = 0;
+        }
+        return window.get((int) offset) & 0xFF;
+    }
+
+    private long skipSpace(long p) {
+        while (true) {
+            int ch = byteAt(p);
+            if (ch == '[') {
+                p = commentEnd(p) + 1;
+            } else if (ch != -1 && Character.isWhitespace(ch)) {
+                p++;
+            } else {
+                return p;
+            }
+        }
+    }
+
+    private long skipWhitespace(long p) {
+        int ch = byteAt(p);
+        while (ch != -1 && Character.isWhitespace(ch)) {
+            ch = byteAt(++p);
+        }
+        return p;
+    }
+
+    private boolean matchesWord(long p, String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toUpperCase(byteAt(p + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isTreeCommand(long p) {
+        if (matchesWord(p, "TREE")) {
+            p += 4;
+        } else if (matchesWord(p, "UTREE")) {
+            p += 5;
+        } else {
+            return false;
+        }
+        int ch = byteAt(p);
+        return ch != -1 && Character.isWhitespace(ch);
+    }
+
+    /**
+     * @return the position of the ']' closing the comment opened at p, allowing nesting
+     */
+    private long commentEnd(long p) {
+        int depth = 0;
+        while (true) {
+            int ch = byteAt(p);
+            if (ch == -1) {
+                return p;
+            } else if (ch == '[') {
+                depth++;
+            } else if (ch == ']') {
+                depth--;
+                if (depth == 0) {
+                    return p;
+                }
+            }
+            p++;
+        }
+    }
+
+    private long skipTo(long p, char delimiter) {
+        while (true) {
+            int ch = byteAt(p);
+            if (ch == -1 || ch == delimiter) {
+                return p;
+            } else if (ch == '[') {
+                p = commentEnd(p);
+            } else if (ch == '\'' || ch == '"') {
+                p = quoteEnd(p);
+            }
+            p++;
+        }
+    }
+
+    /**
+     * @return the position of the ';' ending the statement that starts at p
+     */
+    private long statementEnd(long p) throws Importer.BadFormatException {
+        long q = skipTo(p, ';');
+        if (q >= size) {
+            throw new Importer.BadFormatException("Expecting ';' after tree in TREE command of TREES block");
+        }
+        return q;
+    }
+
+    private long quoteEnd(long p) {
+        int quote = byteAt(p);
+        p++;
+        while (true) {
+            int ch = byteAt(p);
+            if (ch == -1) {
+                return p;
+            }
+            if (ch == quote) {
+                if (byteAt(p + 1) != quote) {
+                    return p;
+                }
+                p++;
+            }
+            p++;
+        }
+    }
+
+    /**
+     * Reads a possibly quoted token into token, stopping at whitespace, a comment or any
+     * of the delimiters.
+     *
+     * @return the position after the token
+     */
+    private long readToken(long p, String delimiters) {
+        token.setLength(0);
+        p = skipSpace(p);
+        int ch = byteAt(p);
+        if (ch == '\'' || ch == '"') {
+            long close = quoteEnd(p);
+            String quoted = decode(p + 1, close);
+            char quote = (char) ch;
+            token.append(quoted.replace("" + quote + quote, "" + quote));
+            return close + 1;
+        }
+        long start = p;
+        while (ch != -1 && ch != '[' && !Character.isWhitespace(ch) && delimiters.indexOf(ch) < 0) {
+            p++;
+            ch = byteAt(p);
+        }
+        token.append(decode(start, p));
+        return p;
+    }
+
+    private String decode(long start, long end) {
+        int length = (int) (end - start);
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, 2 * bytes.length)];
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) byteAt(start + i);
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the start of the first tree statement at or after p
+     */
+    private long nextStatement(long p) {
+        if (!atLineStart(p)) {
+            while (p < size && byteAt(p) != '\n') {
+                p++;
+            }
+        }
+        while (p < size) {
+            long q = skipWhitespace(p);
+            if (nexus ? isTreeCommand(q) : byteAt(q) == '(') {
+                return q;
+            }
+            while (q < size && byteAt(q) != '\n') {
+                q++;
+            }
+            p = q + 1;
+        }
+        return size;
+    }
+
+    /**
+     * @return true if only spaces or tabs lie between the start of the line and p, so that
+     * an indented statement found by split is not skipped
+     */
+    private boolean atLineStart(long p) {
+        long q = p - 1;
+        while (q >= 0 && (byteAt(q) == ' ' || byteAt(q) == '\t')) {
+            q--;
+        }
+        return q < 0 || byteAt(q) == '\n';
+    }
+}
@@ -34,8 +34,12 @@ import beast.xml.XMLObjectParser;
 import beast.xml.XMLParseException;
 import beast.xml.XMLSyntaxRule;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
 
 /**
  * Class for storing a molecular sequence.
@@ -50,7 +54,7 @@ public class Sequence implements Identifiable, Attributable {
      * Empty constructor.
      */
     public Sequence() {
-        sequenceString = new StringBuffer();
+        symbols = new byte[0];
     }
 
     /**
@@ -59,7 +63,7 @@ public class Sequence implements Identifiable, Attributable {
      * @param sequence a string representing the sequence
      */
     public Sequence(String sequence) {
-        sequenceString = new StringBuffer();
+        symbols = new byte[0];
         setSequenceString(sequence);
     }
 
@@ -70,7 +74,9 @@ public class Sequence implements Identifiable, Attributable {
      */
     public Sequence(Sequence sequence) {
         // should clone taxon as well!
-        this(sequence.getTaxon(), sequence.getSequenceString());
+        setTaxon(sequence.getTaxon());
+        symbols = Arrays.copyOf(sequence.symbols, sequence.length);
+        length = sequence.length;
     }
 
     /**
@@ -80,11 +86,28 @@ public class Sequence implements Identifiable, Attributable {
      * @param sequence the sequence's symbol string
      */
     public Sequence(Taxon taxon, String sequence) {
-        sequenceString = new StringBuffer();
+        symbols = new byte[0];
         setTaxon(taxon);
         setSequenceString(sequence);
     }
 
+    /**
+     * Constructor with taxon and the first length bytes of symbols, which are
+     * taken as single-byte upper case characters and adopted without copying.
+     *
+     * @param taxon   the sequence's taxon
+     * @param symbols the sequence's symbols, one byte per site
+     * @param length  the number of sites
+     */
+    public Sequence(Taxon taxon, byte[] symbols, int length) {
+        if (length > symbols.length) {
+            throw new IllegalArgumentException("Sequence length exceeds the symbol array");
+        }
+        setTaxon(taxon);
+        this.symbols = symbols;
+        this.length = length;
+    }
+
     /**
      * @return the DataType of the sequences.
      */
@@ -96,42 +119,58 @@ public class Sequence implements Identifiable, Attributable {
      * @return the length of the sequences.
      */
     public int getLength() {
-        return sequenceString.length();
+        return length;
     }
 
     /**
      * @return a String containing the sequences.
      */
     public String getSequenceString() {
-        return sequenceString.toString();
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        return new String(chars);
     }
 
     /**
      * @return a char containing the state at index.
      */
     public char getChar(int index) {
-        return sequenceString.charAt(index);
+        checkIndex(index);
+        return (char) (symbols[index] & 0xFF);
     }
 
     /**
      * @return the state at site index.
      */
     public int getState(int index) {
-        return dataType.getState(sequenceString.charAt(index));
+        checkIndex(index);
+        StateTable table = stateTable;
+        if (table == null || table.dataType != dataType) {
+            table = StateTable.forDataType(dataType);
+            stateTable = table;
+        }
+        final int symbol = symbols[index] & 0xFF;
+        final int state = table.states[symbol];
+        return state != StateTable.UNDECODED ? state : dataType.getState((char) symbol);
     }
 
     /**
      */
     public final void setState(int index, int state) {
-
-        sequenceString.setCharAt(index, dataType.getChar(state));
+        checkIndex(index);
+        symbols[index] = toByte(dataType.getChar(state));
     }
 
     /**
      * Characters are copied from the sequences into the destination character array dst.
      */
     public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
-        sequenceString.getChars(srcBegin, srcEnd, dst, dstBegin);
+        if (srcBegin < 0 || srcEnd > length || srcBegin > srcEnd) {
+            throw new StringIndexOutOfBoundsException("srcBegin " + srcBegin + ", srcEnd " + srcEnd + ", length " + length);
+        }
+        for (int i = srcBegin; i < srcEnd; i++) {
+            dst[dstBegin++] = (char) (symbols[i] & 0xFF);
+        }
     }
 
     /**
@@ -145,29 +184,86 @@ public class Sequence implements Identifiable, Attributable {
      * Set the DataType of the sequences.
      */
     public DataType guessDataType() {
-        return DataType.guessDataType(sequenceString.toString());
+        return DataType.guessDataType(getSequenceString());
     }
 
     /**
      * Set the sequences using a string.
      */
     public void setSequenceString(String sequence) {
-        sequenceString.setLength(0);
-        sequenceString.append(sequence.toUpperCase());
+        length = 0;
+        appendSequenceString(sequence.toUpperCase());
     }
 
     /**
      * Append a string to the sequences.
      */
     public void appendSequenceString(String sequence) {
-        sequenceString.append(sequence);
+        insertSequenceString(length, sequence);
     }
 
     /**
      * Insert a string into the sequences.
      */
     public void insertSequenceString(int offset, String sequence) {
-        sequenceString.insert(offset, sequence);
+        if (offset < 0 || offset > length) {
+            throw new StringIndexOutOfBoundsException(offset);
+        }
+        int n = sequence.length();
+        if (length + n > symbols.length) {
+            symbols = Arrays.copyOf(symbols, Math.max(length + n, symbols.length * 2));
+        }
+        System.arraycopy(symbols, offset, symbols, offset + n, length - offset);
+        for (int i = 0; i < n; i++) {
+            symbols[offset + i] = toByte(sequence.charAt(i));
+        }
+        length += n;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+    }
+
+    private static byte toByte(char ch) {
+        // sequence symbols are single-byte; anything wider cannot be a valid state
+        return ch > 0xFF ? (byte) DataType.UNKNOWN_CHARACTER : (byte) ch;
+    }
+
+    /**
+     * Maps every single-byte symbol to its state for one data type. Tables are built once
+     * per data type and shared by all sequences, so a sequence stores only its symbols.
+     */
+    private static final class StateTable {
+        // the data type could not decode this symbol on its own; ask it again per site
+        static final int UNDECODED = Integer.MIN_VALUE;
+
+        private static final Map<DataType, StateTable> TABLES =
+                Collections.synchronizedMap(new WeakHashMap<DataType, StateTable>());
+
+        final DataType dataType;
+        final int[] states = new int[256];
+
+        private StateTable(DataType dataType) {
+            this.dataType = dataType;
+            for (int symbol = 0; symbol < states.length; symbol++) {
+                try {
+                    states[symbol] = dataType.getState((char) symbol);
+                } catch (RuntimeException e) {
+                    states[symbol] = UNDECODED;
+                }
+            }
+        }
+
+        static StateTable forDataType(DataType dataType) {
+            StateTable table = TABLES.get(dataType);
+            if (table == null) {
+                table = new StateTable(dataType);
+                TABLES.put(dataType, table);
+            }
+            return table;
+        }
     }
 
     /**
@@ -250,8 +346,10 @@ public class Sequence implements Identifiable, Attributable {
     // **************************************************************
 
     protected Taxon taxon = null;
-    protected StringBuffer sequenceString = null;
+    protected byte[] symbols = null;
+    protected int length = 0;
     protected DataType dataType = null;
+    private transient StateTable stateTable = null;
 
     public static final XMLObjectParser<Sequence> PARSER = new AbstractXMLObjectParser<Sequence>() {
         public static final String SEQUENCE = "sequence";
@@ -0,0 +1,319 @@
+/*
+ * NewickWriter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.tree;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes newick strings for a tree with a fixed set of options. The tip labels, the
+ * loggable traits and the traversal stacks are set up once so that repeated samples of
+ * the same tree are written without per-node lookups or intermediate strings. The output
+ * is identical to Tree.newick.
+ *
+ * @author BEAST Developers
+ */
+public class NewickWriter {
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    // scaled values must stay well below 2^53 for the rounding check below to hold
+    private static final double MAX_SCALED = 1e9;
+    private static final double TIE_TOLERANCE = 1e-6;
+
+    private final Tree tree;
+    private final boolean labels;
+    private final Tree.BranchLengthType lengths;
+    private final NumberFormat format;
+    private final BranchRates branchRates;
+    private final Map<String, Integer> idMap;
+
+    private final TreeTrait[] nodeTraits;
+    private final TreeTrait[] branchTraits;
+
+    private String[] tipLabels = null;
+
+    // fixed decimal formatting when format is a plain DecimalFormat
+    private final boolean fastFormat;
+    private final int decimalPlaces;
+    private final int groupingSize;
+    private final char groupingSeparator;
+
+    private NodeRef[] nodeStack = new NodeRef[0];
+    private int[] childStack = new int[0];
+    private final char[] digits = new char[32];
+    private final StringBuilder builder = new StringBuilder();
+
+    public NewickWriter(Tree tree, boolean labels, Tree.BranchLengthType lengths, NumberFormat format,
+                        BranchRates branchRates, TreeTraitProvider[] treeTraitProviders,
+                        Map<String, Integer> idMap) {
+        this.tree = tree;
+        this.labels = labels;
+        this.lengths = lengths;
+        this.format = format;
+        this.branchRates = branchRates;
+        this.idMap = idMap;
+
+        nodeTraits = getLoggableTraits(treeTraitProviders, TreeTrait.Intent.NODE);
+        branchTraits = getLoggableTraits(treeTraitProviders, TreeTrait.Intent.BRANCH);
+
+        if (format != null && isPlainDecimalFormat(format)) {
+            DecimalFormat decimalFormat = (DecimalFormat) format;
+            fastFormat = true;
+            decimalPlaces = decimalFormat.getMaximumFractionDigits();
+            groupingSize = decimalFormat.isGroupingUsed() ? decimalFormat.getGroupingSize() : 0;
+            groupingSeparator = decimalFormat.getDecimalFormatSymbols().getGroupingSeparator();
+        } else {
+            fastFormat = false;
+            decimalPlaces = 0;
+            groupingSize = 0;
+            groupingSeparator = ',';
+        }
+    }
+
+    private static TreeTrait[] getLoggableTraits(TreeTraitProvider[] treeTraitProviders, TreeTrait.Intent intent) {
+        List<TreeTrait> traits = new ArrayList<TreeTrait>();
+        if (treeTraitProviders != null) {
+            for (TreeTraitProvider ttp : treeTraitProviders) {
+                for (TreeTrait treeTrait : ttp.getTreeTraits()) {
+                    if (treeTrait.getLoggable() && treeTrait.getIntent() == intent) {
+                        traits.add(treeTrait);
+                    }
+                }
+            }
+        }
+        return traits.toArray(new TreeTrait[traits.size()]);
+    }
+
+    /**
+     * @return true if the format produces the same output as appendFixed: no prefix, suffix,
+     *         exponent or multiplier, '.' as decimal separator and half-even rounding.
+     */
+    static boolean isPlainDecimalFormat(NumberFormat format) {
+        if (!(format instanceof DecimalFormat)) {
+            return false;
+        }
+        DecimalFormat decimalFormat = (DecimalFormat) format;
+        DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+        return decimalFormat.getRoundingMode() == RoundingMode.HALF_EVEN &&
+                decimalFormat.getMultiplier() == 1 &&
+                decimalFormat.getMinimumIntegerDigits() == 1 &&
+                decimalFormat.getMaximumIntegerDigits() >= 10 &&
+                decimalFormat.getMinimumFractionDigits() == 0 &&
+                decimalFormat.getMaximumFractionDigits() < POWERS_OF_TEN.length &&
+                !decimalFormat.isDecimalSeparatorAlwaysShown() &&
+                decimalFormat.getPositivePrefix().isEmpty() &&
+                decimalFormat.getPositiveSuffix().isEmpty() &&
+                decimalFormat.toPattern().indexOf('E') < 0 &&
+                symbols.getDecimalSeparator() == '.' &&
+                symbols.getZeroDigit() == '0';
+    }
+
+    /**
+     * @return the newick string of the whole tree, terminated by a semicolon
+     */
+    public String toNewick() {
+        builder.setLength(0);
+        write(tree.getRoot(), builder);
+        builder.append(';');
+        return builder.toString();
+    }
+
+    /**
+     * Appends the newick representation of the subtree below node to buffer.
+     */
+    public void write(NodeRef node, StringBuffer buffer) {
+        builder.setLength(0);
+        write(node, builder);
+        buffer.append(builder);
+    }
+
+    /**
+     * Appends the newick representation of the whole tree (without the semicolon) to out.
+     */
+    public void write(StringBuilder out) {
+        write(tree.getRoot(), out);
+    }
+
+    /**
+     * Appends the newick representation of the subtree below node to out.
+     */
+    public void write(NodeRef node, StringBuilder out) {
+        int nodeCount = tree.getNodeCount();
+        if (nodeStack.length < nodeCount) {
+            nodeStack = new NodeRef[nodeCount];
+            childStack = new int[nodeCount];
+        }
+        if (labels && tipLabels == null) {
+            tipLabels = getTipLabels();
+        }
+
+        int top = 0;
+        nodeStack[0] = node;
+        childStack[0] = 0;
+        while (top >= 0) {
+            NodeRef current = nodeStack[top];
+            int childCount = tree.getChildCount(current);
+            if (childCount == 0) {
+                appendTip(current, out);
+                appendSuffix(current, out);
+                top--;
+            } else {
+                int next = childStack[top];
+                if (next == childCount) {
+                    out.append(')');
+                    appendSuffix(current, out);
+                    top--;
+                } else {
+                    out.append(next == 0 ? '(' : ',');
+                    childStack[top] = next + 1;
+                    top++;
+                    nodeStack[top] = tree.getChild(current, next);
+                    childStack[top] = 0;
+                }
+            }
+        }
+        // don't keep the nodes of the last sample alive
+        for (int i = 0; i < nodeCount; i++) {
+            nodeStack[i] = null;
+        }
+    }
+
+    private String[] getTipLabels() {
+        String[] tipLabels = new String[tree.getExternalNodeCount()];
+        for (int k = 0; k < tipLabels.length; k++) {
+            String label = tree.getTaxonId(k);
+            if (label.contains(" ") || label.contains(":") || label.contains(";") || label.contains(",")) {
+                label = "\"" + label + "\"";
+            }
+            tipLabels[k] = label;
+        }
+        return tipLabels;
+    }
+
+    private void appendTip(NodeRef node, StringBuilder out) {
+        int k = node.getNumber();
+        if (labels) {
+            out.append(tipLabels[k]);
+        } else if (idMap != null) {
+            out.append(idMap.get(tree.getTaxonId(k)));
+        } else {
+            out.append(k + 1);
+        }
+    }
+
+    private void appendSuffix(NodeRef node, StringBuilder out) {
+        appendTraits(node, nodeTraits, out);
+
+        NodeRef parent = tree.getParent(node);
+        if (parent != null && lengths != Tree.BranchLengthType.NO_BRANCH_LENGTHS) {
+            out.append(':');
+            appendTraits(node, branchTraits, out);
+
+            double length = tree.getNodeHeight(parent) - tree.getNodeHeight(node);
+            if (lengths == Tree.BranchLengthType.LENGTHS_AS_SUBSTITUTIONS) {
+                if (branchRates == null) {
+                    throw new IllegalArgumentException("No BranchRates provided");
+                }
+                length *= branchRates.getBranchRate(tree, node);
+            }
+            if (format == null) {
+                out.append(length);
+            } else if (!fastFormat || !appendFixed(length, out)) {
+                out.append(format.format(length));
+            }
+        }
+    }
+
+    private void appendTraits(NodeRef node, TreeTrait[] traits, StringBuilder out) {
+        boolean hasAttribute = false;
+        for (TreeTrait treeTrait : traits) {
+            String value = treeTrait.getTraitString(tree, node);
+            if (value != null) {
+                out.append(hasAttribute ? "," : "[&");
+                hasAttribute = true;
+                out.append(treeTrait.getTraitName()).append('=').append(value);
+            }
+        }
+        if (hasAttribute) {
+            out.append(']');
+        }
+    }
+
+    /**
+     * Appends value rounded to decimalPlaces with trailing zeros removed, as DecimalFormat
+     * would. Values that are negative, not finite, too large or too close to a rounding tie
+     * to be rounded reliably in double arithmetic are left to the NumberFormat.
+     *
+     * @return false if nothing was appended
+     */
+    private boolean appendFixed(double value, StringBuilder out) {
+        long power = POWERS_OF_TEN[decimalPlaces];
+        double scaled = value * power;
+        if (!(scaled < MAX_SCALED) || !(value >= 0.0) || Double.doubleToRawLongBits(value) < 0) {
+            return false;
+        }
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) < TIE_TOLERANCE) {
+            return false;
+        }
+        long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+
+        long integer = rounded / power;
+        long decimals = rounded % power;
+
+        int n = 0;
+        do {
+            if (groupingSize > 0 && n > 0 && n % (groupingSize + 1) == groupingSize) {
+                digits[n++] = groupingSeparator;
+            }
+            digits[n++] = (char) ('0' + integer % 10);
+            integer /= 10;
+        } while (integer > 0);
+        while (n > 0) {
+            out.append(digits[--n]);
+        }
+
+        if (decimals != 0) {
+            int places = decimalPlaces;
+            while (decimals % 10 == 0) {
+                decimals /= 10;
+                places--;
+            }
+            out.append('.');
+            for (int i = places - 1; i >= 0; i--) {
+                digits[i] = (char) ('0' + decimals % 10);
+                decimals /= 10;
+            }
+            out.append(digits, 0, places);
+        }
+        return true;
+    }
+}
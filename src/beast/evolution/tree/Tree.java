@@ -955,7 +955,8 @@ public interface Tree extends TaxonList, Units, Identifiable, Attributable {
     }
 
     /**
-     * Recursive function for constructing a newick tree representation in the given buffer.
+     * Constructs a newick tree representation in the given buffer. Use a NewickWriter directly
+     * when the same tree is written repeatedly.
      *
      * @param node                     The node [tree.getRoot()]
      * @param labels                   whether labels or numbers should be used
@@ -970,67 +971,7 @@ public interface Tree extends TaxonList, Units, Identifiable, Attributable {
                               BranchRates branchRates,
                               TreeTraitProvider[] treeTraitProviders,
                               Map<String, Integer> idMap, StringBuffer buffer) {
-
-        NodeRef parent = getParent(node);
-
-        if (isExternal(node)) {
-            if (!labels) {
-                int k = node.getNumber();
-                if (idMap != null) {
-                    buffer.append(idMap.get(getTaxonId(k)));
-                } else {
-                    buffer.append((k + 1));
-                }
-            } else {
-                String label = getTaxonId(node.getNumber());
-                if (label.contains(" ") || label.contains(":") || label.contains(";") || label.contains(",")) {
-                    buffer.append("\"");
-                    buffer.append(label);
-                    buffer.append("\"");
-                } else {
-                    buffer.append(label);
-                }
-            }
-        } else {
-            buffer.append("(");
-            newick(getChild(node, 0), labels, lengths, format,
-                    branchRates,
-                    treeTraitProviders, idMap,
-                    buffer);
-            for (int i = 1; i < getChildCount(node); i++) {
-                buffer.append(",");
-                newick(getChild(node, i), labels, lengths, format,
-                        branchRates,
-                        treeTraitProviders, idMap,
-                        buffer);
-            }
-            buffer.append(")");
-        }
-
-        writeTreeTraits(buffer, node, treeTraitProviders, TreeTrait.Intent.NODE);
-
-        if (parent != null && lengths != BranchLengthType.NO_BRANCH_LENGTHS) {
-            buffer.append(":");
-            writeTreeTraits(buffer, node, treeTraitProviders, TreeTrait.Intent.BRANCH);
-
-            if (lengths != BranchLengthType.NO_BRANCH_LENGTHS) {
-                double length = getNodeHeight(parent) - getNodeHeight(node);
-                if (lengths == BranchLengthType.LENGTHS_AS_SUBSTITUTIONS) {
-                    if (branchRates == null) {
-                        throw new IllegalArgumentException("No BranchRates provided");
-                    }
-                    length *= branchRates.getBranchRate(this, node);
-                }
-                String lengthString;
-                if (format != null) {
-                    lengthString = format.format(length);
-                } else {
-                    lengthString = String.valueOf(length);
-                }
-
-                buffer.append(lengthString);
-            }
-        }
+        new NewickWriter(this, labels, lengths, format, branchRates, treeTraitProviders, idMap).write(node, buffer);
     }
 
     default void writeTreeTraits(StringBuffer buffer, NodeRef node, TreeTraitProvider[] treeTraitProviders, TreeTrait.Intent intent) {
@@ -20,6 +20,8 @@
 
 package beast.evolution.tree;
 
+import beast.evolution.io.CompressedTreeImporter;
+import beast.evolution.io.CompressedTreeWriter;
 import beast.inference.loggers.LogFormatter;
 import beast.inference.loggers.Loggable;
 import beast.inference.loggers.MCLogger;
@@ -37,9 +39,16 @@ import beast.xml.XMLParseException;
 import beast.xml.XMLParser;
 import beast.xml.XMLSyntaxRule;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -75,6 +84,14 @@ public class TreeLogger extends MCLogger {
 
     private NumberFormat format;
 
+    private boolean compressed = false;
+    private transient OutputStream compressedStream = null;
+    private transient CompressedTreeWriter compressedWriter = null;
+
+    // reused across samples
+    private transient NewickWriter newickWriter = null;
+    private transient StringBuilder buffer = null;
+
     public TreeLogger(Tree tree, LogFormatter formatter, int logEvery, boolean nexusFormat,
                       boolean sortTranslationTable, boolean mapNames) {
 
@@ -133,8 +150,65 @@ public class TreeLogger extends MCLogger {
         this.format = format;
     }
 
+    /**
+     * Writes trees to the given stream with a CompressedTreeWriter instead of as newick
+     * strings through the formatters.
+     */
+    public void setCompressedOutput(OutputStream stream) {
+        compressed = true;
+        compressedStream = stream;
+    }
+
+    /**
+     * The traits stored for each node of a compressed tree log: the loggable traits of
+     * the providers, and the branch rates when branch lengths are in substitutions.
+     */
+    private TreeTrait[] getCompressedTraits() {
+        List<TreeTrait> traits = new ArrayList<TreeTrait>();
+        if (treeTraitProviders != null) {
+            for (TreeTraitProvider ttp : treeTraitProviders) {
+                for (TreeTrait trait : ttp.getTreeTraits()) {
+                    if (trait.getLoggable() &&
+                            (trait.getIntent() == TreeTrait.Intent.NODE || trait.getIntent() == TreeTrait.Intent.BRANCH)) {
+                        traits.add(trait);
+                    }
+                }
+            }
+        }
+        if (substitutions) {
+            final BranchRates rates = branchRates;
+            traits.add(new TreeTrait.D() {
+                public String getTraitName() {
+                    return "rate";
+                }
+
+                public Intent getIntent() {
+                    return Intent.BRANCH;
+                }
+
+                public Double getTrait(Tree tree, NodeRef node) {
+                    return rates.getBranchRate(tree, node);
+                }
+            });
+        }
+        return traits.toArray(new TreeTrait[traits.size()]);
+    }
+
     public void startLogging() {
 
+        if (compressed) {
+            String[] taxonIds = new String[tree.getTaxonCount()];
+            for (int i = 0; i < taxonIds.length; i++) {
+                taxonIds[i] = tree.getTaxonId(i);
+            }
+            try {
+                compressedWriter = new CompressedTreeWriter(compressedStream, taxonIds, getCompressedTraits());
+            } catch (IOException e) {
+                throw new RuntimeException("Problem starting compressed tree log", e);
+            }
+            return;
+        }
+
         if (nexusFormat) {
             int taxonCount = tree.getTaxonCount();
             logLine("#NEXUS");
@@ -186,7 +260,24 @@ public class TreeLogger extends MCLogger {
 
     public void logState(long state) {
 
-        StringBuffer buffer = new StringBuffer(TREE_STATE_);
+        if (compressed) {
+            logCompressedState(state);
+            return;
+        }
+
+        if (newickWriter == null) {
+            if (substitutions) {
+                newickWriter = new NewickWriter(tree, false, Tree.BranchLengthType.LENGTHS_AS_SUBSTITUTIONS,
+                        format, branchRates, treeTraitProviders, idMap);
+            } else {
+                newickWriter = new NewickWriter(tree, !mapNames, Tree.BranchLengthType.LENGTHS_AS_TIME,
+                        format, null, treeTraitProviders, idMap);
+            }
+            buffer = new StringBuilder();
+        }
+
+        buffer.setLength(0);
+        buffer.append(TREE_STATE_);
         buffer.append(state);
         if (treeAttributeProviders != null) {
             boolean hasAttribute = false;
@@ -212,24 +303,91 @@ public class TreeLogger extends MCLogger {
 
         buffer.append(" = [&R] ");
 
-        if (substitutions) {
-            Tree.Utils.newick(tree, tree.getRoot(), false, Tree.BranchLengthType.LENGTHS_AS_SUBSTITUTIONS,
-                    format, branchRates, treeTraitProviders, idMap, buffer);
-        } else {
-            Tree.Utils.newick(tree, tree.getRoot(), !mapNames, Tree.BranchLengthType.LENGTHS_AS_TIME,
-                    format, null, treeTraitProviders, idMap, buffer);
-        }
+        newickWriter.write(buffer);
 
         buffer.append(";");
         logLine(buffer.toString());
 
     }
 
+    private void logCompressedState(long state) {
+        String[] attributes = null;
+        if (treeAttributeProviders != null) {
+            List<String> labelled = new ArrayList<String>();
+            for (TreeAttributeProvider tap : treeAttributeProviders) {
+                String[] attributeLabel = tap.getTreeAttributeLabel();
+                String[] attributeValue = tap.getAttributeForTree(tree);
+                for (int i = 0; i < attributeLabel.length; i++) {
+                    labelled.add(attributeLabel[i]);
+                    labelled.add(attributeValue[i]);
+                }
+            }
+            attributes = labelled.toArray(new String[labelled.size()]);
+        }
+        try {
+            compressedWriter.writeTree(state, tree, attributes);
+        } catch (IOException e) {
+            throw new RuntimeException("Problem writing compressed tree log", e);
+        }
+    }
+
     public void stopLogging() {
+        if (compressed) {
+            try {
+                compressedWriter.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Problem closing compressed tree log", e);
+            }
+            super.stopLogging();
+            return;
+        }
         logLine(END);
         super.stopLogging();
     }
 
+    @Override
+    public void flush() {
+        super.flush();
+        if (compressedWriter != null) {
+            try {
+                compressedWriter.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Problem writing compressed tree log", e);
+            }
+        }
+    }
+
+    /**
+     * Drops any partially written block from a compressed tree log and appends to
+     * what remains, continuing its topology numbering.
+     */
+    @Override
+    protected long resumeFile(final File file) {
+        if (!compressed) {
+            return super.resumeFile(file);
+        }
+        try {
+            long state = -1;
+            final CompressedTreeImporter importer;
+            try (InputStream in = new FileInputStream(file)) {
+                importer = new CompressedTreeImporter(in);
+                while (importer.hasTree()) {
+                    state = importer.getNextState();
+                    importer.skipTree();
+                }
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(importer.getValidLength());
+            }
+            compressedWriter = new CompressedTreeWriter(
+                    new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16),
+                    importer.getTaxonIds(), getCompressedTraits(), importer.getTopologies());
+            return state;
+        } catch (IOException ex) {
+            throw new RuntimeException("Problem resuming logger!", ex);
+        }
+    }
+
     public Tree getTree() {
 		return tree;
 	}
@@ -280,11 +438,13 @@ public class TreeLogger extends MCLogger {
         public static final String HEADER = "header";
         public static final String FILE_NAME = FileHelpers.FILE_NAME;
         public static final String FORMAT = "format";
+        public static final String COMPRESSED = "compressed";
         public static final String TAB = "tab";
         public static final String HTML = "html";
         public static final String PRETTY = "pretty";
         public static final String LOG_EVERY = "logEvery";
         public static final String ALLOW_OVERWRITE_LOG = "overwrite";
+        public static final String ASYNCHRONOUS = "asynchronous";
 
         public static final String COLUMNS = "columns";
         public static final String COLUMN = "column";
@@ -500,9 +660,18 @@ public class TreeLogger extends MCLogger {
                 format.setMaximumFractionDigits(dp);
             }
 
-            final PrintWriter pw = XMLParser.getFilePrintWriter(xo, getParserName());
+            compressed = xo.getAttribute(FORMAT, "").equals(COMPRESSED);
+            if (compressed) {
+                if (!xo.hasAttribute(FILE_NAME)) {
+                    throw new XMLParseException("A compressed tree log must be written to a file");
+                }
+                // the logger writes the file itself
+                formatter = null;
+            } else {
+                final PrintWriter pw = XMLParser.getFilePrintWriter(xo, getParserName());
 
-            formatter = new TabDelimitedFormatter(pw);
+                formatter = new TabDelimitedFormatter(pw);
+            }
 
             treeAttributeProviders = new TreeAttributeProvider[taps.size()];
             taps.toArray(treeAttributeProviders);
@@ -532,8 +701,19 @@ public class TreeLogger extends MCLogger {
                 logger.setTitle(title);
             }
 
+            if (compressed) {
+                final File file = XMLParser.getLogFile(xo, FILE_NAME);
+                try {
+                    logger.setCompressedOutput(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+                } catch (FileNotFoundException fnfe) {
+                    throw new XMLParseException("File '" + file.getAbsolutePath() +
+                            "' can not be opened for " + getParserName() + " element.");
+                }
+            }
+
             if (xo.hasAttribute(FILE_NAME)) {
                 logger.addFile(XMLParser.getFileHandle(xo, FILE_NAME));
+                logger.setAsynchronous(xo.getAttribute(ASYNCHRONOUS, true));
             }
 
             return logger;
@@ -547,6 +727,7 @@ public class TreeLogger extends MCLogger {
         protected NumberFormat format = null;
         protected TreeLogger.LogUpon condition;
         protected boolean mapNames;
+        protected boolean compressed;
         protected LogFormatter formatter;
         protected TreeAttributeProvider[] treeAttributeProviders;
         protected TreeTraitProvider[] treeTraitProviders;
@@ -562,10 +743,15 @@ public class TreeLogger extends MCLogger {
         private final XMLSyntaxRule[] rules = {
                 AttributeRule.newIntegerRule(LOG_EVERY, true),
                 AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+                AttributeRule.newBooleanRule(ASYNCHRONOUS, true,
+                        "Whether a file log is formatted and written on a background thread (default true)"),
                 new StringAttributeRule(FILE_NAME,
                         "The name of the file to send log output to. " +
                                 "If no file name is specified then log is sent to standard output", true),
                 new StringAttributeRule(TITLE, "The title of the log", true),
+                new StringAttributeRule(FORMAT,
+                        "Write trees as newick text (default) or compressed, storing each topology once",
+                        new String[]{COMPRESSED}, true),
                 AttributeRule.newBooleanRule(NEXUS_FORMAT, true,
                         "Whether to use the NEXUS format for the tree log"),
                 AttributeRule.newBooleanRule(SORT_TRANSLATION_TABLE, true,
@@ -21,6 +21,8 @@
 package beast.evomodel.branchratemodel;
 
 import beast.evolution.tree.BranchRates;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.TreeTrait;
 import beast.evolution.tree.TreeTraitProvider;
 import beast.inference.model.Model;
@@ -38,4 +40,21 @@ public interface BranchRateModel extends Model, BranchRates, TreeTraitProvider,
 
     // This is inherited from BranchRates:
     // double getBranchRate(Tree tree, NodeRef node);
+
+    /**
+     * Fills in the rates of all branches of the tree in one call, indexed by node number.
+     * The value left in the root node's entry is unspecified.
+     *
+     * @param tree  the tree
+     * @param rates an array of at least tree.getNodeCount() rates
+     */
+    default void getBranchRates(final Tree tree, final double[] rates) {
+        final NodeRef root = tree.getRoot();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final NodeRef node = tree.getNode(i);
+            if (node != root) {
+                rates[node.getNumber()] = getBranchRate(tree, node);
+            }
+        }
+    }
 }
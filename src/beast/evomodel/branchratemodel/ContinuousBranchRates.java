@@ -0,0 +1,461 @@
+/*
+ * ContinuousBranchRates.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.branchratemodel;
+
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evomodel.tree.TreeModel;
+import beast.evomodel.tree.TreeParameterModel;
+import beast.inference.distribution.ExponentialDistributionModel;
+import beast.inference.distribution.GammaDistributionModel;
+import beast.inference.distribution.LogNormalDistributionModel;
+import beast.inference.distribution.ParametricDistributionModel;
+import beast.inference.model.Model;
+import beast.inference.model.Parameter;
+import beast.inference.model.Variable;
+import beast.math.MathUtils;
+import beast.math.distributions.NormalDistribution;
+import beast.xml.AbstractXMLObjectParser;
+import beast.xml.AttributeRule;
+import beast.xml.ElementRule;
+import beast.xml.XMLObject;
+import beast.xml.XMLObjectParser;
+import beast.xml.XMLParseException;
+import beast.xml.XMLSyntaxRule;
+
+import java.util.logging.Logger;
+
+/**
+ * A relaxed clock in which the rate of each branch is given by a continuous quantile in (0,1) of a
+ * parametric distribution.
+ * <p/>
+ * For the lognormal, exponential and gamma distributions the quantiles are kept in a standardized form
+ * that does not depend on the location or scale of the distribution, so a change to the distribution
+ * parameters only rescales each rate, and a change to a quantile only updates its own branch.
+ *
+ * @author BEAST Developers
+ */
+public class ContinuousBranchRates extends AbstractBranchRateModel {
+
+    public static final String CONTINUOUS_BRANCH_RATES = "continuousBranchRates";
+
+    private enum Family {
+        LOGNORMAL, EXPONENTIAL, GAMMA, OTHER
+    }
+
+    private final ParametricDistributionModel distributionModel;
+    private final Family family;
+
+    // The rate quantile of each branch
+    final TreeParameterModel rateQuantiles;
+
+    private final TreeModel treeModel;
+    private final int nodeCount;
+
+    // per node: the standardized quantile and the resulting rate
+    private double[] standardQuantiles;
+    private double[] rates;
+
+    // the distribution parameters the rates were computed with
+    private double location;
+    private double scale;
+    private double offset;
+    private double shape = Double.NaN;
+
+    // branches whose quantile changed since the rates were last updated
+    private final boolean[] dirty;
+    private final int[] dirtyNodes;
+    private int dirtyCount = 0;
+    private boolean distributionChanged = true;
+    private volatile boolean ratesKnown = false;
+
+    // the values of the branches changed since the last store, so a restore costs O(changed branches)
+    private double[] storedStandardQuantiles;
+    private double[] storedRates;
+    private final boolean[] changed;
+    private final int[] changedNodes;
+    private int changedCount = 0;
+    private boolean allChanged = false;
+    private double storedLocation;
+    private double storedScale;
+    private double storedOffset;
+    private double storedShape;
+
+    public ContinuousBranchRates(
+            TreeModel tree,
+            Parameter rateQuantileParameter,
+            ParametricDistributionModel model) {
+        this(tree, rateQuantileParameter, model, false, false);
+    }
+
+    public ContinuousBranchRates(
+            TreeModel tree,
+            Parameter rateQuantileParameter,
+            ParametricDistributionModel model,
+            boolean randomizeRates,
+            boolean keepRates) {
+
+        super(CONTINUOUS_BRANCH_RATES);
+
+        this.rateQuantiles = new TreeParameterModel(tree, rateQuantileParameter, false);
+        this.treeModel = tree;
+        this.distributionModel = model;
+
+        if (model instanceof LogNormalDistributionModel) {
+            family = Family.LOGNORMAL;
+        } else if (model instanceof ExponentialDistributionModel) {
+            family = Family.EXPONENTIAL;
+        } else if (model instanceof GammaDistributionModel) {
+            family = Family.GAMMA;
+        } else {
+            family = Family.OTHER;
+        }
+
+        final int dim = rateQuantileParameter.getDimension();
+        rateQuantileParameter.addBounds(new Parameter.DefaultBounds(1.0, 0.0, dim));
+
+        if (!keepRates) {
+            for (int i = 0; i < dim; i++) {
+                final double quantile = randomizeRates ? MathUtils.nextDouble() : (i + 0.5) / dim;
+                rateQuantileParameter.setParameterValue(i, quantile);
+            }
+        }
+
+        nodeCount = tree.getNodeCount();
+        standardQuantiles = new double[nodeCount];
+        rates = new double[nodeCount];
+        storedStandardQuantiles = new double[nodeCount];
+        storedRates = new double[nodeCount];
+        dirty = new boolean[nodeCount];
+        dirtyNodes = new int[nodeCount];
+        changed = new boolean[nodeCount];
+        changedNodes = new int[nodeCount];
+
+        addModel(model);
+        addModel(rateQuantiles);
+
+        // all the standardized quantiles are computed on first use
+        for (int i = 0; i < nodeCount; i++) {
+            markDirty(i);
+        }
+    }
+
+    public void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model == distributionModel) {
+            distributionChanged = true;
+            ratesKnown = false;
+            fireModelChanged();
+        } else if (model == rateQuantiles) {
+            if (index >= 0 && index < nodeCount) {
+                markDirty(index);
+            } else {
+                for (int i = 0; i < nodeCount; i++) {
+                    markDirty(i);
+                }
+            }
+            ratesKnown = false;
+            fireModelChanged(null, index);
+        }
+    }
+
+    protected final void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        // nothing to do here
+    }
+
+    protected void storeState() {
+        updateRates();
+
+        clearChanged();
+
+        storedLocation = location;
+        storedScale = scale;
+        storedOffset = offset;
+        storedShape = shape;
+    }
+
+    protected void restoreState() {
+        if (allChanged) {
+            double[] tmp = standardQuantiles;
+            standardQuantiles = storedStandardQuantiles;
+            storedStandardQuantiles = tmp;
+
+            tmp = rates;
+            rates = storedRates;
+            storedRates = tmp;
+        } else {
+            for (int i = 0; i < changedCount; i++) {
+                final int nodeNum = changedNodes[i];
+                standardQuantiles[nodeNum] = storedStandardQuantiles[nodeNum];
+                rates[nodeNum] = storedRates[nodeNum];
+            }
+        }
+        clearChanged();
+
+        location = storedLocation;
+        scale = storedScale;
+        offset = storedOffset;
+        shape = storedShape;
+
+        // the quantiles and distribution are back to the stored values
+        for (int i = 0; i < dirtyCount; i++) {
+            dirty[dirtyNodes[i]] = false;
+        }
+        dirtyCount = 0;
+        distributionChanged = false;
+        ratesKnown = true;
+    }
+
+    protected void acceptState() {
+    }
+
+    public final double getBranchRate(final Tree tree, final NodeRef node) {
+
+        assert !tree.isRoot(node) : "root node doesn't have a rate!";
+
+        if (!ratesKnown) {
+            updateRates();
+        }
+        return rates[node.getNumber()];
+    }
+
+    public final void getBranchRates(final Tree tree, final double[] rates) {
+        if (!ratesKnown) {
+            updateRates();
+        }
+        System.arraycopy(this.rates, 0, rates, 0, nodeCount);
+    }
+
+    public double getLogLikelihood() {
+        // the quantiles are uniform on (0,1)
+        return 0.0;
+    }
+
+    private void markDirty(int nodeNum) {
+        if (!dirty[nodeNum]) {
+            dirty[nodeNum] = true;
+            dirtyNodes[dirtyCount++] = nodeNum;
+        }
+    }
+
+    private void clearChanged() {
+        for (int i = 0; i < changedCount; i++) {
+            changed[changedNodes[i]] = false;
+        }
+        changedCount = 0;
+        allChanged = false;
+    }
+
+    private void saveNode(int nodeNum) {
+        if (!allChanged && !changed[nodeNum]) {
+            changed[nodeNum] = true;
+            changedNodes[changedCount++] = nodeNum;
+            storedStandardQuantiles[nodeNum] = standardQuantiles[nodeNum];
+            storedRates[nodeNum] = rates[nodeNum];
+        }
+    }
+
+    private void saveAll() {
+        if (!allChanged) {
+            // the branches changed so far already have their stored values
+            for (int i = 0; i < nodeCount; i++) {
+                if (!changed[i]) {
+                    storedStandardQuantiles[i] = standardQuantiles[i];
+                    storedRates[i] = rates[i];
+                }
+            }
+            allChanged = true;
+        }
+    }
+
+    /**
+     * Brings the rates up to date with the quantiles and the distribution. Readers on several threads may
+     * call this, so the update is done under a lock, after which the rates are published through ratesKnown.
+     */
+    private synchronized void updateRates() {
+        if (ratesKnown) {
+            return;
+        }
+
+        final NodeRef root = treeModel.getRoot();
+
+        if (distributionChanged) {
+            saveAll();
+
+            final boolean shapeChanged = updateDistribution();
+
+            // the standardized quantiles only change if the gamma shape moved
+            if (shapeChanged) {
+                for (int i = 0; i < nodeCount; i++) {
+                    markDirty(i);
+                }
+            }
+
+            for (int i = 0; i < dirtyCount; i++) {
+                final NodeRef node = treeModel.getNode(dirtyNodes[i]);
+                if (node != root) {
+                    standardQuantiles[node.getNumber()] = standardize(rateQuantiles.getNodeValue(treeModel, node));
+                }
+            }
+            final int rootNum = root.getNumber();
+            for (int i = 0; i < nodeCount; i++) {
+                if (i != rootNum) {
+                    rates[i] = rate(standardQuantiles[i]);
+                }
+            }
+        } else {
+            for (int i = 0; i < dirtyCount; i++) {
+                final NodeRef node = treeModel.getNode(dirtyNodes[i]);
+                if (node != root) {
+                    final int nodeNum = node.getNumber();
+                    saveNode(nodeNum);
+                    standardQuantiles[nodeNum] = standardize(rateQuantiles.getNodeValue(treeModel, node));
+                    rates[nodeNum] = rate(standardQuantiles[nodeNum]);
+                }
+            }
+        }
+
+        for (int i = 0; i < dirtyCount; i++) {
+            dirty[dirtyNodes[i]] = false;
+        }
+        dirtyCount = 0;
+        distributionChanged = false;
+        ratesKnown = true;
+    }
+
+    /**
+     * Reads the current distribution parameters.
+     *
+     * @return true if the standardized quantiles need recomputing
+     */
+    private boolean updateDistribution() {
+        switch (family) {
+            case LOGNORMAL:
+                final LogNormalDistributionModel logNormal = (LogNormalDistributionModel) distributionModel;
+                location = logNormal.getM();
+                scale = logNormal.getStDev();
+                offset = logNormal.getOffset();
+                return false;
+            case EXPONENTIAL:
+                final ExponentialDistributionModel exponential = (ExponentialDistributionModel) distributionModel;
+                scale = exponential.getMean();
+                offset = exponential.getOffset();
+                return false;
+            case GAMMA:
+                final GammaDistributionModel gamma = (GammaDistributionModel) distributionModel;
+                scale = gamma.getScale();
+                if (gamma.getShape() != shape) {
+                    shape = gamma.getShape();
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the part of the quantile function that does not depend on the location or scale
+     */
+    private double standardize(double quantile) {
+        switch (family) {
+            case LOGNORMAL:
+                return NormalDistribution.quantile(quantile, 0.0, 1.0);
+            case EXPONENTIAL:
+                return -Math.log1p(-quantile);
+            case GAMMA:
+                return new org.apache.commons.math3.distribution.GammaDistribution(shape, 1.0).inverseCumulativeProbability(quantile);
+            default:
+                return quantile;
+        }
+    }
+
+    private double rate(double standardQuantile) {
+        switch (family) {
+            case LOGNORMAL:
+                return Math.exp(location + scale * standardQuantile) + offset;
+            case EXPONENTIAL:
+                return scale * standardQuantile + offset;
+            case GAMMA:
+                return scale * standardQuantile;
+            default:
+                return distributionModel.quantile(standardQuantile);
+        }
+    }
+
+    public static final XMLObjectParser<ContinuousBranchRates> PARSER = new AbstractXMLObjectParser<ContinuousBranchRates>() {
+
+        public static final String DISTRIBUTION = "distribution";
+        public static final String RATE_QUANTILES = "rateQuantiles";
+        public static final String RANDOMIZE_RATES = "randomizeRates";
+        public static final String KEEP_RATES = "keepRates";
+
+        public String getParserName() {
+            return CONTINUOUS_BRANCH_RATES;
+        }
+
+        public ContinuousBranchRates parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            TreeModel tree = (TreeModel) xo.getChild(TreeModel.class);
+            ParametricDistributionModel distributionModel = (ParametricDistributionModel) xo.getElementFirstChild(DISTRIBUTION);
+
+            Parameter rateQuantileParameter = (Parameter) xo.getElementFirstChild(RATE_QUANTILES);
+
+            Logger.getLogger("beast.evomodel").info("Using continuous relaxed clock model.");
+            Logger.getLogger("beast.evomodel").info("  parametric model = " + distributionModel.getModelName());
+            Logger.getLogger("beast.evomodel").info("   rate quantiles = " + rateQuantileParameter.getDimension());
+
+            final boolean randomizeRates = xo.getAttribute(RANDOMIZE_RATES, false);
+            final boolean keepRates = xo.getAttribute(KEEP_RATES, false);
+
+            if (randomizeRates && keepRates) {
+                throw new XMLParseException("Unable to both randomize and keep current rate quantiles");
+            }
+
+            return new ContinuousBranchRates(tree, rateQuantileParameter, distributionModel, randomizeRates, keepRates);
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return
+                    "This element returns a continuous relaxed clock model." +
+                            "The branch rates are given by continuous quantiles of a parametric distribution.";
+        }
+
+        public Class getReturnType() {
+            return ContinuousBranchRates.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                AttributeRule.newBooleanRule(RANDOMIZE_RATES, true, "Randomize initial quantiles"),
+                AttributeRule.newBooleanRule(KEEP_RATES, true, "Keep current rate quantiles"),
+                new ElementRule(TreeModel.class),
+                new ElementRule(DISTRIBUTION, ParametricDistributionModel.class, "The distribution model for rates among branches", false),
+                new ElementRule(RATE_QUANTILES, Parameter.class, "The rate quantiles parameter", false),
+        };
+    };
+}
@@ -27,6 +27,8 @@ import beast.inference.model.Model;
 import beast.inference.model.ModelListener;
 import beast.inference.model.Variable;
 
+import java.util.Arrays;
+
 /**
  * @author Andrew Rambaut
  * @version $Id: DefaultBranchRateModel.java,v 1.4 2005/05/24 20:25:57 rambaut Exp $
@@ -36,6 +38,10 @@ public final class DefaultBranchRateModel implements BranchRateModel {
         return 1.0;
     }
 
+    public void getBranchRates(Tree tree, double[] rates) {
+        Arrays.fill(rates, 0, tree.getNodeCount(), 1.0);
+    }
+
     public void addModelListener(ModelListener listener) {
         // nothing to do
     }
@@ -37,6 +37,10 @@ import beast.xml.XMLObjectParser;
 import beast.xml.XMLParseException;
 import beast.xml.XMLSyntaxRule;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -50,12 +54,8 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
 
     public static final String DISCRETIZED_BRANCH_RATES = "discretizedBranchRates";
 
-    // Turn on an off the caching on rates for categories -
-    // if off then the rates will be flagged to update on
-    // a restore.
-    // Currently turned off as it is not working with multiple partitions for
-    // some reason.
-    private static final boolean CACHE_RATES = false;
+    // The number of quantile tables kept for recently visited distribution parameter values
+    private static final int QUANTILE_CACHE_SIZE = 8;
 
     private final ParametricDistributionModel distributionModel;
 
@@ -64,19 +64,23 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
 
     private final int categoryCount;
     private final double step;
-    private final double[][] rates;
     private final boolean normalize;
     private final double normalizeBranchRateTo;
 
     private final TreeModel treeModel;
     private final double logDensityNormalizationConstant;
 
-    private double scaleFactor = 1.0;
-    private double storedScaleFactor;
+    // The current rate table, replaced as a whole and set to null when it needs recomputing,
+    // so readers on other threads never see a partially updated table.
+    private volatile RateTable rateTable = null;
 
-    private boolean updateRateCategories = true;
-    private int currentRateArrayIndex = 0;
-    private int storedRateArrayIndex;
+    // Category quantiles keyed on the values of the distribution parameters
+    private final Map<List<Double>, double[]> quantileCache =
+            new LinkedHashMap<List<Double>, double[]>(QUANTILE_CACHE_SIZE, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<List<Double>, double[]> eldest) {
+                    return size() > QUANTILE_CACHE_SIZE;
+                }
+            };
 
     //overSampling control the number of effective categories
 
@@ -106,8 +110,6 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
         categoryCount = (tree.getNodeCount() - 1) * overSampling;
         step = 1.0 / (double) categoryCount;
 
-        rates = new double[2][categoryCount];
-
         this.normalize = normalize;
 
         this.treeModel = tree;
@@ -130,8 +132,6 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
         addModel(model);
         addModel(rateCategories);
 
-        updateRateCategories = true;
-
         // Each parameter take any value in [1, \ldots, categoryCount]
         // NB But this depends on the transition kernel employed.  Using swap-only results in a different constant
         logDensityNormalizationConstant = -rateCategoryParameter.getDimension() * Math.log(categoryCount);
@@ -139,7 +139,7 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
 
     // compute scale factor
 
-    private void computeFactor() {
+    private double computeFactor(double[] rates) {
 
         //scale mean rate to 1.0 or separate parameter
 
@@ -151,21 +151,18 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
             NodeRef node = treeModel.getNode(i);
             if (!treeModel.isRoot(node)) {
                 int rateCategory = (int) Math.round(rateCategories.getNodeValue(treeModel, node));
-                treeRate += rates[currentRateArrayIndex][rateCategory] * treeModel.getBranchLength(node);
+                treeRate += rates[rateCategory] * treeModel.getBranchLength(node);
                 treeTime += treeModel.getBranchLength(node);
-
-                //System.out.println("rates and time\t" + rates[rateCategory] + "\t" + treeModel.getBranchLength(node));
             }
         }
         //treeRate /= treeTime;
 
-        scaleFactor = normalizeBranchRateTo / (treeRate / treeTime);
-        //System.out.println("scaleFactor\t\t\t\t\t" + scaleFactor);
+        return normalizeBranchRateTo / (treeRate / treeTime);
     }
 
     public void handleModelChangedEvent(Model model, Object object, int index) {
         if (model == distributionModel) {
-            updateRateCategories = true;
+            rateTable = null;
             fireModelChanged();
         } else if (model == rateCategories) {
             fireModelChanged(null, index);
@@ -177,19 +174,12 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
    }
 
     protected void storeState() {
-        if (CACHE_RATES) {
-            storedRateArrayIndex = currentRateArrayIndex;
-            storedScaleFactor = scaleFactor;
-        }
+        // nothing to do
     }
 
     protected void restoreState() {
-        if (CACHE_RATES) {
-            currentRateArrayIndex = storedRateArrayIndex;
-            scaleFactor = storedScaleFactor;
-        } else {
-            updateRateCategories = true;
-        }
+        // the quantiles of the restored distribution are normally still cached
+        rateTable = null;
     }
 
     protected void acceptState() {
@@ -199,38 +189,102 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel {
 
         assert !tree.isRoot(node) : "root node doesn't have a rate!";
 
-        synchronized (this) {
-            if (updateRateCategories) {
-                setupRates();
-            }
-        }
+        final RateTable table = getRateTable();
 
         int rateCategory = (int) Math.round(rateCategories.getNodeValue(tree, node));
 
-        //System.out.println(rates[rateCategory] + "\t"  + rateCategory);
-        return rates[currentRateArrayIndex][rateCategory] * scaleFactor;
+        return table.rates[rateCategory] * table.scaleFactor;
+    }
+
+    public final void getBranchRates(final Tree tree, final double[] rates) {
+
+        final RateTable table = getRateTable();
+
+        final NodeRef root = tree.getRoot();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final NodeRef node = tree.getNode(i);
+            if (node != root) {
+                int rateCategory = (int) Math.round(rateCategories.getNodeValue(tree, node));
+                rates[node.getNumber()] = table.rates[rateCategory] * table.scaleFactor;
+            }
+        }
+    }
+
+    private RateTable getRateTable() {
+        RateTable table = rateTable;
+        if (table == null) {
+            // concurrent callers may both build the table, but they build the same one
+            table = setupRates();
+            rateTable = table;
+        }
+        return table;
     }
 
     /**
      * Calculates the actual rates corresponding to the category indices.
      */
-    private void setupRates() {
+    private RateTable setupRates() {
+
+        final List<Double> key = getDistributionKey();
 
-        if (CACHE_RATES) {
-            // flip the current array index
-            currentRateArrayIndex = 1 - currentRateArrayIndex;
+        double[] rates;
+        synchronized (quantileCache) {
+            rates = (key != null ? quantileCache.get(key) : null);
         }
 
-        double z = step / 2.0;
-        for (int i = 0; i < categoryCount; i++) {
-            rates[currentRateArrayIndex][i] = distributionModel.quantile(z);
-            //System.out.print(rates[i]+"\t");
-            z += step;
+        if (rates == null) {
+            rates = new double[categoryCount];
+            double z = step / 2.0;
+            for (int i = 0; i < categoryCount; i++) {
+                rates[i] = distributionModel.quantile(z);
+                z += step;
+            }
+            if (key != null) {
+                synchronized (quantileCache) {
+                    quantileCache.put(key, rates);
+                }
+            }
+        }
+
+        return new RateTable(rates, normalize ? computeFactor(rates) : 1.0);
+    }
+
+    /**
+     * @return the values of all the parameters of the distribution model, or null if
+     * the distribution depends on something other than parameters.
+     */
+    private List<Double> getDistributionKey() {
+        final List<Double> key = new ArrayList<Double>();
+        return addParameterValues(distributionModel, key) ? key : null;
+    }
+
+    private static boolean addParameterValues(Model model, List<Double> key) {
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            final Variable variable = model.getVariable(i);
+            if (!(variable instanceof Parameter)) {
+                return false;
+            }
+            final Parameter parameter = (Parameter) variable;
+            for (int j = 0; j < parameter.getDimension(); j++) {
+                key.add(parameter.getParameterValue(j));
+            }
         }
+        for (int i = 0; i < model.getModelCount(); i++) {
+            if (!addParameterValues(model.getModel(i), key)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        if (normalize) computeFactor();
+    private static final class RateTable {
+        final double[] rates;
+        final double scaleFactor;
 
-        updateRateCategories = false;
+        RateTable(double[] rates, double scaleFactor) {
+            this.rates = rates;
+            this.scaleFactor = scaleFactor;
+        }
     }
 
     public double getLogLikelihood() {
@@ -32,6 +32,7 @@ import beast.xml.XMLObjectParser;
 import beast.xml.XMLParseException;
 import beast.xml.XMLSyntaxRule;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -78,6 +79,10 @@ public class StrictClockBranchRates extends AbstractBranchRateModel {
         return rateParameter.getParameterValue(0);
     }
 
+    public void getBranchRates(final Tree tree, final double[] rates) {
+        Arrays.fill(rates, 0, tree.getNodeCount(), rateParameter.getParameterValue(0));
+    }
+
     public static final XMLObjectParser<StrictClockBranchRates> PARSER = new AbstractXMLObjectParser<StrictClockBranchRates>() {
         public static final String RATE = "rate";
 
@@ -69,6 +69,14 @@ public abstract class RateEvolutionLikelihood extends AbstractBranchRateModel {
 
         this.isEpisodic = isEpisodic;
 
+        final int nodeCount = treeModel.getNodeCount();
+        branchLogLikelihoods = new double[nodeCount];
+        storedBranchLogLikelihoods = new double[nodeCount];
+        flagged = new boolean[nodeCount];
+        flaggedNodes = new int[nodeCount];
+        saved = new boolean[nodeCount];
+        savedNodes = new int[nodeCount];
+
         Logger.getLogger("beast.evomodel").info("AutoCorrelated Relaxed Clock: " + name + (isEpisodic ? " (episodic)." : "."));
 
     }
@@ -80,19 +88,60 @@ public abstract class RateEvolutionLikelihood extends AbstractBranchRateModel {
     public final void handleModelChangedEvent(Model model, Object object, int index) {
         likelihoodKnown = false;
         if (model == ratesParameter) {
+            if (index >= 0 && index < flagged.length) {
+                flagNode(index);
+            } else {
+                allDirty = true;
+            }
             fireModelChanged(this, index);
+        } else if (model == treeModel) {
+            if (object instanceof TreeModel.TreeChangedEvent) {
+                final TreeModel.TreeChangedEvent event = (TreeModel.TreeChangedEvent) object;
+                if (event.isNodeChanged() && !event.areAllInternalHeightsChanged()) {
+                    // a new height, rate or set of children for this node changes its own branch and its children's
+                    flagNode(event.getNode().getNumber());
+                } else {
+                    allDirty = true;
+                }
+            } else {
+                allDirty = true;
+            }
         }
     }
 
     protected final void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
         likelihoodKnown = false;
+        if (variable == rootRateParameter && !isRootRateSharedByAllBranches()) {
+            flagNode(treeModel.getRoot().getNumber());
+        } else {
+            allDirty = true;
+        }
     }
 
     protected void storeState() {
+        if (!likelihoodKnown) {
+            logLikelihood = calculateLogLikelihood();
+            likelihoodKnown = true;
+        }
+        clearSaved();
+        storedLogLikelihood = logLikelihood;
     }
 
     protected void restoreState() {
-        likelihoodKnown = false;
+        if (allSaved) {
+            final double[] tmp = branchLogLikelihoods;
+            branchLogLikelihoods = storedBranchLogLikelihoods;
+            storedBranchLogLikelihoods = tmp;
+        } else {
+            for (int i = 0; i < savedCount; i++) {
+                final int nodeNum = savedNodes[i];
+                branchLogLikelihoods[nodeNum] = storedBranchLogLikelihoods[nodeNum];
+            }
+        }
+        clearSaved();
+        clearFlags();
+        logLikelihood = storedLogLikelihood;
+        likelihoodKnown = true;
     }
 
     protected void acceptState() {
@@ -121,6 +170,7 @@ public abstract class RateEvolutionLikelihood extends AbstractBranchRateModel {
 
     public void makeDirty() {
         likelihoodKnown = false;
+        allDirty = true;
     }
 
     /**
@@ -134,38 +184,102 @@ public abstract class RateEvolutionLikelihood extends AbstractBranchRateModel {
     }
 
     /**
-     * Get the log likelihood of the rate changes in this tree.
+     * Get the log likelihood of the rate changes in this tree, re-evaluating only the branches whose rate,
+     * parent rate or length may have changed.
      *
      * @return the log likelihood.
      */
     private double calculateLogLikelihood() {
-        NodeRef root = treeModel.getRoot();
-        NodeRef node1 = treeModel.getChild(root, 0);
-        NodeRef node2 = treeModel.getChild(root, 1);
+        final NodeRef root = treeModel.getRoot();
+
+        if (allDirty) {
+            // every branch is recomputed, so keep a full copy for a restore
+            if (!allSaved) {
+                for (int i = 0; i < branchLogLikelihoods.length; i++) {
+                    if (!saved[i]) {
+                        storedBranchLogLikelihoods[i] = branchLogLikelihoods[i];
+                    }
+                }
+                allSaved = true;
+            }
+
+            double logL = 0.0;
+            for (int i = 0; i < treeModel.getNodeCount(); i++) {
+                final NodeRef node = treeModel.getNode(i);
+                if (node != root) {
+                    final double branchLogL = branchLogLikelihood(treeModel.getParent(node), node);
+                    branchLogLikelihoods[i] = branchLogL;
+                    logL += branchLogL;
+                }
+            }
+            clearFlags();
+            return logL;
+        }
 
-        return calculateLogLikelihood(root, node1) + calculateLogLikelihood(root, node2);
+        double logL = logLikelihood;
+        for (int i = 0; i < flaggedCount; i++) {
+            final NodeRef node = treeModel.getNode(flaggedNodes[i]);
+            flagged[flaggedNodes[i]] = false;
+
+            if (node != root) {
+                logL += updateBranch(treeModel.getParent(node), node);
+            }
+            for (int j = 0; j < treeModel.getChildCount(node); j++) {
+                final NodeRef child = treeModel.getChild(node, j);
+                // a child flagged itself is updated on its own
+                if (!flagged[child.getNumber()]) {
+                    logL += updateBranch(node, child);
+                }
+            }
+        }
+        flaggedCount = 0;
+        return logL;
     }
 
     /**
-     * Recursively calculate the log likelihood of the rate changes in the given tree.
+     * Recalculates the log likelihood of the rate change along the branch above the given node.
      *
-     * @return the partial log likelihood of the rate changes below the given node plus the
-     *         branch directly above.
+     * @return the change in the log likelihood.
      */
-    private double calculateLogLikelihood(NodeRef parent, NodeRef node) {
+    private double updateBranch(NodeRef parent, NodeRef node) {
+        final int nodeNum = node.getNumber();
+        if (!allSaved && !saved[nodeNum]) {
+            saved[nodeNum] = true;
+            savedNodes[savedCount++] = nodeNum;
+            storedBranchLogLikelihoods[nodeNum] = branchLogLikelihoods[nodeNum];
+        }
+        final double oldLogL = branchLogLikelihoods[nodeNum];
+        final double newLogL = branchLogLikelihood(parent, node);
+        branchLogLikelihoods[nodeNum] = newLogL;
+        return newLogL - oldLogL;
+    }
 
-        double logL, length;
-        length = treeModel.getBranchLength(node);
+    private double branchLogLikelihood(NodeRef parent, NodeRef node) {
+        return branchRateChangeLogLikelihood(getBranchRate(treeModel, parent), getBranchRate(treeModel, node),
+                treeModel.getBranchLength(node));
+    }
 
-        logL = branchRateChangeLogLikelihood(getBranchRate(treeModel, parent), getBranchRate(treeModel, node),
-                length);
+    private void flagNode(int nodeNum) {
+        if (!flagged[nodeNum]) {
+            flagged[nodeNum] = true;
+            flaggedNodes[flaggedCount++] = nodeNum;
+        }
+    }
 
-        //System.out.print(parent.getNumber() + " " + getBranchRate(treeModel, parent)+ " " + node.getNumber() + " " + getBranchRate(treeModel, node) + " " + treeModel.getBranchLength(node) + " " + logL + ", ");
+    private void clearFlags() {
+        for (int i = 0; i < flaggedCount; i++) {
+            flagged[flaggedNodes[i]] = false;
+        }
+        flaggedCount = 0;
+        allDirty = false;
+    }
 
-        for (int i = 0; i < treeModel.getChildCount(node); i++) {
-            logL += calculateLogLikelihood(node, treeModel.getChild(node, i));
+    private void clearSaved() {
+        for (int i = 0; i < savedCount; i++) {
+            saved[savedNodes[i]] = false;
         }
-        return logL;
+        savedCount = 0;
+        allSaved = false;
     }
 
     public String toString() {
@@ -199,13 +313,38 @@ public abstract class RateEvolutionLikelihood extends AbstractBranchRateModel {
      */
     abstract double branchRateChangeLogLikelihood(double parentRate, double childRate, double time);
 
+    /**
+     * @return true if the root rate enters the density of every branch, rather than only those of the
+     *         root's children.
+     */
+    boolean isRootRateSharedByAllBranches() {
+        return false;
+    }
+
     // **************************************************************
     // Private members
     // **************************************************************
 
     private double logLikelihood;
+    private double storedLogLikelihood;
     private boolean likelihoodKnown = false;
 
+    // per node: the log likelihood of the rate change along the branch above it
+    private double[] branchLogLikelihoods;
+    private double[] storedBranchLogLikelihoods;
+
+    // nodes whose own branch and child branches need recomputing
+    private final boolean[] flagged;
+    private final int[] flaggedNodes;
+    private int flaggedCount = 0;
+    private boolean allDirty = true;
+
+    // branches whose values were saved since the last store
+    private final boolean[] saved;
+    private final int[] savedNodes;
+    private int savedCount = 0;
+    private boolean allSaved = false;
+
     private final TreeModel treeModel;
     private final TreeParameterModel ratesParameter;
     protected final Parameter rootRateParameter;
@@ -69,6 +69,13 @@ public class UCLikelihood extends RateEvolutionLikelihood {
         }
     }
 
+    /**
+     * The root rate is the mean rate of every branch.
+     */
+    boolean isRootRateSharedByAllBranches() {
+        return true;
+    }
+
     double branchRateSample(double foo1, double foo2) {
         double meanRate = rootRateParameter.getParameterValue(0);
 
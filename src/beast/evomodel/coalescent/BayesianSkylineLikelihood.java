@@ -25,8 +25,10 @@ import beast.evolution.coalescent.ExponentialBSPGrowth;
 import beast.evolution.tree.Tree;
 import beast.evolution.util.Units;
 import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Model;
 import beast.inference.model.Parameter;
 import beast.inference.model.Statistic;
+import beast.inference.model.Variable;
 import beast.math.MathUtils;
 import beast.xml.AbstractXMLObjectParser;
 import beast.xml.AttributeRule;
@@ -37,6 +39,9 @@ import beast.xml.XMLParseException;
 import beast.xml.XMLSyntaxRule;
 import beast.xml.XORRule;
 
+import org.apache.commons.math3.util.CombinatoricsUtils;
+
+import java.util.Arrays;
 import java.util.Date;
 import java.util.logging.Logger;
 
@@ -53,7 +58,7 @@ public class BayesianSkylineLikelihood extends OldAbstractCoalescentLikelihood {
 
     public static final String SKYLINE_LIKELIHOOD = "generalizedSkyLineLikelihood";
 
-    private enum Type {
+    enum Type {
         STEPWISE,
         LINEAR,
         EXPONENTIAL;
@@ -144,6 +149,17 @@ public class BayesianSkylineLikelihood extends OldAbstractCoalescentLikelihood {
 
         addVariable(groupSizeParameter);
 
+        final int groupCount = getGroupCount();
+        groupStartEvents = new int[groupCount + 1];
+        groupEnds = new double[groupCount];
+        groupLogLikelihoods = new double[groupCount];
+        groupDirty = new boolean[groupCount];
+        storedGroupStartEvents = new int[groupCount + 1];
+        storedGroupEnds = new double[groupCount];
+        storedGroupLogLikelihoods = new double[groupCount];
+        storedGroupDirty = new boolean[groupCount];
+        markAllGroupsDirty();
+
         setupIntervals();
 
         addStatistic(new GroupHeightStatistic());
@@ -155,95 +171,215 @@ public class BayesianSkylineLikelihood extends OldAbstractCoalescentLikelihood {
 
     /**
      * Calculates the log likelihood of this set of coalescent intervals,
-     * given a demographic model.
+     * given a demographic model. The likelihood is kept as a sum of per-group terms and only the
+     * groups touched by a parameter change are re-evaluated.
      */
     public double getLogLikelihood() {
 
-        setupIntervals();
+        updateGroups();
 
         double logL = 0.0;
+        for (double groupLogL : groupLogLikelihoods) {
+            logL += groupLogL;
+        }
+        return logL;
+    }
 
-        double currentTime = 0.0;
+    /**
+     * Brings the interval prefix sums, the group boundaries and the dirty group terms up to date.
+     */
+    private void updateGroups() {
+        if (!intervalsKnown) {
+            setupIntervals();
+            prefixKnown = false;
+            groupsKnown = false;
+            markAllGroupsDirty();
+        }
+        if (!prefixKnown) {
+            setupPrefixSums();
+        }
+        if (!groupsKnown) {
+            setupGroupBoundaries();
+        }
+        for (int g = 0; g < groupDirty.length; g++) {
+            if (groupDirty[g]) {
+                groupLogLikelihoods[g] = calculateGroupLogLikelihood(g);
+                groupDirty[g] = false;
+            }
+        }
+    }
 
-        int groupIndex=0;
-        int[] groupSizes = getGroupSizes();
-        double[] groupEnds = getGroupHeights();
+    /**
+     * Builds the per-interval prefix sums: interval start times, the accumulated C(k,2)*t intensity and,
+     * for every coalescent event (counting each event of a polytomy), the interval it belongs to.
+     */
+    private void setupPrefixSums() {
+        int events = 0;
+        int coalescentIntervals = 0;
+        for (int j = 0; j < intervalCount; j++) {
+            if (getIntervalType(j) == CoalescentEventType.COALESCENT) {
+                events += getCoalescentEvents(j);
+                coalescentIntervals += 1;
+            }
+        }
 
-        int subIndex = 0;
+        if (intervalStarts == null || intervalStarts.length != intervalCount + 1) {
+            intervalStarts = new double[intervalCount + 1];
+            intensityBefore = new double[intervalCount + 1];
+        }
+        if (eventInterval == null || eventInterval.length != events) {
+            eventInterval = new int[events];
+            eventPolytomyIndex = new int[events];
+            firstIntervalOfEvent = new int[events + 1];
+        }
+        if (coalescentEnds == null || coalescentEnds.length != coalescentIntervals) {
+            coalescentEnds = new double[coalescentIntervals];
+        }
 
-        if (type == Type.EXPONENTIAL) {
-            ExponentialBSPGrowth eg = new ExponentialBSPGrowth(Units.Type.YEARS);
+        double currentTime = 0.0;
+        double intensity = 0.0;
+        int e = 0;
+        int c = 0;
+        for (int j = 0; j < intervalCount; j++) {
+            intervalStarts[j] = currentTime;
+            intensityBefore[j] = intensity;
+
+            if (getIntervalType(j) == CoalescentEventType.COALESCENT) {
+                final int n = getCoalescentEvents(j);
+                for (int k = 0; k < n; k++) {
+                    // intervals belong to the group of the next event to happen, so an event's first
+                    // interval is the one following the previous event
+                    firstIntervalOfEvent[e] = e == 0 ? 0 : eventInterval[e - 1] + 1;
+                    eventInterval[e] = j;
+                    eventPolytomyIndex[e] = k - 1;
+                    e++;
+                }
+                coalescentEnds[c++] = currentTime + intervals[j];
+            }
 
-            for (int j = 0; j < intervalCount; j++) {
-                double startGroupPopSize = popSizeParameter.getParameterValue(groupIndex);
-                double endGroupPopSize = popSizeParameter.getParameterValue(groupIndex+1);
-                double startTime = currentTime;
-                double endTime = currentTime + intervals[j];
+            intensity += CombinatoricsUtils.binomialCoefficientDouble(lineageCounts[j], 2) * intervals[j];
+            currentTime += intervals[j];
+        }
+        intervalStarts[intervalCount] = currentTime;
+        intensityBefore[intervalCount] = intensity;
+        firstIntervalOfEvent[events] = intervalCount;
 
-                eg.setup(startGroupPopSize, endGroupPopSize, endTime - startTime);
+        eventCount = events;
+        prefixKnown = true;
+    }
 
-                if (getIntervalType(j) == CoalescentEventType.COALESCENT) {
-                    subIndex += 1;
-                    if (subIndex >= groupSizes[groupIndex]) {
-                        groupIndex += 1;
-                        subIndex = 0;
-                    }
-                }
+    /**
+     * Recomputes the first event of each group and the group end heights, marking as dirty only those
+     * groups whose boundaries moved.
+     */
+    private void setupGroupBoundaries() {
+        final int[] groupSizes = getGroupSizes();
+        final int groupCount = groupSizes.length;
 
-                logL += calculateIntervalLikelihood(eg, intervals[j], currentTime, lineageCounts[j], getIntervalType(j));
-
-                // insert zero-length coalescent intervals
-                int diff = getCoalescentEvents(j)-1;
-                for (int k = 0; k < diff; k++) {
-                    eg.setup(startGroupPopSize, startGroupPopSize, endTime - startTime);
-                    logL += calculateIntervalLikelihood(eg, 0.0, currentTime, lineageCounts[j]-k-1,
-                            CoalescentEventType.COALESCENT);
-                    subIndex += 1;
-                    if (subIndex >= groupSizes[groupIndex]) {
-                        groupIndex += 1;
-                        subIndex = 0;
-                    }
+        int eventsCovered = 0;
+        int previousEnd = groupStartEvents[0];
+        for (int g = 0; g < groupCount; g++) {
+            final int previousStart = previousEnd;
+            previousEnd = groupStartEvents[g + 1];
+
+            final int start = Math.min(eventsCovered, eventCount);
+            eventsCovered += groupSizes[g];
+            final int end = Math.min(eventsCovered, eventCount);
+
+            double groupEnd = 0.0;
+            if (g == groupCount - 1) {
+                groupEnd = intervalStarts[intervalCount];
+            } else if (eventsCovered <= coalescentEnds.length) {
+                // group heights are set by the coalescent intervals only, as in the original skyline
+                groupEnd = coalescentEnds[eventsCovered - 1];
+            }
+
+            if (start != previousStart || end != previousEnd || groupEnd != groupEnds[g]) {
+                groupDirty[g] = true;
+                if (g + 1 < groupCount && type == Type.LINEAR && groupEnd != groupEnds[g]) {
+                    // linear interpolation within the next group starts at this group's end
+                    groupDirty[g + 1] = true;
                 }
+            }
+            groupStartEvents[g] = start;
+            groupStartEvents[g + 1] = end;
+            groupEnds[g] = groupEnd;
+        }
+        groupsKnown = true;
+    }
 
-                currentTime += intervals[j];
+    /**
+     * @return the log likelihood of the intervals and coalescent events falling in the given group.
+     */
+    private double calculateGroupLogLikelihood(int groupIndex) {
+        final int firstEvent = groupStartEvents[groupIndex];
+        final int lastEvent = groupStartEvents[groupIndex + 1];
+        final int firstInterval = firstIntervalOfEvent[firstEvent];
+        final int lastInterval = firstIntervalOfEvent[lastEvent];
+
+        double logL = 0.0;
+
+        switch (type) {
+            case STEPWISE: {
+                final double popSize = popSizeParameter.getParameterValue(groupIndex);
+                final double intensity = intensityBefore[lastInterval] - intensityBefore[firstInterval];
+                logL = -intensity / popSize - (lastEvent - firstEvent) * Math.log(popSize);
+                break;
             }
-        } else {
-            ConstantPopulation cp = new ConstantPopulation(Units.Type.YEARS);
-
-            for (int j = 0; j < intervalCount; j++) {
-
-                // set the population size to the size of the middle of the current interval
-                final double ps = getPopSize(groupIndex, currentTime + (intervals[j]/2.0), groupEnds);
-                cp.setN0(ps);
-                if (getIntervalType(j) == CoalescentEventType.COALESCENT) {
-                    subIndex += 1;
-                    if (subIndex >= groupSizes[groupIndex]) {
-                        groupIndex += 1;
-                        subIndex = 0;
-                    }
+            case LINEAR: {
+                ConstantPopulation cp = new ConstantPopulation(Units.Type.YEARS);
+
+                for (int j = firstInterval; j < lastInterval; j++) {
+                    final double currentTime = intervalStarts[j];
+
+                    // set the population size to the size of the middle of the current interval
+                    cp.setN0(getPopSize(groupIndex, currentTime + (intervals[j]/2.0), groupEnds));
+                    logL += calculateIntervalLikelihood(cp, intervals[j], currentTime, lineageCounts[j], getIntervalType(j));
                 }
 
-                logL += calculateIntervalLikelihood(cp, intervals[j], currentTime, lineageCounts[j], getIntervalType(j));
-
-                // insert zero-length coalescent intervals
-                int diff = getCoalescentEvents(j)-1;
-                for (int k = 0; k < diff; k++) {
-                    cp.setN0(getPopSize(groupIndex, currentTime, groupEnds));
-                    logL += calculateIntervalLikelihood(cp, 0.0, currentTime, lineageCounts[j]-k-1,
-                            CoalescentEventType.COALESCENT);
-                    subIndex += 1;
-                    if (subIndex >= groupSizes[groupIndex]) {
-                        groupIndex += 1;
-                        subIndex = 0;
+                // zero-length coalescent intervals of polytomies that fall in this group
+                for (int e = firstEvent; e < lastEvent; e++) {
+                    final int k = eventPolytomyIndex[e];
+                    if (k >= 0) {
+                        final int j = eventInterval[e];
+                        final double currentTime = intervalStarts[j];
+                        cp.setN0(getPopSize(groupIndex, currentTime, groupEnds));
+                        logL += calculateIntervalLikelihood(cp, 0.0, currentTime, lineageCounts[j]-k-1,
+                                CoalescentEventType.COALESCENT);
                     }
                 }
-
-                currentTime += intervals[j];
+                break;
+            }
+            case EXPONENTIAL: {
+                ExponentialBSPGrowth eg = new ExponentialBSPGrowth(Units.Type.YEARS);
+                final double startGroupPopSize = popSizeParameter.getParameterValue(groupIndex);
+                final double endGroupPopSize = popSizeParameter.getParameterValue(groupIndex+1);
+
+                for (int j = firstInterval; j < lastInterval; j++) {
+                    final double startTime = intervalStarts[j];
+                    final double endTime = startTime + intervals[j];
+
+                    eg.setup(startGroupPopSize, endGroupPopSize, endTime - startTime);
+                    logL += calculateIntervalLikelihood(eg, intervals[j], startTime, lineageCounts[j], getIntervalType(j));
+
+                    // insert zero-length coalescent intervals
+                    int diff = getCoalescentEvents(j)-1;
+                    for (int k = 0; k < diff; k++) {
+                        eg.setup(startGroupPopSize, startGroupPopSize, endTime - startTime);
+                        logL += calculateIntervalLikelihood(eg, 0.0, startTime, lineageCounts[j]-k-1,
+                                CoalescentEventType.COALESCENT);
+                    }
+                }
+                break;
             }
         }
         return logL;
     }
 
+    private void markAllGroupsDirty() {
+        Arrays.fill(groupDirty, true);
+    }
+
     /**
      * @return the pop size for the given time. If linear model is being used then this pop size is
      * interpolated between the two pop sizes at either end of the grouped interval.
@@ -304,31 +440,84 @@ public class BayesianSkylineLikelihood extends OldAbstractCoalescentLikelihood {
 
     /* GAL: made public to give BayesianSkylineGibbsOperator access */
     public final double[] getGroupHeights() {
-        double[] groupEnds = new double[getGroupCount()];
+        updateGroups();
+        return groupEnds.clone();
+    }
 
-        double timeEnd = 0.0;
-        int groupIndex = 0;
-        int subIndex = 0;
-        for (int i = 0; i < intervalCount; i++) {
+    private double getGroupHeight(int groupIndex) {
+        updateGroups();
+        return groupEnds[groupIndex];
+    }
+
+    // **************************************************************
+    // Model IMPLEMENTATION
+    // **************************************************************
 
-            timeEnd += intervals[i];
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        super.handleModelChangedEvent(model, object, index);
+        if (model == tree) {
+            prefixKnown = false;
+            groupsKnown = false;
+            markAllGroupsDirty();
+            treeChangedSinceStore = true;
+        }
+    }
 
-            if (getIntervalType(i) == CoalescentEventType.COALESCENT) {
-                subIndex += 1;
-                if (subIndex >= getGroupSize(groupIndex)) {
-                    groupEnds[groupIndex] = timeEnd;
-                    groupIndex += 1;
-                    subIndex = 0;
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType changeType) {
+        if (variable == popSizeParameter) {
+            if (index < 0) {
+                markAllGroupsDirty();
+            } else {
+                // a stepwise group uses its own size only, linear and exponential groups interpolate
+                // between their own size and the next one
+                if (index < groupDirty.length) {
+                    groupDirty[index] = true;
+                }
+                if (type != Type.STEPWISE && index > 0) {
+                    groupDirty[index - 1] = true;
                 }
             }
+        } else if (variable == groupSizeParameter) {
+            groupsKnown = false;
         }
-        groupEnds[getGroupCount()-1] = timeEnd;
+    }
 
-        return groupEnds;
+    protected void storeState() {
+        super.storeState();
+        System.arraycopy(groupStartEvents, 0, storedGroupStartEvents, 0, groupStartEvents.length);
+        System.arraycopy(groupEnds, 0, storedGroupEnds, 0, groupEnds.length);
+        System.arraycopy(groupLogLikelihoods, 0, storedGroupLogLikelihoods, 0, groupLogLikelihoods.length);
+        System.arraycopy(groupDirty, 0, storedGroupDirty, 0, groupDirty.length);
+        storedGroupsKnown = groupsKnown;
+        treeChangedSinceStore = false;
     }
 
-    private double getGroupHeight(int groupIndex) {
-        return getGroupHeights()[groupIndex];
+    protected void restoreState() {
+        super.restoreState();
+
+        int[] tmp1 = groupStartEvents;
+        groupStartEvents = storedGroupStartEvents;
+        storedGroupStartEvents = tmp1;
+
+        double[] tmp2 = groupEnds;
+        groupEnds = storedGroupEnds;
+        storedGroupEnds = tmp2;
+
+        tmp2 = groupLogLikelihoods;
+        groupLogLikelihoods = storedGroupLogLikelihoods;
+        storedGroupLogLikelihoods = tmp2;
+
+        boolean[] tmp3 = groupDirty;
+        groupDirty = storedGroupDirty;
+        storedGroupDirty = tmp3;
+
+        groupsKnown = storedGroupsKnown;
+
+        if (treeChangedSinceStore) {
+            // the restored group terms are valid but the prefix sums describe the rejected tree
+            prefixKnown = false;
+        }
+        treeChangedSinceStore = false;
     }
 
     final public Type getType() {
@@ -382,6 +571,29 @@ public class BayesianSkylineLikelihood extends OldAbstractCoalescentLikelihood {
 
     private final Type type;
 
+    // prefix sums over the coalescent intervals, rebuilt only when the tree changes
+    private boolean prefixKnown = false;
+    private double[] intervalStarts;
+    private double[] intensityBefore;
+    private int[] eventInterval;
+    private int[] eventPolytomyIndex;
+    private int[] firstIntervalOfEvent;
+    private double[] coalescentEnds;
+    private int eventCount;
+
+    // per-group boundaries and log likelihood terms
+    private boolean groupsKnown = false;
+    private boolean storedGroupsKnown;
+    private int[] groupStartEvents;
+    private int[] storedGroupStartEvents;
+    private double[] groupEnds;
+    private double[] storedGroupEnds;
+    private double[] groupLogLikelihoods;
+    private double[] storedGroupLogLikelihoods;
+    private boolean[] groupDirty;
+    private boolean[] storedGroupDirty;
+    private boolean treeChangedSinceStore = false;
+
     public static final XMLObjectParser<BayesianSkylineLikelihood> PARSER = new AbstractXMLObjectParser<BayesianSkylineLikelihood>() {
         public static final String POPULATION_SIZES = "populationSizes";
         public static final String GROUP_SIZES = "groupSizes";
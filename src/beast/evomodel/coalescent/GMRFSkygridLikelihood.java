@@ -0,0 +1,342 @@
+/*
+ * GMRFSkygridLikelihood.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.coalescent;
+
+import beast.evolution.coalescent.IntervalType;
+import beast.evolution.coalescent.TreeIntervals;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.AbstractModelLikelihood;
+import beast.inference.model.Model;
+import beast.inference.model.Parameter;
+import beast.inference.model.Variable;
+import beast.math.MathUtils;
+import beast.xml.AbstractXMLObjectParser;
+import beast.xml.AttributeRule;
+import beast.xml.ElementRule;
+import beast.xml.XMLObject;
+import beast.xml.XMLObjectParser;
+import beast.xml.XMLParseException;
+import beast.xml.XMLSyntaxRule;
+
+import java.util.Arrays;
+
+/**
+ * A skygrid coalescent likelihood: log population sizes that are constant between the points of a fixed
+ * time grid, with a first order Gaussian Markov random field prior on them. The GMRF precision matrix is
+ * tau times the tridiagonal random walk structure matrix, so both parts of the likelihood are linear in the
+ * number of grid cells. The tree enters only through the per-cell coalescent counts and sufficient
+ * statistics, which are recomputed when the tree changes.
+ * <p/>
+ * Time is measured back from the most recent sample. Cell k spans [k, k+1) * cutOff / (cells - 1), and the
+ * last cell extends beyond the cut off.
+ *
+ * @author BEAST Developers
+ */
+public class GMRFSkygridLikelihood extends AbstractModelLikelihood {
+
+    public static final String SKYGRID_LIKELIHOOD = "gmrfSkygridLikelihood";
+
+    public GMRFSkygridLikelihood(TreeModel tree, Parameter logPopSizeParameter, Parameter precisionParameter,
+                                 double cutOff) {
+        super(SKYGRID_LIKELIHOOD);
+
+        if (logPopSizeParameter.getDimension() < 2) {
+            throw new IllegalArgumentException("A skygrid needs at least two population sizes.");
+        }
+        if (!(cutOff > 0.0)) {
+            throw new IllegalArgumentException("The skygrid cut off must be positive.");
+        }
+
+        this.tree = tree;
+        this.logPopSizeParameter = logPopSizeParameter;
+        this.precisionParameter = precisionParameter;
+
+        final int cellCount = logPopSizeParameter.getDimension();
+        gridPoints = new double[cellCount - 1];
+        for (int k = 0; k < gridPoints.length; k++) {
+            gridPoints[k] = cutOff * (k + 1) / (cellCount - 1);
+        }
+
+        coalescentCounts = new double[cellCount];
+        sufficientStatistics = new double[cellCount];
+        storedCoalescentCounts = new double[cellCount];
+        storedSufficientStatistics = new double[cellCount];
+
+        addModel(tree);
+        addVariable(logPopSizeParameter);
+        addVariable(precisionParameter);
+    }
+
+    // **************************************************************
+    // Likelihood IMPLEMENTATION
+    // **************************************************************
+
+    public Model getModel() {
+        return this;
+    }
+
+    public double getLogLikelihood() {
+        if (!likelihoodKnown) {
+            if (!statisticsKnown) {
+                setupSufficientStatistics();
+            }
+            logLikelihood = calculateLogCoalescentLikelihood() + calculateLogFieldLikelihood();
+            likelihoodKnown = true;
+        }
+        return logLikelihood;
+    }
+
+    public void makeDirty() {
+        statisticsKnown = false;
+        likelihoodKnown = false;
+    }
+
+    /**
+     * @return the coalescent log likelihood, sum over cells of -c_k * gamma_k - s_k * exp(-gamma_k).
+     */
+    public double calculateLogCoalescentLikelihood() {
+        double logL = 0.0;
+        for (int k = 0; k < sufficientStatistics.length; k++) {
+            final double gamma = logPopSizeParameter.getParameterValue(k);
+            logL -= coalescentCounts[k] * gamma + sufficientStatistics[k] * Math.exp(-gamma);
+        }
+        return logL;
+    }
+
+    /**
+     * @return the log density of the intrinsic GMRF prior on the log population sizes. The structure matrix
+     * has rank cells - 1.
+     */
+    public double calculateLogFieldLikelihood() {
+        final double precision = precisionParameter.getParameterValue(0);
+        final int rank = sufficientStatistics.length - 1;
+
+        double sumSquares = 0.0;
+        double previous = logPopSizeParameter.getParameterValue(0);
+        for (int k = 1; k <= rank; k++) {
+            final double gamma = logPopSizeParameter.getParameterValue(k);
+            sumSquares += (gamma - previous) * (gamma - previous);
+            previous = gamma;
+        }
+        return 0.5 * rank * (Math.log(precision) - LOG_TWO_PI) - 0.5 * precision * sumSquares;
+    }
+
+    /**
+     * Spreads the coalescent intervals of the tree over the grid cells: s_k accumulates C(n,2) times the time
+     * spent in cell k with n lineages, and c_k counts the coalescent events in cell k.
+     */
+    private void setupSufficientStatistics() {
+        final TreeIntervals intervals = new TreeIntervals(tree);
+        // each coalescent event in its own interval
+        intervals.setMultifurcationLimit(0);
+
+        Arrays.fill(coalescentCounts, 0.0);
+        Arrays.fill(sufficientStatistics, 0.0);
+
+        double time = 0.0;
+        int cell = 0;
+        for (int i = 0; i < intervals.getIntervalCount(); i++) {
+            final double end = time + intervals.getInterval(i);
+            final double kChoose2 = MathUtils.nChoose2(intervals.getLineageCount(i));
+
+            while (cell < gridPoints.length && end > gridPoints[cell]) {
+                sufficientStatistics[cell] += kChoose2 * (gridPoints[cell] - time);
+                time = gridPoints[cell];
+                cell++;
+            }
+            sufficientStatistics[cell] += kChoose2 * (end - time);
+            time = end;
+
+            if (intervals.getIntervalType(i) == IntervalType.COALESCENT) {
+                coalescentCounts[cell] += intervals.getCoalescentEvents(i);
+            }
+        }
+        statisticsKnown = true;
+    }
+
+    // **************************************************************
+    // Model IMPLEMENTATION
+    // **************************************************************
+
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model == tree) {
+            statisticsKnown = false;
+        }
+        likelihoodKnown = false;
+    }
+
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        likelihoodKnown = false;
+    }
+
+    protected void storeState() {
+        System.arraycopy(coalescentCounts, 0, storedCoalescentCounts, 0, coalescentCounts.length);
+        System.arraycopy(sufficientStatistics, 0, storedSufficientStatistics, 0, sufficientStatistics.length);
+        storedStatisticsKnown = statisticsKnown;
+        storedLogLikelihood = logLikelihood;
+        storedLikelihoodKnown = likelihoodKnown;
+    }
+
+    protected void restoreState() {
+        double[] tmp = coalescentCounts;
+        coalescentCounts = storedCoalescentCounts;
+        storedCoalescentCounts = tmp;
+
+        tmp = sufficientStatistics;
+        sufficientStatistics = storedSufficientStatistics;
+        storedSufficientStatistics = tmp;
+
+        statisticsKnown = storedStatisticsKnown;
+        logLikelihood = storedLogLikelihood;
+        likelihoodKnown = storedLikelihoodKnown;
+    }
+
+    protected void acceptState() {
+    }
+
+    // **************************************************************
+    // Access for the block update operator
+    // **************************************************************
+
+    /**
+     * @return the number of coalescent events in each grid cell.
+     */
+    public double[] getCoalescentCounts() {
+        if (!statisticsKnown) {
+            setupSufficientStatistics();
+        }
+        return coalescentCounts.clone();
+    }
+
+    /**
+     * @return the sum of C(n,2) times duration over each grid cell.
+     */
+    public double[] getSufficientStatistics() {
+        if (!statisticsKnown) {
+            setupSufficientStatistics();
+        }
+        return sufficientStatistics.clone();
+    }
+
+    public double[] getGridPoints() {
+        return gridPoints.clone();
+    }
+
+    public Parameter getLogPopSizeParameter() {
+        return logPopSizeParameter;
+    }
+
+    public Parameter getPrecisionParameter() {
+        return precisionParameter;
+    }
+
+    // ****************************************************************
+    // Private and protected stuff
+    // ****************************************************************
+
+    private static final double LOG_TWO_PI = Math.log(2.0 * Math.PI);
+
+    private final TreeModel tree;
+    private final Parameter logPopSizeParameter;
+    private final Parameter precisionParameter;
+    private final double[] gridPoints;
+
+    private double[] coalescentCounts;
+    private double[] sufficientStatistics;
+    private double[] storedCoalescentCounts;
+    private double[] storedSufficientStatistics;
+    private boolean statisticsKnown = false;
+    private boolean storedStatisticsKnown = false;
+
+    private double logLikelihood;
+    private double storedLogLikelihood;
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown = false;
+
+    public static final XMLObjectParser<GMRFSkygridLikelihood> PARSER = new AbstractXMLObjectParser<GMRFSkygridLikelihood>() {
+        public static final String POPULATION_SIZES = "populationSizes";
+        public static final String PRECISION = "precisionParameter";
+        public static final String CUT_OFF = "cutOff";
+        public static final String NUM_GRID_POINTS = "numGridPoints";
+
+        public String getParserName() {
+            return SKYGRID_LIKELIHOOD;
+        }
+
+        public GMRFSkygridLikelihood parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            XMLObject cxo = xo.getChild(POPULATION_SIZES);
+            Parameter popSizes = (Parameter) cxo.getChild(Parameter.class);
+
+            cxo = xo.getChild(PRECISION);
+            Parameter precision = (Parameter) cxo.getChild(Parameter.class);
+
+            cxo = xo.getChild(CoalescentLikelihood.POPULATION_TREE);
+            TreeModel treeModel = (TreeModel) cxo.getChild(TreeModel.class);
+
+            double cutOff = xo.getDoubleAttribute(CUT_OFF);
+
+            if (xo.hasAttribute(NUM_GRID_POINTS)) {
+                int gridPoints = xo.getIntegerAttribute(NUM_GRID_POINTS);
+                if (popSizes.getDimension() != gridPoints + 1) {
+                    popSizes.setDimension(gridPoints + 1);
+                }
+            }
+
+            try {
+                return new GMRFSkygridLikelihood(treeModel, popSizes, precision, cutOff);
+            } catch (IllegalArgumentException e) {
+                throw new XMLParseException(e.getMessage());
+            }
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "This element represents the skygrid likelihood of a tree: piecewise constant log population " +
+                    "sizes on a fixed grid with a Gaussian Markov random field prior.";
+        }
+
+        public Class getReturnType() {
+            return GMRFSkygridLikelihood.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                AttributeRule.newDoubleRule(CUT_OFF),
+                AttributeRule.newIntegerRule(NUM_GRID_POINTS, true),
+                new ElementRule(POPULATION_SIZES, new XMLSyntaxRule[]{
+                        new ElementRule(Parameter.class)
+                }),
+                new ElementRule(PRECISION, new XMLSyntaxRule[]{
+                        new ElementRule(Parameter.class)
+                }),
+                new ElementRule(CoalescentLikelihood.POPULATION_TREE, new XMLSyntaxRule[]{
+                        new ElementRule(TreeModel.class)
+                }),
+        };
+    };
+}
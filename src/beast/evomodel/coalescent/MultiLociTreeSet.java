@@ -72,6 +72,8 @@ public interface MultiLociTreeSet {
         private final boolean[] gotDirty;
 
         private final TreeIntervals[] intervals;
+        private final TreeIntervals[] storedIntervals;
+        private final boolean[] storedDirty;
 
         public Default(List<TreeModel> trees, List<Double> popFactors) {
             this.trees = trees;
@@ -85,6 +87,8 @@ public interface MultiLociTreeSet {
             dirty = new boolean[nt];
             gotDirty = new boolean[nt];
             intervals = new TreeIntervals[nt];
+            storedIntervals = new TreeIntervals[nt];
+            storedDirty = new boolean[nt];
             Arrays.fill(dirty, true);
             Arrays.fill(intervals, null);
         }
@@ -97,10 +101,17 @@ public interface MultiLociTreeSet {
             return trees.get(nt);
         }
 
+        /**
+         * Loci are independent, so intervals of different loci may be requested concurrently.
+         */
         public TreeIntervals getTreeIntervals(int nt) {
             if( dirty[nt] ) {
-                intervals[nt] = new TreeIntervals(trees.get(nt));
-                intervals[nt].setMultifurcationLimit(0);
+                // a new object, so the one kept for restore stays valid
+                final TreeIntervals ti = new TreeIntervals(trees.get(nt));
+                ti.setMultifurcationLimit(0);
+                // calculate now rather than on first use, after which the intervals are read only
+                ti.getIntervalCount();
+                intervals[nt] = ti;
                 dirty[nt] = false;
             }
             return intervals[nt];
@@ -111,13 +122,17 @@ public interface MultiLociTreeSet {
         }
 
         public void storeTheState() {
+            System.arraycopy(intervals, 0, storedIntervals, 0, intervals.length);
+            System.arraycopy(dirty, 0, storedDirty, 0, dirty.length);
             Arrays.fill(gotDirty, false);
         }
 
         public void restoreTheState() {
+            // loci whose tree changed get back the intervals they had when stored
             for(int nt = 0; nt < gotDirty.length; ++nt) {
                 if( gotDirty[nt] ) {
-                    dirty[nt] = true;
+                    intervals[nt] = storedIntervals[nt];
+                    dirty[nt] = storedDirty[nt];
                 }
             }
         }
@@ -36,6 +36,8 @@ import beast.util.HeapSort;
 import org.apache.commons.math3.util.CombinatoricsUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * Forms a base class for a number of coalescent likelihood calculators.
@@ -47,6 +49,11 @@ import java.util.ArrayList;
  * <p/>
  * NewCoalescentLikelihood is now CoalesecentLikelihood (it's parser was installed as the default
  * 'coalescentLikelihood' anyway).
+ * <p/>
+ * With a set of loci, one log likelihood is cached per locus and a tree change only recomputes
+ * its own locus. That saving is lost when the tree set is a VariableDemographicModel: its
+ * population size grid is built from the times of all loci, so it reports every tree change as
+ * a change of the demography, which recomputes every locus.
  *
  * @author Andrew Rambaut
  * @author Alexei Drummond
@@ -65,6 +72,9 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
     //    public static final String POPULATION_FACTOR = "factor";
     protected MultiLociTreeSet treesSet = null;
 
+    // evaluate the loci in parallel when at least this many need recomputing
+    private static final int PARALLEL_THRESHOLD = 8;
+
     public enum CoalescentEventType {
         /**
          * Denotes an interval after which a coalescent event is observed
@@ -97,12 +107,19 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
             addModel(demoModel);
         }
 
-        for (int nt = 0; nt < treesSet.nLoci(); ++nt) {
+        final int nLoci = treesSet.nLoci();
+        for (int nt = 0; nt < nLoci; ++nt) {
             final Tree t = treesSet.getTree(nt);
             if (t instanceof Model) {
                 addModel((Model) t);
             }
         }
+
+        locusLogLikelihoods = new double[nLoci];
+        locusKnown = new boolean[nLoci];
+        storedLocusLogLikelihoods = new double[nLoci];
+        storedLocusKnown = new boolean[nLoci];
+        dirtyLoci = new int[nLoci];
     }
 
     public OldAbstractCoalescentLikelihood(String name, Tree tree, DemographicModel demoModel, boolean setupIntervals) {
@@ -157,6 +174,20 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         if (model == tree) {
             // treeModel has changed so recalculate the intervals
             intervalsKnown = false;
+        } else if (treesSet != null) {
+            // only the locus whose tree changed needs recomputing, unless the demography itself changed
+            int changed = -1;
+            for (int nt = 0; nt < locusKnown.length && changed < 0; ++nt) {
+                if (model == treesSet.getTree(nt)) {
+                    changed = nt;
+                }
+            }
+            if (changed >= 0) {
+                locusKnown[changed] = false;
+            } else {
+                // includes tree changes relayed by a VariableDemographicModel, whose grid depends on every locus
+                Arrays.fill(locusKnown, false);
+            }
         } else {
             // demoModel has changed so we don't need to recalculate the intervals
         }
@@ -164,6 +195,13 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         likelihoodKnown = false;
     }
 
+    /**
+     * @return true if the cached log likelihood of the given locus is up to date
+     */
+    boolean isLocusKnown(int locus) {
+        return locusKnown[locus];
+    }
+
     // **************************************************************
     // VariableListener IMPLEMENTATION
     // **************************************************************
@@ -189,6 +227,9 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
             storedLikelihoodKnown = likelihoodKnown;
         } else if (treesSet != null) {
             treesSet.storeTheState();
+            System.arraycopy(locusLogLikelihoods, 0, storedLocusLogLikelihoods, 0, locusLogLikelihoods.length);
+            System.arraycopy(locusKnown, 0, storedLocusKnown, 0, locusKnown.length);
+            storedLikelihoodKnown = likelihoodKnown;
         }
         storedLogLikelihood = logLikelihood;
     }
@@ -204,6 +245,14 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
             intervalCount = storedIntervalCount;
         } else if (treesSet != null) {
             treesSet.restoreTheState();
+
+            double[] tmp = locusLogLikelihoods;
+            locusLogLikelihoods = storedLocusLogLikelihoods;
+            storedLocusLogLikelihoods = tmp;
+
+            boolean[] tmp1 = locusKnown;
+            locusKnown = storedLocusKnown;
+            storedLocusKnown = tmp1;
         }
 
         likelihoodKnown = storedLikelihoodKnown;
@@ -236,6 +285,9 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
     public final void makeDirty() {
         likelihoodKnown = false;
         intervalsKnown = false;
+        if (locusKnown != null) {
+            Arrays.fill(locusKnown, false);
+        }
     }
 
     /**
@@ -247,13 +299,26 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         if (treesSet != null) {
             final int nTrees = treesSet.nLoci();
             final DemographicFunction demogFunction = demoModel.getDemographicFunction();
-            double logLike = 0.0;
+
+            int nDirty = 0;
             for (int nt = 0; nt < nTrees; ++nt) {
-                final double popFactor = treesSet.getPopulationFactor(nt);
-                DemographicFunction df = popFactor != 1.0 ?
-                        new ScaledDemographic(demogFunction, popFactor) : demogFunction;
+                if (!locusKnown[nt]) {
+                    dirtyLoci[nDirty++] = nt;
+                }
+            }
+
+            if (nDirty >= PARALLEL_THRESHOLD) {
+                IntStream.range(0, nDirty).parallel().forEach(k -> updateLocusLogLikelihood(demogFunction, dirtyLoci[k]));
+            } else {
+                for (int k = 0; k < nDirty; ++k) {
+                    updateLocusLogLikelihood(demogFunction, dirtyLoci[k]);
+                }
+            }
 
-                logLike += Coalescent.calculateLogLikelihood(treesSet.getTreeIntervals(nt), df);
+            // sum in locus order so the result does not depend on how the loci were scheduled
+            double logLike = 0.0;
+            for (int nt = 0; nt < nTrees; ++nt) {
+                logLike += locusLogLikelihoods[nt];
             }
             return logLike;
         }
@@ -286,6 +351,15 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         return logL;
     }
 
+    private void updateLocusLogLikelihood(DemographicFunction demogFunction, int nt) {
+        final double popFactor = treesSet.getPopulationFactor(nt);
+        DemographicFunction df = popFactor != 1.0 ?
+                new ScaledDemographic(demogFunction, popFactor) : demogFunction;
+
+        locusLogLikelihoods[nt] = Coalescent.calculateLogLikelihood(treesSet.getTreeIntervals(nt), df);
+        locusKnown[nt] = true;
+    }
+
     private double calculateAnalyticalLogLikelihood() {
 
         final double lambda = getLambda();
@@ -838,4 +912,13 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
 
     int intervalCount = 0;
     private int storedIntervalCount = 0;
+
+    /**
+     * Per locus log likelihoods of a multi locus set and whether they are up to date.
+     */
+    private double[] locusLogLikelihoods;
+    private double[] storedLocusLogLikelihoods;
+    private boolean[] locusKnown;
+    private boolean[] storedLocusKnown;
+    private int[] dirtyLoci;
 }
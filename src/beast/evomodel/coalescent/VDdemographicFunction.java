@@ -28,14 +28,21 @@ import beast.evolution.tree.Tree;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * @author Joseph Heled
  */
 public class VDdemographicFunction extends DemographicFunction.Abstract {
+    // set up the coalescent times of the trees in parallel when at least this many changed
+    private static final int PARALLEL_THRESHOLD = 8;
+
     private double[] values;
     private double[] times;
     private double[] intervals;
+    // intensity over each full piece and their prefix sums (cumulativeIntensities[k] = sum of pieces before k)
+    private double[] pieceIntensities;
+    private double[] cumulativeIntensities;
     private double[][] ttimes;
     private double[] alltimes;
     private boolean[] dirtyTrees;
@@ -88,6 +95,8 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
         this.values = demoFunction.values.clone();
         this.times = demoFunction.times.clone();
         this.intervals = demoFunction.intervals.clone();
+        this.pieceIntensities = demoFunction.pieceIntensities.clone();
+        this.cumulativeIntensities = demoFunction.cumulativeIntensities.clone();
         this.ttimes = demoFunction.ttimes.clone();
         for (int k = 0; k < ttimes.length; ++k) {
             ttimes[k] = ttimes[k].clone();
@@ -130,6 +139,7 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
         for (int n = 0; n < intervals.length; ++n) {
             intervals[n] = times[n + 1] - times[n];
         }
+        setupIntensities(null, null, null);
         dirty = false;
     }
 
@@ -207,10 +217,19 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
             // for exponential we do the exp in the code
             if (type == VariableDemographicModel.Type.EXPONENTIAL) logSpace = false;
 
-            boolean any = false;
-            for (int nt = 0; nt < ti.length; ++nt) {
-                if (setTreeTimes(nt, trees)) {
-                    any = true;
+            int nDirty = 0;
+            for (boolean d : dirtyTrees) {
+                if (d) {
+                    ++nDirty;
+                }
+            }
+            final boolean any = nDirty > 0;
+            if (nDirty >= PARALLEL_THRESHOLD) {
+                // each locus only touches its own tree and times
+                IntStream.range(0, ti.length).parallel().forEach(nt -> setTreeTimes(nt, trees));
+            } else {
+                for (int nt = 0; nt < ti.length; ++nt) {
+                    setTreeTimes(nt, trees);
                 }
             }
 
@@ -220,24 +239,14 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
                     " nd=" + nd + " alltimes.length=" + alltimes.length + " type=" + type;
 
             if (any) {
-                // now we want to merge times together
-                int[] inds = new int[ttimes.length];
-
-                for (int k = 0; k < alltimes.length; ++k) {
-                    int j = 0;
-                    while (inds[j] == ttimes[j].length) {
-                        ++j;
-                    }
-                    for (int l = j + 1; l < inds.length; ++l) {
-                        if (inds[l] < ttimes[l].length) {
-                            if (ttimes[l][inds[l]] < ttimes[j][inds[j]]) {
-                                j = l;
-                            }
-                        }
-                    }
-                    alltimes[k] = ttimes[j][inds[j]];
-                    inds[j]++;
+                // now we want to merge times together. Each locus is already sorted, but with many loci
+                // sorting the concatenation beats picking the smallest head one time at a time.
+                int k = 0;
+                for (double[] locusTimes : ttimes) {
+                    System.arraycopy(locusTimes, 0, alltimes, k, locusTimes.length);
+                    k += locusTimes.length;
                 }
+                Arrays.sort(alltimes);
             }
 
             // assumes lowest node has time 0. this is probably problematic when we come
@@ -251,6 +260,10 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
                 }
             }
 
+            final double[] oldTimes = times;
+            final double[] oldValues = values;
+            final double[] oldPieces = pieceIntensities;
+
             times = new double[tot + 1];
             values = new double[tot];
             intervals = new double[tot - 1];
@@ -295,6 +308,7 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
                     }
                 }
             }
+            setupIntensities(oldTimes, oldValues, oldPieces);
             dirty = false;
         }
         //
@@ -303,6 +317,77 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
    " inds " + Arrays.toString(indicatorParameter.getParameterValues())) ;*/
     }
 
+    /**
+     * Computes the intensity of every full piece and their prefix sums. Pieces whose end points and
+     * values are unchanged from the previous setup are reused, and the prefix sums are only
+     * recomputed from the first piece that changed.
+     */
+    private void setupIntensities(double[] oldTimes, double[] oldValues, double[] oldPieces) {
+        final int nPieces = intervals.length;
+        pieceIntensities = new double[nPieces];
+        final double[] oldCumulative = cumulativeIntensities;
+        cumulativeIntensities = new double[nPieces + 1];
+
+        int firstChanged = nPieces;
+        for (int k = 0; k < nPieces; ++k) {
+            if (oldPieces != null && k < oldPieces.length
+                    && times[k] == oldTimes[k] && times[k + 1] == oldTimes[k + 1]
+                    && values[k] == oldValues[k] && values[k + 1] == oldValues[k + 1]) {
+                pieceIntensities[k] = oldPieces[k];
+            } else {
+                pieceIntensities[k] = intensityPiece(k);
+                if (firstChanged == nPieces) {
+                    firstChanged = k;
+                }
+            }
+        }
+
+        int start = 0;
+        if (oldCumulative != null) {
+            start = Math.min(firstChanged, Math.min(oldCumulative.length - 1, nPieces));
+            System.arraycopy(oldCumulative, 0, cumulativeIntensities, 0, start + 1);
+        }
+        for (int k = start; k < nPieces; ++k) {
+            cumulativeIntensities[k + 1] = cumulativeIntensities[k] + pieceIntensities[k];
+        }
+    }
+
+    private double intensityPiece(int index) {
+        if (intervals[index] == 0) {
+            // a zero length piece contributes nothing (the exponential formula is 0/0 there)
+            return 0.0;
+        }
+        switch (type) {
+            case STEPWISE:
+                return intervals[index] / values[index];
+            case LINEAR:
+                return intensityLinInterval(index);
+            case EXPONENTIAL:
+                return intensityExpInterval(index);
+            default:
+                throw new IllegalArgumentException("");
+        }
+    }
+
+    /**
+     * @return intensity over the full pieces first+1 .. last-1.
+     */
+    private double intensityBetween(int first, int last) {
+        if (last - first <= 1) {
+            return 0.0;
+        }
+        final double intensity = cumulativeIntensities[last] - cumulativeIntensities[first + 1];
+        if (!Double.isNaN(intensity) && !Double.isInfinite(intensity)) {
+            return intensity;
+        }
+        // prefix difference is not usable when a piece is infinite, sum the pieces directly
+        double sum = 0.0;
+        for (int k = first + 1; k < last; ++k) {
+            sum += pieceIntensities[k];
+        }
+        return sum;
+    }
+
     private int ti2f(int i, int j) {
         return (i == 0) ? j : 2 * i + j + 1;
     }
@@ -409,21 +494,38 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
     }
 
     private int getIntervalIndexStep(final double t) {
-        int j = 0;
         // ugly hack,
         // when doubles are added in a different order and compared later, they can be a tiny bit off. With a
         // stepwise model this creates a "one off" situation here, which is unpleasant.
         // use float comparison here to avoid it
 
         final float tf = (float) t;
-        while (tf > (float) times[j + 1]) ++j;
-        return j;
+        // binary search for the first piece whose end is not before t
+        int lo = 0;
+        int hi = values.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (tf > (float) times[mid + 1]) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     private int getIntervalIndexLin(final double t) {
-        int j = 0;
-        while (t > times[j + 1]) ++j;
-        return j;
+        int lo = 0;
+        int hi = values.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (t > times[mid + 1]) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     private double linPop(double t) {
@@ -566,10 +668,7 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
                     intensity = (finish - start) / popStart;
                 } else {
                     intensity = (times[first + 1] - start) / popStart;
-
-                    for (int k = first + 1; k < last; ++k) {
-                        intensity += intervals[k] / values[k];
-                    }
+                    intensity += intensityBetween(first, last);
                     intensity += (finish - times[last]) / values[last];
                 }
                 break;
@@ -584,9 +683,7 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
                     // from first to end of interval
                     intensity += intensityLinInterval(start, times[first + 1], first);
                     // intervals until (not including) last
-                    for (int k = first + 1; k < last; ++k) {
-                        intensity += intensityLinInterval(k);
-                    }
+                    intensity += intensityBetween(first, last);
                     // last interval
                     intensity += intensityLinInterval(times[last], finish, last);
                 }
@@ -602,9 +699,7 @@ public class VDdemographicFunction extends DemographicFunction.Abstract {
                     // from first to end of interval
                     intensity += intensityExpInterval(start, times[first + 1], first);
                     // intervals until (not including) last
-                    for (int k = first + 1; k < last; ++k) {
-                        intensity += intensityExpInterval(k);
-                    }
+                    intensity += intensityBetween(first, last);
                     // last interval
                     intensity += intensityExpInterval(times[last], finish, last);
                 }
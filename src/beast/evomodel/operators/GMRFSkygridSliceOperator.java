@@ -0,0 +1,308 @@
+/*
+ * GMRFSkygridSliceOperator.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.operators;
+
+import beast.evomodel.coalescent.GMRFSkygridLikelihood;
+import beast.inference.model.Parameter;
+import beast.inference.operators.GibbsOperator;
+import beast.inference.operators.MCMCOperator;
+import beast.inference.operators.SimpleMCMCOperator;
+import beast.math.MathUtils;
+import beast.xml.AbstractXMLObjectParser;
+import beast.xml.AttributeRule;
+import beast.xml.ElementRule;
+import beast.xml.XMLObject;
+import beast.xml.XMLObjectParser;
+import beast.xml.XMLParseException;
+import beast.xml.XMLSyntaxRule;
+
+/**
+ * Updates all the log population sizes of a skygrid at once by elliptical slice sampling.
+ * <p/>
+ * The skygrid target is factored as a Gaussian approximation N(mode, P^-1), where P is the GMRF precision plus
+ * the coalescent curvature at the mode, times the remainder, and the slice moves along an ellipse drawn from
+ * that Gaussian. P is tridiagonal, so finding the mode by Newton steps and drawing from the Gaussian both use
+ * linear time banded Cholesky solves. The mode depends on the tree and precision only, not on the current
+ * sizes, which keeps the move a valid Gibbs update. The skygrid likelihood should be the only density on the
+ * log population sizes.
+ *
+ * @author BEAST Developers
+ */
+public class GMRFSkygridSliceOperator extends SimpleMCMCOperator implements GibbsOperator {
+
+    public static final String SKYGRID_SLICE_OPERATOR = "gmrfSkygridSliceOperator";
+
+    private static final int MAX_NEWTON_ITERATIONS = 100;
+    private static final double NEWTON_TOLERANCE = 1e-10;
+    private static final int MAX_SHRINKS = 200;
+
+    private final GMRFSkygridLikelihood likelihood;
+    private final Parameter logPopSizes;
+    private final int dim;
+
+    // tridiagonal precision at the mode and its Cholesky factor (diagonal and sub-diagonal)
+    private final double[] diagonal;
+    private final double[] offDiagonal;
+    private final double[] cholDiagonal;
+    private final double[] cholOffDiagonal;
+    private final double[] mode;
+
+    public GMRFSkygridSliceOperator(GMRFSkygridLikelihood likelihood, double weight) {
+        this.likelihood = likelihood;
+        this.logPopSizes = likelihood.getLogPopSizeParameter();
+        this.dim = logPopSizes.getDimension();
+
+        diagonal = new double[dim];
+        offDiagonal = new double[dim - 1];
+        cholDiagonal = new double[dim];
+        cholOffDiagonal = new double[dim - 1];
+        mode = new double[dim];
+
+        setWeight(weight);
+    }
+
+    public double doOperation() {
+        final double[] current = logPopSizes.getParameterValues();
+        final double[] counts = likelihood.getCoalescentCounts();
+        final double[] stats = likelihood.getSufficientStatistics();
+        final double precision = likelihood.getPrecisionParameter().getParameterValue(0);
+
+        findMode(counts, stats, precision, current);
+
+        final double logY = sliceLogDensity(current) + Math.log(MathUtils.nextDouble());
+
+        // nu ~ N(0, P^-1): solve L^T nu = z with z standard normal
+        final double[] nu = new double[dim];
+        for (int k = 0; k < dim; k++) {
+            nu[k] = MathUtils.nextGaussian();
+        }
+        backSolve(nu);
+
+        double theta = MathUtils.nextDouble() * 2.0 * Math.PI;
+        double thetaMin = theta - 2.0 * Math.PI;
+        double thetaMax = theta;
+
+        final double[] proposal = new double[dim];
+        for (int shrink = 0; shrink < MAX_SHRINKS; shrink++) {
+            final double cos = Math.cos(theta);
+            final double sin = Math.sin(theta);
+            for (int k = 0; k < dim; k++) {
+                proposal[k] = mode[k] + (current[k] - mode[k]) * cos + nu[k] * sin;
+            }
+            if (sliceLogDensity(proposal) > logY) {
+                return 0.0;
+            }
+            if (theta < 0.0) {
+                thetaMin = theta;
+            } else {
+                thetaMax = theta;
+            }
+            theta = thetaMin + MathUtils.nextDouble() * (thetaMax - thetaMin);
+        }
+
+        // the bracket has shrunk onto the current state
+        setLogPopSizes(current);
+        return 0.0;
+    }
+
+    /**
+     * @return the skygrid log likelihood at x less the log density of the Gaussian approximation, up to a constant.
+     */
+    private double sliceLogDensity(double[] x) {
+        setLogPopSizes(x);
+        final double logL = likelihood.getLogLikelihood();
+
+        double quadratic = 0.0;
+        for (int k = 0; k < dim; k++) {
+            final double d = x[k] - mode[k];
+            quadratic += diagonal[k] * d * d;
+            if (k + 1 < dim) {
+                quadratic += 2.0 * offDiagonal[k] * d * (x[k + 1] - mode[k + 1]);
+            }
+        }
+        return logL + 0.5 * quadratic;
+    }
+
+    private void setLogPopSizes(double[] x) {
+        for (int k = 0; k < dim; k++) {
+            logPopSizes.setParameterValueQuietly(k, x[k]);
+        }
+        logPopSizes.fireParameterChangedEvent();
+    }
+
+    /**
+     * Newton's method for the mode of the (log concave) skygrid density, leaving the precision matrix at the
+     * mode and its Cholesky factor in place.
+     */
+    private void findMode(double[] counts, double[] stats, double precision, double[] start) {
+        System.arraycopy(start, 0, mode, 0, dim);
+        final double[] step = new double[dim];
+        final double[] trial = new double[dim];
+
+        double objective = logDensity(mode, counts, stats, precision);
+        for (int iteration = 0; iteration < MAX_NEWTON_ITERATIONS; iteration++) {
+            setupPrecision(mode, stats, precision);
+
+            // gradient of the log density
+            for (int k = 0; k < dim; k++) {
+                double field = 0.0;
+                if (k > 0) {
+                    field += mode[k] - mode[k - 1];
+                }
+                if (k + 1 < dim) {
+                    field += mode[k] - mode[k + 1];
+                }
+                step[k] = -counts[k] + stats[k] * Math.exp(-mode[k]) - precision * field;
+            }
+            forwardSolve(step);
+            backSolve(step);
+
+            // step halving keeps the iteration ascending from a poor start
+            double scale = 1.0;
+            double trialObjective;
+            do {
+                for (int k = 0; k < dim; k++) {
+                    trial[k] = mode[k] + scale * step[k];
+                }
+                trialObjective = logDensity(trial, counts, stats, precision);
+                scale *= 0.5;
+            } while (!(trialObjective >= objective) && scale > 1e-12);
+
+            double maxChange = 0.0;
+            for (int k = 0; k < dim; k++) {
+                maxChange = Math.max(maxChange, Math.abs(trial[k] - mode[k]));
+            }
+            if (trialObjective >= objective) {
+                System.arraycopy(trial, 0, mode, 0, dim);
+                objective = trialObjective;
+            }
+            if (maxChange < NEWTON_TOLERANCE) {
+                break;
+            }
+        }
+        setupPrecision(mode, stats, precision);
+    }
+
+    private double logDensity(double[] x, double[] counts, double[] stats, double precision) {
+        double logL = 0.0;
+        for (int k = 0; k < dim; k++) {
+            logL -= counts[k] * x[k] + stats[k] * Math.exp(-x[k]);
+            if (k + 1 < dim) {
+                logL -= 0.5 * precision * (x[k + 1] - x[k]) * (x[k + 1] - x[k]);
+            }
+        }
+        return logL;
+    }
+
+    /**
+     * Sets P = precision * R + diag(s_k exp(-x_k)), R the random walk structure matrix, and factors it.
+     */
+    private void setupPrecision(double[] x, double[] stats, double precision) {
+        for (int k = 0; k < dim; k++) {
+            final int neighbours = (k > 0 ? 1 : 0) + (k + 1 < dim ? 1 : 0);
+            diagonal[k] = precision * neighbours + stats[k] * Math.exp(-x[k]);
+            if (k + 1 < dim) {
+                offDiagonal[k] = -precision;
+            }
+        }
+
+        double previous = 0.0;
+        for (int k = 0; k < dim; k++) {
+            double d = diagonal[k];
+            if (k > 0) {
+                cholOffDiagonal[k - 1] = offDiagonal[k - 1] / previous;
+                d -= cholOffDiagonal[k - 1] * cholOffDiagonal[k - 1];
+            }
+            if (!(d > 0.0)) {
+                throw new RuntimeException("Skygrid precision matrix is not positive definite");
+            }
+            cholDiagonal[k] = Math.sqrt(d);
+            previous = cholDiagonal[k];
+        }
+    }
+
+    /**
+     * Solves L y = b in place.
+     */
+    private void forwardSolve(double[] b) {
+        b[0] /= cholDiagonal[0];
+        for (int k = 1; k < dim; k++) {
+            b[k] = (b[k] - cholOffDiagonal[k - 1] * b[k - 1]) / cholDiagonal[k];
+        }
+    }
+
+    /**
+     * Solves L^T x = b in place.
+     */
+    private void backSolve(double[] b) {
+        b[dim - 1] /= cholDiagonal[dim - 1];
+        for (int k = dim - 2; k >= 0; k--) {
+            b[k] = (b[k] - cholOffDiagonal[k] * b[k + 1]) / cholDiagonal[k];
+        }
+    }
+
+    public int getStepCount() {
+        return 1;
+    }
+
+    public String getOperatorName() {
+        return SKYGRID_SLICE_OPERATOR + "(" + logPopSizes.getParameterName() + ")";
+    }
+
+    public String getPerformanceSuggestion() {
+        return "No suggestions";
+    }
+
+    public static final XMLObjectParser<GMRFSkygridSliceOperator> PARSER = new AbstractXMLObjectParser<GMRFSkygridSliceOperator>() {
+
+        public String getParserName() {
+            return SKYGRID_SLICE_OPERATOR;
+        }
+
+        public GMRFSkygridSliceOperator parseXMLObject(XMLObject xo) throws XMLParseException {
+            final double weight = xo.getDoubleAttribute(MCMCOperator.WEIGHT);
+            GMRFSkygridLikelihood likelihood = (GMRFSkygridLikelihood) xo.getChild(GMRFSkygridLikelihood.class);
+
+            return new GMRFSkygridSliceOperator(likelihood, weight);
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "This element represents an elliptical slice sampler updating all skygrid log population sizes at once.";
+        }
+
+        public Class getReturnType() {
+            return GMRFSkygridSliceOperator.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                AttributeRule.newDoubleRule(MCMCOperator.WEIGHT),
+                new ElementRule(GMRFSkygridLikelihood.class)
+        };
+    };
+}
@@ -28,7 +28,9 @@ import beast.math.distributions.Distribution;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Joseph Heled
@@ -154,6 +156,9 @@ public class CalibrationPoints {
 
         this.calibrationLogPDF = userPDF;
 
+        cachedHeights = new double[this.clades.length];
+        storedCachedHeights = new double[this.clades.length];
+
         this.correctionType = correctionType;
 
         if (userPDF == null) {
@@ -180,7 +185,6 @@ public class CalibrationPoints {
                         setUpTables(tree);
                         linsIter = new CalibrationLineagesIterator(this.clades, this.taxaPartialOrder, maximal,
                                 tree.getExternalNodeCount());
-                        lastHeights = new double[this.clades.length];
                     }
                 }
             } else if (correctionType == CorrectionType.PEXACT) {
@@ -273,128 +277,138 @@ public class CalibrationPoints {
 
 
         if (calibrationLogPDF == null) {
-            switch (correctionType) {
-                case EXACT: {
-                    if (nDists == 1) {
-                        logL -= logMarginalDensity(lam, tree.getExternalNodeCount(), hs[0], clades[0].length, forParent[0]);
-                    } else if (nDists == 2 && taxaPartialOrder[1].length == 1) {
-                        assert !forParent[0] && !forParent[1];
-                        logL -= logMarginalDensity(lam, tree.getExternalNodeCount(), hs[0], clades[0].length,
-                                hs[1], clades[1].length);
-                    } else {
+            if (correctionType == CorrectionType.PEXACT) {
+                // depends on the heights of all the nodes, not only the calibrated ones
+                logL -= pexactCorrection(tree, lam, hs);
+            } else {
+                if (!(lam == cachedLam && Arrays.equals(hs, cachedHeights))) {
+                    cachedCorrection = marginalCorrection(tree, lam, hs);
+                    cachedLam = lam;
+                    System.arraycopy(hs, 0, cachedHeights, 0, hs.length);
+                }
+                logL -= cachedCorrection;
+                if (Double.isNaN(logL)) {
+                    logL = Double.NEGATIVE_INFINITY;
+                }
+            }
+        } else {
+            final double value = calibrationLogPDF.getStatisticValue(0);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                logL = Double.NEGATIVE_INFINITY;
+            } else {
+                logL -= value;
+            }
+        }
+        return logL;
+    }
 
-                        if (lastLam == lam) {
-                            int k = 0;
-                            for (; k < hs.length; ++k) {
-                                if (hs[k] != lastHeights[k]) {
-                                    break;
-                                }
-                            }
-                            if (k == hs.length) {
-                                return lastValue;
-                            }
-                        }
+    /**
+     * Saves the cached correction, so that it is still known after a rejected proposal.
+     */
+    void storeState() {
+        storedCachedLam = cachedLam;
+        System.arraycopy(cachedHeights, 0, storedCachedHeights, 0, cachedHeights.length);
+        storedCachedCorrection = cachedCorrection;
+    }
 
-                        // the slow and painful way
-                        double[] hss = new double[hs.length];
-                        int[] ranks = new int[hs.length];
-                        for (int k = 0; k < hs.length; ++k) {
-                            int r = 0;
-                            for (double h : hs) {
-                                r += (h < hs[k]) ? 1 : 0;
-                            }
-                            ranks[k] = r + 1;
-                            hss[r] = hs[k];
-                        }
-                        logL -= logMarginalDensity(lam, hss, ranks, linsIter);
+    void restoreState() {
+        cachedLam = storedCachedLam;
+        final double[] tmp = cachedHeights;
+        cachedHeights = storedCachedHeights;
+        storedCachedHeights = tmp;
+        cachedCorrection = storedCachedCorrection;
+    }
 
-                        lastLam = lam;
-                        System.arraycopy(hs, 0, lastHeights, 0, lastHeights.length);
-                        lastValue = logL;
-                    }
-                    break;
+    // the marginal density of the calibrated heights, for the EXACT and APPROXIMATED corrections
+    private double marginalCorrection(Tree tree, final double lam, final double[] hs) {
+        final int nDists = hs.length;
+
+        if (correctionType == CorrectionType.EXACT) {
+            if (nDists == 1) {
+                return logMarginalDensity(lam, tree.getExternalNodeCount(), hs[0], clades[0].length, forParent[0]);
+            }
+            if (nDists == 2 && taxaPartialOrder[1].length == 1) {
+                assert !forParent[0] && !forParent[1];
+                return logMarginalDensity(lam, tree.getExternalNodeCount(), hs[0], clades[0].length,
+                        hs[1], clades[1].length);
+            }
+
+            // the slow and painful way
+            double[] hss = new double[nDists];
+            int[] ranks = new int[nDists];
+            for (int k = 0; k < nDists; ++k) {
+                int r = 0;
+                for (double h : hs) {
+                    r += (h < hs[k]) ? 1 : 0;
                 }
-                case APPROXIMATED: {
+                ranks[k] = r + 1;
+                hss[r] = hs[k];
+            }
+            return logMarginalDensity(lam, hss, ranks);
+        }
 
-                    final double loglam = Math.log(lam);
+        assert correctionType == CorrectionType.APPROXIMATED;
 
-                    int maxh = 0;
-                    for (int k = 0; k < nDists; ++k) {
-                        final double v = -lam * hs[k];
+        final double loglam = Math.log(lam);
 
-                        if (freeHeights[k] > 0) {
-                            logL -= Math.log1p(-Math.exp(v)) * freeHeights[k];
-                        }
+        double correction = 0.0;
+        int maxh = 0;
+        for (int k = 0; k < nDists; ++k) {
+            final double v = -lam * hs[k];
 
-                        logL -= v + loglam;
+            if (freeHeights[k] > 0) {
+                correction += Math.log1p(-Math.exp(v)) * freeHeights[k];
+            }
 
-                        if (hs[k] > hs[maxh]) {
-                            maxh = k;
-                        }
-                    }
+            correction += v + loglam;
 
-                    if (rootCorrection || true) {
-                        logL -= -(forParent[maxh] ? 0 : 1) * lam * hs[maxh];
-                    }
+            if (hs[k] > hs[maxh]) {
+                maxh = k;
+            }
+        }
 
-                    if (Double.isNaN(logL)) {
-                        logL = Double.NEGATIVE_INFINITY;
-                    }
-                    break;
-                }
-                case PEXACT: {
-                    Arrays.sort(hs);
-                    int cs[] = new int[nDists + 1];
-
-                    final int internalNodeCount = tree.getInternalNodeCount();
-                    for (int k = 0; k < internalNodeCount; ++k) {
-                        final double nhk = tree.getNodeHeight(tree.getInternalNode(k));
-                        int i = 0;
-                        for (/**/; i < hs.length; ++i) {
-                            if (hs[i] >= nhk) {
-                                break;
-                            }
-                        }
-                        if (i == hs.length) {
-                            cs[i]++;
-                        } else {
-                            if (nhk < hs[i]) {
-                                cs[i]++;
-                            }
-                        }
-                    }
+        if (rootCorrection || true) {
+            correction += -(forParent[maxh] ? 0 : 1) * lam * hs[maxh];
+        }
+        return correction;
+    }
 
-                    if (false) {
-                        int l = nDists;
-                        for (int i = 0; i < cs.length; ++i) {
-                            l += cs[i];
-                        }
-                        assert l == internalNodeCount;
-                    }
-                    double ll = 0;
+    private double pexactCorrection(Tree tree, final double lam, double[] hs) {
+        final int nDists = hs.length;
 
-                    ll += cs[0] * Math.log1p(-Math.exp(-lam * hs[0])) - lam * hs[0] - lfactorials[cs[0]];
-                    for (int i = 1; i < cs.length - 1; ++i) {
-                        int c = cs[i];
-                        ll += c * (Math.log1p(-Math.exp(-lam * (hs[i] - hs[i - 1]))) - lam * hs[i - 1]);
-                        ll += -lam * hs[i] - lfactorials[c];
-                    }
-                    ll += -lam * (cs[nDists] + 1) * hs[nDists - 1] - lfactorials[cs[nDists] + 1];
-                    ll += Math.log(lam) * nDists;
+        Arrays.sort(hs);
+        int cs[] = new int[nDists + 1];
 
-                    logL -= ll;
+        final int internalNodeCount = tree.getInternalNodeCount();
+        for (int k = 0; k < internalNodeCount; ++k) {
+            final double nhk = tree.getNodeHeight(tree.getInternalNode(k));
+            int i = 0;
+            for (/**/; i < hs.length; ++i) {
+                if (hs[i] >= nhk) {
                     break;
                 }
             }
-        } else {
-            final double value = calibrationLogPDF.getStatisticValue(0);
-            if (Double.isNaN(value) || Double.isInfinite(value)) {
-                logL = Double.NEGATIVE_INFINITY;
+            if (i == hs.length) {
+                cs[i]++;
             } else {
-                logL -= value;
+                if (nhk < hs[i]) {
+                    cs[i]++;
+                }
             }
         }
-        return logL;
+
+        double ll = 0;
+
+        ll += cs[0] * Math.log1p(-Math.exp(-lam * hs[0])) - lam * hs[0] - lfactorials[cs[0]];
+        for (int i = 1; i < cs.length - 1; ++i) {
+            int c = cs[i];
+            ll += c * (Math.log1p(-Math.exp(-lam * (hs[i] - hs[i - 1]))) - lam * hs[i - 1]);
+            ll += -lam * hs[i] - lfactorials[c];
+        }
+        ll += -lam * (cs[nDists] + 1) * hs[nDists - 1] - lfactorials[cs[nDists] + 1];
+        ll += Math.log(lam) * nDists;
+
+        return ll;
     }
 
     private double logMarginalDensity(final double lam, int nTaxa, final double h, int nClade, boolean forParent) {
@@ -455,9 +469,9 @@ public class CalibrationPoints {
         return lgl;
     }
 
-    private double logMarginalDensity(final double lam, double[] hs, int[] ranks, CalibrationLineagesIterator cli) {
+    private double logMarginalDensity(final double lam, double[] hs, int[] ranks) {
 
-        final int ni = cli.setup(ranks);
+        final RankedTrees rankedTrees = getRankedTrees(ranks);
 
         final int nHeights = hs.length;
 
@@ -467,8 +481,7 @@ public class CalibrationPoints {
             lehs[i] = -lam * hs[i - 1];
         }
 
-        // assert maxRank == len(sit)
-        boolean noRoot = ni == lehs.length;
+        final boolean noRoot = rankedTrees.noRoot;
 
         int nLevels = nHeights + (noRoot ? 1 : 0);
 
@@ -482,17 +495,100 @@ public class CalibrationPoints {
             lebase[nHeights] = lehs[nHeights];
         }
 
+        double val = 0;
+        boolean first = true;
+
+        for (int j = 0; j < rankedTrees.logCounts.length; ++j) {
+            final int[] linsAtLevel = rankedTrees.linsAtLevel[j];
+            double v = rankedTrees.logCounts[j];
+            for (int i = 0; i < nLevels; ++i) {
+                v += linsAtLevel[i] * lebase[i];
+            }
+
+            if (first) {
+                val = v;
+                first = false;
+            } else {
+                val = logSum(val, v);
+            }
+        }
+
+        double logc2 = nHeights * Math.log(lam);
+
+        for (int i = 1; i < nHeights + 1; ++i) {
+            logc2 += lehs[i];
+        }
+
+        if (!noRoot) {
+            // we dont have an iterator for 0 free lineages
+            logc2 += 1 * lehs[nHeights];
+        }
+
+        // Missing scale by total of all possible trees over all ranking orders.
+        // Add it outside if needed for comparison.
+
+        val += rankedTrees.logConstant + logc2;
+
+        return val;
+    }
+
+    private static double logSum(double a, double b) {
+        return a > b ? a + Math.log1p(Math.exp(b - a)) : b + Math.log1p(Math.exp(a - b));
+    }
+
+    /**
+     * The part of the exact marginal that depends only on the ranking of the calibrated heights: the
+     * (log) number of ranked trees for each distinct count of lineages at each level.
+     */
+    private static class RankedTrees {
+        final boolean noRoot;
+        final int[][] linsAtLevel;
+        final double[] logCounts;
+        final double logConstant;
+
+        RankedTrees(boolean noRoot, int[][] linsAtLevel, double[] logCounts, double logConstant) {
+            this.noRoot = noRoot;
+            this.linsAtLevel = linsAtLevel;
+            this.logCounts = logCounts;
+            this.logConstant = logConstant;
+        }
+    }
+
+    private RankedTrees getRankedTrees(int[] ranks) {
+        final List<Integer> key = new ArrayList<Integer>(ranks.length);
+        for (int r : ranks) {
+            key.add(r);
+        }
+        RankedTrees rankedTrees = rankedTreesCache.get(key);
+        if (rankedTrees == null) {
+            rankedTrees = countRankedTrees(ranks, linsIter);
+            rankedTreesCache.put(key, rankedTrees);
+        }
+        return rankedTrees;
+    }
+
+    private RankedTrees countRankedTrees(int[] ranks, CalibrationLineagesIterator cli) {
+
+        final int ni = cli.setup(ranks);
+
+        final int nHeights = ranks.length;
+
+        // assert maxRank == len(sit)
+        boolean noRoot = ni == nHeights + 1;
+
+        int nLevels = nHeights + (noRoot ? 1 : 0);
+
         int[] linsAtLevel = new int[nLevels];
 
         int[][] joiners = cli.allJoiners();
 
-        double val = 0;
-        boolean first = true;
+        // the configurations with the same number of lineages in each level differ only in their count
+        final Map<List<Integer>, Integer> index = new HashMap<List<Integer>, Integer>();
+        final List<int[]> lins = new ArrayList<int[]>();
+        final List<Double> logCounts = new ArrayList<Double>();
 
         int[][] linsInLevels;
-        int ccc = 0;
         while ((linsInLevels = cli.next()) != null) {
-            ccc++;
             double v = countRankedTrees(nLevels, linsInLevels, joiners, linsAtLevel);
             // 1 for root formula, 1 for kludge in iterator which sets root as 2 lineages
             if (noRoot) {
@@ -502,19 +598,17 @@ public class CalibrationPoints {
                 v -= lc2[ll] + lg2;
             }
 
-            for (int i = 0; i < nLevels; ++i) {
-                v += linsAtLevel[i] * lebase[i];
+            final List<Integer> key = new ArrayList<Integer>(nLevels);
+            for (int l : linsAtLevel) {
+                key.add(l);
             }
-
-            if (first) {
-                val = v;
-                first = false;
+            final Integer j = index.get(key);
+            if (j == null) {
+                index.put(key, lins.size());
+                lins.add(linsAtLevel.clone());
+                logCounts.add(v);
             } else {
-                if (val > v) {
-                    val += Math.log1p(Math.exp(v - val));
-                } else {
-                    val = v + Math.log1p(Math.exp(val - v));
-                }
+                logCounts.set(j, logSum(logCounts.get(j), v));
             }
         }
 
@@ -530,23 +624,11 @@ public class CalibrationPoints {
 
         final double logc1 = lfactorials[totLin];
 
-        double logc2 = nHeights * Math.log(lam);
-
-        for (int i = 1; i < nHeights + 1; ++i) {
-            logc2 += lehs[i];
-        }
-
-        if (!noRoot) {
-            // we dont have an iterator for 0 free lineages
-            logc2 += 1 * lehs[nHeights];
+        final double[] counts = new double[logCounts.size()];
+        for (int j = 0; j < counts.length; ++j) {
+            counts[j] = logCounts.get(j);
         }
-
-        // Missing scale by total of all possible trees over all ranking orders.
-        // Add it outside if needed for comparison.
-
-        val += logc0 + logc1 + logc2;
-
-        return val;
+        return new RankedTrees(noRoot, lins.toArray(new int[lins.size()][]), counts, logc0 + logc1);
     }
 
     private double
@@ -606,10 +688,17 @@ public class CalibrationPoints {
 
     private CalibrationLineagesIterator linsIter = null;
 
+    // ranked tree counts, by ranking of the calibrated heights
+    private final Map<List<Integer>, RankedTrees> rankedTreesCache = new HashMap<List<Integer>, RankedTrees>();
+
     // simple cache of last result can go a long way in a big tree with a few calibration nodes, for non-global tree operators which do
-    // not change the calibration nodes heights.
+    // not change the calibration nodes heights. Keyed by the rate and the calibrated heights.
+
+    private double cachedLam = Double.NaN;
+    private double[] cachedHeights;
+    private double cachedCorrection;
 
-    double lastLam = Double.NEGATIVE_INFINITY;
-    double[] lastHeights;
-    double lastValue = Double.NEGATIVE_INFINITY;
+    private double storedCachedLam = Double.NaN;
+    private double[] storedCachedHeights;
+    private double storedCachedCorrection;
 }
@@ -25,8 +25,10 @@ import beast.evolution.coalescent.ScaledDemographic;
 import beast.evolution.tree.NodeRef;
 import beast.evolution.tree.Tree;
 import beast.evolution.util.Units;
-import beast.inference.model.Likelihood;
+import beast.inference.model.AbstractModelLikelihood;
 import beast.inference.model.Model;
+import beast.inference.model.Parameter;
+import beast.inference.model.Variable;
 import beast.xml.AbstractXMLObjectParser;
 import beast.xml.ElementRule;
 import beast.xml.XMLObject;
@@ -36,6 +38,7 @@ import beast.xml.XMLSyntaxRule;
 import jebl.util.FixedBitSet;
 
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * Compute coalescent log-likelihood of a set of gene trees embedded inside one species tree.
@@ -43,40 +46,68 @@ import java.util.Arrays;
  * @author Joseph Heled, Graham Jones
  *         Date: 26/05/2008
  */
-public class MultiSpeciesCoalescent extends Likelihood.Abstract implements Units {
+public class MultiSpeciesCoalescent extends AbstractModelLikelihood implements Units {
+    // evaluate the gene trees in parallel when at least this many need recomputing
+    private static final int PARALLEL_THRESHOLD = 8;
+
     private final SpeciesTreeModel spTree;
     private final SpeciesBindings species;
     private boolean checkCompatibility;
     private final boolean[] compatibleCheckRequited;
 
+    // per gene tree log-likelihood and whether it is up to date
+    private final double[] geneLogLikelihoods;
+    private final boolean[] geneKnown;
+    private final double[] storedGeneLogLikelihoods;
+    private final boolean[] storedGeneKnown;
+    private final int[] dirtyGenes;
+
+    private double logLikelihood;
+    private double storedLogLikelihood;
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown = false;
+
     public MultiSpeciesCoalescent(SpeciesBindings species, SpeciesTreeModel tree) {
-        super(tree);
+        super("MultiSpeciesCoalescent");
         spTree = tree;
         this.species = species;
 
-        spTree.addModelRestoreListener(this);
+        addModel(spTree);
 
-        // recompute on any change in geneTree -
-        // possible optimization: keep track which tree changed.
+        // only the gene trees that changed are recomputed
         final SpeciesBindings.GeneTreeInfo[] trees = species.getGeneTrees();
         for(SpeciesBindings.GeneTreeInfo geneTree : trees) {
-            geneTree.tree.addModelListener(this);
+            addModel(geneTree.tree);
         }
 
         compatibleCheckRequited = new boolean[trees.length];
         Arrays.fill(compatibleCheckRequited, false);
         checkCompatibility = false;
+
+        geneLogLikelihoods = new double[trees.length];
+        geneKnown = new boolean[trees.length];
+        storedGeneLogLikelihoods = new double[trees.length];
+        storedGeneKnown = new boolean[trees.length];
+        dirtyGenes = new int[trees.length];
     }
 
-    // override this for efficiency, otherwise the overridden makeDirty, which results in additional overhead is called
-    public void modelRestored(Model model) {
-        super.makeDirty();
+    public Model getModel() {
+        return this;
+    }
+
+    public double getLogLikelihood() {
+        if( !likelihoodKnown ) {
+            logLikelihood = calculateLogLikelihood();
+            likelihoodKnown = true;
+        }
+        return logLikelihood;
     }
 
     // Upon a direct "make dirty" enable all compatibility checks, since the last call to calculateLogLikelihood may have
     // found a non compatible tree and returned -inf. This case is not explicitly saved.
     public void makeDirty() {
-        super.makeDirty(); 
+        likelihoodKnown = false;
+        Arrays.fill(geneKnown, false);
         checkCompatibility = true;
         for(int i = 0; i < species.getGeneTrees().length; i++) {
             compatibleCheckRequited[i] = true;
@@ -103,19 +134,43 @@ public class MultiSpeciesCoalescent extends Likelihood.Abstract implements Units
             checkCompatibility = false;
         }
 
+        final SpeciesBindings.GeneTreeInfo[] trees = species.getGeneTrees();
+        int nDirty = 0;
+        for(int i = 0; i < trees.length; ++i) {
+            if( !geneKnown[i] ) {
+                dirtyGenes[nDirty++] = i;
+            }
+        }
+
+        if( nDirty >= PARALLEL_THRESHOLD ) {
+            // set up the lazily computed species tree and coalescent information before sharing them
+            spTree.getNodeDemographic(spTree.getRoot());
+            for(int k = 0; k < nDirty; ++k) {
+                trees[dirtyGenes[k]].getCoalInfo();
+            }
+            IntStream.range(0, nDirty).parallel().forEach(k -> updateGeneLogLikelihood(trees, dirtyGenes[k]));
+        } else {
+            for(int k = 0; k < nDirty; ++k) {
+                updateGeneLogLikelihood(trees, dirtyGenes[k]);
+            }
+        }
+
         double logl = 0;
-        int[] info = {0, 0};
-        for( SpeciesBindings.GeneTreeInfo geneTree : species.getGeneTrees() ) {
-            final double v = treeLogLikelihood(geneTree, spTree.getRoot(), info, geneTree.popFactor());
-            assert ! Double.isNaN(v);
-//           if( Double.isNaN(v) ) {
-//               double x = 0;              
-//           }
+        for( double v : geneLogLikelihoods ) {
             logl += v;
         }
         ccc += 1;
         return logl;
     }
+
+    private void updateGeneLogLikelihood(SpeciesBindings.GeneTreeInfo[] trees, int i) {
+        final SpeciesBindings.GeneTreeInfo geneTree = trees[i];
+        final double v = treeLogLikelihood(geneTree, spTree.getRoot(), new int[]{0, 0}, geneTree.popFactor());
+        assert ! Double.isNaN(v);
+        geneLogLikelihoods[i] = v;
+        geneKnown[i] = true;
+    }
+
     int ccc = 0;
     private final boolean verbose = false;
 
@@ -252,22 +307,26 @@ public class MultiSpeciesCoalescent extends Likelihood.Abstract implements Units
         return like;
     }
 
-    public void modelChangedEvent(Model model, Object object, int index) {
-        //super.modelChangedEvent(model, object, index);
-        // not the above for efficiency, otherwise the overridden makeDirty, which results in additional overhead is called.
-        super.makeDirty();
-        
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        likelihoodKnown = false;
+
         if( model == spTree ) {
-          if( object == spTree && index != -1 ) {
-            // Species tree scaling
-            checkCompatibility = true;
-            Arrays.fill(compatibleCheckRequited, true);
-          }
+            // gene tree changes are passed on by the species tree with the bindings as the object; they
+            // are handled below unless the species tree demographics depend on the gene trees
+            if( object != species || spTree.demographicsDependOnGeneTrees() ) {
+                Arrays.fill(geneKnown, false);
+            }
+            if( object == spTree && index != -1 ) {
+                // Species tree scaling
+                checkCompatibility = true;
+                Arrays.fill(compatibleCheckRequited, true);
+            }
         } else {
 
             final SpeciesBindings.GeneTreeInfo[] trees = species.getGeneTrees();
             for(int i = 0; i < species.getGeneTrees().length; i++) {
                 if( trees[i].tree == model ) {
+                    geneKnown[i] = false;
                     checkCompatibility = true;
                     compatibleCheckRequited[i] = true;
                     break;
@@ -276,6 +335,28 @@ public class MultiSpeciesCoalescent extends Likelihood.Abstract implements Units
         }
     }
 
+    protected final void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        // no parameters of our own
+    }
+
+    protected void storeState() {
+        System.arraycopy(geneLogLikelihoods, 0, storedGeneLogLikelihoods, 0, geneLogLikelihoods.length);
+        System.arraycopy(geneKnown, 0, storedGeneKnown, 0, geneKnown.length);
+        storedLogLikelihood = logLikelihood;
+        storedLikelihoodKnown = likelihoodKnown;
+    }
+
+    protected void restoreState() {
+        System.arraycopy(storedGeneLogLikelihoods, 0, geneLogLikelihoods, 0, geneLogLikelihoods.length);
+        System.arraycopy(storedGeneKnown, 0, geneKnown, 0, geneKnown.length);
+        logLikelihood = storedLogLikelihood;
+        likelihoodKnown = storedLikelihoodKnown;
+    }
+
+    protected void acceptState() {
+        // nothing to do
+    }
+
     private boolean nonEmptyIntersection(FixedBitSet[] sinfo, FixedBitSet subspeciesSet) {
         for( FixedBitSet nodeSpSet : sinfo ) {
             if( nodeSpSet.intersectCardinality(subspeciesSet) == 0 ) {
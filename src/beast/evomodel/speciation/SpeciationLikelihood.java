@@ -118,19 +118,25 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
     // **************************************************************
 
     /**
-     * Stores the precalculated state: likelihood
+     * Stores the precalculated state: likelihood and calibration correction
      */
     protected final void storeState() {
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
+        if (calibration != null) {
+            calibration.storeState();
+        }
     }
 
     /**
-     * Restores the precalculated state: computed likelihood
+     * Restores the precalculated state: computed likelihood and calibration correction
      */
     protected final void restoreState() {
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
+        if (calibration != null) {
+            calibration.restoreState();
+        }
     }
 
     protected final void acceptState() {
@@ -30,7 +30,6 @@ import beast.inference.model.Model;
 import beast.inference.model.Parameter;
 import beast.inference.model.Statistic;
 import beast.inference.model.Variable;
-import beast.util.HeapSort;
 import beast.xml.AbstractXMLObjectParser;
 import beast.xml.AttributeRule;
 import beast.xml.ElementRule;
@@ -69,6 +68,13 @@ public class SpeciesBindings extends AbstractModel {
     private boolean dirty_sg;
     private final boolean verbose = false;
 
+    // gene tree heap and per gene tree positions for merging the sorted per gene tree times
+    private final int[] mergeHeap;
+    private final int[] mergeCursor;
+
+    // used to clear species sets
+    private final FixedBitSet noSpecies;
+
     public SpeciesBindings(SPinfo[] species, TreeModel[] geneTrees, double[] popFactors) {
         super(null);
 
@@ -85,7 +91,11 @@ public class SpeciesBindings extends AbstractModel {
             }
         }
 
+        noSpecies = new FixedBitSet(nsp);
+
         this.geneTrees = new GeneTreeInfo[geneTrees.length];
+        mergeHeap = new int[geneTrees.length];
+        mergeCursor = new int[geneTrees.length];
 
         for (int i = 0; i < geneTrees.length; i++) {
             final TreeModel t = geneTrees[i];
@@ -129,45 +139,100 @@ public class SpeciesBindings extends AbstractModel {
      * Per species coalecent times.
      * <p/>
      * Indexed by sp index, a list of coalescent times of taxa of this sp from all gene trees.
+     * The list is merged from the sorted times of each gene tree, which are only recomputed for
+     * gene trees that changed.
      *
      * @return Per species coalecent times
      */
     public double[][] getPopTimesSingle() {
         if (dirty_sg) {
-            for (int ns = 0; ns < popTimesSingle.length; ++ns) {
-                getAllCoalPoints(ns, popTimesSingle[ns]);
+            boolean changed = false;
+            for (GeneTreeInfo g : geneTrees) {
+                g.getCoalInfo();
+                changed |= !g.singleMerged;
+                g.singleMerged = true;
+            }
+            if (changed) {
+                for (int ns = 0; ns < popTimesSingle.length; ++ns) {
+                    mergeCoalPoints(ns, popTimesSingle[ns]);
+                }
             }
             dirty_sg = false;
         }
         return popTimesSingle;
     }
 
+    /**
+     * Per species pair, the (sorted) times of the first coalescence between the two species in each gene tree.
+     * Only the times of gene trees that changed are moved.
+     *
+     * @return Per species pair coalecent times
+     */
     public double[][] getPopTimesPair() {
         if (dirty_pp) {
-            final int nsp = nSpecies();
-            for (int ns1 = 0; ns1 < nsp - 1; ++ns1) {
-                final int z = (ns1 * (2 * nsp - ns1 - 3)) / 2 - 1;
+            int nChanged = 0;
+            for (GeneTreeInfo g : geneTrees) {
+                g.getCoalInfo();
+                if (!g.pairMerged) {
+                    ++nChanged;
+                }
+            }
 
-                for (int ns2 = ns1 + 1; ns2 < nsp; ++ns2) {
-                    getAllPairCoalPoints(ns1, ns2, popTimesPair[z + ns2]);
+            if (4 * nChanged > geneTrees.length) {
+                for (int np = 0; np < popTimesPair.length; ++np) {
+                    for (int i = 0; i < geneTrees.length; i++) {
+                        popTimesPair[np][i] = geneTrees[i].state.pairTimes[np];
+                    }
+                    Arrays.sort(popTimesPair[np]);
+                }
+            } else if (nChanged > 0) {
+                for (GeneTreeInfo g : geneTrees) {
+                    if (!g.pairMerged) {
+                        for (int np = 0; np < popTimesPair.length; ++np) {
+                            replaceSorted(popTimesPair[np], g.mergedPairTimes[np], g.state.pairTimes[np]);
+                        }
+                    }
                 }
             }
+
+            for (GeneTreeInfo g : geneTrees) {
+                if (!g.pairMerged) {
+                    System.arraycopy(g.state.pairTimes, 0, g.mergedPairTimes, 0, g.mergedPairTimes.length);
+                    g.pairMerged = true;
+                }
+            }
+            dirty_pp = false;
         }
         return popTimesPair;
     }
 
-    private void getAllPairCoalPoints(int ns1, int ns2, double[] popTimes) {
+    /**
+     * @return index of the species pair in getPopTimesPair()
+     */
+    int pairIndex(int ns1, int ns2) {
+        if (ns1 > ns2) {
+            return pairIndex(ns2, ns1);
+        }
+        assert ns1 < ns2;
+        return (ns1 * (2 * nSpecies() - ns1 - 3)) / 2 - 1 + ns2;
+    }
 
-        for (int i = 0; i < geneTrees.length; i++) {
-            for (CoalInfo ci : geneTrees[i].getCoalInfo()) {
-                if ((ci.sinfo[0].contains(ns1) && ci.sinfo[1].contains(ns2)) ||
-                        (ci.sinfo[1].contains(ns1) && ci.sinfo[0].contains(ns2))) {
-                    popTimes[i] = ci.ctime;
-                    break;
-                }
+    // replaces one occurrence of old in the sorted array by value, keeping the array sorted
+    private static void replaceSorted(double[] sorted, double old, double value) {
+        int i = Arrays.binarySearch(sorted, old);
+        assert i >= 0;
+        if (value > old) {
+            while (i + 1 < sorted.length && sorted[i + 1] < value) {
+                sorted[i] = sorted[i + 1];
+                ++i;
+            }
+        } else {
+            while (i > 0 && sorted[i - 1] > value) {
+                sorted[i] = sorted[i - 1];
+                --i;
             }
         }
-        HeapSort.sort(popTimes);
+        sorted[i] = value;
     }
 
     private int allCoalPointsCount(int spIndex) {
@@ -180,29 +245,69 @@ public class SpeciesBindings extends AbstractModel {
         return tot;
     }
 
-    // length of points must be right
-    void getAllCoalPoints(int spIndex, double[] points) {
+    // k-way merge of the sorted coalescent times of species spIndex in each gene tree. length of points must be right
+    private void mergeCoalPoints(int spIndex, double[] points) {
+        int n = 0;
+        for (int i = 0; i < geneTrees.length; i++) {
+            if (geneTrees[i].state.singleTimes[spIndex].length > 0) {
+                mergeCursor[i] = 0;
+                mergeHeap[n] = i;
+                siftUp(spIndex, n);
+                ++n;
+            }
+        }
+
+        int k = 0;
+        while (n > 0) {
+            final int i = mergeHeap[0];
+            final double[] times = geneTrees[i].state.singleTimes[spIndex];
+            points[k] = times[mergeCursor[i]];
+            ++k;
+            ++mergeCursor[i];
+            if (mergeCursor[i] == times.length) {
+                --n;
+                mergeHeap[0] = mergeHeap[n];
+            }
+            siftDown(spIndex, n);
+        }
+        assert k == points.length;
+    }
+
+    private double mergeHead(int spIndex, int heapIndex) {
+        final int i = mergeHeap[heapIndex];
+        return geneTrees[i].state.singleTimes[spIndex][mergeCursor[i]];
+    }
+
+    private void swapMergeHeap(int a, int b) {
+        final int tmp = mergeHeap[a];
+        mergeHeap[a] = mergeHeap[b];
+        mergeHeap[b] = tmp;
+    }
 
+    private void siftUp(int spIndex, int k) {
+        while (k > 0) {
+            final int parent = (k - 1) / 2;
+            if (mergeHead(spIndex, k) >= mergeHead(spIndex, parent)) {
+                break;
+            }
+            swapMergeHeap(k, parent);
+            k = parent;
+        }
+    }
+
+    private void siftDown(int spIndex, int n) {
         int k = 0;
-        for (GeneTreeInfo t : geneTrees) {
-            final int totCoalEvents = t.nLineages(spIndex) - 1;
-            int savek = k;
-            for (CoalInfo ci : t.getCoalInfo()) {
-//               if( ci == null ) {
-//                assert ci != null;
-//            }
-                if (ci.allHas(spIndex)) {
-                    points[k] = ci.ctime;
-                    ++k;
-                }
+        while (2 * k + 1 < n) {
+            int child = 2 * k + 1;
+            if (child + 1 < n && mergeHead(spIndex, child + 1) < mergeHead(spIndex, child)) {
+                ++child;
             }
-            if (!(totCoalEvents >= 0 && savek + totCoalEvents == k) || (totCoalEvents < 0 && savek == k)) {
-                System.err.println(totCoalEvents);
+            if (mergeHead(spIndex, k) <= mergeHead(spIndex, child)) {
+                break;
             }
-            assert (totCoalEvents >= 0 && savek + totCoalEvents == k) || (totCoalEvents < 0 && savek == k);
+            swapMergeHeap(k, child);
+            k = child;
         }
-        assert k == points.length;
-        HeapSort.sort(points);
     }
 
     private int allPairCoalPointsCount() {
@@ -212,19 +317,14 @@ public class SpeciesBindings extends AbstractModel {
     public double speciationUpperBound(FixedBitSet sub1, FixedBitSet sub2) {
         //Determined by the last time any pair of sp's in sub1 x sub2 have been seen
         // together in any of the gene trees."""
+        // That is the earliest first coalescence of a species pair across sub1 x sub2.
 
+        final double[][] pairTimes = getPopTimesPair();
         double bound = Double.MAX_VALUE;
-        for (GeneTreeInfo g : getGeneTrees()) {
-            for (CoalInfo ci : g.getCoalInfo()) {
-                // if past time of current bound, can't change it anymore
-                if (ci.ctime >= bound) {
-                    break;
-                }
-                if ((ci.sinfo[0].intersectCardinality(sub1) > 0 && ci.sinfo[1].intersectCardinality(sub2) > 0)
-                        ||
-                        (ci.sinfo[0].intersectCardinality(sub2) > 0 && ci.sinfo[1].intersectCardinality(sub1) > 0)) {
-                    bound = ci.ctime;
-                    break;
+        for (int ns1 = sub1.nextOnBit(0); ns1 >= 0; ns1 = sub1.nextOnBit(ns1 + 1)) {
+            for (int ns2 = sub2.nextOnBit(0); ns2 >= 0; ns2 = sub2.nextOnBit(ns2 + 1)) {
+                if (ns1 != ns2) {
+                    bound = Math.min(bound, pairTimes[pairIndex(ns1, ns2)][0]);
                 }
             }
         }
@@ -243,11 +343,12 @@ public class SpeciesBindings extends AbstractModel {
             }
             MutableTree.Utils.correctHeightsForTips(tree);
              // (todo) ugly re-init - can I do something better?
-            t.wasChanged();
+            t.wasChanged(null);
             t.getCoalInfo();
-            t.wasBacked = false;
-            //t.wasChanged();
+            t.backed = false;
        }
+        dirty_sg = true;
+        dirty_pp = true;
     }
 
     /**
@@ -270,13 +371,18 @@ public class SpeciesBindings extends AbstractModel {
 
     class CoalInfo implements Comparable<CoalInfo> {
         // zero based, 0 is taxa time, i.e. in tree branch units
-        final double ctime;
+        double ctime;
         // sp info for each subtree
         final FixedBitSet[] sinfo;
+        // internal node index (node number minus number of tips)
+        final int node;
 
-        CoalInfo(double t, int nc) {
-            ctime = t;
+        CoalInfo(int node, int nc) {
+            this.node = node;
             sinfo = new FixedBitSet[nc];
+            for (int i = 0; i < nc; ++i) {
+                sinfo[i] = new FixedBitSet(nSpecies());
+            }
         }
 
         public int compareTo(CoalInfo o) {
@@ -295,47 +401,74 @@ public class SpeciesBindings extends AbstractModel {
             }
             return true;
         }
+
+        void copy(CoalInfo o) {
+            ctime = o.ctime;
+            for (int i = 0; i < sinfo.length; ++i) {
+                sinfo[i].intersect(noSpecies);
+                sinfo[i].union(o.sinfo[i]);
+            }
+        }
     }
 
     /**
-     * Collect coalescence information for sub-tree rooted at 'node'.
-     *
-     * @param tree
-     * @param node
-     * @param loc  Place node data in loc, sub-tree info before that.
-     * @param info array to fill
-     * @return location of next available location
+     * Coalescence information of one gene tree.
      */
-    private int collectCoalInfo(Tree tree, NodeRef node, int loc, CoalInfo[] info) {
-
-        info[loc] = new CoalInfo(tree.getNodeHeight(node), tree.getChildCount(node));
-
-        int newLoc = loc - 1;
-        for (int i = 0; i < 2; i++) {
-            NodeRef child = tree.getChild(node, i);
-            info[loc].sinfo[i] = new FixedBitSet(nSpecies());
-
-            if (tree.isExternal(child)) {
-                info[loc].sinfo[i].set(taxon2Species.get(tree.getNodeTaxon(child)));
-                assert tree.getNodeHeight(child) == 0;
-            } else {
-                final int used = collectCoalInfo(tree, child, newLoc, info);
-                for (int j = 0; j < info[newLoc].sinfo.length; ++j) {
-                    info[loc].sinfo[i].union(info[newLoc].sinfo[j]);
-                }
-                newLoc = used;
+    private class CoalState {
+        // by internal node (node number minus number of tips)
+        final CoalInfo[] nodeInfo;
+        // the same, sorted by time
+        final CoalInfo[] cList;
+        // per species, sorted times of coalescences between lineages of the species
+        final double[][] singleTimes;
+        // per species pair, time of the first coalescence between lineages of the two species
+        final double[] pairTimes;
+
+        CoalState(int nInternal, int[] lineagesCount) {
+            nodeInfo = new CoalInfo[nInternal];
+            for (int k = 0; k < nInternal; ++k) {
+                nodeInfo[k] = new CoalInfo(k, 2);
+            }
+            cList = nodeInfo.clone();
+            singleTimes = new double[lineagesCount.length][];
+            for (int ns = 0; ns < singleTimes.length; ++ns) {
+                singleTimes[ns] = new double[Math.max(lineagesCount[ns] - 1, 0)];
+            }
+            pairTimes = new double[(lineagesCount.length * (lineagesCount.length - 1)) / 2];
+        }
+
+        void copy(CoalState o) {
+            for (int k = 0; k < nodeInfo.length; ++k) {
+                nodeInfo[k].copy(o.nodeInfo[k]);
+            }
+            for (int k = 0; k < cList.length; ++k) {
+                cList[k] = nodeInfo[o.cList[k].node];
+            }
+            for (int ns = 0; ns < singleTimes.length; ++ns) {
+                System.arraycopy(o.singleTimes[ns], 0, singleTimes[ns], 0, singleTimes[ns].length);
             }
+            System.arraycopy(o.pairTimes, 0, pairTimes, 0, pairTimes.length);
         }
-        return newLoc;
     }
 
     public class GeneTreeInfo {
         public final TreeModel tree;
         private final int[] lineagesCount;
-        private CoalInfo[] cList;
-        private CoalInfo[] savedcList;
+        // species of each tip, by node number
+        private final int[] tipSpecies;
+        private CoalState state;
+        private CoalState savedState;
+        // heights or topology changed since the coalescent information was collected
         private boolean dirty;
-        private boolean wasBacked;
+        private boolean topologyDirty;
+        private boolean storedDirty;
+        private boolean storedTopologyDirty;
+        // savedState holds the state at the last store
+        private boolean backed;
+        // the current times are in getPopTimesSingle()/getPopTimesPair()
+        private boolean singleMerged;
+        private boolean pairMerged;
+        private final double[] mergedPairTimes;
         private final double popFactor;
 
         GeneTreeInfo(TreeModel tree, double popFactor) {
@@ -353,11 +486,18 @@ public class SpeciesBindings extends AbstractModel {
                 }
             }
 
-            cList = new CoalInfo[tree.getExternalNodeCount() - 1];
-            savedcList = new CoalInfo[cList.length];
-            wasChanged();
+            tipSpecies = new int[tree.getExternalNodeCount()];
+            for (int i = 0; i < tipSpecies.length; ++i) {
+                final NodeRef tip = tree.getExternalNode(i);
+                tipSpecies[tip.getNumber()] = taxon2Species.get(tree.getNodeTaxon(tip));
+            }
+
+            state = new CoalState(tree.getInternalNodeCount(), lineagesCount);
+            savedState = new CoalState(tree.getInternalNodeCount(), lineagesCount);
+            mergedPairTimes = new double[state.pairTimes.length];
+            wasChanged(null);
             getCoalInfo();
-            wasBacked = false;
+            backed = false;
         }
 
         int nLineages(int speciesIndex) {
@@ -366,52 +506,148 @@ public class SpeciesBindings extends AbstractModel {
 
         public CoalInfo[] getCoalInfo() {
             if (dirty) {
-                swap();
+                if (!backed) {
+                    savedState.copy(state);
+                    backed = true;
+                }
+
+                if (topologyDirty) {
+                    collectCoalInfo(tree.getRoot());
+                } else {
+                    for (int k = 0; k < state.nodeInfo.length; ++k) {
+                        state.nodeInfo[k].ctime = tree.getNodeHeight(tree.getInternalNode(k));
+                    }
+                }
+                // nearly sorted after local moves
+                insertionSort(state.cList);
+                collectTimes();
 
-                collectCoalInfo(tree, tree.getRoot(), cList.length - 1, cList);
-                HeapSort.sort(cList);
                 dirty = false;
-                wasBacked = true;
+                topologyDirty = false;
+                singleMerged = false;
+                pairMerged = false;
             }
-            return cList;
+            return state.cList;
         }
 
-        private void swap() {
-            CoalInfo[] tmp = cList;
-            cList = savedcList;
-            savedcList = tmp;
+        /**
+         * Collect species information for sub-tree rooted at 'node'.
+         */
+        private void collectCoalInfo(NodeRef node) {
+            final int nTips = tipSpecies.length;
+            final CoalInfo info = state.nodeInfo[node.getNumber() - nTips];
+            info.ctime = tree.getNodeHeight(node);
+
+            for (int i = 0; i < 2; i++) {
+                final NodeRef child = tree.getChild(node, i);
+                final FixedBitSet sinfo = info.sinfo[i];
+                sinfo.intersect(noSpecies);
+
+                if (tree.isExternal(child)) {
+                    sinfo.set(tipSpecies[child.getNumber()]);
+                    assert tree.getNodeHeight(child) == 0;
+                } else {
+                    collectCoalInfo(child);
+                    for (FixedBitSet s : state.nodeInfo[child.getNumber() - nTips].sinfo) {
+                        sinfo.union(s);
+                    }
+                }
+            }
+        }
+
+        private void insertionSort(CoalInfo[] cList) {
+            for (int i = 1; i < cList.length; ++i) {
+                final CoalInfo ci = cList[i];
+                int j = i - 1;
+                while (j >= 0 && cList[j].ctime > ci.ctime) {
+                    cList[j + 1] = cList[j];
+                    --j;
+                }
+                cList[j + 1] = ci;
+            }
+        }
+
+        // per species and per species pair times from the sorted coalescent list
+        private void collectTimes() {
+            final int[] counts = new int[lineagesCount.length];
+            final double[] pairTimes = state.pairTimes;
+            Arrays.fill(pairTimes, -1);
+            int missingPairs = pairTimes.length;
+
+            for (CoalInfo ci : state.cList) {
+                final FixedBitSet left = ci.sinfo[0];
+                final FixedBitSet right = ci.sinfo[1];
+                for (int ns = left.nextOnBit(0); ns >= 0; ns = left.nextOnBit(ns + 1)) {
+                    if (right.contains(ns)) {
+                        state.singleTimes[ns][counts[ns]] = ci.ctime;
+                        ++counts[ns];
+                    }
+                }
+
+                if (missingPairs > 0) {
+                    for (int ns1 = left.nextOnBit(0); ns1 >= 0; ns1 = left.nextOnBit(ns1 + 1)) {
+                        for (int ns2 = right.nextOnBit(0); ns2 >= 0; ns2 = right.nextOnBit(ns2 + 1)) {
+                            if (ns1 != ns2) {
+                                final int np = pairIndex(ns1, ns2);
+                                if (pairTimes[np] < 0) {
+                                    pairTimes[np] = ci.ctime;
+                                    --missingPairs;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            assert missingPairs == 0;
         }
 
-        void wasChanged() {
+        /**
+         * @param event the tree change, or null if unknown
+         */
+        void wasChanged(Object event) {
+            if (event instanceof TreeModel.TreeChangedEvent) {
+                final TreeModel.TreeChangedEvent e = (TreeModel.TreeChangedEvent) event;
+                if (e.isNodeChanged() && e.isNodeParameterChanged()) {
+                    if (e.isRateChanged()) {
+                        return;
+                    }
+                    if (e.isHeightChanged()) {
+                        // the species sets are the same, only the times (and order) change
+                        dirty = true;
+                        return;
+                    }
+                }
+            }
             dirty = true;
-            wasBacked = false;
+            topologyDirty = true;
+        }
+
+        void store() {
+            storedDirty = dirty;
+            storedTopologyDirty = topologyDirty;
+            backed = false;
         }
 
         boolean restore() {
-            if (verbose) System.out.println(" SP binding: restore " + tree.getId() + " (" + wasBacked + ")");
-            if (wasBacked) {
-//                if( false ) {
-//                    swap();
-//                    dirty = true;
-//                    getCoalInfo();
-//                    for(int k = 0; k < cList.length; ++k) {
-//                        assert cList[k].ctime == savedcList[k].ctime &&
-//                                cList[k].sinfo[0].equals(savedcList[k].sinfo[0]) &&
-//                                cList[k].sinfo[1].equals(savedcList[k].sinfo[1]);
-//                    }
-//                }
-                swap();
-                wasBacked = false;
-                dirty = false;
-                return true;
+            if (verbose) System.out.println(" SP binding: restore " + tree.getId() + " (" + backed + ")");
+            final boolean changed = backed || dirty != storedDirty;
+            if (backed) {
+                final CoalState tmp = state;
+                state = savedState;
+                savedState = tmp;
+                singleMerged = false;
+                pairMerged = false;
             }
-            return false;
+            dirty = storedDirty;
+            topologyDirty = storedTopologyDirty;
+            backed = false;
+            return changed;
         }
 
         void accept() {
             if (verbose) System.out.println(" SP binding: accept " + tree.getId());
 
-            wasBacked = false;
+            backed = false;
         }
 
         public double popFactor() {
@@ -431,7 +667,7 @@ public class SpeciesBindings extends AbstractModel {
 
         for (GeneTreeInfo g : geneTrees) {
             if (g.tree == model) {
-                g.wasChanged();
+                g.wasChanged(object);
                 break;
             }
         }
@@ -443,7 +679,10 @@ public class SpeciesBindings extends AbstractModel {
     }
 
     protected void storeState() {
-        // do on a per need basis
+        // the coalescent information itself is backed up on a per need basis
+        for (GeneTreeInfo g : geneTrees) {
+            g.store();
+        }
     }
 
     protected void restoreState() {
@@ -1039,8 +1039,17 @@ public class SpeciesTreeModel extends AbstractModel implements MutableTree, Tree
 
         nodePropsReady = false;
         anyChange = true;
-        // this should happen by default, no?
-        fireModelChanged();
+        // this should happen by default, no? pass the bindings on so listeners can tell a
+        // gene tree change from a change to the species tree itself.
+        fireModelChanged(model);
+    }
+
+    /**
+     * @return true if the branch demographics depend on the gene trees (through the coalescent
+     *         points or the extent of the root branch) and not only on the species tree.
+     */
+    public boolean demographicsDependOnGeneTrees() {
+        return coalPointsPops != null || (!constantPopulation && nonConstRootPopulation);
     }
 
     protected final void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
@@ -228,6 +228,25 @@ public abstract class AbstractSubstitutionModel extends AbstractModel implements
         pushiexp(iexp);
     }
 
+    /**
+     * get the instantaneous rate matrix
+     *
+     * @param matrix an array to store the matrix
+     */
+    public void getInfinitesimalMatrix(double[] matrix) {
+        synchronized (this) {
+            if (updateMatrix) {
+                setupMatrix();
+            }
+        }
+
+        int u = 0;
+        for (int i = 0; i < stateCount; i++) {
+            System.arraycopy(q[i], 0, matrix, u, stateCount);
+            u += stateCount;
+        }
+    }
+
     /**
      * This function returns the Eigen vectors.
      *
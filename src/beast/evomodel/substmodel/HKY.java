@@ -204,6 +204,41 @@ public class HKY extends AbstractNucleotideModel {
         matrix[15] = freqT + t1Taa + (tab2T * bbY);
     }
 
+    /**
+     * get the instantaneous rate matrix
+     *
+     * @param matrix an array to store the matrix
+     */
+    public void getInfinitesimalMatrix(double[] matrix) {
+        synchronized (this) {
+            if (updateIntermediates) {
+                calculateIntermediates();
+            }
+
+            if (updateMatrix) {
+                setupMatrix();
+            }
+        }
+
+        final double kappa = getKappa();
+        final double[] freqs = {freqA, freqC, freqG, freqT};
+
+        int u = 0;
+        for (int i = 0; i < 4; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < 4; j++) {
+                if (i != j) {
+                    // transitions are A<->G and C<->T
+                    final double rate = ((i + j) % 2 == 0 ? kappa : 1.0) * -beta * freqs[j];
+                    matrix[u + j] = rate;
+                    sum += rate;
+                }
+            }
+            matrix[u + i] = -sum;
+            u += 4;
+        }
+    }
+
     /**
      * setup substitution matrix
      */
@@ -41,6 +41,14 @@ public interface SubstitutionModel extends Model {
      */
     void getTransitionProbabilities(double distance, double[] matrix);
 
+    /**
+     * Get the instantaneous rate matrix, scaled consistently with the
+     * transition probabilities (i.e., P(t) = exp(Qt)).
+     *
+     * @param matrix an array to store the matrix
+     */
+    void getInfinitesimalMatrix(double[] matrix);
+
     /**
      * This function returns the Eigen vectors.
      * @return the array
@@ -268,6 +268,39 @@ public class TN93 extends AbstractNucleotideModel {
         //System.arraycopy(fa1, 0, matrix, 0, 16);
     }
 
+    /**
+     * get the instantaneous rate matrix
+     *
+     * @param matrix an array to store the matrix
+     */
+    public void getInfinitesimalMatrix(double[] matrix) {
+        synchronized (this) {
+            if (updateIntermediates) {
+                calculateIntermediates();
+            }
+        }
+
+        final double k1 = getKappa1();
+        final double k2 = getKappa2();
+        final double[] freqs = {freqA, freqC, freqG, freqT};
+
+        int u = 0;
+        for (int i = 0; i < 4; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < 4; j++) {
+                if (i != j) {
+                    // purine transitions A<->G use kappa1, pyrimidine transitions C<->T use kappa2
+                    final double kappa = (i + j) % 2 == 0 ? (i % 2 == 0 ? k1 : k2) : 1.0;
+                    final double rate = kappa * freqs[j] / subrateScale;
+                    matrix[u + j] = rate;
+                    sum += rate;
+                }
+            }
+            matrix[u + i] = -sum;
+            u += 4;
+        }
+    }
+
     /**
      * setup substitution matrix
      */
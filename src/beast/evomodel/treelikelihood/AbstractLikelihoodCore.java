@@ -40,20 +40,24 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
 
     protected boolean integrateCategories;
 
-    protected double[][][] partials;
+    protected transient double[][][] partials;
 
-    protected int[][] states;
+    protected transient int[][] states;
 
-    protected double[][][] matrices;
+    protected transient double[][][] matrices;
 
-    protected int[] currentMatricesIndices;
-    protected int[] storedMatricesIndices;
-    protected int[] currentPartialsIndices;
-    protected int[] storedPartialsIndices;
+    protected transient int[] currentMatricesIndices;
+    protected transient int[] storedMatricesIndices;
+    protected transient int[] currentPartialsIndices;
+    protected transient int[] storedPartialsIndices;
 
     protected boolean useScaling = false;
 
-    protected double[][][] scalingFactors;
+    protected transient double[][][] scalingFactors;
+
+    protected transient double[][] preOrderPartials;
+    private transient double[] preOrderStates;
+    private transient double[] edgeLikelihoods;
 
     private double scalingThreshold = 1.0E-100;
 
@@ -108,6 +112,11 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
         matrixSize = stateCount * stateCount;
 
         matrices = new double[2][nodeCount][matrixCount * matrixSize];
+
+        if (useScaling) {
+            scalingFactors = new double[2][nodeCount][patternCount];
+        }
+        preOrderPartials = null;
     }
 
     /**
@@ -129,6 +138,9 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
         storedMatricesIndices = null;
 
         scalingFactors = null;
+        preOrderPartials = null;
+        preOrderStates = null;
+        edgeLikelihoods = null;
     }
 
     public void setUseScaling(boolean useScaling) {
@@ -381,6 +393,165 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
      */
     protected abstract void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials);
 
+    /**
+     * Sets the pre-order partials at the root to the equilibrium state frequencies.
+     * The pre-order partials are only allocated once gradients are first requested.
+     */
+    public void setRootPreOrderPartials(int rootIndex, double[] frequencies) {
+        if (!integrateCategories) {
+            throw new RuntimeException("Pre-order partials not implemented using matrixMap");
+        }
+
+        if (preOrderPartials == null) {
+            preOrderPartials = new double[nodeCount][partialsSize];
+            preOrderStates = new double[stateCount];
+            edgeLikelihoods = new double[patternCount];
+        }
+
+        double[] partials3 = preOrderPartials[rootIndex];
+        int v = 0;
+        for (int l = 0; l < matrixCount; l++) {
+            for (int k = 0; k < patternCount; k++) {
+                System.arraycopy(frequencies, 0, partials3, v, stateCount);
+                v += stateCount;
+            }
+        }
+    }
+
+    /**
+     * Calculates the pre-order partials at the bottom of the branch above a node. These
+     * are normalized per pattern (by the same factor across categories) as they are only
+     * used in ratios with the pattern likelihood, so no scaling factors need to be kept.
+     */
+    public void calculatePreOrderPartials(int parentIndex, int siblingIndex, int nodeIndex) {
+        double[] partials1 = preOrderPartials[parentIndex];
+        double[] partials3 = preOrderPartials[nodeIndex];
+
+        double[] matrices2 = matrices[currentMatricesIndices[siblingIndex]][siblingIndex];
+        double[] matrices3 = matrices[currentMatricesIndices[nodeIndex]][nodeIndex];
+
+        int[] states2 = states[siblingIndex];
+        double[] partials2 = (states2 == null ? partials[currentPartialsIndices[siblingIndex]][siblingIndex] : null);
+
+        double[] tmp = preOrderStates;
+
+        int v = 0;
+        for (int l = 0; l < matrixCount; l++) {
+            int w = l * matrixSize;
+
+            for (int k = 0; k < patternCount; k++) {
+
+                int u = w;
+                for (int i = 0; i < stateCount; i++) {
+                    double sum;
+                    if (states2 != null) {
+                        int state = states2[k];
+                        // an ambiguous or gap state has a partial of 1.0 for every state
+                        sum = (state < stateCount ? matrices2[u + state] : 1.0);
+                    } else {
+                        sum = 0.0;
+                        for (int j = 0; j < stateCount; j++) {
+                            sum += matrices2[u + j] * partials2[v + j];
+                        }
+                    }
+                    tmp[i] = partials1[v + i] * sum;
+                    u += stateCount;
+                }
+
+                for (int j = 0; j < stateCount; j++) {
+                    double sum = 0.0;
+                    u = w + j;
+                    for (int i = 0; i < stateCount; i++) {
+                        sum += tmp[i] * matrices3[u];
+                        u += stateCount;
+                    }
+                    partials3[v + j] = sum;
+                }
+
+                v += stateCount;
+            }
+        }
+
+        for (int k = 0; k < patternCount; k++) {
+            double scaleFactor = 0.0;
+            v = k * stateCount;
+            for (int l = 0; l < matrixCount; l++) {
+                for (int j = 0; j < stateCount; j++) {
+                    if (partials3[v + j] > scaleFactor) {
+                        scaleFactor = partials3[v + j];
+                    }
+                }
+                v += patternCount * stateCount;
+            }
+
+            if (scaleFactor > 0.0) {
+                v = k * stateCount;
+                for (int l = 0; l < matrixCount; l++) {
+                    for (int j = 0; j < stateCount; j++) {
+                        partials3[v + j] /= scaleFactor;
+                    }
+                    v += patternCount * stateCount;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the derivative of each pattern likelihood with respect to the length of
+     * the branch above a node, divided by the pattern likelihood. As P'(t) = P(t)Q, this is
+     * the pre-order partials times Q times the post-order partials, over their product.
+     */
+    public void calculateEdgeDerivatives(int nodeIndex, double[] rateMatrix, double[] categoryRates,
+                                         double[] proportions, double[] outDerivatives) {
+        double[] partials1 = preOrderPartials[nodeIndex];
+
+        int[] states2 = states[nodeIndex];
+        double[] partials2 = (states2 == null ? partials[currentPartialsIndices[nodeIndex]][nodeIndex] : null);
+
+        double[] likelihoods = edgeLikelihoods;
+        Arrays.fill(likelihoods, 0.0);
+        Arrays.fill(outDerivatives, 0, patternCount, 0.0);
+
+        int v = 0;
+        for (int l = 0; l < matrixCount; l++) {
+            for (int k = 0; k < patternCount; k++) {
+
+                double likelihood = 0.0;
+                double derivative = 0.0;
+
+                if (states2 != null && states2[k] < stateCount) {
+                    int state = states2[k];
+                    likelihood = partials1[v + state];
+                    int u = state;
+                    for (int i = 0; i < stateCount; i++) {
+                        derivative += partials1[v + i] * rateMatrix[u];
+                        u += stateCount;
+                    }
+                } else {
+                    int u = 0;
+                    for (int i = 0; i < stateCount; i++) {
+                        double sum = 0.0;
+                        for (int j = 0; j < stateCount; j++) {
+                            sum += rateMatrix[u] * (states2 == null ? partials2[v + j] : 1.0);
+                            u++;
+                        }
+                        derivative += partials1[v + i] * sum;
+                        likelihood += partials1[v + i] * (states2 == null ? partials2[v + i] : 1.0);
+                    }
+                }
+
+                outDerivatives[k] += proportions[l] * categoryRates[l] * derivative;
+                likelihoods[k] += proportions[l] * likelihood;
+
+                v += stateCount;
+            }
+        }
+
+        for (int k = 0; k < patternCount; k++) {
+            outDerivatives[k] /= likelihoods[k];
+        }
+    }
+
     /**
      * Scale the partials at a given node. This uses a scaling suggested by Ziheng Yang in
      * Yang (2000) J. Mol. Evol. 51: 423-432
@@ -237,6 +237,7 @@ public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood imp
 
     protected void handleModelChangedEvent(Model model, Object object, int index) {
         likelihoodKnown = false;
+        gradientKnown = false;
     }
 
     /**
@@ -246,6 +247,14 @@ public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood imp
 
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
+
+        storedGradientKnown = gradientKnown;
+        if (gradientKnown) {
+            if (storedBranchLengthGradient == null) {
+                storedBranchLengthGradient = new double[nodeCount];
+            }
+            System.arraycopy(branchLengthGradient, 0, storedBranchLengthGradient, 0, nodeCount);
+        }
     }
 
     /**
@@ -255,6 +264,13 @@ public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood imp
 
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
+
+        gradientKnown = storedGradientKnown;
+        if (gradientKnown) {
+            double[] tmp = branchLengthGradient;
+            branchLengthGradient = storedBranchLengthGradient;
+            storedBranchLengthGradient = tmp;
+        }
     }
 
     protected void acceptState() {
@@ -280,11 +296,74 @@ public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood imp
         return logLikelihood;
     }
 
+    /**
+     * Gets the gradient of the log likelihood with respect to the length (in time) of the
+     * branch above each node, indexed by node number. The entry for the root is zero.
+     *
+     * @return the gradient
+     */
+    public final double[] getBranchLengthGradient() {
+        if (!providesBranchLengthGradient()) {
+            throw new UnsupportedOperationException(getClass().getName() + " does not provide branch length gradients");
+        }
+        if (!gradientKnown) {
+            if (branchLengthGradient == null) {
+                branchLengthGradient = new double[nodeCount];
+            }
+            calculateBranchLengthGradient(branchLengthGradient);
+            gradientKnown = true;
+        }
+        return branchLengthGradient.clone();
+    }
+
+    /**
+     * Gets the gradient of the log likelihood with respect to the height of each node,
+     * indexed by node number.
+     *
+     * @return the gradient
+     */
+    public double[] getNodeHeightGradient() {
+        double[] branchGradient = getBranchLengthGradient();
+        double[] gradient = new double[nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = treeModel.getNode(i);
+            double g = -branchGradient[i];
+            for (int j = 0; j < treeModel.getChildCount(node); j++) {
+                g += branchGradient[treeModel.getChild(node, j).getNumber()];
+            }
+            gradient[i] = g;
+        }
+
+        return gradient;
+    }
+
+    /**
+     * Whether this likelihood, as configured, can calculate branch length gradients.
+     * Callers should check this before asking for a gradient.
+     *
+     * @return true if getBranchLengthGradient and getNodeHeightGradient are supported
+     */
+    public boolean providesBranchLengthGradient() {
+        return false;
+    }
+
+    /**
+     * Calculates the gradient of the log likelihood with respect to branch lengths. Only
+     * called when providesBranchLengthGradient returns true.
+     *
+     * @param gradient an array into which the gradient will go
+     */
+    protected void calculateBranchLengthGradient(double[] gradient) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not provide branch length gradients");
+    }
+
     /**
      * Forces a complete recalculation of the likelihood next time getLikelihood is called
      */
     public void makeDirty() {
         likelihoodKnown = false;
+        gradientKnown = false;
         updateAllNodes();
         updateAllPatterns();
     }
@@ -348,5 +427,10 @@ public abstract class AbstractTreeLikelihood extends AbstractModelLikelihood imp
     protected boolean likelihoodKnown = false;
     private boolean storedLikelihoodKnown = false;
 
+    private double[] branchLengthGradient = null;
+    private double[] storedBranchLengthGradient = null;
+    private boolean gradientKnown = false;
+    private boolean storedGradientKnown = false;
+
     protected int totalOperationCount = 0;
 }
\ No newline at end of file
@@ -131,6 +131,39 @@ public interface LikelihoodCore extends LikelihoodPartialsProvider {
      */
     void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods);
 
+    /**
+     * Sets the pre-order partials at the root to the equilibrium state frequencies.
+     *
+     * @param rootIndex   the root node
+     * @param frequencies an array of state frequencies
+     */
+    void setRootPreOrderPartials(int rootIndex, double[] frequencies);
+
+    /**
+     * Calculates the pre-order (outside) partial likelihoods at the bottom of the
+     * branch above a node, from the pre-order partials of its parent and the
+     * post-order partials of its sibling.
+     *
+     * @param parentIndex  the 'parent' node
+     * @param siblingIndex the 'sibling' node
+     * @param nodeIndex    the node
+     */
+    void calculatePreOrderPartials(int parentIndex, int siblingIndex, int nodeIndex);
+
+    /**
+     * Calculates, for each pattern, the derivative of the pattern likelihood with
+     * respect to the length of the branch above a node, divided by the pattern
+     * likelihood. Requires the pre-order partials for the node.
+     *
+     * @param nodeIndex      the node
+     * @param rateMatrix     the instantaneous rate matrix
+     * @param categoryRates  the relative rate of each category
+     * @param proportions    the proportions of sites in each category
+     * @param outDerivatives an array into which the derivatives will go
+     */
+    void calculateEdgeDerivatives(int nodeIndex, double[] rateMatrix, double[] categoryRates,
+                                  double[] proportions, double[] outDerivatives);
+
     void setUseScaling(boolean useScaling);
 
     double getLogScalingFactor(int pattern);
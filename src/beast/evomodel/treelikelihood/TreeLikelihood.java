@@ -36,6 +36,7 @@ import beast.evomodel.tree.TipStatesModel;
 import beast.evomodel.tree.TreeModel;
 import beast.inference.model.Model;
 import beast.inference.model.Statistic;
+import beast.util.Serializer;
 import beast.xml.AbstractXMLObjectParser;
 import beast.xml.AttributeRule;
 import beast.xml.ElementRule;
@@ -54,7 +55,7 @@ import java.util.logging.Logger;
  * @version $Id: TreeLikelihood.java,v 1.31 2006/08/30 16:02:42 rambaut Exp $
  */
 
-public class TreeLikelihood extends AbstractTreeLikelihood {
+public class TreeLikelihood extends AbstractTreeLikelihood implements Serializer.Resumable {
 
     public static final String TREE_LIKELIHOOD = "treeLikelihood";
     private static final boolean DEBUG = false;
@@ -154,71 +155,100 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
             addModel(this.branchRateModel);
 
             probabilities = new double[stateCount * stateCount];
+            branchRates = new double[nodeCount];
 
-            likelihoodCore.initialize(nodeCount, patternCount, categoryCount, integrateAcrossCategories);
-
-            int extNodeCount = treeModel.getExternalNodeCount();
-            int intNodeCount = treeModel.getInternalNodeCount();
+            this.useAmbiguities = useAmbiguities;
+            this.allowMissingTaxa = allowMissingTaxa;
 
             if (tipStatesModel != null) {
                 tipStatesModel.setTree(treeModel);
-
                 tipPartials = new double[patternCount * stateCount];
+                addModel(tipStatesModel);
+            }
 
-                for (int i = 0; i < extNodeCount; i++) {
-                    // Find the id of tip i in the patternList
-                    String id = treeModel.getTaxonId(i);
-                    int index = patternList.getTaxonIndex(id);
+            initializeLikelihoodCore();
 
-                    if (index == -1) {
-                        throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
-                                ", is not found in patternList, " + patternList.getId());
-                    }
+            if (forceRescaling) {
+                likelihoodCore.setUseScaling(true);
+                logger.info("  Forcing use of partials rescaling.");
+            }
+
+        } catch (TaxonList.MissingTaxonException mte) {
+            throw new RuntimeException(mte.toString());
+        }
+
+        addStatistic(new SiteLikelihoodsStatistic());
+    }
+
+    /**
+     * Allocates the likelihood core buffers and loads the tip data. The buffers are not
+     * checkpointed, so this is repeated when a chain is resumed.
+     */
+    private void initializeLikelihoodCore() throws TaxonList.MissingTaxonException {
+
+        likelihoodCore.initialize(nodeCount, patternCount, categoryCount, integrateAcrossCategories);
+
+        int extNodeCount = treeModel.getExternalNodeCount();
+        int intNodeCount = treeModel.getInternalNodeCount();
 
-                    tipStatesModel.setStates(patternList, index, i, id);
-                    likelihoodCore.createNodePartials(i);
+        if (tipStatesModel != null) {
+            for (int i = 0; i < extNodeCount; i++) {
+                // Find the id of tip i in the patternList
+                String id = treeModel.getTaxonId(i);
+                int index = patternList.getTaxonIndex(id);
+
+                if (index == -1) {
+                    throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
+                            ", is not found in patternList, " + patternList.getId());
                 }
 
-                addModel(tipStatesModel);
-            } else {
-                for (int i = 0; i < extNodeCount; i++) {
-                    // Find the id of tip i in the patternList
-                    String id = treeModel.getTaxonId(i);
-                    int index = patternList.getTaxonIndex(id);
-
-                    if (index == -1) {
-                        if (!allowMissingTaxa) {
-                            throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
-                                    ", is not found in patternList, " + patternList.getId());
-                        }
-                        if (useAmbiguities) {
-                            setMissingPartials(likelihoodCore, i);
-                        } else {
-                            setMissingStates(likelihoodCore, i);
-                        }
+                tipStatesModel.setStates(patternList, index, i, id);
+                likelihoodCore.createNodePartials(i);
+            }
+        } else {
+            for (int i = 0; i < extNodeCount; i++) {
+                // Find the id of tip i in the patternList
+                String id = treeModel.getTaxonId(i);
+                int index = patternList.getTaxonIndex(id);
+
+                if (index == -1) {
+                    if (!allowMissingTaxa) {
+                        throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
+                                ", is not found in patternList, " + patternList.getId());
+                    }
+                    if (useAmbiguities) {
+                        setMissingPartials(likelihoodCore, i);
+                    } else {
+                        setMissingStates(likelihoodCore, i);
+                    }
+                } else {
+                    if (useAmbiguities) {
+                        setPartials(likelihoodCore, patternList, categoryCount, index, i);
                     } else {
-                        if (useAmbiguities) {
-                            setPartials(likelihoodCore, patternList, categoryCount, index, i);
-                        } else {
-                            setStates(likelihoodCore, patternList, index, i);
-                        }
+                        setStates(likelihoodCore, patternList, index, i);
                     }
                 }
             }
-            for (int i = 0; i < intNodeCount; i++) {
-                likelihoodCore.createNodePartials(extNodeCount + i);
-            }
+        }
+        for (int i = 0; i < intNodeCount; i++) {
+            likelihoodCore.createNodePartials(extNodeCount + i);
+        }
+    }
 
-            if (forceRescaling) {
-                likelihoodCore.setUseScaling(true);
-                logger.info("  Forcing use of partials rescaling.");
-            }
+    // **************************************************************
+    // Resumable IMPLEMENTATION
+    // **************************************************************
 
+    /**
+     * Rebuilds the partials and transition matrices after resuming from a checkpoint.
+     */
+    public void resume() {
+        try {
+            initializeLikelihoodCore();
         } catch (TaxonList.MissingTaxonException mte) {
             throw new RuntimeException(mte.toString());
         }
-
-        addStatistic(new SiteLikelihoodsStatistic());
+        makeDirty();
     }
 
     public final LikelihoodCore getLikelihoodCore() {
@@ -358,6 +388,8 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
         }
 
 
+        branchRateModel.getBranchRates(treeModel, branchRates);
+
         final NodeRef root = treeModel.getRoot();
         traverse(treeModel, root);
 
@@ -463,7 +495,7 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
         // First update the transition probability matrix(ices) for this branch
         if (parent != null && updateNode[nodeNum]) {
 
-            final double branchRate = branchRateModel.getBranchRate(tree, node);
+            final double branchRate = branchRates[nodeNum];
 
             // Get the operational time of the branch
             final double branchTime = branchRate * (tree.getNodeHeight(parent) - tree.getNodeHeight(node));
@@ -530,6 +562,79 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
 
     }
 
+    /**
+     * Gradients are available when rate categories are integrated over and the site
+     * patterns are not ascertained.
+     */
+    @Override
+    public boolean providesBranchLengthGradient() {
+        return integrateAcrossCategories && !(patternList instanceof AscertainedSitePatterns);
+    }
+
+    /**
+     * Calculates the gradient with respect to branch lengths by a pre-order traversal
+     * that reuses the transition matrices and post-order partials held by the core.
+     */
+    protected void calculateBranchLengthGradient(double[] gradient) {
+
+        if (!integrateAcrossCategories) {
+            throw new RuntimeException("Branch length gradients not implemented for site category maps");
+        }
+        if (patternList instanceof AscertainedSitePatterns) {
+            throw new RuntimeException("Branch length gradients not implemented for ascertained site patterns");
+        }
+
+        getLogLikelihood(); // Ensure the post-order partials are up-to-date
+
+        if (rateMatrix == null) {
+            rateMatrix = new double[stateCount * stateCount];
+            categoryRates = new double[categoryCount];
+            edgeDerivatives = new double[patternCount];
+        }
+
+        siteModel.getSubstitutionModel().getInfinitesimalMatrix(rateMatrix);
+        for (int i = 0; i < categoryCount; i++) {
+            categoryRates[i] = siteModel.getRateForCategory(i);
+        }
+
+        branchRateModel.getBranchRates(treeModel, branchRates);
+
+        final NodeRef root = treeModel.getRoot();
+        likelihoodCore.setRootPreOrderPartials(root.getNumber(), frequencyModel.getFrequencies());
+        gradient[root.getNumber()] = 0.0;
+
+        traversePreOrder(treeModel, root, siteModel.getCategoryProportions(), gradient);
+    }
+
+    /**
+     * Traverse the tree calculating pre-order partials and branch length derivatives.
+     */
+    private void traversePreOrder(Tree tree, NodeRef node, double[] proportions, double[] gradient) {
+
+        if (tree.isExternal(node)) {
+            return;
+        }
+
+        final int nodeNum = node.getNumber();
+
+        for (int i = 0; i < 2; i++) {
+            NodeRef child = tree.getChild(node, i);
+            NodeRef sibling = tree.getChild(node, 1 - i);
+            final int childNum = child.getNumber();
+
+            likelihoodCore.calculatePreOrderPartials(nodeNum, sibling.getNumber(), childNum);
+            likelihoodCore.calculateEdgeDerivatives(childNum, rateMatrix, categoryRates, proportions, edgeDerivatives);
+
+            double derivative = 0.0;
+            for (int k = 0; k < patternCount; k++) {
+                derivative += edgeDerivatives[k] * patternWeights[k];
+            }
+            gradient[childNum] = derivative * branchRates[childNum];
+
+            traversePreOrder(tree, child, proportions, gradient);
+        }
+    }
+
     public final double[] getRootPartials() {
         if (rootPartials == null) {
             rootPartials = new double[patternCount * stateCount];
@@ -608,11 +713,20 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
      */
     protected final BranchRateModel branchRateModel;
 
+    /**
+     * the rate of each branch, indexed by node number
+     */
+    private final double[] branchRates;
+
     /**
      * the tip partials model
      */
     private final TipStatesModel tipStatesModel;
 
+    private boolean useAmbiguities;
+
+    private boolean allowMissingTaxa;
+
     private final boolean storePartials;
 
     protected final boolean integrateAcrossCategories;
@@ -644,6 +758,13 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
      */
     protected double[] tipPartials;
 
+    /**
+     * arrays used for branch length gradients
+     */
+    private double[] rateMatrix;
+    private double[] categoryRates;
+    private double[] edgeDerivatives;
+
     /**
      * the LikelihoodCore
      */
@@ -20,7 +20,11 @@
 
 package beast.inference.distribution;
 
+import beast.inference.model.AbstractModel;
+import beast.inference.model.Model;
+import beast.inference.model.Parameter;
 import beast.inference.model.Statistic;
+import beast.inference.model.Variable;
 import beast.math.distributions.Distribution;
 import beast.util.Attribute;
 import beast.xml.AbstractXMLObjectParser;
@@ -33,6 +37,10 @@ import beast.xml.XMLSyntaxRule;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * A class that returns the log likelihood of a set of data (statistics)
  * being distributed according to the given parametric distribution.
@@ -45,6 +53,9 @@ public class DistributionLikelihood extends AbstractDistributionLikelihood {
 
     public static final String DISTRIBUTION_LIKELIHOOD = "distributionLikelihood";
 
+    // number of consecutive elements whose log densities are cached as one batch sum
+    private static final int BLOCK_SIZE = 16;
+
     private int from = -1;
     private int to = Integer.MAX_VALUE;
     private final boolean evaluateEarly;
@@ -62,17 +73,19 @@ public class DistributionLikelihood extends AbstractDistributionLikelihood {
     }
 
     public DistributionLikelihood(Distribution distribution, double offset, boolean evaluateEarly) {
-        super(null);
-        this.distribution = distribution;
-        this.offset = offset;
-        this.evaluateEarly = evaluateEarly;
+        this(distribution, null, offset, evaluateEarly);
     }
 
     public DistributionLikelihood(ParametricDistributionModel distributionModel) {
-        super(distributionModel);
-        this.distribution = distributionModel;
-        this.offset = 0.0;
-        this.evaluateEarly = false;
+        this(distributionModel, distributionModel, 0.0, false);
+    }
+
+    private DistributionLikelihood(Distribution distribution, Model distributionModel, double offset, boolean evaluateEarly) {
+        super(new DataModel(distributionModel));
+        this.dataModel = (DataModel) getModel();
+        this.distribution = distribution;
+        this.offset = offset;
+        this.evaluateEarly = evaluateEarly;
     }
 
     public Distribution getDistribution() {
@@ -82,14 +95,43 @@ public class DistributionLikelihood extends AbstractDistributionLikelihood {
     public void setRange(int from, int to) {
         this.from = from;
         this.to = to;
+        dataModel.makeDirty();
+    }
+
+    @Override
+    public void addData(Attribute<double[]> data) {
+        super.addData(data);
+        dataModel.addData(new DataCache(data));
+    }
+
+    // **************************************************************
+    // ModelListener IMPLEMENTATION
+    // **************************************************************
+
+    /**
+     * Changes are tracked per element by the data model, so events must not dirty everything.
+     */
+    @Override
+    public void modelChangedEvent(Model model, Object object, int index) {
+    }
+
+    @Override
+    public void modelRestored(Model model) {
     }
 
     // **************************************************************
     // Likelihood IMPLEMENTATION
     // **************************************************************
 
+    @Override
+    public void makeDirty() {
+        super.makeDirty();
+        dataModel.makeDirty();
+    }
+
     /**
-     * Calculate the log likelihood of the current state.
+     * Calculate the log likelihood of the current state. Only the blocks holding elements
+     * that changed since the last call are re-evaluated, using the batch logPdf.
      *
      * @return the log likelihood.
      */
@@ -97,34 +139,249 @@ public class DistributionLikelihood extends AbstractDistributionLikelihood {
 
         double logL = 0.0;
 
-        for( Attribute<double[]> data : dataList ) {
+        for (DataCache cache : dataModel.caches) {
+            logL += cache.calculateLogLikelihood();
+        }
+        return logL;
+    }
+
+    @Override
+    public boolean evaluateEarly() {
+        return evaluateEarly;
+    }
+
+    /**
+     * Keeps the data parameters and the distribution model under store/restore, so that the
+     * elements which were silently reverted by a restore can be re-evaluated.
+     */
+    private static class DataModel extends AbstractModel {
 
-            // Using this in the loop is incredibly wasteful, especially in the loop condition to get the length
-            final double[] attributeValue = data.getAttributeValue();
+        DataModel(Model distributionModel) {
+            super(DISTRIBUTION_LIKELIHOOD);
+            this.distributionModel = distributionModel;
+            if (distributionModel != null) {
+                addModel(distributionModel);
+            }
+        }
 
-            for (int j = Math.max(0, from); j < Math.min(attributeValue.length, to); j++) {
+        void addData(DataCache cache) {
+            caches.add(cache);
+            if (cache.parameter != null) {
+                addVariable(cache.parameter);
+            }
+        }
 
-                final double value = attributeValue[j] - offset;
+        void makeDirty() {
+            for (DataCache cache : caches) {
+                cache.makeDirty();
+            }
+            distributionChanged = true;
+        }
 
-                if (offset > 0.0 && value < 0.0) {
-                    // fixes a problem with the offset on exponential distributions not
-                    // actually bounding the distribution. This only performs this check
-                    // if a non-zero offset is actually given otherwise it assumes the
-                    // parameter is either legitimately allowed to go negative or is bounded
-                    // at zero anyway.
-                    return Double.NEGATIVE_INFINITY;
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+            if (model == distributionModel) {
+                makeDirty();
+            }
+            fireModelChanged(object, index);
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            for (DataCache cache : caches) {
+                if (cache.data == variable) {
+                    if (index < 0 || type == Parameter.ChangeType.ADDED || type == Parameter.ChangeType.REMOVED) {
+                        cache.makeDirty();
+                    } else {
+                        cache.elementChanged(index);
+                    }
                 }
+            }
+        }
 
-                logL += distribution.logPdf(value);
+        protected void storeState() {
+            for (DataCache cache : caches) {
+                cache.clearChanged();
             }
+            distributionChanged = false;
+        }
 
+        protected void restoreState() {
+            for (DataCache cache : caches) {
+                if (distributionChanged) {
+                    cache.makeDirty();
+                } else {
+                    cache.restoreChanged();
+                }
+                cache.clearChanged();
+            }
+            distributionChanged = false;
         }
-        return logL;
+
+        protected void acceptState() {
+            storeState();
+        }
+
+        private final Model distributionModel;
+        private final List<DataCache> caches = new ArrayList<DataCache>();
+        private boolean distributionChanged = true;
     }
 
-    @Override
-    public boolean evaluateEarly() {
-        return evaluateEarly;
+    /**
+     * Cached values and per-block log densities for one data attribute.
+     */
+    private class DataCache {
+
+        DataCache(Attribute<double[]> data) {
+            this.data = data;
+            this.parameter = data instanceof Parameter ? (Parameter) data : null;
+        }
+
+        void makeDirty() {
+            allDirty = true;
+            allChanged = true;
+        }
+
+        void elementChanged(int index) {
+            if (allDirty || values == null || index >= values.length) {
+                allDirty = true;
+            } else if (!elementDirty[index]) {
+                elementDirty[index] = true;
+                dirtyElements[dirtyCount++] = index;
+            }
+            if (!allChanged && values != null && index < values.length && !elementChanged[index]) {
+                elementChanged[index] = true;
+                changedElements[changedCount++] = index;
+            }
+        }
+
+        void restoreChanged() {
+            if (allChanged) {
+                allDirty = true;
+            } else {
+                for (int k = 0; k < changedCount; k++) {
+                    elementChanged(changedElements[k]);
+                }
+            }
+        }
+
+        void clearChanged() {
+            if (values != null) {
+                for (int k = 0; k < changedCount; k++) {
+                    elementChanged[changedElements[k]] = false;
+                }
+            }
+            changedCount = 0;
+            allChanged = false;
+        }
+
+        double calculateLogLikelihood() {
+
+            if (parameter == null) {
+                // no change events, so compare against the cached values instead
+                final double[] attributeValue = data.getAttributeValue();
+                if (values == null || values.length != attributeValue.length) {
+                    allocate(attributeValue.length);
+                }
+                for (int i = 0; i < attributeValue.length; i++) {
+                    final double value = attributeValue[i] - offset;
+                    if (allDirty || value != values[i]) {
+                        values[i] = value;
+                        blockDirty[i / BLOCK_SIZE] = true;
+                    }
+                }
+            } else if (allDirty || values == null || values.length != parameter.getDimension()) {
+                final int dim = parameter.getDimension();
+                if (values == null || values.length != dim) {
+                    allocate(dim);
+                }
+                for (int i = 0; i < dim; i++) {
+                    values[i] = parameter.getParameterValue(i) - offset;
+                }
+                allDirty = true;
+            } else {
+                for (int k = 0; k < dirtyCount; k++) {
+                    final int i = dirtyElements[k];
+                    values[i] = parameter.getParameterValue(i) - offset;
+                    blockDirty[i / BLOCK_SIZE] = true;
+                }
+            }
+
+            if (allDirty) {
+                Arrays.fill(blockDirty, true);
+                allDirty = false;
+            }
+            for (int k = 0; k < dirtyCount; k++) {
+                elementDirty[dirtyElements[k]] = false;
+            }
+            dirtyCount = 0;
+
+            final int lower = Math.max(0, from);
+            final int upper = Math.min(values.length, to);
+
+            double logL = 0.0;
+            for (int b = 0; b < blockLogL.length; b++) {
+                if (blockDirty[b]) {
+                    blockLogL[b] = calculateBlock(Math.max(lower, b * BLOCK_SIZE),
+                            Math.min(upper, (b + 1) * BLOCK_SIZE));
+                    blockDirty[b] = false;
+                }
+                logL += blockLogL[b];
+            }
+            return logL;
+        }
+
+        private double calculateBlock(int start, int end) {
+            if (start >= end) {
+                return 0.0;
+            }
+            if (offset > 0.0) {
+                for (int i = start; i < end; i++) {
+                    if (values[i] < 0.0) {
+                        // fixes a problem with the offset on exponential distributions not
+                        // actually bounding the distribution. This only performs this check
+                        // if a non-zero offset is actually given otherwise it assumes the
+                        // parameter is either legitimately allowed to go negative or is bounded
+                        // at zero anyway.
+                        return Double.NEGATIVE_INFINITY;
+                    }
+                }
+            }
+            return distribution.logPdf(values, start, end);
+        }
+
+        private void allocate(int dim) {
+            values = new double[dim];
+            elementDirty = new boolean[dim];
+            dirtyElements = new int[dim];
+            elementChanged = new boolean[dim];
+            changedElements = new int[dim];
+            dirtyCount = 0;
+            changedCount = 0;
+            allChanged = true;
+            final int blockCount = (dim + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            blockLogL = new double[blockCount];
+            blockDirty = new boolean[blockCount];
+            allDirty = true;
+        }
+
+        private final Attribute<double[]> data;
+        private final Parameter parameter;
+
+        // data values less the offset
+        private double[] values;
+        private double[] blockLogL;
+        private boolean[] blockDirty;
+
+        // elements changed since the last evaluation
+        private boolean[] elementDirty;
+        private int[] dirtyElements;
+        private int dirtyCount;
+        private boolean allDirty = true;
+
+        // elements changed since the last store
+        private boolean[] elementChanged;
+        private int[] changedElements;
+        private int changedCount;
+        private boolean allChanged = true;
     }
 
     // **************************************************************
@@ -158,6 +415,7 @@ public class DistributionLikelihood extends AbstractDistributionLikelihood {
 
     protected Distribution distribution;
     private final double offset;
+    private final DataModel dataModel;
 
     public static final XMLObjectParser<DistributionLikelihood> PARSER = new AbstractXMLObjectParser<DistributionLikelihood>() {
 
@@ -79,6 +79,16 @@ public class ExponentialDistributionModel extends AbstractModel implements Param
         return ExponentialDistribution.logPdf(x - offset, 1.0 / getMean());
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        final double lambda = 1.0 / getMean();
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            if (x[i] < offset) return Double.NEGATIVE_INFINITY;
+            sum += x[i] - offset;
+        }
+        return (to - from) * Math.log(lambda) - lambda * sum;
+    }
+
     public double cdf(double x) {
         if (x < offset) return 0.0;
         return ExponentialDistribution.cdf(x - offset, 1.0 / getMean());
@@ -143,14 +153,17 @@ public class ExponentialDistributionModel extends AbstractModel implements Param
         throw new RuntimeException("Not implemented!");
     }
 
-    // **************************************************************
-    // Private methods
-    // **************************************************************
-
-    private double getMean() {
+    /**
+     * @return the mean of the distribution, excluding the offset
+     */
+    public double getMean() {
         return mean.getValue(0);
     }
 
+    public double getOffset() {
+        return offset;
+    }
+
     // **************************************************************
     // Private instance variables
     // **************************************************************
@@ -82,6 +82,10 @@ public class GammaDistributionModel extends AbstractModel implements ParametricD
         return GammaDistribution.logPdf(x, getShape(), getScale());
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return GammaDistribution.logPdf(x, from, to, getShape(), getScale());
+    }
+
     public double cdf(double x) {
         return GammaDistribution.cdf(x, getShape(), getScale());
     }
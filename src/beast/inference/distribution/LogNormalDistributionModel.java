@@ -122,7 +122,10 @@ public class LogNormalDistributionModel extends AbstractModel implements Paramet
     }
 
     /* StDev in this class is actually incorrectly named the S parameter */
-    private double getStDev() {
+    /**
+     * @return the standard deviation (always in log space)
+     */
+    public final double getStDev() {
         return usesStDev ? getS() : Math.sqrt(1.0 / getS());
     }
 
@@ -152,6 +155,10 @@ public class LogNormalDistributionModel extends AbstractModel implements Paramet
         return meanParameter;
     }
 
+    public final double getOffset() {
+        return offset;
+    }
+
      public Parameter getPrecisionParameter() {
         if (!usesStDev)
             return scaleParameter;
@@ -173,6 +180,25 @@ public class LogNormalDistributionModel extends AbstractModel implements Paramet
         return NormalDistribution.logPdf(Math.log(x - offset), getM(), getStDev()) - Math.log(x - offset);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        final double M = getM();
+        final double S = getStDev();
+        final double logA = Math.log(1.0 / (Math.sqrt(2.0 * Math.PI) * S));
+        final double b = 1.0 / (2.0 * S * S);
+
+        double ss = 0.0;
+        double sumLogX = 0.0;
+        for (int i = from; i < to; i++) {
+            final double y = x[i] - offset;
+            if (y <= 0.0) return Double.NEGATIVE_INFINITY;
+            final double logY = Math.log(y);
+            final double d = logY - M;
+            ss += d * d;
+            sumLogX += logY;
+        }
+        return (to - from) * logA - ss * b - sumLogX;
+    }
+
     public double cdf(double x) {
         if (x - offset <= 0.0) return 0.0;
         return NormalDistribution.cdf(Math.log(x - offset), getM(), getStDev());
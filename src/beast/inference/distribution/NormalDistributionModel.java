@@ -107,6 +107,10 @@ public class NormalDistributionModel extends AbstractModel implements Parametric
         return NormalDistribution.logPdf(x, mean(), getStdev());
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return NormalDistribution.logPdf(x, from, to, mean(), getStdev());
+    }
+
     public double cdf(double x) {
         return NormalDistribution.cdf(x, mean(), getStdev());
     }
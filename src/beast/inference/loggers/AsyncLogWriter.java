@@ -0,0 +1,313 @@
+/*
+ * AsyncLogWriter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.loggers;
+
+import java.util.List;
+
+/**
+ * Moves the formatting and writing of a logger's output off the chain thread.
+ * The chain thread captures each record into a preallocated ring of slots, reading
+ * number columns as raw doubles; a daemon thread drains the ring in batches, formats
+ * the values, writes them to the formatters and flushes once per batch. When the
+ * ring is full the chain thread waits for the writer to catch up.
+ *
+ * @author BEAST Developers
+ */
+final class AsyncLogWriter implements Runnable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int LINE = 0;
+    private static final int HEADING = 1;
+    private static final int LABELS = 2;
+    private static final int VALUES = 3;
+
+    private static final class Record {
+        int kind;
+        long state;
+        String text;
+        String[] labels;
+        final double[] numbers;
+        final String[] texts;
+
+        Record(int columnCount) {
+            numbers = new double[columnCount];
+            texts = new String[columnCount];
+        }
+    }
+
+    private final List<LogFormatter> formatters;
+    private final LogColumn[] columns;
+    private final NumberColumn[] numberColumns;
+    private final boolean numeric;
+    private final Record[] ring;
+    private final Thread thread;
+
+    // guarded by ring
+    private long head = 0;
+    private long tail = 0;
+    private boolean closed = false;
+    private RuntimeException failure = null;
+
+    AsyncLogWriter(List<LogFormatter> formatters, List<LogColumn> columns, int capacity, String name) {
+        this.formatters = formatters;
+        this.columns = columns.toArray(new LogColumn[columns.size()]);
+        numberColumns = new NumberColumn[this.columns.length];
+        for (int i = 0; i < this.columns.length; i++) {
+            if (this.columns[i] instanceof NumberColumn) {
+                numberColumns[i] = (NumberColumn) this.columns[i];
+            }
+        }
+        boolean numeric = true;
+        for (NumberColumn column : numberColumns) {
+            if (column == null) numeric = false;
+        }
+        this.numeric = numeric;
+        ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record(this.columns.length);
+        }
+        for (LogFormatter formatter : formatters) {
+            formatter.setAutoFlush(false);
+        }
+
+        thread = new Thread(this, "log-writer" + (name != null ? "-" + name : ""));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void logLine(String line) {
+        Record record = claim();
+        record.kind = LINE;
+        record.text = line;
+        publish();
+    }
+
+    void logHeading(String heading) {
+        Record record = claim();
+        record.kind = HEADING;
+        record.text = heading;
+        publish();
+    }
+
+    void logLabels(String[] labels) {
+        Record record = claim();
+        record.kind = LABELS;
+        record.labels = labels;
+        publish();
+    }
+
+    /**
+     * Captures the current values of all columns for the given state.
+     *
+     * @param performance the trailing performance report, or null if there is none
+     */
+    void logValues(long state, String performance) {
+        Record record = claim();
+        record.kind = VALUES;
+        record.state = state;
+        record.text = performance;
+        for (int i = 0; i < columns.length; i++) {
+            if (numberColumns[i] != null) {
+                record.numbers[i] = numberColumns[i].getDoubleValue();
+            } else {
+                record.texts[i] = columns[i].getFormatted();
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Blocks until everything logged so far has been written and flushed.
+     */
+    void flush() {
+        synchronized (ring) {
+            while (tail != head) {
+                checkFailure();
+                await();
+            }
+            checkFailure();
+            // numeric formatters buffer across batches; the writer thread is idle
+            // while we hold the lock with an empty ring
+            for (LogFormatter formatter : formatters) {
+                if (formatter instanceof NumericLogFormatter) {
+                    formatter.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out everything logged so far and stops the writer thread.
+     */
+    void close() {
+        synchronized (ring) {
+            closed = true;
+            ring.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while closing log", e);
+        }
+        for (LogFormatter formatter : formatters) {
+            formatter.setAutoFlush(true);
+        }
+        checkFailure();
+    }
+
+    private Record claim() {
+        synchronized (ring) {
+            checkFailure();
+            if (closed) {
+                throw new IllegalStateException("Log writer has been closed");
+            }
+            while (head - tail == ring.length) {
+                await();
+                checkFailure();
+            }
+            return ring[(int) (head % ring.length)];
+        }
+    }
+
+    private void publish() {
+        synchronized (ring) {
+            head++;
+            ring.notifyAll();
+        }
+    }
+
+    private void await() {
+        try {
+            ring.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for log writer", e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public void run() {
+        String[] values = new String[columns.length + 1];
+        String[] valuesWithReport = new String[columns.length + 2];
+
+        try {
+            while (true) {
+                final long from;
+                final long to;
+                synchronized (ring) {
+                    while (tail == head && !closed) {
+                        ring.wait();
+                    }
+                    if (tail == head) {
+                        return;
+                    }
+                    from = tail;
+                    to = head;
+                }
+
+                for (long i = from; i < to; i++) {
+                    Record record = ring[(int) (i % ring.length)];
+                    switch (record.kind) {
+                        case LINE:
+                            for (LogFormatter formatter : formatters) {
+                                formatter.logLine(record.text);
+                            }
+                            break;
+                        case HEADING:
+                            for (LogFormatter formatter : formatters) {
+                                formatter.logHeading(record.text);
+                            }
+                            break;
+                        case LABELS:
+                            for (LogFormatter formatter : formatters) {
+                                formatter.logLabels(record.labels);
+                            }
+                            break;
+                        case VALUES:
+                            writeValues(record, record.text == null ? values : valuesWithReport);
+                            break;
+                    }
+                    record.text = null;
+                    record.labels = null;
+                }
+
+                for (LogFormatter formatter : formatters) {
+                    if (!(formatter instanceof NumericLogFormatter)) {
+                        formatter.flush();
+                    }
+                }
+
+                synchronized (ring) {
+                    tail = to;
+                    ring.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(new RuntimeException("Log writer interrupted", e));
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void writeValues(Record record, String[] line) {
+        boolean formatted = false;
+        for (LogFormatter formatter : formatters) {
+            if (numeric && formatter instanceof NumericLogFormatter) {
+                ((NumericLogFormatter) formatter).logValues(record.state, record.numbers);
+            } else {
+                if (!formatted) {
+                    line[0] = Long.toString(record.state);
+                    for (int j = 0; j < columns.length; j++) {
+                        if (numberColumns[j] != null) {
+                            line[j + 1] = numberColumns[j].getFormatted(record.numbers[j]);
+                        } else {
+                            line[j + 1] = record.texts[j];
+                        }
+                    }
+                    if (record.text != null) {
+                        line[columns.length + 1] = record.text;
+                    }
+                    formatted = true;
+                }
+                formatter.logValues(line);
+            }
+        }
+        for (int j = 0; j < columns.length; j++) {
+            record.texts[j] = null;
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        synchronized (ring) {
+            failure = e;
+            closed = true;
+            ring.notifyAll();
+        }
+    }
+}
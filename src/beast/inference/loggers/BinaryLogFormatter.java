@@ -0,0 +1,272 @@
+/*
+ * BinaryLogFormatter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.loggers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a log as a compact binary trace file. The file starts with a header holding
+ * the title and column labels, followed by independently compressed chunks of rows.
+ * Each chunk is column-oriented: the states, then every column in turn, stored as
+ * raw doubles. Within a chunk states are delta encoded and the bits of each value are
+ * XORed with those of the previous row, so values that did not change compress to
+ * nothing. Chunks are self-contained, so a file can be appended to and a truncated
+ * final chunk can be dropped.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ * int MAGIC, int VERSION, string title, int columnCount, columnCount x string label
+ * chunk*: int rowCount, int compressedLength, compressed payload of
+ *         rowCount x long state, then columnCount x rowCount x long value bits
+ * </pre>
+ * where a string is an int byte length followed by UTF-8 bytes.
+ * See beast.inference.trace.BinaryTraceReader for the reader.
+ *
+ * @author BEAST Developers
+ */
+public class BinaryLogFormatter implements NumericLogFormatter {
+
+    public static final int MAGIC = 0x42335452; // "B3TR"
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".blog";
+
+    /**
+     * Target size of an uncompressed chunk.
+     */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private final DataOutputStream out;
+    private final boolean writeHeader;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private StringBuilder title = null;
+    private int columnCount = -1;
+    private int chunkRows;
+    private ByteBuffer chunk;
+    private byte[] compressed;
+    private long[] states;
+    private long[] bits;
+    private int rows = 0;
+
+    /**
+     * @param stream where the log is written, positioned at the start of a new file
+     */
+    public BinaryLogFormatter(OutputStream stream) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        this.writeHeader = true;
+    }
+
+    /**
+     * Appends rows to an existing file, which already has a header, so that values can be
+     * logged straight away without logging the labels again.
+     *
+     * @param stream      where the log is written, positioned at the end of the last whole chunk
+     * @param columnCount the number of columns in the existing header, not including the state
+     */
+    public BinaryLogFormatter(OutputStream stream, int columnCount) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        this.writeHeader = false;
+        allocate(columnCount);
+    }
+
+    public void startLogging(String title) {
+        // the title is written by logHeading
+    }
+
+    public void logHeading(String heading) {
+        if (heading == null) return;
+        if (columnCount >= 0) {
+            throw new IllegalStateException("Headings must come before the labels in a binary log");
+        }
+        if (title == null) {
+            title = new StringBuilder(heading);
+        } else {
+            title.append('\n').append(heading);
+        }
+    }
+
+    public void logLine(String line) {
+        throw new UnsupportedOperationException("Binary logs only hold columns of numbers");
+    }
+
+    /**
+     * Writes the header. The first label is that of the state.
+     */
+    public void logLabels(String[] labels) {
+        if (columnCount >= 0) {
+            throw new IllegalStateException("Labels have already been written");
+        }
+        allocate(labels.length - 1);
+
+        if (writeHeader) {
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, title != null ? title.toString() : "");
+                out.writeInt(columnCount);
+                for (int i = 1; i < labels.length; i++) {
+                    writeString(out, labels[i].trim());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Problem writing binary log header", e);
+            }
+        }
+    }
+
+    /**
+     * Stores formatted values by parsing them; the first value is the state. Values
+     * beyond the labelled columns, such as a performance report, are dropped.
+     */
+    public void logValues(String[] values) {
+        checkLabels();
+        int row = rows;
+        states[row] = Long.parseLong(values[0].trim());
+        for (int i = 0; i < columnCount; i++) {
+            bits[i * chunkRows + row] = Double.doubleToRawLongBits(parseValue(values[i + 1]));
+        }
+        endRow();
+    }
+
+    public void logValues(long state, double[] values) {
+        checkLabels();
+        int row = rows;
+        states[row] = state;
+        for (int i = 0; i < columnCount; i++) {
+            bits[i * chunkRows + row] = Double.doubleToRawLongBits(values[i]);
+        }
+        endRow();
+    }
+
+    /**
+     * Writes the rows buffered so far as a chunk and flushes the stream.
+     */
+    public void flush() {
+        try {
+            writeChunk();
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Problem writing binary log", e);
+        }
+    }
+
+    public void stopLogging() {
+        try {
+            if (columnCount >= 0) {
+                writeChunk();
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Problem writing binary log", e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void allocate(int columnCount) {
+        this.columnCount = columnCount;
+
+        chunkRows = Math.max(16, CHUNK_BYTES / (8 * (columnCount + 1)));
+        chunk = ByteBuffer.allocate(chunkRows * 8 * (columnCount + 1));
+        compressed = new byte[chunk.capacity() + chunk.capacity() / 1000 + 64];
+        states = new long[chunkRows];
+        bits = new long[chunkRows * columnCount];
+    }
+
+    private void checkLabels() {
+        if (columnCount < 0) {
+            throw new IllegalStateException("Labels must be logged before values");
+        }
+    }
+
+    private void endRow() {
+        rows++;
+        if (rows == chunkRows) {
+            try {
+                writeChunk();
+            } catch (IOException e) {
+                throw new RuntimeException("Problem writing binary log", e);
+            }
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (rows == 0) return;
+
+        chunk.clear();
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            chunk.putLong(states[row] - previous);
+            previous = states[row];
+        }
+        for (int i = 0; i < columnCount; i++) {
+            previous = 0;
+            int offset = i * chunkRows;
+            for (int row = 0; row < rows; row++) {
+                long value = bits[offset + row];
+                chunk.putLong(value ^ previous);
+                previous = value;
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(chunk.array(), 0, chunk.position());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        out.writeInt(rows);
+        out.writeInt(length);
+        out.write(compressed, 0, length);
+        rows = 0;
+    }
+
+    private static double parseValue(String value) {
+        value = value.trim();
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            if (value.equals("true")) return 1.0;
+            if (value.equals("false")) return 0.0;
+            return Double.NaN;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -99,7 +99,14 @@ public interface LogColumn {
         }
 
         public final String getFormatted() {
-            StringBuffer buffer = new StringBuffer(getFormattedValue());
+            return pad(getFormattedValue());
+        }
+
+        /**
+         * Pads a formatted value out to the minimum width of this column.
+         */
+        protected final String pad(String value) {
+            StringBuffer buffer = new StringBuffer(value);
 
             if (minimumWidth > 0) {
                 while (buffer.length() < minimumWidth) {
@@ -41,4 +41,14 @@ public interface LogFormatter {
 
     void stopLogging();
 
+    /**
+     * Whether each call writes straight through to the output. Formatters driven in
+     * batches turn this off and call flush once per batch instead.
+     */
+    default void setAutoFlush(boolean autoFlush) {
+    }
+
+    default void flush() {
+    }
+
 }
@@ -36,6 +36,21 @@ public interface Logger extends Serializer.Resumable {
 
 	void log(long state);
 
+	/**
+	 * @param state the next state of the chain
+	 * @return the first state at or after state at which log may write anything; log is
+	 *         not called for the states in between
+	 */
+	default long getNextLogState(long state) {
+		return state;
+	}
+
 	void stopLogging();
 
+	/**
+	 * Blocks until everything logged so far has been written out.
+	 */
+	default void flush() {
+	}
+
 }
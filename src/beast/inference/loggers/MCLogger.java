@@ -21,6 +21,8 @@
 package beast.inference.loggers;
 
 import beast.app.beast.BeastVersion;
+import beast.inference.markovchain.MarkovChainListener;
+import beast.inference.trace.BinaryTraceReader;
 import beast.math.MathUtils;
 import beast.util.FileHelpers;
 import beast.util.Identifiable;
@@ -42,6 +44,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -95,7 +98,28 @@ public class MCLogger implements Logger {
     }
 
     private final boolean logNow(final long state) {
-        return logConditions.stream().allMatch((logUpon) -> logUpon.logNow(state));
+        for (LogUpon logUpon : logConditions) {
+            if (!logUpon.logNow(state)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Every log condition must hold to log, so nothing is logged between multiples of
+     * logEvery, whatever the other conditions are.
+     */
+    public long getNextLogState(long state) {
+        if (logEvery <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long next = MarkovChainListener.nextMultiple(Math.max(state, lastLoggedState + 1), logEvery);
+        if (performanceReport && !performanceReportStarted) {
+            // the performance report times from the first state after its delay
+            next = Math.min(next, Math.max(state, performanceReportDelay));
+        }
+        return next;
     }
 
     /**
@@ -106,7 +130,10 @@ public class MCLogger implements Logger {
      */
     public MCLogger(LogFormatter formatter, int logEvery, boolean performanceReport, int performanceReportDelay) {
 
-        addFormatter(formatter);
+        // subclasses that write their own output pass no formatter
+        if (formatter != null) {
+            addFormatter(formatter);
+        }
         this.logEvery = logEvery;
         this.performanceReport = performanceReport;
         this.performanceReportDelay = performanceReportDelay;
@@ -201,19 +228,60 @@ public class MCLogger implements Logger {
         return columns.get(index).getFormatted();
     }
 
+    /**
+     * Whether formatting and writing happens on a background thread, see AsyncLogWriter.
+     */
+    public final void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    public final boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /**
+     * Marks the files of this logger as binary trace files, for resuming.
+     */
+    public final void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    private boolean writeAsynchronously() {
+        return asynchronous && !formatters.isEmpty();
+    }
+
+    private AsyncLogWriter getWriter() {
+        if (writer == null) {
+            writer = new AsyncLogWriter(formatters, columns, AsyncLogWriter.DEFAULT_CAPACITY, title);
+        }
+        return writer;
+    }
+
     protected void logHeading(String heading) {
+        if (writeAsynchronously()) {
+            getWriter().logHeading(heading);
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logHeading(heading);
         }
     }
 
     protected void logLine(String line) {
+        if (writeAsynchronously()) {
+            getWriter().logLine(line);
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logLine(line);
         }
     }
 
     protected void logLabels(String[] labels) {
+        if (writeAsynchronously()) {
+            getWriter().logLabels(labels);
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logLabels(labels);
         }
@@ -225,6 +293,16 @@ public class MCLogger implements Logger {
         }
     }
 
+    /**
+     * @return true if every column is numeric, so raw values can go to a NumericLogFormatter
+     */
+    final boolean isNumeric() {
+        for (LogColumn column : columns) {
+            if (!(column instanceof NumberColumn)) return false;
+        }
+        return true;
+    }
+
     public void startLogging() {
 
         for (LogFormatter formatter : formatters) {
@@ -270,8 +348,32 @@ public class MCLogger implements Logger {
 
     protected void logState(long state) {
 
+        if (writeAsynchronously()) {
+            getWriter().logValues(state, performanceReport ? getPerformanceReport(state) : null);
+            return;
+        }
+
         final int columnCount = getColumnCount();
 
+        double[] numbers = null;
+        boolean formatted = false;
+        if (isNumeric()) {
+            for (LogFormatter formatter : formatters) {
+                if (formatter instanceof NumericLogFormatter) {
+                    if (numbers == null) {
+                        numbers = new double[columnCount];
+                        for (int i = 0; i < columnCount; i++) {
+                            numbers[i] = ((NumberColumn) getColumn(i)).getDoubleValue();
+                        }
+                    }
+                    ((NumericLogFormatter) formatter).logValues(state, numbers);
+                } else {
+                    formatted = true;
+                }
+            }
+            if (!formatted && numbers != null) return;
+        }
+
         String[] values = new String[columnCount + (performanceReport ? 2 : 1)];
 
         values[0] = Long.toString(state);
@@ -281,32 +383,63 @@ public class MCLogger implements Logger {
         }
 
         if (performanceReport) {
-            if (performanceReportStarted) {
+            values[columnCount + 1] = getPerformanceReport(state);
+        }
 
-                long time = System.currentTimeMillis();
+        if (numbers != null) {
+            // the numeric formatters have already been given this state
+            for (LogFormatter formatter : formatters) {
+                if (!(formatter instanceof NumericLogFormatter)) {
+                    formatter.logValues(values);
+                }
+            }
+        } else {
+            logValues(values);
+        }
 
-                double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+    }
 
-                String hpm = formatter.format(hoursPerMillionStates);
-                if (hpm.equals("0")) {
-                    // test cases can run fast :)
-                    hpm = formatter.format(1000 * hoursPerMillionStates);
-                    values[columnCount + 1] = hpm + " hours/billion states";
-                } else {
-                    values[columnCount + 1] = hpm + " hours/million states";
-                }
+    private String getPerformanceReport(long state) {
+        if (performanceReportStarted) {
 
+            long time = System.currentTimeMillis();
+
+            double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+
+            String hpm = formatter.format(hoursPerMillionStates);
+            if (hpm.equals("0")) {
+                // test cases can run fast :)
+                hpm = formatter.format(1000 * hoursPerMillionStates);
+                return hpm + " hours/billion states";
             } else {
-                values[columnCount + 1] = "-";
+                return hpm + " hours/million states";
             }
-        }
 
-        logValues(values);
+        } else {
+            return "-";
+        }
+    }
 
+    /**
+     * Blocks until everything logged so far has reached the formatters' outputs.
+     */
+    public void flush() {
+        if (writer != null) {
+            writer.flush();
+        } else {
+            for (LogFormatter formatter : formatters) {
+                formatter.flush();
+            }
+        }
     }
 
     public void stopLogging() {
 
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+
         for (LogFormatter formatter : formatters) {
             formatter.stopLogging();
         }
@@ -319,12 +452,7 @@ public class MCLogger implements Logger {
         if (performanceReport) addFormatter(new TabDelimitedFormatter(new PrintWriter(System.out)));
         boolean firstFile = true;
         for (final File file : files) {
-            try {
-                addFormatter(new TabDelimitedFormatter(new PrintWriter(new FileOutputStream(file, true))));
-            } catch (FileNotFoundException ex) {
-                throw new RuntimeException("Problem resuming logger!", ex);
-            }
-            final long state = getLastLoggedState(file);
+            final long state = resumeFile(file);
             if (firstFile) {
                 lastLoggedState = state;
                 firstFile = false;
@@ -336,6 +464,51 @@ public class MCLogger implements Logger {
 
     }
 
+    /**
+     * Reopens a log file for appending after a resume.
+     *
+     * @return the last state logged to the file
+     */
+    protected long resumeFile(final File file) {
+        if (binary) {
+            return resumeBinary(file);
+        }
+        try {
+            addFormatter(new TabDelimitedFormatter(new PrintWriter(new FileOutputStream(file, true))));
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeException("Problem resuming logger!", ex);
+        }
+        return getLastLoggedState(file);
+    }
+
+    /**
+     * Drops any partially written chunk from a binary log and appends to what remains.
+     */
+    private long resumeBinary(final File file) {
+        try {
+            final long state;
+            final long length;
+            final int columnCount;
+            try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+                state = reader.getLastState();
+                length = reader.getValidLength();
+                columnCount = reader.getColumnCount();
+            }
+            if (columnCount != columns.size()) {
+                throw new RuntimeException("Binary log " + file + " has " + columnCount +
+                        " columns but the logger has " + columns.size());
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length);
+            }
+            // the header is already in the file, so the formatter is set up from it
+            addFormatter(new BinaryLogFormatter(new FileOutputStream(file, true), columnCount));
+            return state;
+        } catch (IOException ex) {
+            throw new RuntimeException("Problem resuming logger!", ex);
+        }
+    }
+
     protected long getLastLoggedState(final File file) {
         try {
             final String line = FileHelpers.readLastLine(file);
@@ -355,11 +528,20 @@ public class MCLogger implements Logger {
     }
 
     public void setFormatters(List<LogFormatter> formatters) {
+        if (writer != null) {
+            // the writer is bound to the old formatters, so finish with them first
+            writer.close();
+            writer = null;
+        }
         this.formatters = formatters;
     }
 
     protected transient List<LogFormatter> formatters = new ArrayList<LogFormatter>();
 
+    private boolean asynchronous = false;
+    private boolean binary = false;
+    private transient AsyncLogWriter writer = null;
+
     public void addFile(final File file) {
         files.add(file);
     }
@@ -384,8 +566,10 @@ public class MCLogger implements Logger {
         public static final String TAB = "tab";
         public static final String HTML = "html";
         public static final String PRETTY = "pretty";
+        public static final String BINARY = "binary";
         public static final String LOG_EVERY = "logEvery";
         public static final String ALLOW_OVERWRITE_LOG = "overwrite";
+        public static final String ASYNCHRONOUS = "asynchronous";
 
         public static final String COLUMNS = "columns";
         public static final String COLUMN = "column";
@@ -406,9 +590,24 @@ public class MCLogger implements Logger {
             // You must say how often you want to log
             final int logEvery = xo.getIntegerAttribute(LOG_EVERY);
 
-            final PrintWriter pw = getLogFile(xo, getParserName());
+            final String format = xo.getAttribute(FORMAT, TAB);
+            final boolean binary = format.equals(BINARY);
+            if (binary && !xo.hasAttribute(FILE_NAME)) {
+                throw new XMLParseException("A binary log must be written to a file");
+            }
 
-            final LogFormatter formatter = new TabDelimitedFormatter(pw);
+            final LogFormatter formatter;
+            if (binary) {
+                final File file = XMLParser.getLogFile(xo, FILE_NAME);
+                try {
+                    formatter = new BinaryLogFormatter(new FileOutputStream(file));
+                } catch (FileNotFoundException fnfe) {
+                    throw new XMLParseException("File '" + file.getAbsolutePath() +
+                            "' can not be opened for " + getParserName() + " element.");
+                }
+            } else {
+                formatter = new TabDelimitedFormatter(getLogFile(xo, getParserName()));
+            }
 
             boolean performanceReport = false;
 
@@ -422,6 +621,8 @@ public class MCLogger implements Logger {
 
             if (xo.hasAttribute(FILE_NAME)) {
                 logger.addFile(XMLParser.getFileHandle(xo, FILE_NAME));
+                logger.setAsynchronous(xo.getAttribute(ASYNCHRONOUS, true));
+                logger.setBinary(binary);
             }
 
             String title = null;
@@ -491,6 +692,11 @@ public class MCLogger implements Logger {
         private final XMLSyntaxRule[] rules = {
                 AttributeRule.newIntegerRule(LOG_EVERY),
                 AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+                new StringAttributeRule(FORMAT,
+                        "The format of a file log: tab delimited text (default) or a binary trace file",
+                        new String[]{TAB, BINARY}, true),
+                AttributeRule.newBooleanRule(ASYNCHRONOUS, true,
+                        "Whether a file log is formatted and written on a background thread (default true)"),
                 new StringAttributeRule(FILE_NAME,
                         "The name of the file to send log output to. " +
                                 "If no file name is specified then log is sent to standard output", true),
@@ -96,7 +96,7 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	public int getDecimalPlaces() { return dp; }
 	
 
-    public String formatValue(double value) {
+    public synchronized String formatValue(double value) {
        if (dp < 0 && sf < 0) {
 			// return it at full precision
 			return Double.toString(value);
@@ -136,6 +136,14 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	protected String getFormattedValue() {
 		return formatValue(getDoubleValue());
 	}
+
+	/**
+	 * Formats a value previously read from getDoubleValue exactly as getFormatted
+	 * would have, so that formatting can be done away from the chain thread.
+	 */
+	public final String getFormatted(double value) {
+		return pad(formatValue(value));
+	}
 	
 	private int getNumFractionDigits(double value) {
 		value = Math.abs(value);
@@ -0,0 +1,39 @@
+/*
+ * NumericLogFormatter.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.loggers;
+
+/**
+ * A log formatter that stores numbers rather than text, so that a logger whose
+ * columns are all numeric can hand it raw values and skip formatting them. Such
+ * formatters buffer rows and only guarantee they are written out on flush.
+ *
+ * @author BEAST Developers
+ */
+public interface NumericLogFormatter extends LogFormatter {
+
+    /**
+     * @param state  the state of the chain
+     * @param values one value per column, excluding the state; only valid during the call
+     */
+    void logValues(long state, double[] values);
+
+}
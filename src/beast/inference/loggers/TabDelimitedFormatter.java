@@ -36,6 +36,7 @@ public class TabDelimitedFormatter implements LogFormatter {
     protected final PrintWriter printWriter;
     private final boolean outputLabels;
     private final boolean closeFile;
+    private boolean autoFlush = true;
 
 
     public TabDelimitedFormatter(PrintWriter printWriter) {
@@ -68,12 +69,12 @@ public class TabDelimitedFormatter implements LogFormatter {
                 printWriter.println("# " + line);
             }
         }
-        printWriter.flush();
+        if (autoFlush) printWriter.flush();
     }
 
     public void logLine(String line) {
         printWriter.println(line);
-        printWriter.flush();
+        if (autoFlush) printWriter.flush();
     }
 
     public void logLabels(String[] labels) {
@@ -88,7 +89,7 @@ public class TabDelimitedFormatter implements LogFormatter {
             }
 
             printWriter.println();
-            printWriter.flush();
+            if (autoFlush) printWriter.flush();
         }
     }
 
@@ -104,6 +105,14 @@ public class TabDelimitedFormatter implements LogFormatter {
         }
 
         printWriter.println();
+        if (autoFlush) printWriter.flush();
+    }
+
+    public void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    public void flush() {
         printWriter.flush();
     }
 
@@ -31,6 +31,9 @@ import beast.inference.operators.MCMCOperator;
 import beast.inference.operators.OperatorFailedException;
 import beast.inference.operators.OperatorSchedule;
 import beast.inference.prior.Prior;
+import beast.inference.profiler.OperatorMonitor;
+import beast.inference.profiler.ProfileTimer;
+import beast.inference.profiler.Profiler;
 
 import java.util.ArrayList;
 import java.util.logging.Logger;
@@ -46,7 +49,6 @@ import java.util.logging.Logger;
  */
 public final class MarkovChain {
     private final static boolean DEBUG = false;
-    private final static boolean PROFILE = true;
 
     public static final double EVALUATION_TEST_THRESHOLD = 1e-6;
 
@@ -67,6 +69,11 @@ public final class MarkovChain {
 
     private double evaluationTestThreshold = EVALUATION_TEST_THRESHOLD;
 
+    // profiling timers are created when profiling is first switched on
+    private transient ProfileTimer storeTimer = null;
+    private transient ProfileTimer restoreTimer = null;
+    private transient OperatorMonitor[] operatorMonitors = null;
+
 
     public MarkovChain(Prior prior, Likelihood likelihood,
                        OperatorSchedule schedule, Acceptor acceptor,
@@ -160,12 +167,17 @@ public final class MarkovChain {
         boolean fullEvaluationError = false;
 
         final long totalLength = currentLength + length;
+        long nextReportState = currentLength;
         while (!pleaseStop && (currentLength < totalLength)) {
 
             String diagnosticStart = "";
 
-            // periodically log states
-            fireCurrentModel(currentLength, currentModel);
+            // periodically log states, skipping the listeners until one of them is due
+            final boolean reporting = currentLength >= nextReportState;
+            if (reporting) {
+                fireCurrentModel(currentLength, currentModel);
+                nextReportState = getNextReportState(currentLength + 1);
+            }
 
             if (pleaseStop) {
                 isStopped = true;
@@ -182,14 +194,17 @@ public final class MarkovChain {
                         ((CompoundLikelihood) likelihood).getDiagnosis() : "";
             }
 
-            // assert Profiler.startProfile("Store");
+            final boolean profiling = Profiler.isEnabled();
+            long profileTime = profiling ? System.nanoTime() : 0;
 
             // The current model is stored here in case the proposal fails
             if (currentModel != null) {
                 currentModel.storeModelState();
             }
 
-            // assert Profiler.stopProfile("Store");
+            if (profiling) {
+                profileTime = recordProfile(storeTimer(), profileTime);
+            }
 
             boolean operatorSucceeded = true;
             double hastingsRatio = 1.0;
@@ -199,8 +214,6 @@ public final class MarkovChain {
 
             try {
                 // The new model is proposed
-                // assert Profiler.startProfile("Operate");
-
                 if (DEBUG) {
                     System.out.println("\n&& Operator: " + mcmcOperator.getOperatorName());
                 }
@@ -210,35 +223,32 @@ public final class MarkovChain {
                 } else {
                     hastingsRatio = mcmcOperator.operate();
                 }
-
-                // assert Profiler.stopProfile("Operate");
             } catch (OperatorFailedException e) {
                 operatorSucceeded = false;
             }
 
+            if (profiling) {
+                profileTime = recordProfile(getOperatorMonitor(op, mcmcOperator).getProposalTimer(), profileTime);
+            }
+
             double score = 0.0;
             double deviation = 0.0;
 
             //    System.err.print("" + currentState + ": ");
             if (operatorSucceeded) {
 
-                // The new model is proposed
-                // assert Profiler.startProfile("Evaluate");
-
                 if (DEBUG) {
                     System.out.println("** Evaluate");
                 }
 
-                long elapsedTime = 0;
-                if (PROFILE) {
-                    elapsedTime = System.currentTimeMillis();
-                }
+                final long elapsedTime = System.currentTimeMillis();
 
                 // The new model is evaluated
                 score = evaluate(likelihood, prior);
 
-                if (PROFILE) {
-                    mcmcOperator.addEvaluationTime(System.currentTimeMillis() - elapsedTime);
+                mcmcOperator.addEvaluationTime(System.currentTimeMillis() - elapsedTime);
+                if (profiling) {
+                    profileTime = recordProfile(getOperatorMonitor(op, mcmcOperator).getEvaluationTimer(), profileTime);
                 }
 
                 String diagnosticOperator = "";
@@ -321,10 +331,16 @@ public final class MarkovChain {
 
                 mcmcOperator.reject();
 
-                // assert Profiler.startProfile("Restore");
+                if (profiling) {
+                    profileTime = System.nanoTime();
+                }
 
                 currentModel.restoreModelState();
 
+                if (profiling) {
+                    recordProfile(restoreTimer(), profileTime);
+                }
+
                 if (usingFullEvaluation) {
                     // This is a test that the state is correctly restored. The
                     // restored state is fully evaluated and the likelihood compared with
@@ -351,7 +367,6 @@ public final class MarkovChain {
                     }
                 }
             }
-            // assert Profiler.stopProfile("Restore");
 
 
             if (!disableCoerce && mcmcOperator instanceof CoercableMCMCOperator) {
@@ -376,7 +391,9 @@ public final class MarkovChain {
                 }
             }
 
-            fireEndCurrentIteration(currentLength);
+            if (reporting) {
+                fireEndCurrentIteration(currentLength);
+            }
 
             currentLength += 1;
         }
@@ -386,8 +403,36 @@ public final class MarkovChain {
 
     public void terminateChain() {
         fireFinished(currentLength);
+    }
 
-        // Profiler.report();
+    private static long recordProfile(ProfileTimer timer, long startTime) {
+        final long time = System.nanoTime();
+        timer.record(time - startTime);
+        return time;
+    }
+
+    private ProfileTimer storeTimer() {
+        if (storeTimer == null) {
+            storeTimer = Profiler.getTimer(Profiler.CHAIN, "store");
+        }
+        return storeTimer;
+    }
+
+    private ProfileTimer restoreTimer() {
+        if (restoreTimer == null) {
+            restoreTimer = Profiler.getTimer(Profiler.CHAIN, "restore");
+        }
+        return restoreTimer;
+    }
+
+    private OperatorMonitor getOperatorMonitor(int index, MCMCOperator operator) {
+        if (operatorMonitors == null) {
+            operatorMonitors = new OperatorMonitor[schedule.getOperatorCount()];
+        }
+        if (operatorMonitors[index] == null) {
+            operatorMonitors[index] = Profiler.getOperatorMonitor(operator);
+        }
+        return operatorMonitors[index];
     }
 
     public Prior getPrior() {
@@ -529,6 +574,20 @@ public final class MarkovChain {
         }
     }
 
+    /**
+     * @return the first state at or after state that a listener or delegate needs to see
+     */
+    private long getNextReportState(long state) {
+        long next = Long.MAX_VALUE;
+        for (MarkovChainListener listener : listeners) {
+            next = Math.min(next, listener.getNextReportState(state));
+        }
+        for (MarkovChainDelegate delegate : delegates) {
+            next = Math.min(next, delegate.getNextReportState(state));
+        }
+        return next;
+    }
+
     private void fireFinished(long chainLength) {
 
         for (MarkovChainListener listener : listeners) {
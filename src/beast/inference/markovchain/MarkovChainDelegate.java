@@ -38,4 +38,12 @@ public interface MarkovChainDelegate {
     void currentStateEnd(long state);
 
 	void finished(long chainLength);
+
+    /**
+     * As MarkovChainListener.getNextReportState; currentStateEnd is only called for the
+     * states that currentState was called for.
+     */
+    default long getNextReportState(long state) {
+        return state;
+    }
 }
@@ -38,4 +38,27 @@ public interface MarkovChainListener {
     void currentState(long state, Model currentModel);
 
 	void finished(long chainLength);
+
+    /**
+     * The chain skips calling currentState for states before the one returned here, so
+     * states at which nothing is logged or stored cost nothing.
+     *
+     * @param state the next state of the chain
+     * @return the first state at or after state for which currentState must be called
+     */
+    default long getNextReportState(long state) {
+        return state;
+    }
+
+    /**
+     * @return the first multiple of step at or after state, or Long.MAX_VALUE if there is none
+     */
+    static long nextMultiple(long state, long step) {
+        long remainder = state % step;
+        if (remainder == 0) {
+            return state;
+        }
+        long previous = state - remainder;
+        return previous > Long.MAX_VALUE - step ? Long.MAX_VALUE : previous + step;
+    }
 }
@@ -0,0 +1,238 @@
+/*
+ * ConvergenceMonitor.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.mcmc;
+
+import beast.inference.loggers.Columns;
+import beast.inference.loggers.LogColumn;
+import beast.inference.loggers.Loggable;
+import beast.inference.loggers.NumberColumn;
+import beast.inference.markovchain.MarkovChain;
+import beast.inference.markovchain.MarkovChainDelegate;
+import beast.inference.markovchain.MarkovChainListener;
+import beast.inference.operators.OperatorSchedule;
+import beast.inference.trace.OnlineTraceStatistics;
+import beast.xml.AbstractXMLObjectParser;
+import beast.xml.AttributeRule;
+import beast.xml.ElementRule;
+import beast.xml.XMLObject;
+import beast.xml.XMLObjectParser;
+import beast.xml.XMLParseException;
+import beast.xml.XMLSyntaxRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Monitors the effective sample size of a set of statistics while the chain is running
+ * and optionally stops the chain once every statistic has reached a target ESS.
+ * The ESS of each statistic is also available as a log column.
+ *
+ * @author BEAST Developers
+ */
+public class ConvergenceMonitor implements MarkovChainDelegate, Loggable {
+
+    public ConvergenceMonitor(NumberColumn[] columns, long sampleEvery, double targetESS,
+                              long burnin, boolean stopWhenConverged) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be positive");
+        }
+        this.columns = columns;
+        this.sampleEvery = sampleEvery;
+        this.targetESS = targetESS;
+        this.burnin = burnin;
+        this.stopWhenConverged = stopWhenConverged;
+
+        statistics = new OnlineTraceStatistics[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            statistics[i] = new OnlineTraceStatistics();
+        }
+    }
+
+    public void setup(MCMCOptions options, OperatorSchedule schedule, MarkovChain markovChain) {
+        this.markovChain = markovChain;
+        if (burnin < 0) {
+            burnin = options.getChainLength() / 10;
+        }
+        // samples collected while operators are still being tuned are not representative
+        burnin = Math.max(burnin, options.getCoercionDelay());
+    }
+
+    public void currentState(long state) {
+        if (state < burnin || state % sampleEvery != 0) {
+            return;
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            statistics[i].add(columns[i].getDoubleValue());
+        }
+
+        if (!converged && getMinimumESS() >= targetESS) {
+            converged = true;
+            convergedState = state;
+            Logger.getLogger("beast.inference").info("State " + state + ": all monitored statistics have ESS >= "
+                    + targetESS + (stopWhenConverged ? ", stopping the chain." : "."));
+            if (stopWhenConverged && markovChain != null) {
+                markovChain.pleaseStop();
+            }
+        }
+    }
+
+    public long getNextReportState(long state) {
+        return MarkovChainListener.nextMultiple(Math.max(state, burnin), sampleEvery);
+    }
+
+    public void currentStateEnd(long state) {
+        // nothing to do
+    }
+
+    public void finished(long chainLength) {
+        final StringBuilder sb = new StringBuilder("Convergence summary at state " + chainLength
+                + (converged ? " (target ESS reached at state " + convergedState + ")" : "") + ":");
+        for (int i = 0; i < columns.length; i++) {
+            sb.append("\n  ").append(columns[i].getLabel())
+                    .append(": mean=").append(statistics[i].getMean())
+                    .append(" ESS=").append(Math.round(statistics[i].getESS()));
+        }
+        Logger.getLogger("beast.inference").info(sb.toString());
+    }
+
+    /**
+     * @return the smallest ESS over all monitored statistics
+     */
+    public double getMinimumESS() {
+        double minESS = Double.POSITIVE_INFINITY;
+        for (OnlineTraceStatistics s : statistics) {
+            minESS = Math.min(minESS, s.getESS());
+        }
+        return minESS;
+    }
+
+    public double getESS(int index) {
+        return statistics[index].getESS();
+    }
+
+    public boolean hasConverged() {
+        return converged;
+    }
+
+    // **************************************************************
+    // Loggable IMPLEMENTATION
+    // **************************************************************
+
+    public LogColumn[] getColumns() {
+        final LogColumn[] essColumns = new LogColumn[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            final int index = i;
+            essColumns[i] = new NumberColumn("ESS(" + columns[i].getLabel() + ")") {
+                public double getDoubleValue() {
+                    return Math.round(getESS(index));
+                }
+            };
+        }
+        return essColumns;
+    }
+
+    private final NumberColumn[] columns;
+    private final OnlineTraceStatistics[] statistics;
+    private final long sampleEvery;
+    private final double targetESS;
+    private final boolean stopWhenConverged;
+    private long burnin;
+
+    private MarkovChain markovChain = null;
+    private boolean converged = false;
+    private long convergedState = -1;
+
+    public static final XMLObjectParser<ConvergenceMonitor> PARSER = new AbstractXMLObjectParser<ConvergenceMonitor>() {
+
+        public static final String CONVERGENCE_MONITOR = "convergenceMonitor";
+        public static final String SAMPLE_EVERY = "sampleEvery";
+        public static final String TARGET_ESS = "targetESS";
+        public static final String BURNIN = "burnin";
+        public static final String STOP_WHEN_CONVERGED = "stopWhenConverged";
+
+        public String getParserName() {
+            return CONVERGENCE_MONITOR;
+        }
+
+        public ConvergenceMonitor parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            final long sampleEvery = xo.getAttribute(SAMPLE_EVERY, 1000L);
+            final double targetESS = xo.getAttribute(TARGET_ESS, 200.0);
+            final long burnin = xo.getAttribute(BURNIN, -1L);
+            final boolean stopWhenConverged = xo.getAttribute(STOP_WHEN_CONVERGED, true);
+
+            if (sampleEvery < 1) {
+                throw new XMLParseException("The " + SAMPLE_EVERY + " attribute must be positive");
+            }
+
+            final List<NumberColumn> columns = new ArrayList<NumberColumn>();
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                final Object child = xo.getChild(i);
+                final LogColumn[] childColumns;
+                if (child instanceof Columns) {
+                    childColumns = ((Columns) child).getColumns();
+                } else {
+                    childColumns = ((Loggable) child).getColumns();
+                }
+                for (LogColumn column : childColumns) {
+                    if (column instanceof NumberColumn) {
+                        columns.add((NumberColumn) column);
+                    }
+                }
+            }
+
+            if (columns.isEmpty()) {
+                throw new XMLParseException("No numerical statistics to monitor in " + CONVERGENCE_MONITOR);
+            }
+
+            return new ConvergenceMonitor(columns.toArray(new NumberColumn[columns.size()]),
+                    sampleEvery, targetESS, burnin, stopWhenConverged);
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "Monitors the effective sample size of statistics during the run and stops the chain " +
+                    "once they all reach a target value.";
+        }
+
+        public Class<ConvergenceMonitor> getReturnType() {
+            return ConvergenceMonitor.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                AttributeRule.newLongIntegerRule(SAMPLE_EVERY, true),
+                AttributeRule.newDoubleRule(TARGET_ESS, true),
+                AttributeRule.newLongIntegerRule(BURNIN, true),
+                AttributeRule.newBooleanRule(STOP_WHEN_CONVERGED, true),
+                new ElementRule(Loggable.class, 0, Integer.MAX_VALUE),
+                new ElementRule(Columns.class, 0, Integer.MAX_VALUE)
+        };
+    };
+}
@@ -258,7 +258,8 @@ public class MCMC implements Identifiable, Spawnable {
 
         if (coercionDelay > currentState) {
             // Run the chain for coercionDelay steps with coercion disabled
-            mc.runChain(coercionDelay - currentState, true);
+            // the chain only reports the states that are logged, so take the last state from it
+            currentState = mc.runChain(coercionDelay - currentState, true) - 1;
 
             // reset operator acceptance levels
             for (int i = 0; i < schedule.getOperatorCount(); i++) {
@@ -266,7 +267,10 @@ public class MCMC implements Identifiable, Spawnable {
             }
         }
 
-        mc.runChain(chainLength - currentState, false);
+        // a delegate (e.g. a ConvergenceMonitor) may have stopped the chain early
+        if (!mc.isStopped()) {
+            mc.runChain(chainLength - currentState, false);
+        }
 
         if (!chainTerminated) terminateChain();
     }
@@ -299,8 +303,24 @@ public class MCMC implements Identifiable, Spawnable {
                 }
             }
 
-            handleSerialization(state);
+            handleSerialization(state, false);
+
+        }
 
+        /**
+         * The next state at which a logger is due or the state is stored.
+         */
+        public long getNextReportState(long state) {
+            long next = Long.MAX_VALUE;
+            if (loggers != null) {
+                for (Logger logger : loggers) {
+                    next = Math.min(next, logger.getNextLogState(state));
+                }
+            }
+            if (serializing && options.getStoreEvery() > 0) {
+                next = Math.min(next, MarkovChainListener.nextMultiple(state, options.getStoreEvery()));
+            }
+            return next;
         }
 
         /**
@@ -323,7 +343,9 @@ public class MCMC implements Identifiable, Spawnable {
                 }
             }
 
-            handleSerialization(chainLength);
+            // always checkpoint a chain that was stopped early so it can be resumed
+            handleSerialization(chainLength, mc.isStopped());
+            flushSerialization();
 
             // OperatorAnalysisPrinter class can do the job now
             if (showOperatorAnalysis) {
@@ -344,16 +366,38 @@ public class MCMC implements Identifiable, Spawnable {
             // How should premature finish be flagged?
         }
 
-        private void handleSerialization(long state) {
+        private void flushSerialization() {
+            if (serializing && serializer != null) {
+                try {
+                    serializer.flush();
+                } catch (final Serializer.SerializationException ex) {
+                    java.util.logging.Logger.getLogger("error").warning("Storing of final state failed: " + ex.toString());
+                }
+            }
+        }
+
+        private void handleSerialization(long state, boolean force) {
             if (options.getStoreEvery() < 1) serializing = false;
-            if (serializing && state % options.getStoreEvery() == 0) {
+            if (serializing && (force || state % options.getStoreEvery() == 0)) {
+                // logs must be on disk up to the checkpointed state for resuming to pick up from them
+                if (loggers != null) {
+                    for (Logger logger : loggers) {
+                        logger.flush();
+                    }
+                }
                 try {
                     if (serializer == null) {
                         final File stateFile = FileHelpers.getFile((getId() != null ? getId() : "mcmc") + ".state");
                         serializer = new Serializer<>(stateFile, MCMC.this);
                     }
-                    serializer.serialize();
-                    MathUtils.saveState();
+                    // the generator state is replaced first and the chain state last, both
+                    // tagged with this state number so that a resume can check they match
+                    if (force) {
+                        Serializer.serialize(state, MathUtils.getStateSerializer(), serializer);
+                    } else {
+                        // only the in-memory snapshots are taken on the chain thread
+                        Serializer.serializeAsync(state, MathUtils.getStateSerializer(), serializer);
+                    }
                 } catch (final Serializer.SerializationException ex) {
                     java.util.logging.Logger.getLogger("error").warning("Storing of state disabled due to following error." +
                             " Please note that restarting this analysis will not be possible!");
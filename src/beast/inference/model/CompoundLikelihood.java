@@ -20,6 +20,8 @@
 
 package beast.inference.model;
 
+import beast.inference.profiler.ProfileTimer;
+import beast.inference.profiler.Profiler;
 import beast.util.NumberFormatter;
 import beast.util.Serializer.Resumable;
 import beast.xml.AbstractXMLObjectParser;
@@ -54,7 +56,6 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
 
     public final static boolean UNROLL_COMPOUND = true;
 
-    public final static boolean EVALUATION_TIMERS = true;
     public final long[] evaluationTimes;
     public final int[] evaluationCounts;
 
@@ -85,13 +86,8 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
             pool = null;
         }
 
-        if (EVALUATION_TIMERS) {
-            evaluationTimes = new long[this.likelihoods.size()];
-            evaluationCounts = new int[this.likelihoods.size()];
-        } else {
-            evaluationTimes = null;
-            evaluationCounts = null;
-        }
+        evaluationTimes = new long[this.likelihoods.size()];
+        evaluationCounts = new int[this.likelihoods.size()];
     }
 
     public CompoundLikelihood(Collection<Likelihood> likelihoods) {
@@ -105,13 +101,8 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
             i++;
         }
 
-        if (EVALUATION_TIMERS) {
-            evaluationTimes = new long[this.likelihoods.size()];
-            evaluationCounts = new int[this.likelihoods.size()];
-        } else {
-            evaluationTimes = null;
-            evaluationCounts = null;
-        }
+        evaluationTimes = new long[this.likelihoods.size()];
+        evaluationCounts = new int[this.likelihoods.size()];
     }
 
     protected void addLikelihood(Likelihood likelihood, int index, boolean addToPool) {
@@ -214,28 +205,17 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
         double logLikelihood = 0.0;
         int i = 0;
         for (Likelihood likelihood : likelihoods) {
-            if (EVALUATION_TIMERS) {
-                // this code is only compiled if EVALUATION_TIMERS is true
-                long time = System.nanoTime();
-                double l = likelihood.getLogLikelihood();
-                evaluationTimes[i] += System.nanoTime() - time;
-                evaluationCounts[i] ++;
+            final double l = timedEvaluation(likelihood, i);
 
-                if( l == Double.NEGATIVE_INFINITY )
-                    return Double.NEGATIVE_INFINITY;
+            // if the likelihood is zero then short cut the rest of the likelihoods
+            // This means that expensive likelihoods such as TreeLikelihoods should
+            // be put after cheap ones such as BooleanLikelihoods
+            if( l == Double.NEGATIVE_INFINITY )
+                return Double.NEGATIVE_INFINITY;
 
-                logLikelihood += l;
+            logLikelihood += l;
 
-                i++;
-            } else {
-                final double l = likelihood.getLogLikelihood();
-                // if the likelihood is zero then short cut the rest of the likelihoods
-                // This means that expensive likelihoods such as TreeLikelihoods should
-                // be put after cheap ones such as BooleanLikelihoods
-                if( l == Double.NEGATIVE_INFINITY )
-                    return Double.NEGATIVE_INFINITY;
-                logLikelihood += l;
-            }
+            i++;
         }
 
         return logLikelihood;
@@ -346,6 +326,30 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
     	return evaluationCounts;
     }
 
+    private double timedEvaluation(Likelihood likelihood, int index) {
+        final long time = System.nanoTime();
+        final double logL = likelihood.getLogLikelihood();
+        final long elapsed = System.nanoTime() - time;
+        evaluationTimes[index] += elapsed;
+        evaluationCounts[index] ++;
+
+        if (Profiler.isEnabled()) {
+            getProfileTimer(index, likelihood).record(elapsed);
+        }
+        return logL;
+    }
+
+    private ProfileTimer getProfileTimer(int index, Likelihood likelihood) {
+        if (profileTimers == null) {
+            profileTimers = new ProfileTimer[evaluationTimes.length];
+        }
+        if (profileTimers[index] == null) {
+            profileTimers[index] = Profiler.getTimer(Profiler.LIKELIHOOD,
+                    likelihood.getId() != null ? likelihood.getId() : likelihood.prettyName());
+        }
+        return profileTimers[index];
+    }
+
     public void resetEvaluationTimes() {
     	for (int i = 0; i < evaluationTimes.length; i++) {
     		evaluationTimes[i] = 0;
@@ -386,55 +390,51 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
     }
 
     public String getReport(int indent) {
-        if (EVALUATION_TIMERS) {
-            String message = "\n";
-            boolean first = true;
+        String message = "\n";
+        boolean first = true;
 
-            final NumberFormatter nf = new NumberFormatter(6);
+        final NumberFormatter nf = new NumberFormatter(6);
 
-            int index = 0;
-            for( Likelihood lik : likelihoods ) {
+        int index = 0;
+        for( Likelihood lik : likelihoods ) {
 
-                if( !first ) {
-                    message += ", ";
-                } else {
-                    first = false;
-                }
+            if( !first ) {
+                message += ", ";
+            } else {
+                first = false;
+            }
 
-                if (indent >= 0) {
-                    message += "\n";
-                    for (int i = 0; i < indent; i++) {
-                        message += " ";
-                    }
+            if (indent >= 0) {
+                message += "\n";
+                for (int i = 0; i < indent; i++) {
+                    message += " ";
                 }
-                message += lik.prettyName() + "=";
-
-                if( lik instanceof CompoundLikelihood ) {
-                    final String d = ((CompoundLikelihood) lik).getReport(indent < 0 ? -1 : indent + 2);
-                    if( d != null && d.length() > 0 ) {
-                        message += "(" + d;
-
-                        if (indent >= 0) {
-                            message += "\n";
-                            for (int i = 0; i < indent; i++) {
-                                message += " ";
-                            }
+            }
+            message += lik.prettyName() + "=";
+
+            if( lik instanceof CompoundLikelihood ) {
+                final String d = ((CompoundLikelihood) lik).getReport(indent < 0 ? -1 : indent + 2);
+                if( d != null && d.length() > 0 ) {
+                    message += "(" + d;
+
+                    if (indent >= 0) {
+                        message += "\n";
+                        for (int i = 0; i < indent; i++) {
+                            message += " ";
                         }
-                        message += ")";
                     }
-                } else {
-                    double secs = (double)evaluationTimes[index] / 1.0E9;
-                    message += evaluationCounts[index] + " evaluations in " +
-                            nf.format(secs) + " secs (" +
-                            nf.format(secs / evaluationCounts[index]) + " secs/eval)";
+                    message += ")";
                 }
-                index++;
+            } else {
+                double secs = (double)evaluationTimes[index] / 1.0E9;
+                message += evaluationCounts[index] + " evaluations in " +
+                        nf.format(secs) + " secs (" +
+                        nf.format(secs / evaluationCounts[index]) + " secs/eval)";
             }
-
-            return message;
-        } else {
-            return "No evaluation timer report available";
+            index++;
         }
+
+        return message;
     }
 
 
@@ -471,6 +471,8 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
 
     private transient ExecutorService pool;
 
+    private transient ProfileTimer[] profileTimers = null;
+
     private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
     private final CompoundModel compoundModel = new CompoundModel("compoundModel");
 
@@ -490,14 +492,7 @@ public class CompoundLikelihood implements Likelihood, Reportable, Resumable {
             if (DEBUG_PARALLEL_EVALUATION) {
                 System.err.print("Invoking thread #" + index + " for " + likelihood.getId() + ": ");
             }
-            if (EVALUATION_TIMERS) {
-                long time = System.nanoTime();
-                double logL = likelihood.getLogLikelihood();
-                evaluationTimes[index] += System.nanoTime() - time;
-                evaluationCounts[index] ++;
-                return logL;
-            }
-            return likelihood.getLogLikelihood();
+            return timedEvaluation(likelihood, index);
         }
 
         private final Likelihood likelihood;
@@ -0,0 +1,74 @@
+/*
+ * OperatorMonitor.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.profiler;
+
+import beast.inference.operators.MCMCOperator;
+
+/**
+ * Exposes the acceptance statistics kept by an operator together with its
+ * proposal and evaluation timers.
+ *
+ * @author BEAST Developers
+ */
+public class OperatorMonitor implements OperatorMonitorMXBean {
+
+    OperatorMonitor(MCMCOperator operator, ProfileTimer proposalTimer, ProfileTimer evaluationTimer) {
+        this.operator = operator;
+        this.proposalTimer = proposalTimer;
+        this.evaluationTimer = evaluationTimer;
+    }
+
+    public String getOperatorName() {
+        return operator.getOperatorName();
+    }
+
+    public int getAcceptCount() {
+        return operator.getAcceptCount();
+    }
+
+    public int getRejectCount() {
+        return operator.getRejectCount();
+    }
+
+    public double getAcceptanceProbability() {
+        return operator.getAcceptanceProbability();
+    }
+
+    public double getMeanProposalMicros() {
+        return proposalTimer.getMeanMicros();
+    }
+
+    public double getMeanEvaluationMicros() {
+        return evaluationTimer.getMeanMicros();
+    }
+
+    public ProfileTimer getProposalTimer() {
+        return proposalTimer;
+    }
+
+    public ProfileTimer getEvaluationTimer() {
+        return evaluationTimer;
+    }
+
+    private final MCMCOperator operator;
+    private final ProfileTimer proposalTimer;
+    private final ProfileTimer evaluationTimer;
+}
@@ -0,0 +1,127 @@
+/*
+ * ProfileTimer.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates the count, total time and a log2 latency histogram of a timed event.
+ * Recording is lock-free so that it can be used by likelihoods evaluated in a thread pool.
+ *
+ * @author BEAST Developers
+ */
+public class ProfileTimer implements ProfileTimerMXBean {
+
+    private static final int BUCKET_COUNT = 64;
+
+    ProfileTimer(String category, String name) {
+        this.category = category;
+        this.name = name;
+    }
+
+    /**
+     * Records an event that took the given number of nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        // bucket i holds durations in [2^i, 2^(i+1)) nanoseconds
+        histogram.incrementAndGet(nanos == 0 ? 0 : BUCKET_COUNT - 1 - Long.numberOfLeadingZeros(nanos));
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public double getTotalMillis() {
+        return totalNanos.get() / 1.0E6;
+    }
+
+    public double getMeanMicros() {
+        final long n = count.get();
+        return n > 0 ? totalNanos.get() / (1.0E3 * n) : 0.0;
+    }
+
+    /**
+     * @return an upper bound on the given quantile of the latency, accurate to a factor of two
+     */
+    public double getPercentileMicros(double quantile) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        final long target = (long) Math.ceil(quantile * n);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += histogram.get(i);
+            if (cumulative >= target) {
+                return Math.min((double) (1L << Math.min(i + 1, 62)), (double) maxNanos.get()) / 1.0E3;
+            }
+        }
+        return maxNanos.get() / 1.0E3;
+    }
+
+    public double getMedianMicros() {
+        return getPercentileMicros(0.5);
+    }
+
+    public double getMaxMicros() {
+        return maxNanos.get() / 1.0E3;
+    }
+
+    public void reset() {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+    private final String category;
+    private final String name;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+}
@@ -0,0 +1,215 @@
+/*
+ * Profiler.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.profiler;
+
+import beast.inference.operators.MCMCOperator;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runtime-switchable profiling of likelihood evaluations and operator moves.
+ * Profiling is off unless the system property <code>beast.profile</code> is true or it is
+ * switched on through {@link #setEnabled(boolean)} or the <code>beast:type=Profiler</code> MBean.
+ * When off the instrumented code only pays for a volatile read.
+ *
+ * @author BEAST Developers
+ */
+public final class Profiler {
+
+    public static final String PROFILE_PROPERTY = "beast.profile";
+
+    public static final String LIKELIHOOD = "likelihood";
+    public static final String OPERATOR = "operator";
+    public static final String CHAIN = "chain";
+
+    private static volatile boolean enabled = Boolean.getBoolean(PROFILE_PROPERTY);
+
+    private static final Map<String, ProfileTimer> timers = new ConcurrentHashMap<String, ProfileTimer>();
+
+    private static ScheduledExecutorService writer = null;
+
+    static {
+        register("beast:type=Profiler", new ProfilerMXBean() {
+            public boolean isEnabled() {
+                return Profiler.isEnabled();
+            }
+
+            public void setEnabled(boolean enabled) {
+                Profiler.setEnabled(enabled);
+            }
+
+            public void reset() {
+                Profiler.reset();
+            }
+
+            public String getReport() {
+                final StringWriter sw = new StringWriter();
+                writeProfile(new PrintWriter(sw));
+                return sw.toString();
+            }
+        });
+    }
+
+    private Profiler() {
+        // static access only
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Profiler.enabled = enabled;
+    }
+
+    /**
+     * @return the timer with the given category and name, creating and registering it if necessary
+     */
+    public static ProfileTimer getTimer(String category, String name) {
+        final String key = category + "/" + name;
+        ProfileTimer timer = timers.get(key);
+        if (timer == null) {
+            synchronized (timers) {
+                timer = timers.get(key);
+                if (timer == null) {
+                    timer = new ProfileTimer(category, name);
+                    timers.put(key, timer);
+                    register("beast:type=Timer,category=" + ObjectName.quote(category) +
+                            ",name=" + ObjectName.quote(name), timer);
+                }
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Creates the timers of an operator and exposes its statistics as an MBean.
+     */
+    public static OperatorMonitor getOperatorMonitor(MCMCOperator operator) {
+        final String name = operator.getOperatorName();
+        final OperatorMonitor monitor = new OperatorMonitor(operator,
+                getTimer(OPERATOR, name + ".propose"), getTimer(OPERATOR, name + ".evaluate"));
+        register("beast:type=Operator,name=" + ObjectName.quote(name), monitor);
+        return monitor;
+    }
+
+    public static List<ProfileTimer> getTimers() {
+        return new ArrayList<ProfileTimer>(timers.values());
+    }
+
+    public static void reset() {
+        for (ProfileTimer timer : timers.values()) {
+            timer.reset();
+        }
+    }
+
+    /**
+     * Writes all timers as a tab-delimited table.
+     */
+    public static void writeProfile(PrintWriter out) {
+        out.println("category\tname\tcount\ttotal_ms\tmean_us\tmedian_us\tp90_us\tp99_us\tmax_us");
+        final List<ProfileTimer> sorted = getTimers();
+        sorted.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        for (ProfileTimer timer : sorted) {
+            if (timer.getCount() == 0) {
+                continue;
+            }
+            out.println(timer.getCategory() + "\t" + timer.getName() + "\t" + timer.getCount() + "\t" +
+                    timer.getTotalMillis() + "\t" + timer.getMeanMicros() + "\t" + timer.getMedianMicros() + "\t" +
+                    timer.getPercentileMicros(0.9) + "\t" + timer.getPercentileMicros(0.99) + "\t" +
+                    timer.getMaxMicros());
+        }
+        out.flush();
+    }
+
+    /**
+     * Rewrites the profile to the given file every so many seconds (and once more on exit).
+     * The file is replaced atomically so that it can be read while the run continues.
+     */
+    public static synchronized void startWriting(final File file, long intervalSeconds) {
+        if (writer != null) {
+            writer.shutdownNow();
+        }
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "profile-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Runnable write = () -> writeProfile(file);
+        writer.scheduleAtFixedRate(write, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(write));
+    }
+
+    static void writeProfile(File file) {
+        File temp = null;
+        try {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            temp = File.createTempFile(file.getName(), ".tmp", parent);
+            try (PrintWriter out = new PrintWriter(temp)) {
+                writeProfile(out);
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logger.getLogger("beast.inference").warning("Unable to write profile to " + file + ": " + e.getMessage());
+        } finally {
+            // only still present if writing or moving failed
+            if (temp != null && temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void register(String name, Object mbean) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                // a later chain with the same operator or likelihood names replaces the earlier one
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (Exception e) {
+            // JMX is a convenience; profiling still works without it
+            Logger.getLogger("beast.inference").fine("Unable to register MBean " + name + ": " + e.getMessage());
+        }
+    }
+}
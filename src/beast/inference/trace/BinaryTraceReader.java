@@ -0,0 +1,297 @@
+/*
+ * BinaryTraceReader.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.trace;
+
+import beast.inference.loggers.BinaryLogFormatter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads trace files written by BinaryLogFormatter. Opening a file only reads the
+ * header and the chunk headers; columns are decompressed on demand, and reading a
+ * column inflates each chunk only as far as that column. A truncated final chunk,
+ * as left by an interrupted run, is ignored.
+ *
+ * @author BEAST Developers
+ */
+public class BinaryTraceReader implements AutoCloseable {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String title;
+    private final String[] labels;
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private final long validLength;
+    private final int rowCount;
+
+    private static final class Chunk {
+        final long offset;
+        final int rows;
+        final int length;
+        final int firstRow;
+
+        Chunk(long offset, int rows, int length, int firstRow) {
+            this.offset = offset;
+            this.rows = rows;
+            this.length = length;
+            this.firstRow = firstRow;
+        }
+    }
+
+    public BinaryTraceReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+
+        try {
+            if (this.file.length() < 8 || this.file.readInt() != BinaryLogFormatter.MAGIC) {
+                throw new IOException(file.getName() + " is not a binary trace file");
+            }
+            int version = this.file.readInt();
+            if (version != BinaryLogFormatter.VERSION) {
+                throw new IOException("Unsupported binary trace version " + version + " in " + file.getName());
+            }
+            title = readString(this.file);
+            labels = new String[this.file.readInt()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = readString(this.file);
+            }
+        } catch (EOFException e) {
+            this.file.close();
+            throw new IOException("Truncated header in " + file.getName(), e);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+
+        long size = this.file.length();
+        long position = this.file.getFilePointer();
+        int rows = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (position + 8 <= size) {
+            header.clear();
+            readFully(header, position);
+            int chunkRows = header.getInt(0);
+            int length = header.getInt(4);
+            if (chunkRows <= 0 || length < 0 || position + 8 + length > size) {
+                break;
+            }
+            chunks.add(new Chunk(position + 8, chunkRows, length, rows));
+            rows += chunkRows;
+            position += 8 + length;
+        }
+        validLength = position;
+        rowCount = rows;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the column labels, not including the state
+     */
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public int getColumnIndex(String label) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equals(label)) return i;
+        }
+        return -1;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the length of the file up to the end of the last complete chunk
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    public long[] getStates() throws IOException {
+        long[] states = new long[rowCount];
+        for (Chunk chunk : chunks) {
+            ByteBuffer data = inflate(chunk, 1);
+            long state = 0;
+            for (int row = 0; row < chunk.rows; row++) {
+                state += data.getLong();
+                states[chunk.firstRow + row] = state;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return the last logged state, or -1 if nothing has been logged
+     */
+    public long getLastState() throws IOException {
+        if (chunks.isEmpty()) return -1;
+        Chunk chunk = chunks.get(chunks.size() - 1);
+        ByteBuffer data = inflate(chunk, 1);
+        long state = 0;
+        for (int row = 0; row < chunk.rows; row++) {
+            state += data.getLong();
+        }
+        return state;
+    }
+
+    public double[] readColumn(int column) throws IOException {
+        return readColumns(new int[]{column})[0];
+    }
+
+    /**
+     * Reads several columns, inflating each chunk once.
+     */
+    public double[][] readColumns(int[] columns) throws IOException {
+        int last = -1;
+        for (int column : columns) {
+            if (column < 0 || column >= labels.length) {
+                throw new IllegalArgumentException("No column " + column);
+            }
+            last = Math.max(last, column);
+        }
+
+        double[][] values = new double[columns.length][rowCount];
+        for (Chunk chunk : chunks) {
+            ByteBuffer data = inflate(chunk, last + 2);
+            for (int k = 0; k < columns.length; k++) {
+                int base = (columns[k] + 1) * chunk.rows * 8;
+                long bits = 0;
+                for (int row = 0; row < chunk.rows; row++) {
+                    bits ^= data.getLong(base + row * 8);
+                    values[k][chunk.firstRow + row] = Double.longBitsToDouble(bits);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Receives the rows of a file in order; the values array is reused between rows.
+     */
+    public interface RowHandler {
+        void row(long state, double[] values);
+    }
+
+    /**
+     * Streams all rows through the handler, holding one chunk in memory at a time.
+     */
+    public void readRows(RowHandler handler) throws IOException {
+        double[] values = new double[labels.length];
+        long[] bits = new long[labels.length];
+        for (Chunk chunk : chunks) {
+            ByteBuffer data = inflate(chunk, labels.length + 1);
+            Arrays.fill(bits, 0);
+            long state = 0;
+            int stride = chunk.rows * 8;
+            for (int row = 0; row < chunk.rows; row++) {
+                state += data.getLong(row * 8);
+                for (int i = 0; i < labels.length; i++) {
+                    bits[i] ^= data.getLong((i + 1) * stride + row * 8);
+                    values[i] = Double.longBitsToDouble(bits[i]);
+                }
+                handler.row(state, values);
+            }
+        }
+    }
+
+    /**
+     * @param burnin the number of leading rows to discard
+     * @return online statistics of the column after burnin
+     */
+    public OnlineTraceStatistics getStatistics(int column, int burnin) throws IOException {
+        double[] values = readColumn(column);
+        OnlineTraceStatistics statistics = new OnlineTraceStatistics();
+        for (int i = burnin; i < values.length; i++) {
+            statistics.add(values[i]);
+        }
+        return statistics;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Inflates the leading blocks of a chunk, where the states are the first block
+     * and each column is one more.
+     */
+    private ByteBuffer inflate(Chunk chunk, int blocks) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(chunk.length);
+        readFully(compressed, chunk.offset);
+
+        byte[] data = new byte[blocks * chunk.rows * 8];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, chunk.length);
+            int length = 0;
+            while (length < data.length) {
+                int n = inflater.inflate(data, length, data.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Corrupt chunk at offset " + chunk.offset);
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk at offset " + chunk.offset, e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new EOFException();
+        }
+    }
+
+    private static String readString(RandomAccessFile file) throws IOException {
+        int length = file.readInt();
+        if (length < 0 || length > file.length()) {
+            throw new IOException("Corrupt string in header");
+        }
+        byte[] bytes = new byte[length];
+        file.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
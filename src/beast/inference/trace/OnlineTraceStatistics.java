@@ -0,0 +1,155 @@
+/*
+ * OnlineTraceStatistics.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.trace;
+
+/**
+ * Incrementally maintained statistics of a single trace: running mean and variance
+ * (Welford) and a batch-means estimate of the effective sample size. The batches
+ * double in size whenever the fixed number of batch slots is full, so each value
+ * costs O(1) and the memory used is constant regardless of the trace length.
+ */
+public class OnlineTraceStatistics {
+
+    public static final int DEFAULT_BATCH_COUNT = 64;
+
+    private final int maxBatchCount;
+    private final double[] batchSums;
+
+    private long count = 0;
+    private double mean = 0.0;
+    private double sumOfSquares = 0.0;
+
+    private long batchSize = 1;
+    private int batchCount = 0;
+    private double currentBatchSum = 0.0;
+    private long currentBatchCount = 0;
+
+    public OnlineTraceStatistics() {
+        this(DEFAULT_BATCH_COUNT);
+    }
+
+    /**
+     * @param batchCount the minimum number of batches used for the ESS estimate
+     *                   (twice this many are kept before they are merged)
+     */
+    public OnlineTraceStatistics(int batchCount) {
+        if (batchCount < 2) {
+            throw new IllegalArgumentException("At least two batches are required");
+        }
+        maxBatchCount = 2 * batchCount;
+        batchSums = new double[maxBatchCount];
+    }
+
+    public void add(double value) {
+        count++;
+        final double delta = value - mean;
+        mean += delta / count;
+        sumOfSquares += delta * (value - mean);
+
+        currentBatchSum += value;
+        currentBatchCount++;
+        if (currentBatchCount == batchSize) {
+            batchSums[batchCount] = currentBatchSum;
+            batchCount++;
+            currentBatchSum = 0.0;
+            currentBatchCount = 0;
+
+            if (batchCount == maxBatchCount) {
+                // merge adjacent batches, doubling the batch size
+                for (int i = 0; i < maxBatchCount / 2; i++) {
+                    batchSums[i] = batchSums[2 * i] + batchSums[2 * i + 1];
+                }
+                batchCount = maxBatchCount / 2;
+                batchSize *= 2;
+            }
+        }
+    }
+
+    public void reset() {
+        count = 0;
+        mean = 0.0;
+        sumOfSquares = 0.0;
+        batchSize = 1;
+        batchCount = 0;
+        currentBatchSum = 0.0;
+        currentBatchCount = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return count > 1 ? sumOfSquares / (count - 1) : 0.0;
+    }
+
+    /**
+     * @return the standard error of the mean from the batch means
+     */
+    public double getStdErrorOfMean() {
+        if (batchCount < 2) {
+            return Double.NaN;
+        }
+        return Math.sqrt(getBatchMeansVariance() * batchSize / count);
+    }
+
+    /**
+     * @return the autocorrelation time (in samples), or NaN until the batches have been merged at least once
+     */
+    public double getACT() {
+        final double variance = getVariance();
+        // batches of a single sample carry no information about autocorrelation
+        if (batchSize < 2 || variance <= 0.0) {
+            return Double.NaN;
+        }
+        return Math.max(1.0, batchSize * getBatchMeansVariance() / variance);
+    }
+
+    /**
+     * @return the effective sample size, or 0 if there are not yet enough samples
+     */
+    public double getESS() {
+        final double act = getACT();
+        if (Double.isNaN(act)) {
+            return 0.0;
+        }
+        return count / act;
+    }
+
+    private double getBatchMeansVariance() {
+        double sum = 0.0;
+        for (int i = 0; i < batchCount; i++) {
+            sum += batchSums[i];
+        }
+        final double batchMean = sum / (batchCount * batchSize);
+
+        double ss = 0.0;
+        for (int i = 0; i < batchCount; i++) {
+            final double d = batchSums[i] / batchSize - batchMean;
+            ss += d * d;
+        }
+        return ss / (batchCount - 1);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * StreamingTraceStatistics.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Statistics of a trace that is read once, in order, using bounded memory. The moments,
+ * minimum and maximum are exact. A systematic sample of at most maxSamples values is
+ * kept for the quantiles, HPD and autocorrelation: whenever it is full, every other
+ * value is dropped and the thinning doubles. A batch means estimate of the ESS covers
+ * every value.
+ *
+ * @author BEAST Developers
+ */
+public class StreamingTraceStatistics {
+
+    public static final int DEFAULT_MAX_SAMPLES = 1 << 16;
+
+    private final int maxSamples;
+    private double[] samples = new double[1024];
+    private int size = 0;
+    private int thinning = 1;
+
+    private long count = 0;
+    private double mean = 0.0;
+    private double sumOfSquares = 0.0;
+    private double minimum = Double.POSITIVE_INFINITY;
+    private double maximum = Double.NEGATIVE_INFINITY;
+    private double sumOfLogs = 0.0;
+
+    private final OnlineTraceStatistics batches = new OnlineTraceStatistics();
+
+    public StreamingTraceStatistics() {
+        this(DEFAULT_MAX_SAMPLES);
+    }
+
+    /**
+     * @param maxSamples the largest number of values kept, which must be even
+     */
+    public StreamingTraceStatistics(int maxSamples) {
+        if (maxSamples < 2 || maxSamples % 2 != 0) {
+            throw new IllegalArgumentException("The number of samples kept must be even and at least 2");
+        }
+        this.maxSamples = maxSamples;
+    }
+
+    public void add(double value) {
+        if (count % thinning == 0) {
+            if (size == maxSamples) {
+                for (int i = 0; i < size / 2; i++) {
+                    samples[i] = samples[2 * i];
+                }
+                size /= 2;
+                thinning *= 2;
+            }
+            if (count % thinning == 0) {
+                if (size == samples.length) {
+                    samples = Arrays.copyOf(samples, Math.min(maxSamples, 2 * size));
+                }
+                samples[size++] = value;
+            }
+        }
+
+        count++;
+        final double delta = value - mean;
+        mean += delta / count;
+        sumOfSquares += delta * (value - mean);
+        if (value < minimum) minimum = value;
+        if (value > maximum) maximum = value;
+        sumOfLogs += Math.log(value);
+        batches.add(value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return count > 1 ? sumOfSquares / (count - 1) : 0.0;
+    }
+
+    public double getMinimum() {
+        return minimum;
+    }
+
+    public double getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return the geometric mean, or NaN if any value is not positive
+     */
+    public double getGeometricMean() {
+        return minimum > 0 ? Math.exp(sumOfLogs / count) : Double.NaN;
+    }
+
+    /**
+     * @return the batch means estimate of the effective sample size of all the values
+     */
+    public double getBatchMeansESS() {
+        return batches.getESS();
+    }
+
+    /**
+     * @return the number of values between consecutive kept samples
+     */
+    public int getThinning() {
+        return thinning;
+    }
+
+    /**
+     * @return the kept values, every getThinning()th value in order
+     */
+    public List<Double> getSamples() {
+        return getSamples(thinning);
+    }
+
+    /**
+     * @param thinning a multiple of getThinning()
+     * @return every thinning-th value, from the kept values
+     */
+    public List<Double> getSamples(int thinning) {
+        if (thinning % this.thinning != 0) {
+            throw new IllegalArgumentException("Thinning must be a multiple of " + this.thinning);
+        }
+        int step = thinning / this.thinning;
+        List<Double> values = new ArrayList<Double>(size / step + 1);
+        for (int i = 0; i < size; i += step) {
+            values.add(samples[i]);
+        }
+        return values;
+    }
+
+    /**
+     * @return the combined moments of several traces, as if they were concatenated; the
+     *         result keeps no samples or batches
+     */
+    public static StreamingTraceStatistics combine(List<StreamingTraceStatistics> traces) {
+        StreamingTraceStatistics combined = new StreamingTraceStatistics();
+        for (StreamingTraceStatistics trace : traces) {
+            if (trace.count == 0) continue;
+            long count = combined.count + trace.count;
+            double delta = trace.mean - combined.mean;
+            combined.mean += delta * trace.count / count;
+            combined.sumOfSquares += trace.sumOfSquares + delta * delta * combined.count * trace.count / count;
+            combined.count = count;
+            combined.minimum = Math.min(combined.minimum, trace.minimum);
+            combined.maximum = Math.max(combined.maximum, trace.maximum);
+            combined.sumOfLogs += trace.sumOfLogs;
+        }
+        return combined;
+    }
+}
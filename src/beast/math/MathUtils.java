@@ -84,6 +84,14 @@ public class MathUtils {
 		serializer.serialize();
 	}
 
+	/**
+	 * The serializer for the generator state, so that it can be written as part of a
+	 * chain checkpoint (see Serializer.serializeAsync(long, Serializer...)).
+	 */
+	public static Serializer<MersenneTwisterFast> getStateSerializer() {
+		return serializer;
+	}
+
 	// Chooses one category if a cumulative probability distribution is given
 	public static int randomChoice(double[] cf) {
 
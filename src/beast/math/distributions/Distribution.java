@@ -46,6 +46,23 @@ public interface Distribution {
      */
     public double logPdf(double x);
 
+    /**
+     * the summed natural log of the probability density function over x[from..to).
+     * Implementations should hoist everything that does not depend on x out of the loop.
+     *
+     * @param x    arguments
+     * @param from first index (inclusive)
+     * @param to   last index (exclusive)
+     * @return sum of the log pdf values
+     */
+    public default double logPdf(double[] x, int from, int to) {
+        double logPdf = 0.0;
+        for (int i = from; i < to; i++) {
+            logPdf += logPdf(x[i]);
+        }
+        return logPdf;
+    }
+
     /**
      * cumulative density function of the distribution
      *
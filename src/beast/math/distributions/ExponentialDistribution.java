@@ -56,6 +56,10 @@ public class ExponentialDistribution implements Distribution {
         return logPdf(x, lambda);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return logPdf(x, from, to, lambda);
+    }
+
     public double cdf(double x) {
         return cdf(x, lambda);
     }
@@ -118,6 +122,24 @@ public class ExponentialDistribution implements Distribution {
         return Math.log(lambda) - (lambda * x);
     }
 
+    /**
+     * the summed natural log of the probability density function over x[from..to)
+     *
+     * @param x      arguments
+     * @param from   first index (inclusive)
+     * @param to     last index (exclusive)
+     * @param lambda parameter of exponential distribution
+     * @return sum of the log pdf values
+     */
+    public static double logPdf(double[] x, int from, int to, double lambda) {
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            if (x[i] < 0) return Double.NEGATIVE_INFINITY;
+            sum += x[i];
+        }
+        return (to - from) * Math.log(lambda) - lambda * sum;
+    }
+
     /**
      * cumulative density function of the exponential distribution
      *
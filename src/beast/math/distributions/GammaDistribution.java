@@ -80,6 +80,10 @@ public class GammaDistribution implements Distribution {
         return logPdf(x, shape, scale);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return logPdf(x, from, to, shape, scale);
+    }
+
     public double cdf(double x) {
         return cdf(x, shape, scale);
     }
@@ -191,6 +195,43 @@ public class GammaDistribution implements Distribution {
                 - Math.log(scale);
     }
 
+    /**
+     * the summed natural log of the probability density function over x[from..to)
+     *
+     * @param x     arguments
+     * @param from  first index (inclusive)
+     * @param to    last index (exclusive)
+     * @param shape shape parameter
+     * @param scale scale parameter
+     * @return sum of the log pdf values
+     */
+    public static double logPdf(double[] x, int from, int to, double shape, double scale) {
+        final boolean exponential = (shape == 1.0);
+
+        double sumX = 0.0;
+        double sumLogX = 0.0;
+        for (int i = from; i < to; i++) {
+            final double xi = x[i];
+            if (xi < 0 || (xi == 0 && !exponential))
+                return Double.NEGATIVE_INFINITY;
+            sumX += xi;
+            if (!exponential) {
+                sumLogX += Math.log(xi);
+            }
+        }
+
+        final int n = to - from;
+        final double logScale = Math.log(scale);
+        if (exponential) {
+            return -sumX / scale - n * logScale;
+        }
+        if (shape == 0.0)  // uninformative
+            return -sumLogX;
+
+        return (shape - 1.0) * (sumLogX - n * logScale) - sumX / scale
+                - n * (GammaFunction.lnGamma(shape) + logScale);
+    }
+
     /**
      * cumulative density function of the Gamma distribution
      *
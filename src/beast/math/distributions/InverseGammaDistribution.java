@@ -70,6 +70,10 @@ public class InverseGammaDistribution implements Distribution {
         return logPdf(x, shape, scale, logFactor);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return logPdf(x, from, to, shape, scale, logFactor);
+    }
+
     public double cdf(double x) {
         return cdf(x, shape, scale);
     }
@@ -141,6 +145,30 @@ public class InverseGammaDistribution implements Distribution {
 //        return  factor + shape*Math.log(scale) - (shape + 1)*Math.log(x) - (scale/x) - GammaFunction.lnGamma(shape);
     }
 
+    /**
+     * the summed natural log of the probability density function over x[from..to)
+     *
+     * @param x      arguments
+     * @param from   first index (inclusive)
+     * @param to     last index (exclusive)
+     * @param shape  shape parameter
+     * @param scale  scale parameter
+     * @param factor log normalising factor added to each term
+     * @return sum of the log pdf values
+     */
+    public static double logPdf(double[] x, int from, int to, double shape, double scale, double factor) {
+        double sumInvX = 0.0;
+        double sumLogX = 0.0;
+        for (int i = from; i < to; i++) {
+            if (x[i] <= 0)
+                return Double.NEGATIVE_INFINITY;
+            sumInvX += 1.0 / x[i];
+            sumLogX += Math.log(x[i]);
+        }
+        return (to - from) * (factor + shape * Math.log(scale) - Gamma.logGamma(shape))
+                - scale * sumInvX - (shape + 1) * sumLogX;
+    }
+
     /**
      * cumulative density function of the Gamma distribution
      *
@@ -110,6 +110,14 @@ public class LaplaceDistribution implements Distribution {
         return Math.log(c) - (Math.abs(x - mu) / beta);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        double sumAbs = 0.0;
+        for (int i = from; i < to; i++) {
+            sumAbs += Math.abs(x[i] - mu);
+        }
+        return (to - from) * Math.log(c) - sumAbs / beta;
+    }
+
     public double quantile(double y) {
         double sign = 1;
         if (y < 0.5) sign = -1;
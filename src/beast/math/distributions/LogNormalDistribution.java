@@ -66,6 +66,10 @@ public class LogNormalDistribution implements Distribution {
         return logPdf(x, M, S);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return logPdf(x, from, to, M, S);
+    }
+
     public double cdf(double x) {
         return cdf(x, M, S);
     }
@@ -132,6 +136,32 @@ public class LogNormalDistribution implements Distribution {
         return NormalDistribution.logPdf(Math.log(x), M, S) - Math.log(x);
     }
 
+    /**
+     * the summed natural log of the probability density function over x[from..to)
+     *
+     * @param x    arguments
+     * @param from first index (inclusive)
+     * @param to   last index (exclusive)
+     * @param M    log mean
+     * @param S    log standard deviation
+     * @return sum of the log pdf values
+     */
+    public static double logPdf(double[] x, int from, int to, double M, double S) {
+        final double logA = Math.log(1.0 / (Math.sqrt(2.0 * Math.PI) * S));
+        final double b = 1.0 / (2.0 * S * S);
+
+        double ss = 0.0;
+        double sumLogX = 0.0;
+        for (int i = from; i < to; i++) {
+            if (x[i] < 0) return Double.NEGATIVE_INFINITY;
+            final double logX = Math.log(x[i]);
+            final double d = logX - M;
+            ss += d * d;
+            sumLogX += logX;
+        }
+        return (to - from) * logA - ss * b - sumLogX;
+    }
+
     /**
      * cumulative density function
      *
@@ -67,6 +67,10 @@ public class NormalDistribution implements Distribution/*, RandomGenerator*/ {
         return logPdf(x, m, sd);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return logPdf(x, from, to, m, sd);
+    }
+
     public double cdf(double x) {
         return cdf(x, m, sd);
     }
@@ -131,6 +135,28 @@ public class NormalDistribution implements Distribution/*, RandomGenerator*/ {
         return Math.log(a) + b;
     }
 
+    /**
+     * the summed natural log of the probability density function over x[from..to)
+     *
+     * @param x    arguments
+     * @param from first index (inclusive)
+     * @param to   last index (exclusive)
+     * @param m    mean
+     * @param sd   standard deviation
+     * @return sum of the log pdf values
+     */
+    public static double logPdf(double[] x, int from, int to, double m, double sd) {
+        final double logA = Math.log(1.0 / (Math.sqrt(2.0 * Math.PI) * sd));
+        final double b = 1.0 / (2.0 * sd * sd);
+
+        double ss = 0.0;
+        for (int i = from; i < to; i++) {
+            final double d = x[i] - m;
+            ss += d * d;
+        }
+        return (to - from) * logA - ss * b;
+    }
+
     /**
      * cumulative density function
      *
@@ -51,6 +51,10 @@ public class UniformDistribution implements Distribution {
         return logPdf(x, lower, upper);
     }
 
+    public double logPdf(double[] x, int from, int to) {
+        return logPdf(x, from, to, lower, upper);
+    }
+
     public double cdf(double x) {
         return cdf(x, lower, upper);
     }
@@ -114,6 +118,23 @@ public class UniformDistribution implements Distribution {
 //        return Math.log(pdf(x, lower, upper));
     }
 
+    /**
+     * the summed natural log of the probability density function over x[from..to)
+     *
+     * @param x     arguments
+     * @param from  first index (inclusive)
+     * @param to    last index (exclusive)
+     * @param lower the lower bound of the uniform distribution
+     * @param upper the upper bound of the uniform distribution
+     * @return sum of the log pdf values
+     */
+    public static double logPdf(double[] x, int from, int to, double lower, double upper) {
+        for (int i = from; i < to; i++) {
+            if (x[i] < lower || x[i] > upper) return Double.NEGATIVE_INFINITY;
+        }
+        return -(to - from) * Math.log(upper - lower);
+    }
+
     /**
      * cumulative density function of the uniform distribution
      *
@@ -25,15 +25,27 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.FieldSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Arman Bilge
@@ -46,6 +58,21 @@ public class Serializer<T extends Serializable> {
     final Kryo kryo;
     final Set<Resumable> resumables = new HashSet<>();
 
+    // checkpoints are written in submission order by a single background thread
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // marks a state file that starts with the checkpoint number it was written for
+    private static final long CHECKPOINT_MAGIC = 0x4245415354434B50L;
+
+    private final AtomicReference<Runnable> pending = new AtomicReference<>();
+    private volatile SerializationException writeError = null;
+    private Output snapshotOutput = null;
+    private volatile long checkpoint = -1;
+
     public interface Resumable {
         void resume();
     }
@@ -142,14 +169,143 @@ public class Serializer<T extends Serializable> {
         object = deserialize(objectClass);
     }
 
+    /**
+     * Writes the object synchronously, after any pending asynchronous checkpoint.
+     */
     public void serialize() throws SerializationException {
-        file.renameTo(backup);
-        try (final Output out = new Output(new FileOutputStream(file))) {
-            kryo.writeObject(out, object);
-        } catch (FileNotFoundException e) {
+        serialize(-1, this);
+    }
+
+    /**
+     * Writes several objects synchronously as one checkpoint, after any pending asynchronous
+     * checkpoint. The files are replaced in the order given, so the last one should be the
+     * file whose presence commits the checkpoint.
+     *
+     * @param checkpoint  the number recorded in every file, to be matched on resume
+     * @param serializers the serializers to write, in order
+     */
+    public static void serialize(final long checkpoint, final Serializer<?>... serializers) throws SerializationException {
+        final byte[][] snapshots = snapshot(serializers);
+        serializers[0].flush();
+        for (int i = 0; i < serializers.length; i++) {
+            serializers[i].write(snapshots[i], checkpoint);
+        }
+    }
+
+    /**
+     * Takes an in-memory snapshot of the object on the calling thread and writes it on a
+     * background thread. If an earlier snapshot is still waiting to be written it is
+     * superseded by this one. Errors from a previous background write are rethrown here.
+     */
+    public void serializeAsync() throws SerializationException {
+        serializeAsync(-1, this);
+    }
+
+    /**
+     * As serializeAsync(), but snapshots several objects together and writes them in a single
+     * background job, replacing the files in the order given. A waiting job with the same last
+     * serializer is superseded as a whole, so the files never mix checkpoints from different
+     * states unless the writer is interrupted between two renames, which getCheckpoint()
+     * detects on resume.
+     *
+     * @param checkpoint  the number recorded in every file, to be matched on resume
+     * @param serializers the serializers to write, in order
+     */
+    public static void serializeAsync(final long checkpoint, final Serializer<?>... serializers) throws SerializationException {
+        final byte[][] snapshots = snapshot(serializers);
+        final Serializer<?> lead = serializers[serializers.length - 1];
+        final Runnable job = () -> {
+            for (int i = 0; i < serializers.length; i++) {
+                try {
+                    serializers[i].write(snapshots[i], checkpoint);
+                } catch (SerializationException e) {
+                    serializers[i].writeError = e;
+                    // don't commit the later files over a failed one
+                    return;
+                }
+            }
+        };
+        if (lead.pending.getAndSet(job) == null) {
+            WRITER.execute(() -> {
+                final Runnable waiting = lead.pending.getAndSet(null);
+                if (waiting != null) {
+                    waiting.run();
+                }
+            });
+        }
+    }
+
+    private static byte[][] snapshot(final Serializer<?>... serializers) throws SerializationException {
+        final byte[][] snapshots = new byte[serializers.length][];
+        for (int i = 0; i < serializers.length; i++) {
+            serializers[i].checkWriteError();
+            snapshots[i] = serializers[i].snapshot();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Blocks until all checkpoints submitted so far by any serializer have been written.
+     */
+    public void flush() throws SerializationException {
+        try {
+            WRITER.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SerializationException(e);
+        } catch (ExecutionException e) {
+            throw new SerializationException(e);
+        }
+        checkWriteError();
+    }
+
+    private void checkWriteError() throws SerializationException {
+        final SerializationException e = writeError;
+        if (e != null) {
+            writeError = null;
+            throw e;
+        }
+    }
+
+    private byte[] snapshot() {
+        if (snapshotOutput == null) {
+            snapshotOutput = new Output(1 << 16, -1);
+        }
+        snapshotOutput.clear();
+        kryo.writeObject(snapshotOutput, object);
+        return snapshotOutput.toBytes();
+    }
+
+    /**
+     * Compresses the snapshot into a temporary file, forces it to disk and then atomically
+     * replaces the state file, so that a crash never leaves a partially written state.
+     */
+    private void write(final byte[] snapshot, final long checkpoint) throws SerializationException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (final FileOutputStream fos = new FileOutputStream(temp)) {
+                final GZIPOutputStream gzip = new GZIPOutputStream(fos, 1 << 16) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+                gzip.write(ByteBuffer.allocate(16).putLong(CHECKPOINT_MAGIC).putLong(checkpoint).array());
+                gzip.write(snapshot);
+                gzip.finish();
+                gzip.flush();
+                fos.getChannel().force(true);
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            // any backup left by an older version is now superseded
+            backup.delete();
+            this.checkpoint = checkpoint;
+        } catch (IOException e) {
             throw new SerializationException(e);
         }
-        backup.delete();
     }
 
     private File createBackupFile() throws SerializationException {
@@ -162,16 +318,57 @@ public class Serializer<T extends Serializable> {
 
     private T deserialize(final Class<? extends T> objectClass) throws SerializationException {
         resumables.clear();
+        // a state file written by an older version may only survive as its backup
+        final File source = !file.exists() && backup.exists() ? backup : file;
         final T object;
-        try (final Input in = new Input(new FileInputStream(file))) {
+        try (final InputStream state = openState(source); final Input in = new Input(state)) {
+            checkpoint = readCheckpoint(state);
             object = kryo.readObject(in, objectClass);
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             throw new SerializationException(e);
         }
         for (final Resumable r : resumables) r.resume();
         return object;
     }
 
+    private static InputStream openState(final File source) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(source), 1 << 16);
+        in.mark(2);
+        final boolean compressed = in.read() == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                && in.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+        in.reset();
+        return compressed ? new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16) : in;
+    }
+
+    /**
+     * Reads the checkpoint number if the state starts with one, otherwise leaves the
+     * stream where it was and returns -1.
+     */
+    private static long readCheckpoint(final InputStream in) throws IOException {
+        in.mark(16);
+        final byte[] header = new byte[16];
+        int read = 0;
+        while (read < header.length) {
+            final int n = in.read(header, read, header.length - read);
+            if (n < 0) break;
+            read += n;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (read == header.length && buffer.getLong() == CHECKPOINT_MAGIC) {
+            return buffer.getLong();
+        }
+        in.reset();
+        return -1;
+    }
+
+    /**
+     * @return the checkpoint number of the state last read or written by this serializer,
+     * or -1 if it was not written as part of a numbered checkpoint
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
     public T getObject() {
         return object;
     }
@@ -0,0 +1,126 @@
+/*
+ * LogAnalyserTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.app.tools;
+
+import beast.inference.trace.TraceCorrelation;
+import beast.inference.trace.TraceFactory;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks LogAnalyser against TraceCorrelation and a chain with a known autocorrelation.
+ */
+public class LogAnalyserTest {
+
+    /**
+     * @return an AR(1) chain with coefficient phi, whose autocorrelation time is (1 + phi) / (1 - phi)
+     */
+    private static double[] chain(int length, double phi, long seed) {
+        Random random = new Random(seed);
+        double[] x = new double[length];
+        for (int i = 1; i < length; i++) {
+            x[i] = phi * x[i - 1] + random.nextGaussian();
+        }
+        return x;
+    }
+
+    private static File writeLog(double[] x, int burnin) throws Exception {
+        File file = File.createTempFile("analyser", ".log");
+        file.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.println("# a comment");
+        out.println("state\tx\tconstant");
+        for (int i = 0; i < x.length + burnin; i++) {
+            out.println((i * 10) + "\t" + (i < burnin ? 1000.0 : x[i - burnin]) + "\t1.5");
+        }
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testMatchesTraceCorrelation() throws Exception {
+        double[] x = chain(5000, 0.5, 1);
+        File text = writeLog(x, 100);
+        LogAnalyser analyser = new LogAnalyser(1000);
+        analyser.addLog(text);
+        List<LogAnalyser.Summary> summaries = analyser.analyse();
+        assertEquals(2, summaries.size());
+
+        // the same log in binary
+        File binary = File.createTempFile("analyser", ".blog");
+        binary.deleteOnExit();
+        LogConverter.textToBinary(text, binary);
+        LogAnalyser binaryAnalyser = new LogAnalyser(1000);
+        binaryAnalyser.addLog(binary);
+        LogAnalyser.Summary binarySummary = binaryAnalyser.analyse().get(0);
+        assertEquals(summaries.get(0).mean, binarySummary.mean, 0.0);
+        assertEquals(summaries.get(0).ESS, binarySummary.ESS, 0.0);
+
+        List<Double> values = new ArrayList<Double>();
+        for (double value : x) {
+            values.add(value);
+        }
+        TraceCorrelation<Double> expected = new TraceCorrelation<Double>(values, TraceFactory.TraceType.DOUBLE, 10);
+        LogAnalyser.Summary summary = summaries.get(0);
+        assertEquals("x", summary.label);
+        assertEquals(5000, summary.count);
+        assertEquals(expected.getMean(), summary.mean, 1e-12);
+        assertEquals(expected.getMedian(), summary.median, 0.0);
+        assertEquals(expected.getLowerHPD(), summary.lowerHPD, 0.0);
+        assertEquals(expected.getUpperHPD(), summary.upperHPD, 0.0);
+        assertEquals(expected.getESS(), summary.ESS, 1e-9);
+        assertEquals(expected.getACT(), summary.ACT, 1e-9);
+
+        assertEquals(1.5, summaries.get(1).mean, 0.0);
+        assertEquals(1.5, summaries.get(1).upperHPD, 0.0);
+    }
+
+    @Test
+    public void testCombinedAndThinned() throws Exception {
+        double[] x1 = chain(100000, 0.5, 2);
+        double[] x2 = chain(50000, 0.5, 3);
+        LogAnalyser analyser = new LogAnalyser(0, 8192);
+        analyser.addLog(writeLog(x1, 0));
+        analyser.addLog(writeLog(x2, 0));
+        LogAnalyser.Summary summary = analyser.analyse().get(0);
+
+        double sum = 0.0;
+        for (double value : x1) sum += value;
+        for (double value : x2) sum += value;
+        assertEquals(150000, summary.count);
+        assertEquals(sum / 150000, summary.mean, 1e-12);
+
+        // the ACT is 3 samples, and the stationary variance is 1 / (1 - phi^2)
+        assertEquals(150000 / 3.0, summary.ESS, 150000 / 3.0 * 0.25);
+        assertEquals(Math.sqrt(1 / 0.75), summary.stdev, 0.02);
+        assertEquals(-1.96 * Math.sqrt(1 / 0.75), summary.lowerHPD, 0.1);
+        assertEquals(1.96 * Math.sqrt(1 / 0.75), summary.upperHPD, 0.1);
+    }
+}
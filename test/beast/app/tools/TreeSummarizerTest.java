@@ -0,0 +1,156 @@
+/*
+ * TreeSummarizerTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.app.tools;
+
+import beast.evolution.io.NexusImporter;
+import beast.evolution.tree.FlexibleTree;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Summarizes a small tree log with a known maximum clade credibility tree.
+ */
+public class TreeSummarizerTest {
+
+    private static File writeLog() throws Exception {
+        File file = File.createTempFile("summarizer", ".trees");
+        file.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.println("#NEXUS");
+        out.println("Begin trees;");
+        out.println("\tTranslate 1 A, 2 B, 3 C, 4 D;");
+        // burn-in: a topology that would otherwise win
+        for (int i = 0; i < 20; i++) {
+            out.println("tree STATE_" + i + " = [&R] ((1:1,4:1):1,(2:1,3:1):1);");
+        }
+        // after burn-in: ((A,B),(C,D)) six times, ((A,C),(B,D)) four times
+        for (int i = 0; i < 10; i++) {
+            String tree;
+            if (i < 6) {
+                double x = 1.0 + 0.1 * i;
+                tree = "((1:" + x + ",2:" + x + "):1,(3:1.5,4:1.5):" + (x - 0.5) + ")";
+            } else {
+                tree = "((1:1,3:1):2,(2:1,4:1):2)";
+            }
+            out.println("tree STATE_" + (100 + i) + " = [&R] " + tree + ";");
+        }
+        out.println("End;");
+        out.close();
+        return file;
+    }
+
+    private static File writeIndentedLog(int treeCount) throws Exception {
+        File file = File.createTempFile("summarizer", ".trees");
+        file.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.println("#NEXUS");
+        out.println("Begin trees;");
+        out.println("   Translate 1 A, 2 B, 3 C, 4 D;");
+        // indented like a MrBayes tree log
+        for (int i = 0; i < treeCount; i++) {
+            String tree;
+            if (i % 3 == 0) {
+                tree = "((1:1,3:1):2,(2:1,4:1):2)";
+            } else {
+                double x = 1.0 + 0.01 * i;
+                tree = "((1:" + x + ",2:" + x + "):1,(3:1.5,4:1.5):" + (x - 0.5) + ")";
+            }
+            out.println("   tree gen." + i + " = [&U] " + tree + ";");
+        }
+        out.println("End;");
+        out.close();
+        return file;
+    }
+
+    private static NodeRef getClade(Tree tree, String taxon1, String taxon2) {
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+            NodeRef node = tree.getInternalNode(i);
+            if (tree.getChildCount(node) == 2 && tree.isExternal(tree.getChild(node, 0)) &&
+                    tree.isExternal(tree.getChild(node, 1))) {
+                String id1 = tree.getNodeTaxon(tree.getChild(node, 0)).getId();
+                String id2 = tree.getNodeTaxon(tree.getChild(node, 1)).getId();
+                if ((id1.equals(taxon1) && id2.equals(taxon2)) || (id1.equals(taxon2) && id2.equals(taxon1))) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        File file = writeLog();
+        for (int threads = 1; threads <= 3; threads++) {
+            TreeSummarizer summarizer = new TreeSummarizer(file, 100, threads);
+            FlexibleTree tree = summarizer.summarize();
+            assertEquals(10, summarizer.getTreeCount());
+            assertEquals(5, summarizer.getCladeCount());
+
+            NodeRef ab = getClade(tree, "A", "B");
+            NodeRef cd = getClade(tree, "C", "D");
+            assertEquals(0.6, (Double) tree.getNodeAttribute(ab, TreeSummarizer.POSTERIOR), 1e-12);
+            assertEquals(0.6, (Double) tree.getNodeAttribute(cd, TreeSummarizer.POSTERIOR), 1e-12);
+            assertEquals(1.0, (Double) tree.getNodeAttribute(tree.getRoot(), TreeSummarizer.POSTERIOR), 1e-12);
+
+            // heights of (A,B) are 1.0, 1.1, ..., 1.5
+            assertEquals(1.25, tree.getNodeHeight(ab), 1e-12);
+            assertEquals(1.25, (Double) tree.getNodeAttribute(ab, TreeSummarizer.HEIGHT_MEDIAN), 1e-12);
+            assertArrayEquals(new double[]{1.0, 1.5}, (double[]) tree.getNodeAttribute(ab, TreeSummarizer.HEIGHT_HPD), 1e-12);
+            assertEquals(1.5, tree.getNodeHeight(cd), 1e-12);
+
+            StringWriter text = new StringWriter();
+            summarizer.writeTree(tree, new PrintWriter(text));
+            Tree written = new NexusImporter(new StringReader(text.toString())).importTree(null);
+            assertEquals(4, written.getExternalNodeCount());
+            assertEquals(0.6, ((Number) written.getNodeAttribute(getClade(written, "A", "B"), TreeSummarizer.POSTERIOR)).doubleValue(), 1e-12);
+        }
+    }
+
+    @Test
+    public void testIndentedLogThreads() throws Exception {
+        File file = writeIndentedLog(300);
+        TreeSummarizer single = new TreeSummarizer(file, 0, 1);
+        FlexibleTree expected = single.summarize();
+        assertEquals(300, single.getTreeCount());
+
+        for (int threads = 2; threads <= 4; threads++) {
+            TreeSummarizer summarizer = new TreeSummarizer(file, 0, threads);
+            FlexibleTree tree = summarizer.summarize();
+            assertEquals(single.getTreeCount(), summarizer.getTreeCount());
+            assertEquals(single.getCladeCount(), summarizer.getCladeCount());
+            for (String[] pair : new String[][]{{"A", "B"}, {"C", "D"}}) {
+                assertEquals((Double) expected.getNodeAttribute(getClade(expected, pair[0], pair[1]), TreeSummarizer.POSTERIOR),
+                        (Double) tree.getNodeAttribute(getClade(tree, pair[0], pair[1]), TreeSummarizer.POSTERIOR), 0.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * SitePatternsTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evolution.alignment;
+
+import beast.evolution.datatype.Nucleotides;
+import beast.evolution.sequence.Sequence;
+import beast.evolution.util.Taxon;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the hash-indexed pattern compression against a straightforward
+ * linear search, for an alignment spanning several blocks of sites.
+ */
+public class SitePatternsTest {
+
+    private static final int TAXON_COUNT = 70;
+    private static final int SITE_COUNT = 2500;
+
+    private SimpleAlignment alignment;
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(42);
+        final String states = "ACGT";
+        alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            final StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < SITE_COUNT; j++) {
+                if (j % 7 == 0) {
+                    sb.append('-'); // an all-gap column, which is stripped
+                } else if (j % 3 == 0 || i > 3) {
+                    sb.append('A'); // mostly duplicated columns
+                } else {
+                    sb.append(states.charAt(random.nextInt(4)));
+                }
+            }
+            final Sequence sequence = new Sequence(sb.toString());
+            sequence.setTaxon(new Taxon("taxon" + i));
+            sequence.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(sequence);
+        }
+    }
+
+    @Test
+    public void testSitePatterns() {
+        final List<int[]> expectedPatterns = new ArrayList<int[]>();
+        final List<Double> expectedWeights = new ArrayList<Double>();
+        final int[] expectedIndices = compressLinearly(expectedPatterns, expectedWeights);
+
+        final SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        assertEquals(expectedPatterns.size(), patterns.getPatternCount());
+        for (int i = 0; i < patterns.getPatternCount(); i++) {
+            assertArrayEquals(expectedPatterns.get(i), patterns.getPattern(i));
+            assertEquals(expectedWeights.get(i), patterns.getPatternWeight(i), 0.0);
+        }
+        for (int i = 0; i < SITE_COUNT; i++) {
+            assertEquals("site " + i, expectedIndices[i], patterns.getPatternIndex(i));
+        }
+    }
+
+    @Test
+    public void testPatterns() {
+        final List<int[]> expectedPatterns = new ArrayList<int[]>();
+        final List<Double> expectedWeights = new ArrayList<Double>();
+        compressLinearly(expectedPatterns, expectedWeights);
+
+        final Patterns patterns = new Patterns(alignment);
+
+        assertEquals(expectedPatterns.size(), patterns.getPatternCount());
+        for (int i = 0; i < patterns.getPatternCount(); i++) {
+            assertArrayEquals(expectedPatterns.get(i), patterns.getPattern(i));
+            assertEquals(expectedWeights.get(i), patterns.getPatternWeight(i), 0.0);
+        }
+
+        // removing the only copy of a pattern moves the last pattern into its place
+        final int[] first = patterns.getPattern(0);
+        final int[] last = patterns.getPattern(patterns.getPatternCount() - 1);
+        final int count = patterns.getPatternCount();
+        for (int i = 0; i < expectedWeights.get(0); i++) {
+            patterns.removePattern(first);
+        }
+        assertEquals(count - 1, patterns.getPatternCount());
+        assertArrayEquals(last, patterns.getPattern(0));
+
+        patterns.addPattern(last, 2.0);
+        assertEquals(count - 1, patterns.getPatternCount());
+        assertEquals(expectedWeights.get(count - 1) + 2.0, patterns.getPatternWeight(0), 0.0);
+    }
+
+    private int[] compressLinearly(List<int[]> patterns, List<Double> weights) {
+        final int[] indices = new int[SITE_COUNT];
+        for (int site = 0; site < SITE_COUNT; site++) {
+            final int[] pattern = alignment.getSitePattern(site);
+            if (Nucleotides.INSTANCE.isGapState(pattern[0]) && Patterns.isInvariant(pattern)) {
+                indices[site] = -1;
+                continue;
+            }
+            int index = -1;
+            for (int i = 0; i < patterns.size(); i++) {
+                if (Arrays.equals(patterns.get(i), pattern)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                index = patterns.size();
+                patterns.add(pattern);
+                weights.add(0.0);
+            }
+            weights.set(index, weights.get(index) + 1.0);
+            indices[site] = index;
+        }
+        return indices;
+    }
+}
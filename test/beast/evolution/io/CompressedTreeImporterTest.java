@@ -0,0 +1,104 @@
+/*
+ * CompressedTreeImporterTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.io;
+
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeTrait;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Writes trees through CompressedTreeWriter and reads them back.
+ */
+public class CompressedTreeImporterTest {
+
+    private static final String[] TREES = {
+            "((A:1,B:1):1,(C:1.5,D:1.5):0.5,E:2);",
+            "((D:1.5,C:1.5):0.5,E:2,(B:1,A:1):1);", // the same topology, rotated
+            "(((A:0.5,C:0.5):0.5,B:1):1,D:2,E:2);"
+    };
+
+    private static final TreeTrait.D DOUBLE_HEIGHT = new TreeTrait.D() {
+        public String getTraitName() {
+            return "twice";
+        }
+
+        public Intent getIntent() {
+            return Intent.NODE;
+        }
+
+        public Double getTrait(Tree tree, NodeRef node) {
+            return 2 * tree.getNodeHeight(node);
+        }
+    };
+
+    private static double[] sortedHeights(Tree tree) {
+        double[] heights = new double[tree.getNodeCount()];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = tree.getNodeHeight(tree.getNode(i));
+        }
+        Arrays.sort(heights);
+        return heights;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Tree[] trees = new Tree[TREES.length];
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = new NewickImporter(TREES[i]).importTree(null);
+        }
+        String[] taxonIds = new String[trees[0].getTaxonCount()];
+        for (int i = 0; i < taxonIds.length; i++) {
+            taxonIds[i] = trees[0].getTaxonId(i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedTreeWriter writer = new CompressedTreeWriter(out, taxonIds, new TreeTrait[]{DOUBLE_HEIGHT});
+        for (int i = 0; i < trees.length; i++) {
+            writer.writeTree(i * 1000, trees[i], new String[]{"index", Integer.toString(i)});
+        }
+        assertEquals(2, writer.getTopologyCount());
+        writer.close();
+
+        CompressedTreeImporter importer = new CompressedTreeImporter(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(new String[]{"twice"}, importer.getTraitNames());
+        for (int i = 0; i < trees.length; i++) {
+            Tree tree = importer.importNextTree();
+            assertEquals("STATE_" + (i * 1000), tree.getId());
+            assertEquals(trees[i].uniqueNewick(trees[i].getRoot()), tree.uniqueNewick(tree.getRoot()));
+            assertArrayEquals(sortedHeights(trees[i]), sortedHeights(tree), 0.0);
+            assertEquals(2 * tree.getNodeHeight(tree.getRoot()),
+                    (Double) tree.getNodeAttribute(tree.getRoot(), "twice"), 0.0);
+            assertEquals(Integer.toString(i), tree.getAttribute("index"));
+        }
+        assertFalse(importer.hasTree());
+        assertEquals(out.size(), importer.getValidLength());
+    }
+}
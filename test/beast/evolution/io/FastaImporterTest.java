@@ -0,0 +1,117 @@
+/*
+ * FastaImporterTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.io;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.SimpleAlignment;
+import beast.evolution.datatype.Nucleotides;
+import beast.evolution.sequence.Sequence;
+import beast.xml.XMLParser;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the memory-mapped FASTA reader and the packed sequence storage
+ * agree with the character-based importer.
+ */
+public class FastaImporterTest {
+
+    private static final String FASTA =
+            ">taxon one\n" +
+            "ACGTacgt-N\n" +
+            "RYacgt?A\r\n" +
+            "\n" +
+            ">taxon_two \n" +
+            "AAAAAAAAAA\n" +
+            "CCCCCCGG\n" +
+            ">three\n" +
+            "ACGT--??TTYYRRNNAC";
+
+    @Test
+    public void testMappedImportMatchesReader() throws Exception {
+        File file = File.createTempFile("fasta", ".fasta");
+        file.deleteOnExit();
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(FASTA);
+        }
+
+        Alignment expected = new FastaImporter(new StringReader(FASTA), null).importAlignment();
+        Alignment actual = FastaImporter.importAlignment(file);
+
+        assertEquals(expected.getSequenceCount(), actual.getSequenceCount());
+        assertEquals(expected.getDataType(), actual.getDataType());
+        for (int i = 0; i < expected.getSequenceCount(); i++) {
+            Sequence e = expected.getSequence(i);
+            Sequence a = actual.getSequence(i);
+            assertEquals(e.getTaxon().getId(), a.getTaxon().getId());
+            assertEquals(e.getSequenceString(), a.getSequenceString());
+            for (int j = 0; j < e.getLength(); j++) {
+                assertEquals(e.getDataType().getState(e.getChar(j)), a.getState(j));
+            }
+        }
+    }
+
+    @Test
+    public void testEditsInvalidateStates() {
+        Sequence sequence = new Sequence("acgt");
+        sequence.setDataType(sequence.guessDataType());
+        assertEquals(1, sequence.getState(1));
+
+        sequence.insertSequenceString(1, "TT");
+        assertEquals("ATTCGT", sequence.getSequenceString());
+        assertEquals(3, sequence.getState(1));
+
+        sequence.setState(0, 2);
+        assertEquals('G', sequence.getChar(0));
+        assertEquals(2, sequence.getState(0));
+    }
+
+    @Test
+    public void testAlignmentParserReadsFastaFile() throws Exception {
+        File file = File.createTempFile("fasta", ".fasta");
+        file.deleteOnExit();
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(FASTA);
+        }
+
+        XMLParser parser = new XMLParser("beast", false, true);
+        parser.addXMLObjectParser(SimpleAlignment.PARSER);
+        String xml = "<beast><alignment id=\"fasta\" dataType=\"nucleotide\" fileName=\"" +
+                file.getAbsolutePath() + "\"/></beast>";
+        Alignment alignment = (Alignment) parser.parse(new StringReader(xml), false).getObjectById("fasta");
+
+        Alignment expected = FastaImporter.importAlignment(file);
+        assertEquals(3, alignment.getSequenceCount());
+        assertEquals(Nucleotides.INSTANCE, alignment.getDataType());
+        for (int i = 0; i < expected.getSequenceCount(); i++) {
+            assertEquals(expected.getTaxonId(i), alignment.getTaxonId(i));
+            assertEquals(expected.getSequence(i).getSequenceString(), alignment.getSequence(i).getSequenceString());
+        }
+        assertEquals(expected.getSiteCount(), alignment.getSiteCount());
+    }
+}
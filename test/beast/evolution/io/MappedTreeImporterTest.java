@@ -0,0 +1,155 @@
+/*
+ * MappedTreeImporterTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.io;
+
+import beast.evolution.tree.Tree;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the trees read by MappedTreeImporter with those read by NexusImporter.
+ */
+public class MappedTreeImporterTest {
+
+    private static String treeLog(int treeCount) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("#NEXUS\n\n[R-package test, comment]\n\nBegin taxa;\n\tDimensions ntax=4;\n");
+        builder.append("\tTaxlabels\n\t\tA\n\t\tB\n\t\t'C c'\n\t\tD\n\t\t;\nEnd;\n\n");
+        builder.append("Begin trees;\n\tTranslate\n\t\t1 A,\n\t\t2 B,\n\t\t3 'C c',\n\t\t4 D\n\t\t;\n");
+        for (int i = 0; i < treeCount; i++) {
+            double x = 0.1 * (i + 1);
+            builder.append("tree STATE_").append(i * 1000).append(" [&lnP=-").append(100 + i).append("] = [&R] ");
+            if (i % 2 == 0) {
+                builder.append("((1[&rate=1.5]:").append(x).append(",2:0.25)[&rate=").append(i)
+                        .append(",posterior=0.5]:1.0E-3,(3:0.123456789012345678,4:").append(x * 3).append("):0.5);\n");
+            } else {
+                builder.append("(((1:").append(x).append(",3:").append(x).append(")label:0.5,2:0.75):0.25,4:1);\n");
+            }
+        }
+        builder.append("End;\n");
+        return builder.toString();
+    }
+
+    private static File writeLog(String text) throws Exception {
+        File file = File.createTempFile("mapped", ".trees");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write(text);
+        writer.close();
+        return file;
+    }
+
+    private static List<String> newicks(Tree[] trees) {
+        List<String> newicks = new ArrayList<String>();
+        for (Tree tree : trees) {
+            newicks.add(tree.getId() + " " + tree.getAttribute("lnP") + " " + tree.newick());
+        }
+        return newicks;
+    }
+
+    @Test
+    public void testMatchesNexusImporter() throws Exception {
+        String text = treeLog(10);
+        File file = writeLog(text);
+
+        Tree[] expected = new NexusImporter(new StringReader(text)).importTrees(null);
+        MappedTreeImporter importer = new MappedTreeImporter(file);
+        Tree[] trees = importer.importTrees(null);
+        importer.close();
+
+        assertEquals(10, trees.length);
+        assertEquals(newicks(expected), newicks(trees));
+        for (int i = 0; i < trees.length; i++) {
+            for (int j = 0; j < trees[i].getNodeCount(); j++) {
+                assertEquals(expected[i].getNodeHeight(expected[i].getNode(j)),
+                        trees[i].getNodeHeight(trees[i].getNode(j)), 0.0);
+                assertEquals(expected[i].getNodeAttribute(expected[i].getNode(j), "rate"),
+                        trees[i].getNodeAttribute(trees[i].getNode(j), "rate"));
+            }
+        }
+        // internal node labels are kept
+        assertEquals("label", trees[1].getNodeAttribute(trees[1].getParent(trees[1].getExternalNode(0)), "label"));
+    }
+
+    @Test
+    public void testTopologyOnlyAndSkip() throws Exception {
+        File file = writeLog(treeLog(3));
+        MappedTreeImporter importer = new MappedTreeImporter(file);
+        importer.setTopologyOnly(true);
+        importer.skipTree();
+        Tree tree = importer.importNextTree();
+        assertEquals("STATE_1000", tree.getId());
+        assertNull(tree.getAttribute("lnP"));
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertNull(tree.getNodeAttribute(tree.getNode(i), "label"));
+        }
+        importer.importNextTree();
+        assertFalse(importer.hasTree());
+        importer.close();
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        String text = treeLog(25);
+        File file = writeLog(text);
+        List<String> expected = newicks(new NexusImporter(new StringReader(text)).importTrees(null));
+
+        long[] offsets = MappedTreeImporter.split(file, 4);
+        assertEquals(5, offsets.length);
+        List<String> combined = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            MappedTreeImporter importer = new MappedTreeImporter(file, offsets[i], offsets[i + 1]);
+            combined.addAll(newicks(importer.importTrees(null)));
+            importer.close();
+        }
+        assertEquals(expected, combined);
+    }
+
+    @Test
+    public void testSplitIndented() throws Exception {
+        // MrBayes indents its tree statements, so split falls after the indentation
+        String text = treeLog(100).replace("\ntree ", "\n   tree ");
+        File file = writeLog(text);
+        MappedTreeImporter single = new MappedTreeImporter(file);
+        List<String> expected = newicks(single.importTrees(null));
+        single.close();
+        assertEquals(100, expected.size());
+
+        long[] offsets = MappedTreeImporter.split(file, 8);
+        List<String> combined = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            MappedTreeImporter importer = new MappedTreeImporter(file, offsets[i], offsets[i + 1]);
+            combined.addAll(newicks(importer.importTrees(null)));
+            importer.close();
+        }
+        assertEquals(expected, combined);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * NewickWriterTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.evolution.tree;
+
+import beast.evolution.io.NewickImporter;
+import org.junit.Test;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks NewickWriter output against NumberFormat and hand written newick strings.
+ */
+public class NewickWriterTest {
+
+    private static final TreeTrait.D HEIGHT = new TreeTrait.D() {
+        public String getTraitName() {
+            return "height";
+        }
+
+        public Intent getIntent() {
+            return Intent.NODE;
+        }
+
+        public Double getTrait(Tree tree, NodeRef node) {
+            return tree.getNodeHeight(node);
+        }
+    };
+
+    private static final TreeTrait.I CHILDREN = new TreeTrait.I() {
+        public String getTraitName() {
+            return "children";
+        }
+
+        public Intent getIntent() {
+            return Intent.BRANCH;
+        }
+
+        public Integer getTrait(Tree tree, NodeRef node) {
+            return tree.getChildCount(node);
+        }
+    };
+
+    @Test
+    public void testDecimalPlaces() throws Exception {
+        Random random = new Random(17);
+        for (int dp = 0; dp <= 8; dp++) {
+            NumberFormat format = NumberFormat.getNumberInstance(Locale.ENGLISH);
+            format.setMaximumFractionDigits(dp);
+            for (int i = 0; i < 500; i++) {
+                double length;
+                switch (i % 4) {
+                    case 0: length = random.nextDouble(); break;
+                    case 1: length = Math.exp(20 * random.nextDouble() - 10); break;
+                    case 2: length = (random.nextInt(2000) + 0.5) / 1000; break; // ties
+                    default: length = random.nextInt(100000); break;
+                }
+                Tree tree = new NewickImporter("(A:" + length + ",B:" + length + ");").importTree(null);
+                String expected = format.format(tree.getNodeHeight(tree.getRoot()) -
+                        tree.getNodeHeight(tree.getExternalNode(0)));
+                assertEquals("(A:" + expected + ",B:" + expected + ");", tree.newick(dp));
+            }
+        }
+    }
+
+    @Test
+    public void testTraitsAndNumbers() throws Exception {
+        Tree tree = new NewickImporter("((A:1,'B b':1):1,C:2);").importTree(null);
+        TreeTraitProvider[] providers = { new TreeTraitProvider.Helper(new TreeTrait[] { HEIGHT, CHILDREN }) };
+
+        NewickWriter writer = new NewickWriter(tree, true, Tree.BranchLengthType.LENGTHS_AS_TIME, null, null,
+                providers, null);
+        String expected = "((A[&height=0.0]:[&children=0]1.0,\"B b\"[&height=0.0]:[&children=0]1.0)" +
+                "[&height=1.0]:[&children=2]1.0,C[&height=0.0]:[&children=0]2.0)[&height=2.0];";
+        assertEquals(expected, writer.toNewick());
+        // a second sample from the same writer
+        assertEquals(expected, writer.toNewick());
+
+        Map<String, Integer> idMap = new HashMap<String, Integer>();
+        idMap.put("A", 3);
+        idMap.put("B b", 2);
+        idMap.put("C", 1);
+        writer = new NewickWriter(tree, false, Tree.BranchLengthType.NO_BRANCH_LENGTHS, null, null, null, idMap);
+        assertEquals("((3,2),1);", writer.toNewick());
+    }
+}
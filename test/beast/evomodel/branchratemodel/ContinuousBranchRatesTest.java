@@ -0,0 +1,127 @@
+/*
+ * ContinuousBranchRatesTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.branchratemodel;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.distribution.ExponentialDistributionModel;
+import beast.inference.distribution.GammaDistributionModel;
+import beast.inference.distribution.LogNormalDistributionModel;
+import beast.inference.distribution.NormalDistributionModel;
+import beast.inference.distribution.ParametricDistributionModel;
+import beast.inference.model.Parameter;
+import beast.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the continuous quantile clock against the distribution's own quantile function over random
+ * quantile and distribution moves with store, accept and restore.
+ *
+ * @author BEAST Developers
+ */
+public class ContinuousBranchRatesTest {
+
+    private TreeModel treeModel;
+    private Parameter quantiles;
+
+    @Before
+    public void setUp() throws Exception {
+        MathUtils.setSeed(42);
+        treeModel = new TreeModel("treeModel", new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);").importTree(null));
+        quantiles = new Parameter.Default(1);
+    }
+
+    private void assertRates(ContinuousBranchRates branchRates, ParametricDistributionModel distribution) {
+        final double[] rates = new double[treeModel.getNodeCount()];
+        branchRates.getBranchRates(treeModel, rates);
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            final NodeRef node = treeModel.getNode(i);
+            if (node != treeModel.getRoot()) {
+                final double expected = distribution.quantile(branchRates.rateQuantiles.getNodeValue(treeModel, node));
+                // the gamma inverse CDF is found by a root solver with an accuracy of about 1e-9
+                assertEquals(expected, rates[i], 1e-8 * Math.max(expected, 1.0));
+                assertEquals(rates[i], branchRates.getBranchRate(treeModel, node), 0.0);
+            }
+        }
+    }
+
+    private void runMoves(ParametricDistributionModel distribution, Parameter... distributionParameters) {
+        final ContinuousBranchRates branchRates = new ContinuousBranchRates(treeModel, quantiles, distribution);
+        assertRates(branchRates, distribution);
+
+        for (int step = 0; step < 300; step++) {
+            branchRates.storeModelState();
+
+            final int moves = 1 + MathUtils.nextInt(3);
+            for (int k = 0; k < moves; k++) {
+                if (MathUtils.nextDouble() < 0.3) {
+                    final Parameter parameter = distributionParameters[MathUtils.nextInt(distributionParameters.length)];
+                    parameter.setParameterValue(0, parameter.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+                } else {
+                    quantiles.setParameterValue(MathUtils.nextInt(quantiles.getDimension()), MathUtils.nextDouble());
+                }
+                if (MathUtils.nextBoolean()) {
+                    assertRates(branchRates, distribution);
+                }
+            }
+            assertRates(branchRates, distribution);
+
+            if (MathUtils.nextBoolean()) {
+                branchRates.acceptModelState();
+            } else {
+                branchRates.restoreModelState();
+            }
+            assertRates(branchRates, distribution);
+        }
+    }
+
+    @Test
+    public void testLogNormal() {
+        final Parameter mean = new Parameter.Default(1.0);
+        final Parameter stdev = new Parameter.Default(0.5);
+        runMoves(new LogNormalDistributionModel(mean, stdev, 0.0, true, false), mean, stdev);
+    }
+
+    @Test
+    public void testExponential() {
+        final Parameter mean = new Parameter.Default(0.1);
+        runMoves(new ExponentialDistributionModel(mean, 0.5), mean);
+    }
+
+    @Test
+    public void testGamma() {
+        final Parameter shape = new Parameter.Default(2.0);
+        final Parameter scale = new Parameter.Default(0.5);
+        runMoves(new GammaDistributionModel(shape, scale), shape, scale);
+    }
+
+    @Test
+    public void testOtherDistribution() {
+        final Parameter mean = new Parameter.Default(1.0);
+        final Parameter stdev = new Parameter.Default(0.1);
+        runMoves(new NormalDistributionModel(mean, stdev), mean, stdev);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * DiscretizedBranchRatesTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.branchratemodel;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.distribution.LogNormalDistributionModel;
+import beast.inference.model.Parameter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the bulk branch rates of the discretized relaxed clock against the per-branch rates,
+ * the category quantiles, and across store/restore and concurrent readers.
+ *
+ * @author BEAST Developers
+ */
+public class DiscretizedBranchRatesTest {
+
+    private TreeModel treeModel;
+    private Parameter mean;
+    private Parameter stdev;
+    private LogNormalDistributionModel distribution;
+    private DiscretizedBranchRates branchRates;
+
+    @Before
+    public void setUp() throws Exception {
+        treeModel = new TreeModel("treeModel", new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);").importTree(null));
+        mean = new Parameter.Default(1.0);
+        stdev = new Parameter.Default(0.5);
+        distribution = new LogNormalDistributionModel(mean, stdev, 0.0, true, false);
+        branchRates = new DiscretizedBranchRates(treeModel, new Parameter.Default(1), distribution, 2);
+    }
+
+    private double[] bulkRates(BranchRateModel model) {
+        final double[] rates = new double[treeModel.getNodeCount()];
+        model.getBranchRates(treeModel, rates);
+        return rates;
+    }
+
+    private void assertRatesEqual(double[] expected, double[] actual) {
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            if (treeModel.getNode(i) != treeModel.getRoot()) {
+                assertEquals(expected[i], actual[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testBulkRatesMatchQuantiles() {
+        final double[] rates = bulkRates(branchRates);
+        final int categoryCount = (treeModel.getNodeCount() - 1) * 2;
+
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            final NodeRef node = treeModel.getNode(i);
+            if (node != treeModel.getRoot()) {
+                final int category = (int) Math.round(branchRates.rateCategories.getNodeValue(treeModel, node));
+                assertEquals(distribution.quantile((category + 0.5) / categoryCount), rates[i], 1e-12);
+                assertEquals(rates[i], branchRates.getBranchRate(treeModel, node), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testRatesFollowDistribution() {
+        final double[] original = bulkRates(branchRates);
+
+        mean.setParameterValue(0, 2.0);
+        final double[] doubled = bulkRates(branchRates);
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            if (treeModel.getNode(i) != treeModel.getRoot()) {
+                assertEquals(2.0 * original[i], doubled[i], 1e-12);
+            }
+        }
+
+        mean.setParameterValue(0, 1.0);
+        assertRatesEqual(original, bulkRates(branchRates));
+
+        branchRates.storeModelState();
+        distribution.storeModelState();
+        stdev.storeParameterValues();
+        stdev.setParameterValue(0, 1.5);
+        final NodeRef node = treeModel.getExternalNode(0);
+        final int category = (int) Math.round(branchRates.rateCategories.getNodeValue(treeModel, node));
+        assertEquals(distribution.quantile((category + 0.5) / 28), bulkRates(branchRates)[node.getNumber()], 1e-12);
+
+        stdev.restoreParameterValues();
+        distribution.restoreModelState();
+        branchRates.restoreModelState();
+        assertRatesEqual(original, bulkRates(branchRates));
+    }
+
+    @Test
+    public void testConcurrentReaders() {
+        final double[] expected = bulkRates(branchRates);
+
+        for (int k = 0; k < 10; k++) {
+            mean.setParameterValue(0, 1.0 + k);
+            final double scale = 1.0 + k;
+            IntStream.range(0, treeModel.getNodeCount()).parallel().forEach(i -> {
+                final NodeRef node = treeModel.getNode(i);
+                if (node != treeModel.getRoot()) {
+                    assertEquals(scale * expected[i], branchRates.getBranchRate(treeModel, node), 1e-12 * scale);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testStrictAndDefaultBulkRates() {
+        final StrictClockBranchRates strict = new StrictClockBranchRates(new Parameter.Default(0.25));
+        final double[] rates = bulkRates(strict);
+        final double[] ones = bulkRates(new DefaultBranchRateModel());
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            final NodeRef node = treeModel.getNode(i);
+            if (node != treeModel.getRoot()) {
+                assertEquals(strict.getBranchRate(treeModel, node), rates[i], 0.0);
+                assertEquals(1.0, ones[i], 0.0);
+            }
+        }
+    }
+}
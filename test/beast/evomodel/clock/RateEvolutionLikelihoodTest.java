@@ -0,0 +1,146 @@
+/*
+ * RateEvolutionLikelihoodTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.clock;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the incremental rate evolution likelihoods against a full sum over branches, over random rate,
+ * height, topology and parameter moves with store, accept and restore.
+ *
+ * @author BEAST Developers
+ */
+public class RateEvolutionLikelihoodTest {
+
+    private TreeModel treeModel;
+    private Parameter rates;
+    private Parameter rootRate;
+    private Parameter variance;
+
+    @Before
+    public void setUp() throws Exception {
+        MathUtils.setSeed(17);
+        treeModel = new TreeModel("treeModel", new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);").importTree(null));
+        rates = new Parameter.Default(treeModel.getNodeCount() - 1, 1.0);
+        rootRate = new Parameter.Default(1.0);
+        variance = new Parameter.Default(0.2);
+        for (int i = 0; i < rates.getDimension(); i++) {
+            rates.setParameterValue(i, Math.exp(0.3 * MathUtils.nextGaussian()));
+        }
+    }
+
+    private double fullLogLikelihood(RateEvolutionLikelihood likelihood) {
+        double logL = 0.0;
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            final NodeRef node = treeModel.getNode(i);
+            if (!treeModel.isRoot(node)) {
+                logL += likelihood.branchRateChangeLogLikelihood(
+                        likelihood.getBranchRate(treeModel, treeModel.getParent(node)),
+                        likelihood.getBranchRate(treeModel, node), treeModel.getBranchLength(node));
+            }
+        }
+        return logL;
+    }
+
+    private void moveHeight() {
+        final NodeRef node = treeModel.getInternalNode(MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = treeModel.isRoot(node) ? lower + 5.0 : treeModel.getNodeHeight(treeModel.getParent(node));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    private void moveExchange() {
+        final NodeRef node = treeModel.getNode(MathUtils.nextInt(treeModel.getNodeCount()));
+        if (treeModel.isRoot(node) || treeModel.isExternal(node)) {
+            return;
+        }
+        final NodeRef parent = treeModel.getParent(node);
+        final NodeRef child = treeModel.getChild(node, MathUtils.nextInt(2));
+        final NodeRef uncle = treeModel.getChild(parent, 0) == node ? treeModel.getChild(parent, 1) : treeModel.getChild(parent, 0);
+        if (treeModel.getNodeHeight(uncle) >= treeModel.getNodeHeight(node)) {
+            return;
+        }
+        treeModel.beginTreeEdit();
+        treeModel.removeChild(node, child);
+        treeModel.removeChild(parent, uncle);
+        treeModel.addChild(node, uncle);
+        treeModel.addChild(parent, child);
+        treeModel.endTreeEdit();
+    }
+
+    private void runMoves(RateEvolutionLikelihood likelihood) {
+        assertEquals(fullLogLikelihood(likelihood), likelihood.getLogLikelihood(), 1e-10);
+
+        for (int step = 0; step < 500; step++) {
+            likelihood.storeModelState();
+
+            final double u = MathUtils.nextDouble();
+            if (u < 0.4) {
+                final int index = MathUtils.nextInt(rates.getDimension());
+                rates.setParameterValue(index, rates.getParameterValue(index) * Math.exp(MathUtils.nextDouble() - 0.5));
+            } else if (u < 0.6) {
+                moveHeight();
+            } else if (u < 0.8) {
+                moveExchange();
+            } else if (u < 0.9) {
+                rootRate.setParameterValue(0, rootRate.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+            } else {
+                variance.setParameterValue(0, variance.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+            }
+
+            final double incremental = likelihood.getLogLikelihood();
+            assertEquals(fullLogLikelihood(likelihood), incremental, 1e-10);
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.acceptModelState();
+            } else {
+                likelihood.restoreModelState();
+            }
+            final double restored = likelihood.getLogLikelihood();
+            assertEquals(fullLogLikelihood(likelihood), restored, 1e-10);
+        }
+    }
+
+    @Test
+    public void testAutocorrelatedLogNormal() {
+        runMoves(new ACLikelihood(treeModel, rates, variance, rootRate, false, ACLikelihood.Distribution.LOG_NORMAL));
+    }
+
+    @Test
+    public void testAutocorrelatedInverseGaussian() {
+        runMoves(new ACLikelihood(treeModel, rates, variance, rootRate, false, ACLikelihood.Distribution.INVERSE_GAUSSIAN));
+    }
+
+    @Test
+    public void testUncorrelated() {
+        runMoves(new UCLikelihood(treeModel, rates, variance, rootRate, true));
+    }
+}
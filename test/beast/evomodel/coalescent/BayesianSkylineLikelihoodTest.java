@@ -0,0 +1,144 @@
+/*
+ * BayesianSkylineLikelihoodTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.coalescent;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.FlexibleTree;
+import beast.evolution.tree.NodeRef;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.math.MathUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the grouped skyline likelihood against known values and, over random population size, group size
+ * and tree moves with store and restore, against a likelihood built from scratch.
+ *
+ * @author BEAST Developers
+ */
+public class BayesianSkylineLikelihoodTest {
+
+    private static final String ULTRAMETRIC =
+            "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);";
+    private static final String SERIAL =
+            "((((A:1.0,B:1.0):1.0,C:1.5):2.0,(D:1.5,(E:0.5,F:0.3):1.0):2.5):1.0,(G:3.0,H:2.6):2.0);";
+
+    private TreeModel treeModel;
+    private Parameter popSizes;
+    private Parameter groupSizes;
+
+    private BayesianSkylineLikelihood create(String newick, BayesianSkylineLikelihood.Type type) throws Exception {
+        treeModel = new TreeModel("treeModel", new NewickImporter(newick).importTree(null));
+        popSizes = type == BayesianSkylineLikelihood.Type.STEPWISE ?
+                new Parameter.Default(new double[]{1.5, 0.7, 2.2}) :
+                new Parameter.Default(new double[]{1.5, 0.7, 2.2, 3.1});
+        groupSizes = new Parameter.Default(new double[]{3, 2, 2});
+        return new BayesianSkylineLikelihood(treeModel, popSizes, groupSizes, type);
+    }
+
+    private double freshLogLikelihood(BayesianSkylineLikelihood likelihood) {
+        return new BayesianSkylineLikelihood(new FlexibleTree(treeModel),
+                new Parameter.Default(popSizes.getParameterValues()),
+                new Parameter.Default(groupSizes.getParameterValues()), likelihood.getType()).getLogLikelihood();
+    }
+
+    @Test
+    public void testKnownValues() throws Exception {
+        final double[] heights = {1.5, 3.0, 5.0};
+
+        BayesianSkylineLikelihood likelihood = create(ULTRAMETRIC, BayesianSkylineLikelihood.Type.STEPWISE);
+        assertEquals(-40.945761022976434, likelihood.getLogLikelihood(), 1e-10);
+        assertArrayEquals(heights, likelihood.getGroupHeights(), 1e-12);
+        assertEquals(-41.813448596305946, create(ULTRAMETRIC, BayesianSkylineLikelihood.Type.LINEAR).getLogLikelihood(), 1e-10);
+        assertEquals(-80.69030989550839, create(ULTRAMETRIC, BayesianSkylineLikelihood.Type.EXPONENTIAL).getLogLikelihood(), 1e-10);
+
+        likelihood = create(SERIAL, BayesianSkylineLikelihood.Type.STEPWISE);
+        assertEquals(-36.34576102297643, likelihood.getLogLikelihood(), 1e-10);
+        assertArrayEquals(heights, likelihood.getGroupHeights(), 1e-12);
+        assertEquals(-36.754853119300066, create(SERIAL, BayesianSkylineLikelihood.Type.LINEAR).getLogLikelihood(), 1e-10);
+    }
+
+    private void moveHeight() {
+        final NodeRef node = treeModel.getInternalNode(MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = treeModel.isRoot(node) ? lower + 3.0 : treeModel.getNodeHeight(treeModel.getParent(node));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    private void moveGroupSize(int minFirst) {
+        final int from = MathUtils.nextInt(groupSizes.getDimension());
+        final int to = MathUtils.nextInt(groupSizes.getDimension());
+        final double size = groupSizes.getParameterValue(from);
+        if (from == to || size <= (from == 0 ? minFirst : 1)) {
+            return;
+        }
+        groupSizes.setParameterValue(from, size - 1);
+        groupSizes.setParameterValue(to, groupSizes.getParameterValue(to) + 1);
+    }
+
+    private void runMoves(BayesianSkylineLikelihood likelihood) {
+        MathUtils.setSeed(23);
+        final int minFirst = likelihood.getType() == BayesianSkylineLikelihood.Type.STEPWISE ? 1 : 2;
+
+        for (int step = 0; step < 500; step++) {
+            likelihood.storeModelState();
+
+            final double u = MathUtils.nextDouble();
+            if (u < 0.5) {
+                final int index = MathUtils.nextInt(popSizes.getDimension());
+                popSizes.setParameterValue(index, popSizes.getParameterValue(index) * Math.exp(MathUtils.nextDouble() - 0.5));
+            } else if (u < 0.8) {
+                moveGroupSize(minFirst);
+            } else {
+                moveHeight();
+            }
+
+            final double incremental = likelihood.getLogLikelihood();
+            assertEquals(freshLogLikelihood(likelihood), incremental, 1e-10);
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.acceptModelState();
+            } else {
+                likelihood.restoreModelState();
+            }
+            assertEquals(freshLogLikelihood(likelihood), likelihood.getLogLikelihood(), 1e-10);
+        }
+    }
+
+    @Test
+    public void testStepwiseMoves() throws Exception {
+        runMoves(create(SERIAL, BayesianSkylineLikelihood.Type.STEPWISE));
+    }
+
+    @Test
+    public void testLinearMoves() throws Exception {
+        runMoves(create(SERIAL, BayesianSkylineLikelihood.Type.LINEAR));
+    }
+
+    @Test
+    public void testExponentialMoves() throws Exception {
+        runMoves(create(ULTRAMETRIC, BayesianSkylineLikelihood.Type.EXPONENTIAL));
+    }
+}
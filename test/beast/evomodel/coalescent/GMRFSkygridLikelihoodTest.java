@@ -0,0 +1,134 @@
+/*
+ * GMRFSkygridLikelihoodTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.coalescent;
+
+import beast.evolution.coalescent.Coalescent;
+import beast.evolution.coalescent.TreeIntervals;
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.util.Units;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the skygrid coalescent part against the general coalescent with a stepwise demography on the same
+ * grid, and the field part against a direct sum, over tree and parameter moves with store and restore.
+ *
+ * @author BEAST Developers
+ */
+public class GMRFSkygridLikelihoodTest {
+
+    private static final double CUT_OFF = 4.0;
+
+    private TreeModel treeModel;
+    private Parameter logPopSizes;
+    private Parameter precision;
+    private GMRFSkygridLikelihood likelihood;
+
+    @Before
+    public void setUp() throws Exception {
+        MathUtils.setSeed(41);
+        treeModel = new TreeModel("treeModel", new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:1.5):2.0,(D:1.5,(E:0.5,F:0.3):1.0):2.5):1.0,(G:3.0,H:2.6):2.0);").importTree(null));
+        logPopSizes = new Parameter.Default(new double[]{0.2, -0.3, 0.5, 0.1, 0.9});
+        precision = new Parameter.Default(2.0);
+        likelihood = new GMRFSkygridLikelihood(treeModel, logPopSizes, precision, CUT_OFF);
+    }
+
+    private double expectedLogLikelihood() {
+        final int cells = logPopSizes.getDimension();
+        final double[] times = new double[cells - 1];
+        final double[] popSizes = new double[cells];
+        for (int k = 0; k < cells; k++) {
+            popSizes[k] = Math.exp(logPopSizes.getParameterValue(k));
+            if (k < cells - 1) {
+                times[k] = CUT_OFF * (k + 1) / (cells - 1);
+            }
+        }
+        final VDdemographicFunction stepwise = new VDdemographicFunction(times, popSizes, Units.Type.YEARS,
+                VariableDemographicModel.Type.STEPWISE);
+        final TreeIntervals intervals = new TreeIntervals(treeModel);
+        intervals.setMultifurcationLimit(0);
+        final double coalescent = Coalescent.calculateLogLikelihood(intervals, stepwise);
+
+        final double tau = precision.getParameterValue(0);
+        double field = 0.5 * (cells - 1) * (Math.log(tau) - Math.log(2 * Math.PI));
+        for (int k = 1; k < cells; k++) {
+            final double d = logPopSizes.getParameterValue(k) - logPopSizes.getParameterValue(k - 1);
+            field -= 0.5 * tau * d * d;
+        }
+        return coalescent + field;
+    }
+
+    private void moveHeight() {
+        final NodeRef node = treeModel.getInternalNode(MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = treeModel.isRoot(node) ? lower + 3.0 : treeModel.getNodeHeight(treeModel.getParent(node));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    @Test
+    public void testLogLikelihood() {
+        assertEquals(expectedLogLikelihood(), likelihood.getLogLikelihood(), 1e-10);
+
+        double counts = 0.0;
+        for (double c : likelihood.getCoalescentCounts()) {
+            counts += c;
+        }
+        assertEquals(treeModel.getExternalNodeCount() - 1, counts, 0.0);
+    }
+
+    @Test
+    public void testMoves() {
+        for (int step = 0; step < 300; step++) {
+            likelihood.storeModelState();
+
+            final double u = MathUtils.nextDouble();
+            if (u < 0.4) {
+                moveHeight();
+            } else if (u < 0.8) {
+                final int index = MathUtils.nextInt(logPopSizes.getDimension());
+                logPopSizes.setParameterValue(index, logPopSizes.getParameterValue(index) + 0.5 * MathUtils.nextGaussian());
+            } else {
+                precision.setParameterValue(0, precision.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+            }
+            assertLogLikelihood();
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.acceptModelState();
+            } else {
+                likelihood.restoreModelState();
+            }
+            assertLogLikelihood();
+        }
+    }
+
+    private void assertLogLikelihood() {
+        final double expected = expectedLogLikelihood();
+        assertEquals(expected, likelihood.getLogLikelihood(), 1e-10 * Math.max(1.0, Math.abs(expected)));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * MultiLocusCoalescentTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.coalescent;
+
+import beast.evolution.coalescent.Coalescent;
+import beast.evolution.coalescent.DemographicFunction;
+import beast.evolution.coalescent.ScaledDemographic;
+import beast.evolution.coalescent.TreeIntervals;
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.util.Units;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the cached, parallel multi locus coalescent against a sequential sum over freshly computed intervals,
+ * over random tree and demographic moves with store and restore.
+ *
+ * @author BEAST Developers
+ */
+public class MultiLocusCoalescentTest {
+
+    private static final int LOCI = 12;
+
+    private final List<TreeModel> trees = new ArrayList<TreeModel>();
+    private final List<Double> factors = new ArrayList<Double>();
+
+    @Before
+    public void setUp() throws Exception {
+        MathUtils.setSeed(31);
+        for (int k = 0; k < LOCI; k++) {
+            TreeModel tree = new TreeModel("tree" + k, new NewickImporter(
+                    "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);").importTree(null));
+            trees.add(tree);
+            factors.add(k % 3 == 0 ? 1.0 : 0.5 * (k % 3));
+            for (int i = 0; i < 5; i++) {
+                moveHeight(tree);
+            }
+        }
+    }
+
+    private void moveHeight(TreeModel tree) {
+        final NodeRef node = tree.getInternalNode(MathUtils.nextInt(tree.getInternalNodeCount()));
+        double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)), tree.getNodeHeight(tree.getChild(node, 1)));
+        double upper = tree.isRoot(node) ? lower + 2.0 : tree.getNodeHeight(tree.getParent(node));
+        tree.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    private double sequentialLogLikelihood(DemographicFunction demographic) {
+        double logL = 0.0;
+        for (int k = 0; k < LOCI; k++) {
+            TreeIntervals intervals = new TreeIntervals(trees.get(k));
+            intervals.setMultifurcationLimit(0);
+            final double factor = factors.get(k);
+            logL += Coalescent.calculateLogLikelihood(intervals,
+                    factor != 1.0 ? new ScaledDemographic(demographic, factor) : demographic);
+        }
+        return logL;
+    }
+
+    private void runMoves(OldAbstractCoalescentLikelihood likelihood, Parameter popSizes, Runnable check) {
+        for (int step = 0; step < 300; step++) {
+            likelihood.storeModelState();
+
+            if (MathUtils.nextDouble() < 0.7) {
+                // move one or, now and then, every locus
+                if (MathUtils.nextDouble() < 0.1) {
+                    for (TreeModel tree : trees) {
+                        moveHeight(tree);
+                    }
+                } else {
+                    moveHeight(trees.get(MathUtils.nextInt(LOCI)));
+                }
+            } else {
+                final int index = MathUtils.nextInt(popSizes.getDimension());
+                popSizes.setParameterValue(index, popSizes.getParameterValue(index) * Math.exp(MathUtils.nextDouble() - 0.5));
+            }
+            check.run();
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.acceptModelState();
+            } else {
+                likelihood.restoreModelState();
+            }
+            check.run();
+        }
+    }
+
+    @Test
+    public void testConstantPopulation() {
+        final Parameter popSize = new Parameter.Default(2.0);
+        final ConstantPopulationModel demoModel = new ConstantPopulationModel(popSize, Units.Type.YEARS);
+        final OldAbstractCoalescentLikelihood likelihood =
+                new OldAbstractCoalescentLikelihood(new MultiLociTreeSet.Default(trees, factors), demoModel);
+
+        runMoves(likelihood, popSize, () -> assertEquals(
+                sequentialLogLikelihood(demoModel.getDemographicFunction()), likelihood.getLogLikelihood(), 1e-10));
+    }
+
+    @Test
+    public void testVariableDemographic() {
+        final double[] popFactors = new double[LOCI];
+        for (int k = 0; k < LOCI; k++) {
+            popFactors[k] = factors.get(k);
+        }
+        final Parameter popSizes = new Parameter.Default(1, 1.0);
+        final Parameter indicators = new Parameter.Default(1, 0.0);
+        final VariableDemographicModel demoModel = new VariableDemographicModel(trees.toArray(new TreeModel[LOCI]),
+                popFactors, popSizes, indicators, VariableDemographicModel.Type.LINEAR, false, false);
+        for (int i = 0; i < popSizes.getDimension(); i++) {
+            popSizes.setParameterValue(i, 0.5 + MathUtils.nextDouble());
+        }
+        for (int i = 0; i < indicators.getDimension(); i++) {
+            indicators.setParameterValue(i, MathUtils.nextDouble() < 0.2 ? 1.0 : 0.0);
+        }
+        final OldAbstractCoalescentLikelihood likelihood = new OldAbstractCoalescentLikelihood(demoModel, demoModel);
+
+        runMoves(likelihood, popSizes, () -> {
+            final VDdemographicFunction fresh = new VDdemographicFunction(trees.toArray(new TreeModel[LOCI]),
+                    VariableDemographicModel.Type.LINEAR, indicators.getParameterValues(),
+                    popSizes.getParameterValues(), false, false);
+            assertEquals(sequentialLogLikelihood(fresh), likelihood.getLogLikelihood(), 1e-10);
+        });
+    }
+
+    private static int knownLoci(OldAbstractCoalescentLikelihood likelihood) {
+        int known = 0;
+        for (int k = 0; k < LOCI; k++) {
+            if (likelihood.isLocusKnown(k)) known++;
+        }
+        return known;
+    }
+
+    @Test
+    public void testTreeChangeDirtiesLoci() {
+        final ConstantPopulationModel constant = new ConstantPopulationModel(new Parameter.Default(2.0), Units.Type.YEARS);
+        final OldAbstractCoalescentLikelihood perLocus =
+                new OldAbstractCoalescentLikelihood(new MultiLociTreeSet.Default(trees, factors), constant);
+        perLocus.getLogLikelihood();
+        assertEquals(LOCI, knownLoci(perLocus));
+        moveHeight(trees.get(3));
+        assertEquals(LOCI - 1, knownLoci(perLocus));
+        assertEquals(false, perLocus.isLocusKnown(3));
+
+        // the variable demographic grid depends on every locus, so a single tree move recomputes them all
+        final double[] popFactors = new double[LOCI];
+        for (int k = 0; k < LOCI; k++) {
+            popFactors[k] = factors.get(k);
+        }
+        final VariableDemographicModel demoModel = new VariableDemographicModel(trees.toArray(new TreeModel[LOCI]),
+                popFactors, new Parameter.Default(1, 1.0), new Parameter.Default(1, 0.0),
+                VariableDemographicModel.Type.LINEAR, false, false);
+        final OldAbstractCoalescentLikelihood shared = new OldAbstractCoalescentLikelihood(demoModel, demoModel);
+        shared.getLogLikelihood();
+        assertEquals(LOCI, knownLoci(shared));
+        moveHeight(trees.get(3));
+        assertEquals(0, knownLoci(shared));
+    }
+}
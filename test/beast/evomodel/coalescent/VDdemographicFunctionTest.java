@@ -65,4 +65,40 @@ public class VDdemographicFunctionTest {
             }
         }
     }
+
+    @Test
+    public void testIntegralOverPieces() {
+        // integrals spanning several pieces, including a zero length one, against a piece by piece sum
+        double[] times = {0.5, 1.0, 1.0, 2.5, 4.0};
+        double[] pops = {1.0, 2.0, 0.5, 0.5, 3.0, 1.5};
+        double[][] ranges = {{0, 0.3}, {0.2, 0.7}, {0, 1}, {0.7, 3}, {1, 5.5}, {0, 10}, {4.5, 6}};
+
+        double[] linear = {0.23500181462286784, 0.29722911994894363, 0.8086717106532696, 1.6005837107245073,
+                2.7682028620967785, 6.576874572750048, 1.0};
+        double[] stepwise = {0.3, 0.39999999999999997, 0.75, 3.3166666666666664, 4.5, 8.25, 1.0};
+
+        final VDdemographicFunction lin = new VDdemographicFunction(times, pops, Units.Type.YEARS,
+                VariableDemographicModel.Type.LINEAR);
+        final VDdemographicFunction step = new VDdemographicFunction(times, pops, Units.Type.YEARS,
+                VariableDemographicModel.Type.STEPWISE);
+        final VDdemographicFunction exp = new VDdemographicFunction(times, pops, Units.Type.YEARS,
+                VariableDemographicModel.Type.EXPONENTIAL);
+        for (int k = 0; k < ranges.length; ++k) {
+            assertEquals(linear[k], lin.getIntegral(ranges[k][0], ranges[k][1]), 1e-12);
+            assertEquals(stepwise[k], step.getIntegral(ranges[k][0], ranges[k][1]), 1e-12);
+
+            // the zero length piece at 1.0 adds nothing to the exponential integral
+            final double a = ranges[k][0];
+            final double b = ranges[k][1];
+            double sum = 0.0;
+            double t = a;
+            for (double end : new double[]{0.5, 1.0, 2.5, 4.0, Double.POSITIVE_INFINITY}) {
+                if (end > t && t < b) {
+                    sum += exp.getIntegral(t, Math.min(end, b));
+                    t = Math.min(end, b);
+                }
+            }
+            assertEquals(sum, exp.getIntegral(a, b), 1e-12 * Math.max(sum, 1.0));
+        }
+    }
 }
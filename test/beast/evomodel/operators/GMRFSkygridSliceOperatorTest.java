@@ -0,0 +1,83 @@
+/*
+ * GMRFSkygridSliceOperatorTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.operators;
+
+import beast.evolution.io.NewickImporter;
+import beast.evomodel.coalescent.GMRFSkygridLikelihood;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.math.MathUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the skygrid elliptical slice sampler leaves the skygrid density invariant by comparing its
+ * posterior means with those of a long single site random walk Metropolis chain.
+ *
+ * @author BEAST Developers
+ */
+public class GMRFSkygridSliceOperatorTest {
+
+    @Test
+    public void testPosteriorMeans() throws Exception {
+        MathUtils.setSeed(53);
+        TreeModel treeModel = new TreeModel("treeModel", new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);").importTree(null));
+        Parameter logPopSizes = new Parameter.Default(4, 0.0);
+        Parameter precision = new Parameter.Default(1.5);
+        GMRFSkygridLikelihood likelihood = new GMRFSkygridLikelihood(treeModel, logPopSizes, precision, 4.5);
+        final int dim = logPopSizes.getDimension();
+
+        // reference: random walk Metropolis, one coordinate at a time
+        final int mhSteps = 400000;
+        double[] mhMeans = new double[dim];
+        double logL = likelihood.getLogLikelihood();
+        for (int step = 0; step < mhSteps; step++) {
+            final int k = step % dim;
+            final double old = logPopSizes.getParameterValue(k);
+            logPopSizes.setParameterValue(k, old + 0.8 * MathUtils.nextGaussian());
+            final double newLogL = likelihood.getLogLikelihood();
+            if (Math.log(MathUtils.nextDouble()) < newLogL - logL) {
+                logL = newLogL;
+            } else {
+                logPopSizes.setParameterValue(k, old);
+            }
+            for (int i = 0; i < dim; i++) {
+                mhMeans[i] += logPopSizes.getParameterValue(i) / mhSteps;
+            }
+        }
+
+        GMRFSkygridSliceOperator operator = new GMRFSkygridSliceOperator(likelihood, 1.0);
+        final int sliceSteps = 40000;
+        double[] sliceMeans = new double[dim];
+        for (int step = 0; step < sliceSteps; step++) {
+            assertEquals(0.0, operator.doOperation(), 0.0);
+            for (int i = 0; i < dim; i++) {
+                sliceMeans[i] += logPopSizes.getParameterValue(i) / sliceSteps;
+            }
+        }
+
+        for (int i = 0; i < dim; i++) {
+            assertEquals(mhMeans[i], sliceMeans[i], 0.05);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * CalibrationPointsTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.speciation;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.FlexibleTree;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evolution.util.Taxa;
+import beast.evolution.util.Taxon;
+import beast.math.distributions.Distribution;
+import beast.math.distributions.NormalDistribution;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the exact calibration correction for several calibrated clades, with and without its caches.
+ *
+ * @author BEAST Developers
+ */
+public class CalibrationPointsTest {
+
+    private FlexibleTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        tree = (FlexibleTree) new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):2.0,(D:1.5,(E:0.5,F:0.5):1.0):2.5):1.0,(G:3.0,H:3.0):2.0);").importTree(null);
+    }
+
+    private Taxa clade(String... ids) {
+        final List<Taxon> taxa = new ArrayList<Taxon>();
+        for (String id : ids) {
+            taxa.add(tree.getTaxon(tree.getTaxonIndex(id)));
+        }
+        return new Taxa(taxa);
+    }
+
+    private CalibrationPoints calibration(CalibrationPoints.CorrectionType type) {
+        final List<Distribution> dists = new ArrayList<Distribution>();
+        final List<Taxa> clades = new ArrayList<Taxa>();
+        final List<Boolean> forParent = new ArrayList<Boolean>();
+
+        clades.add(clade("A", "B"));
+        dists.add(new NormalDistribution(1.0, 0.5));
+        clades.add(clade("A", "B", "C"));
+        dists.add(new NormalDistribution(2.0, 1.0));
+        clades.add(clade("E", "F"));
+        dists.add(new NormalDistribution(0.5, 0.2));
+        forParent.addAll(Arrays.asList(false, false, false));
+
+        return new CalibrationPoints(tree, true, dists, clades, forParent, null, type);
+    }
+
+    private NodeRef node(String... ids) {
+        final int[] tips = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            tips[i] = tree.getTaxonIndex(ids[i]);
+        }
+        return Tree.Utils.getCommonAncestor(tree, tips);
+    }
+
+    @Test
+    public void testExactCorrection() {
+        final CalibrationPoints calibration = calibration(CalibrationPoints.CorrectionType.EXACT);
+        // values of the direct enumeration over all lineage configurations
+        assertEquals(-1.5782994660186285, calibration.getCorrection(tree, 1.3), 1e-10);
+
+        // the calibrated heights change rank
+        tree.setNodeHeight(node("E", "F"), 1.2);
+        assertEquals(-5.653976939139736, calibration.getCorrection(tree, 1.3), 1e-10);
+        assertEquals(-9.604996404757566, calibration.getCorrection(tree, 0.7), 1e-10);
+    }
+
+    @Test
+    public void testCachedCorrection() {
+        for (CalibrationPoints.CorrectionType type : CalibrationPoints.CorrectionType.values()) {
+            final CalibrationPoints calibration = calibration(type);
+            final double initial = calibration.getCorrection(tree, 1.3);
+
+            calibration.storeState();
+            final double height = tree.getNodeHeight(node("A", "B", "C"));
+            tree.setNodeHeight(node("A", "B", "C"), 3.0);
+            assertEquals(calibration(type).getCorrection(tree, 1.3), calibration.getCorrection(tree, 1.3), 1e-12);
+
+            // an unrelated height does not change the correction
+            tree.setNodeHeight(node("G", "H"), 2.5);
+            assertEquals(calibration(type).getCorrection(tree, 1.3), calibration.getCorrection(tree, 1.3), 1e-12);
+
+            calibration.restoreState();
+            tree.setNodeHeight(node("A", "B", "C"), height);
+            tree.setNodeHeight(node("G", "H"), 3.0);
+            assertEquals(initial, calibration.getCorrection(tree, 1.3), 0.0);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * MultiSpeciesCoalescentTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.speciation;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evolution.util.Taxon;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the per gene tree cache of MultiSpeciesCoalescent matches a full recomputation.
+ *
+ * @author BEAST Developers
+ */
+public class MultiSpeciesCoalescentTest {
+
+    private static final String[] GENE_TREES = {
+            "(((a1:1.0,a2:1.0):2.0,b1:3.0):2.0,(c1:1.5,c2:1.5):3.5);",
+            "(((a1:0.5,b1:0.5):3.0,a2:3.5):1.0,(c1:2.0,c2:2.0):2.5);",
+            "((a1:2.5,a2:2.5):3.0,((b1:1.0,c1:1.0):1.0,c2:2.0):3.5);",
+    };
+
+    private TreeModel[] geneTrees;
+    private SpeciesTreeModel spTree;
+    private Parameter popSizes;
+    private MultiSpeciesCoalescent msc;
+
+    @Before
+    public void setUp() throws Exception {
+        // many gene trees, so that species tree changes are evaluated in parallel
+        final Tree taxa = new NewickImporter(GENE_TREES[0]).importTree(null);
+        geneTrees = new TreeModel[12];
+        for (int i = 0; i < geneTrees.length; i++) {
+            geneTrees[i] = new TreeModel("gene" + i, new NewickImporter(GENE_TREES[i % GENE_TREES.length]).importTree(taxa));
+        }
+        final SpeciesBindings.SPinfo[] sp = {
+                new SpeciesBindings.SPinfo("A", taxa(taxa, "a1", "a2")),
+                new SpeciesBindings.SPinfo("B", taxa(taxa, "b1")),
+                new SpeciesBindings.SPinfo("C", taxa(taxa, "c1", "c2")),
+        };
+        final double[] popFactors = new double[geneTrees.length];
+        Arrays.fill(popFactors, -1);
+        final SpeciesBindings species = new SpeciesBindings(sp, geneTrees, popFactors);
+
+        popSizes = SpeciesTreeModel.createSplitPopulationsParameter(species, 1.0, true, false);
+        for (int i = 0; i < popSizes.getDimension(); i++) {
+            popSizes.setParameterValueQuietly(i, 1.0 + 0.3 * i);
+        }
+        spTree = new SpeciesTreeModel(species, popSizes, null, null, null, false, true, false);
+        msc = new MultiSpeciesCoalescent(species, spTree);
+    }
+
+    private static Taxon[] taxa(Tree tree, String... ids) {
+        final Taxon[] taxa = new Taxon[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            taxa[i] = tree.getTaxon(tree.getTaxonIndex(ids[i]));
+        }
+        return taxa;
+    }
+
+    private double fullLogLikelihood() {
+        msc.makeDirty();
+        return msc.getLogLikelihood();
+    }
+
+    private void moveRoot(TreeModel tree, double delta) {
+        final NodeRef root = tree.getRoot();
+        tree.beginTreeEdit();
+        tree.setNodeHeight(root, tree.getNodeHeight(root) + delta);
+        tree.endTreeEdit();
+    }
+
+    @Test
+    public void testGeneTreeChange() {
+        final double initial = msc.getLogLikelihood();
+        assertEquals(initial, fullLogLikelihood(), 1e-12);
+
+        msc.storeModelState();
+        moveRoot(geneTrees[4], 0.7);
+        final double changed = msc.getLogLikelihood();
+        assertEquals(fullLogLikelihood(), changed, 1e-10);
+
+        msc.restoreModelState();
+        assertEquals(initial, msc.getLogLikelihood(), 1e-12);
+        assertEquals(initial, fullLogLikelihood(), 1e-12);
+    }
+
+    @Test
+    public void testSpeciesTreeChange() {
+        final double initial = msc.getLogLikelihood();
+
+        msc.storeModelState();
+        popSizes.setParameterValue(2, 2.5);
+        final double changed = msc.getLogLikelihood();
+        assertEquals(fullLogLikelihood(), changed, 1e-10);
+
+        msc.restoreModelState();
+        assertEquals(initial, msc.getLogLikelihood(), 1e-12);
+
+        // the root branch depends on the gene tree root heights here, so every gene tree is affected
+        msc.storeModelState();
+        moveRoot(geneTrees[0], 2.0);
+        final double moved = msc.getLogLikelihood();
+        assertEquals(fullLogLikelihood(), moved, 1e-10);
+        msc.acceptModelState();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * SpeciesBindingsTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.speciation;
+
+import beast.evolution.io.NewickImporter;
+import beast.evolution.tree.NodeRef;
+import beast.evolution.tree.Tree;
+import beast.evolution.util.Taxon;
+import beast.evomodel.tree.TreeModel;
+import jebl.util.FixedBitSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the incrementally maintained coalescent times of SpeciesBindings against a direct computation.
+ *
+ * @author BEAST Developers
+ */
+public class SpeciesBindingsTest {
+
+    private static final String[] GENE_TREES = {
+            "((((a1:1.0,a2:1.0):2.0,b1:3.0):2.0,(c1:1.5,c2:1.5):3.5):1.0,(d1:0.5,b2:0.5):5.5);",
+            "((((a1:0.5,b1:0.5):3.0,a2:3.5):1.0,(c1:2.0,d1:2.0):2.5):0.5,(c2:1.0,b2:1.0):4.0);",
+            "(((a1:2.5,a2:2.5):3.0,((b1:1.0,c1:1.0):1.0,c2:2.0):3.5):2.0,(b2:3.0,d1:3.0):4.5);",
+    };
+
+    private static final String[][] SPECIES = {{"a1", "a2"}, {"b1", "b2"}, {"c1", "c2"}, {"d1"}};
+
+    private TreeModel[] geneTrees;
+    private SpeciesBindings species;
+
+    @Before
+    public void setUp() throws Exception {
+        final Tree taxa = new NewickImporter(GENE_TREES[0]).importTree(null);
+        geneTrees = new TreeModel[7];
+        for (int i = 0; i < geneTrees.length; i++) {
+            geneTrees[i] = new TreeModel("gene" + i, new NewickImporter(GENE_TREES[i % GENE_TREES.length]).importTree(taxa));
+        }
+        final SpeciesBindings.SPinfo[] sp = new SpeciesBindings.SPinfo[SPECIES.length];
+        for (int ns = 0; ns < sp.length; ns++) {
+            final Taxon[] spTaxa = new Taxon[SPECIES[ns].length];
+            for (int k = 0; k < spTaxa.length; k++) {
+                spTaxa[k] = taxa.getTaxon(taxa.getTaxonIndex(SPECIES[ns][k]));
+            }
+            sp[ns] = new SpeciesBindings.SPinfo("sp" + ns, spTaxa);
+        }
+        final double[] popFactors = new double[geneTrees.length];
+        Arrays.fill(popFactors, -1);
+        species = new SpeciesBindings(sp, geneTrees, popFactors);
+    }
+
+    private int speciesOf(Tree tree, NodeRef tip) {
+        final String id = tree.getNodeTaxon(tip).getId();
+        for (int ns = 0; ns < SPECIES.length; ns++) {
+            if (Arrays.asList(SPECIES[ns]).contains(id)) {
+                return ns;
+            }
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    private FixedBitSet speciesBelow(Tree tree, NodeRef node) {
+        final FixedBitSet set = new FixedBitSet(SPECIES.length);
+        if (tree.isExternal(node)) {
+            set.set(speciesOf(tree, node));
+        } else {
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                set.union(speciesBelow(tree, tree.getChild(node, i)));
+            }
+        }
+        return set;
+    }
+
+    // direct computation of the first coalescence between two sets of species
+    private double firstCoalescence(Tree tree, FixedBitSet sub1, FixedBitSet sub2) {
+        double first = Double.MAX_VALUE;
+        for (int k = 0; k < tree.getInternalNodeCount(); k++) {
+            final NodeRef node = tree.getInternalNode(k);
+            final FixedBitSet left = speciesBelow(tree, tree.getChild(node, 0));
+            final FixedBitSet right = speciesBelow(tree, tree.getChild(node, 1));
+            if ((left.intersectCardinality(sub1) > 0 && right.intersectCardinality(sub2) > 0)
+                    || (left.intersectCardinality(sub2) > 0 && right.intersectCardinality(sub1) > 0)) {
+                first = Math.min(first, tree.getNodeHeight(node));
+            }
+        }
+        return first;
+    }
+
+    private FixedBitSet set(int... ns) {
+        final FixedBitSet set = new FixedBitSet(SPECIES.length);
+        for (int n : ns) {
+            set.set(n);
+        }
+        return set;
+    }
+
+    private void check() {
+        final double[][] single = species.getPopTimesSingle();
+        for (int ns = 0; ns < SPECIES.length; ns++) {
+            final double[] expected = new double[single[ns].length];
+            int k = 0;
+            for (TreeModel tree : geneTrees) {
+                for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                    final NodeRef node = tree.getInternalNode(i);
+                    if (speciesBelow(tree, tree.getChild(node, 0)).contains(ns)
+                            && speciesBelow(tree, tree.getChild(node, 1)).contains(ns)) {
+                        expected[k++] = tree.getNodeHeight(node);
+                    }
+                }
+            }
+            assertEquals(expected.length, k);
+            Arrays.sort(expected);
+            assertArrayEquals(expected, single[ns], 0.0);
+        }
+
+        final double[][] pair = species.getPopTimesPair();
+        for (int ns1 = 0; ns1 < SPECIES.length; ns1++) {
+            for (int ns2 = ns1 + 1; ns2 < SPECIES.length; ns2++) {
+                final double[] expected = new double[geneTrees.length];
+                for (int i = 0; i < geneTrees.length; i++) {
+                    expected[i] = firstCoalescence(geneTrees[i], set(ns1), set(ns2));
+                }
+                Arrays.sort(expected);
+                assertArrayEquals(expected, pair[species.pairIndex(ns1, ns2)], 0.0);
+            }
+        }
+
+        final FixedBitSet sub1 = set(0, 3);
+        final FixedBitSet sub2 = set(1, 2);
+        double bound = Double.MAX_VALUE;
+        for (TreeModel tree : geneTrees) {
+            bound = Math.min(bound, firstCoalescence(tree, sub1, sub2));
+        }
+        assertEquals(bound, species.speciationUpperBound(sub1, sub2), 0.0);
+    }
+
+    // moves a random internal node between its children and its parent
+    private void moveHeight(TreeModel tree, Random random) {
+        final NodeRef node = tree.getInternalNode(random.nextInt(tree.getInternalNodeCount()));
+        if (tree.isRoot(node)) {
+            return;
+        }
+        final double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)), tree.getNodeHeight(tree.getChild(node, 1)));
+        final double upper = tree.getNodeHeight(tree.getParent(node));
+        tree.beginTreeEdit();
+        tree.setNodeHeight(node, lower + random.nextDouble() * (upper - lower));
+        tree.endTreeEdit();
+    }
+
+    // exchanges two tips with different parents
+    private void swapTips(TreeModel tree, Random random) {
+        final NodeRef a = tree.getExternalNode(random.nextInt(tree.getExternalNodeCount()));
+        final NodeRef b = tree.getExternalNode(random.nextInt(tree.getExternalNodeCount()));
+        final NodeRef pa = tree.getParent(a);
+        final NodeRef pb = tree.getParent(b);
+        if (pa == pb) {
+            return;
+        }
+        tree.beginTreeEdit();
+        tree.removeChild(pa, a);
+        tree.removeChild(pb, b);
+        tree.addChild(pa, b);
+        tree.addChild(pb, a);
+        tree.endTreeEdit();
+    }
+
+    @Test
+    public void testIncrementalUpdates() {
+        check();
+        final Random random = new Random(42);
+        for (int step = 0; step < 200; step++) {
+            species.storeModelState();
+            final int nMoves = 1 + random.nextInt(geneTrees.length);
+            for (int m = 0; m < nMoves; m++) {
+                final TreeModel tree = geneTrees[random.nextInt(geneTrees.length)];
+                if (random.nextBoolean()) {
+                    moveHeight(tree, random);
+                } else {
+                    swapTips(tree, random);
+                }
+                if (random.nextBoolean()) {
+                    check();
+                }
+            }
+            check();
+            if (random.nextBoolean()) {
+                species.acceptModelState();
+            } else {
+                species.restoreModelState();
+            }
+            check();
+        }
+    }
+}
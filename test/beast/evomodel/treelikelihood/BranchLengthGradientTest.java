@@ -0,0 +1,150 @@
+/*
+ * BranchLengthGradientTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.treelikelihood;
+
+import beast.evolution.alignment.SitePatterns;
+import beast.evolution.datatype.Nucleotides;
+import beast.evolution.tree.NodeRef;
+import beast.evomodel.sitemodel.GammaSiteModel;
+import beast.evomodel.substmodel.FrequencyModel;
+import beast.evomodel.substmodel.GTR;
+import beast.evomodel.substmodel.HKY;
+import beast.evomodel.substmodel.SubstitutionModel;
+import beast.evomodel.substmodel.TN93;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.inference.trace.TraceCorrelationAssert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pre-order branch length and node height gradients of TreeLikelihood
+ * against numerical differentiation.
+ */
+public class BranchLengthGradientTest extends TraceCorrelationAssert {
+
+    private static final double DELTA = 1E-6;
+
+    private TreeModel treeModel;
+
+    @Before
+    public void setUp() throws Exception {
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        treeModel = createPrimateTreeModel();
+    }
+
+    @Test
+    public void testInfinitesimalMatrices() {
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(alignment.getStateFrequencies()));
+
+        assertInfinitesimalMatrix(new HKY(new Parameter.Default(12.0), f));
+        assertInfinitesimalMatrix(new TN93(new Parameter.Default(8.0), new Parameter.Default(20.0), f));
+        assertInfinitesimalMatrix(new GTR(new Parameter.Default(1.5), new Parameter.Default(9.0), new Parameter.Default(0.8),
+                new Parameter.Default(1.2), new Parameter.Default(11.0), new Parameter.Default(1.0), f));
+    }
+
+    @Test
+    public void testNodeHeightGradientHKY() {
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(alignment.getStateFrequencies()));
+        HKY hky = new HKY(new Parameter.Default(29.739445), f);
+
+        GammaSiteModel siteModel = new GammaSiteModel(hky);
+        siteModel.setMutationRateParameter(new Parameter.Default(1.0));
+
+        assertNodeHeightGradient(createTreeLikelihood(siteModel, false));
+    }
+
+    @Test
+    public void testNodeHeightGradientHKYGI() {
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(alignment.getStateFrequencies()));
+        HKY hky = new HKY(new Parameter.Default(38.829740), f);
+
+        GammaSiteModel siteModel = new GammaSiteModel(hky, new Parameter.Default(1.0),
+                new Parameter.Default(0.587649), 4, new Parameter.Default(0.486548));
+
+        assertNodeHeightGradient(createTreeLikelihood(siteModel, false));
+        assertNodeHeightGradient(createTreeLikelihood(siteModel, true));
+    }
+
+    @Test
+    public void testStoreRestoreGradient() {
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(alignment.getStateFrequencies()));
+        HKY hky = new HKY(new Parameter.Default(29.739445), f);
+
+        GammaSiteModel siteModel = new GammaSiteModel(hky, new Parameter.Default(1.0),
+                new Parameter.Default(0.5), 4, null);
+
+        TreeLikelihood treeLikelihood = createTreeLikelihood(siteModel, false);
+        double[] gradient = treeLikelihood.getBranchLengthGradient();
+
+        treeLikelihood.storeModelState();
+        NodeRef node = treeModel.getInternalNode(0);
+        treeModel.setNodeHeight(node, treeModel.getNodeHeight(node) * 0.9);
+        double[] proposed = treeLikelihood.getBranchLengthGradient();
+        assertEquals("gradient not updated", false, gradient[node.getNumber()] == proposed[node.getNumber()]);
+        treeLikelihood.restoreModelState();
+
+        assertArrayEquals(gradient, treeLikelihood.getBranchLengthGradient(), 0.0);
+    }
+
+    private TreeLikelihood createTreeLikelihood(GammaSiteModel siteModel, boolean useAmbiguities) {
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+        return new TreeLikelihood(patterns, treeModel, siteModel, null, null,
+                useAmbiguities, false, true, true, false);
+    }
+
+    private void assertNodeHeightGradient(TreeLikelihood treeLikelihood) {
+        assertTrue(treeLikelihood.providesBranchLengthGradient());
+
+        double[] gradient = treeLikelihood.getNodeHeightGradient();
+
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            NodeRef node = treeModel.getNode(i);
+            double height = treeModel.getNodeHeight(node);
+
+            treeModel.setNodeHeight(node, height + DELTA);
+            double upper = treeLikelihood.getLogLikelihood();
+            treeModel.setNodeHeight(node, height - DELTA);
+            double lower = treeLikelihood.getLogLikelihood();
+            treeModel.setNodeHeight(node, height);
+
+            assertEquals("node " + i, (upper - lower) / (2 * DELTA), gradient[i], 1E-4 * Math.max(1.0, Math.abs(gradient[i])));
+        }
+    }
+
+    private void assertInfinitesimalMatrix(SubstitutionModel model) {
+        double[] q = new double[16];
+        double[] upper = new double[16];
+        double[] lower = new double[16];
+
+        model.getInfinitesimalMatrix(q);
+        model.getTransitionProbabilities(DELTA, upper);
+        model.getTransitionProbabilities(0.0, lower);
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals(model.getModelName() + " Q[" + i + "]", (upper[i] - lower[i]) / DELTA, q[i], 1E-4);
+        }
+    }
+}
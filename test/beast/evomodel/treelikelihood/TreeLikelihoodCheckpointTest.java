@@ -0,0 +1,96 @@
+/*
+ * TreeLikelihoodCheckpointTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.evomodel.treelikelihood;
+
+import beast.evolution.alignment.SitePatterns;
+import beast.evolution.datatype.Nucleotides;
+import beast.evolution.tree.NodeRef;
+import beast.evomodel.sitemodel.GammaSiteModel;
+import beast.evomodel.substmodel.FrequencyModel;
+import beast.evomodel.substmodel.HKY;
+import beast.evomodel.tree.TreeModel;
+import beast.inference.model.Parameter;
+import beast.inference.trace.TraceCorrelationAssert;
+import beast.util.Serializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.Serializable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a tree likelihood resumed from a checkpoint, which does not contain
+ * the likelihood core buffers, evaluates to the same value as the original.
+ */
+public class TreeLikelihoodCheckpointTest extends TraceCorrelationAssert {
+
+    public static class Checkpoint implements Serializable {
+        public TreeLikelihood treeLikelihood;
+        public TreeModel treeModel;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        createSpecifiedTree("((((human:0.024003,(chimp:0.010772,bonobo:0.010772):0.013231):0.012035," +
+                "gorilla:0.036038):0.033087000000000005,orangutan:0.069125):0.030456999999999998," +
+                "siamang:0.099582);");
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        assertResume(false);
+        assertResume(true);
+    }
+
+    private void assertResume(boolean useAmbiguities) throws Exception {
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(alignment.getStateFrequencies()));
+        GammaSiteModel siteModel = new GammaSiteModel(new HKY(new Parameter.Default(29.739445), f),
+                new Parameter.Default(1.0), new Parameter.Default(0.5), 4, null);
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.treeModel = treeModel;
+        checkpoint.treeLikelihood = new TreeLikelihood(patterns, treeModel, siteModel, null, null,
+                useAmbiguities, false, true, true, false);
+        final double logL = checkpoint.treeLikelihood.getLogLikelihood();
+
+        File file = File.createTempFile("treeLikelihood", ".state");
+        try {
+            new Serializer<>(file, checkpoint).serialize();
+            Checkpoint resumed = new Serializer<>(file, Checkpoint.class).getObject();
+
+            assertEquals(logL, resumed.treeLikelihood.getLogLikelihood(), 1E-10);
+
+            // the rebuilt buffers must also support partial updates
+            NodeRef node = treeModel.getInternalNode(1);
+            treeModel.setNodeHeight(node, treeModel.getNodeHeight(node) * 0.95);
+            NodeRef resumedNode = resumed.treeModel.getInternalNode(1);
+            resumed.treeModel.setNodeHeight(resumedNode, resumed.treeModel.getNodeHeight(resumedNode) * 0.95);
+
+            assertEquals(checkpoint.treeLikelihood.getLogLikelihood(), resumed.treeLikelihood.getLogLikelihood(), 1E-10);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * DistributionLikelihoodTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.distribution;
+
+import beast.inference.model.Model;
+import beast.inference.model.Parameter;
+import beast.inference.model.Statistic;
+import beast.math.MathUtils;
+import beast.math.distributions.Distribution;
+import beast.math.distributions.ExponentialDistribution;
+import beast.math.distributions.GammaDistribution;
+import beast.math.distributions.InverseGammaDistribution;
+import beast.math.distributions.LaplaceDistribution;
+import beast.math.distributions.LogNormalDistribution;
+import beast.math.distributions.NormalDistribution;
+import beast.math.distributions.PoissonDistribution;
+import beast.math.distributions.UniformDistribution;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the batch logPdf against the scalar one, and the element-wise caching in
+ * DistributionLikelihood against a full recalculation across store/restore.
+ *
+ * @author BEAST Developers
+ */
+public class DistributionLikelihoodTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    @Before
+    public void setUp() {
+        MathUtils.setSeed(17);
+    }
+
+    @Test
+    public void testBatchLogPdf() {
+        final double[] x = new double[40];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = 0.05 + 3.0 * MathUtils.nextDouble();
+        }
+
+        final Distribution[] distributions = {
+                new NormalDistribution(0.7, 1.3),
+                new LogNormalDistribution(-0.2, 0.8),
+                new ExponentialDistribution(2.5),
+                new GammaDistribution(2.5, 0.4),
+                new GammaDistribution(1.0, 0.4),
+                new GammaDistribution(0.0, 1.0),
+                new InverseGammaDistribution(3.0, 2.0),
+                new LaplaceDistribution(0.3, 1.7),
+                new UniformDistribution(0.0, 4.0),
+                new PoissonDistribution(2.0),
+                new NormalDistributionModel(new Parameter.Default(0.7), new Parameter.Default(1.3)),
+                new LogNormalDistributionModel(new Parameter.Default(-0.2), new Parameter.Default(0.8), 0.01, false, false),
+                new ExponentialDistributionModel(new Parameter.Default(0.4), 0.02),
+                new GammaDistributionModel(new Parameter.Default(2.5), new Parameter.Default(0.4)),
+                new UniformDistributionModel(new Parameter.Default(0.0), new Parameter.Default(4.0))
+        };
+
+        for (Distribution distribution : distributions) {
+            assertEquals(distribution.getClass().getSimpleName(),
+                    scalarSum(distribution, x, 3, 37), distribution.logPdf(x, 3, 37), TOLERANCE);
+            assertEquals(0.0, distribution.logPdf(x, 5, 5), 0.0);
+        }
+
+        x[10] = -1.0;
+        assertEquals(Double.NEGATIVE_INFINITY, new GammaDistribution(2.5, 0.4).logPdf(x, 0, x.length), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, new ExponentialDistribution(2.5).logPdf(x, 0, x.length), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, new UniformDistribution(0.0, 4.0).logPdf(x, 0, x.length), 0.0);
+    }
+
+    @Test
+    public void testCachingAcrossStoreRestore() {
+        final int dim = 1000;
+        final Parameter data = new Parameter.Default(dim, 1.0);
+        for (int i = 0; i < dim; i++) {
+            data.setParameterValue(i, MathUtils.nextGaussian());
+        }
+        final Parameter mean = new Parameter.Default(0.1);
+        final Parameter stdev = new Parameter.Default(1.5);
+        final NormalDistributionModel normal = new NormalDistributionModel(mean, stdev);
+
+        final DistributionLikelihood likelihood = new DistributionLikelihood(normal);
+        likelihood.addData(data);
+        likelihood.setRange(5, 990);
+        final Model model = likelihood.getModel();
+
+        assertEquals(expected(normal, data, 5, 990, 0.0), likelihood.getLogLikelihood(), TOLERANCE);
+
+        for (int step = 0; step < 200; step++) {
+            model.storeModelState();
+
+            final int moves = 1 + MathUtils.nextInt(3);
+            for (int m = 0; m < moves; m++) {
+                final int i = MathUtils.nextInt(dim);
+                data.setParameterValue(i, data.getParameterValue(i) + MathUtils.nextGaussian());
+            }
+            if (step % 17 == 0) {
+                mean.setParameterValue(0, MathUtils.nextGaussian());
+            }
+            assertEquals(expected(normal, data, 5, 990, 0.0), likelihood.getLogLikelihood(), TOLERANCE);
+
+            if (MathUtils.nextBoolean()) {
+                // parameter values revert silently
+                model.restoreModelState();
+            } else {
+                model.acceptModelState();
+            }
+            assertEquals(expected(normal, data, 5, 990, 0.0), likelihood.getLogLikelihood(), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void testOffsetAndStatistics() {
+        final Parameter data = new Parameter.Default(new double[]{1.5, 2.0, 3.5, 1.2, 4.0});
+        final double[] statisticValues = {0.4, 0.9, 1.1};
+        final Statistic statistic = new Statistic.Abstract("stat") {
+            public int getDimension() {
+                return statisticValues.length;
+            }
+
+            public double getStatisticValue(int dim) {
+                return statisticValues[dim];
+            }
+        };
+        final ExponentialDistribution exponential = new ExponentialDistribution(2.0);
+
+        final DistributionLikelihood likelihood = new DistributionLikelihood(exponential, 1.0);
+        likelihood.addData(data);
+        assertEquals(expected(exponential, data, 0, 5, 1.0), likelihood.getLogLikelihood(), TOLERANCE);
+
+        data.setParameterValue(3, 0.5);
+        assertEquals(Double.NEGATIVE_INFINITY, likelihood.getLogLikelihood(), 0.0);
+        data.setParameterValue(3, 1.7);
+        assertEquals(expected(exponential, data, 0, 5, 1.0), likelihood.getLogLikelihood(), TOLERANCE);
+
+        final DistributionLikelihood statisticLikelihood = new DistributionLikelihood(exponential);
+        statisticLikelihood.addData(statistic);
+        assertEquals(scalarSum(exponential, statisticValues, 0, 3), statisticLikelihood.getLogLikelihood(), TOLERANCE);
+        statisticValues[1] = 2.3;
+        assertEquals(scalarSum(exponential, statisticValues, 0, 3), statisticLikelihood.getLogLikelihood(), TOLERANCE);
+    }
+
+    private static double expected(Distribution distribution, Parameter data, int from, int to, double offset) {
+        double logL = 0.0;
+        for (int i = from; i < to; i++) {
+            logL += distribution.logPdf(data.getParameterValue(i) - offset);
+        }
+        return logL;
+    }
+
+    private static double scalarSum(Distribution distribution, double[] x, int from, int to) {
+        double logL = 0.0;
+        for (int i = from; i < to; i++) {
+            logL += distribution.logPdf(x[i]);
+        }
+        return logL;
+    }
+}
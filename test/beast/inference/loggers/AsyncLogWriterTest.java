@@ -0,0 +1,93 @@
+/*
+ * AsyncLogWriterTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.loggers;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that asynchronous logging writes exactly what synchronous logging does.
+ */
+public class AsyncLogWriterTest {
+
+    private double value;
+    private int count;
+
+    private String runLogger(boolean asynchronous) {
+        StringWriter out = new StringWriter();
+        MCLogger logger = new MCLogger(new TabDelimitedFormatter(new PrintWriter(out)), 1, false);
+        logger.setAsynchronous(asynchronous);
+        logger.setTitle("test log");
+
+        NumberColumn number = new NumberColumn("value") {
+            public double getDoubleValue() {
+                return value;
+            }
+        };
+        number.setSignificantFigures(4);
+        logger.addColumn(number);
+        logger.addColumn(new PercentColumn(number));
+        logger.addColumn(new LogColumn.Abstract("count") {
+            protected String getFormattedValue() {
+                return Integer.toString(count);
+            }
+        });
+
+        logger.startLogging();
+        for (int state = 0; state < 5000; state++) {
+            value = Math.sin(state) * Math.pow(10, state % 7 - 3);
+            count = state * 3;
+            logger.log(state);
+            if (state == 2500) {
+                logger.flush();
+            }
+        }
+        logger.stopLogging();
+        return out.toString();
+    }
+
+    @Test
+    public void testMatchesSynchronous() {
+        String expected = runLogger(false);
+        assertEquals(expected, runLogger(true));
+    }
+
+    @Test
+    public void testBackPressure() {
+        StringWriter out = new StringWriter();
+        AsyncLogWriter writer = new AsyncLogWriter(
+                Collections.<LogFormatter>singletonList(new TabDelimitedFormatter(new PrintWriter(out))),
+                Collections.<LogColumn>emptyList(), 2, "test");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            writer.logLine("line " + i);
+            expected.append("line ").append(i).append(System.lineSeparator());
+        }
+        writer.close();
+        assertEquals(expected.toString(), out.toString());
+    }
+}
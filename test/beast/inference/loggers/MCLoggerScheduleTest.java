@@ -0,0 +1,68 @@
+/*
+ * MCLoggerScheduleTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.loggers;
+
+import beast.inference.markovchain.MarkovChainListener;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that logging only at the scheduled states writes what logging every state does.
+ */
+public class MCLoggerScheduleTest {
+
+    private String runLogger(boolean scheduled) {
+        StringWriter out = new StringWriter();
+        MCLogger logger = new MCLogger(new TabDelimitedFormatter(new PrintWriter(out)), 7, false);
+        logger.addLogCondition(state -> state % 3 != 0);
+        logger.addColumn(new LogColumn.Abstract("state") {
+            protected String getFormattedValue() {
+                return "x";
+            }
+        });
+
+        logger.startLogging();
+        long state = 0;
+        while (state < 1000) {
+            logger.log(state);
+            state = scheduled ? logger.getNextLogState(state + 1) : state + 1;
+        }
+        logger.stopLogging();
+        return out.toString();
+    }
+
+    @Test
+    public void testScheduledMatchesEveryState() {
+        assertEquals(runLogger(false), runLogger(true));
+    }
+
+    @Test
+    public void testNextMultiple() {
+        assertEquals(0, MarkovChainListener.nextMultiple(0, 10));
+        assertEquals(10, MarkovChainListener.nextMultiple(1, 10));
+        assertEquals(20, MarkovChainListener.nextMultiple(20, 10));
+        assertEquals(Long.MAX_VALUE, MarkovChainListener.nextMultiple(Long.MAX_VALUE - 1, 1000));
+    }
+}
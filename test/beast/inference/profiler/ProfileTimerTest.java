@@ -0,0 +1,102 @@
+/*
+ * ProfileTimerTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.profiler;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the counts, mean and histogram quantiles of profile timers.
+ */
+public class ProfileTimerTest {
+
+    @Test
+    public void testStatistics() {
+        final ProfileTimer timer = new ProfileTimer("test", "statistics");
+        for (int i = 0; i < 90; i++) {
+            timer.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            timer.record(1000000);
+        }
+
+        assertEquals(100, timer.getCount());
+        assertEquals(10.09, timer.getTotalMillis(), 1E-12);
+        assertEquals(100.9, timer.getMeanMicros(), 1E-12);
+        assertEquals(1000.0, timer.getMaxMicros(), 0.0);
+
+        // quantiles are bounded within a factor of two
+        final double median = timer.getMedianMicros();
+        assertTrue(median >= 1.0 && median <= 2.0);
+        final double p99 = timer.getPercentileMicros(0.99);
+        assertTrue(p99 >= 1000.0 && p99 <= 2000.0);
+
+        timer.reset();
+        assertEquals(0, timer.getCount());
+        assertEquals(0.0, timer.getMedianMicros(), 0.0);
+    }
+
+    @Test
+    public void testProfiler() {
+        final ProfileTimer timer = Profiler.getTimer("test", "profiler");
+        assertSame(timer, Profiler.getTimer("test", "profiler"));
+
+        timer.record(5000);
+        final StringWriter sw = new StringWriter();
+        Profiler.writeProfile(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("test\tprofiler\t1\t"));
+
+        final boolean enabled = Profiler.isEnabled();
+        Profiler.setEnabled(!enabled);
+        assertEquals(!enabled, Profiler.isEnabled());
+        Profiler.setEnabled(enabled);
+
+        Profiler.reset();
+        assertFalse(timer.getCount() > 0);
+    }
+
+    @Test
+    public void testProfileFile() throws IOException {
+        final File dir = Files.createTempDirectory("profile").toFile();
+        final File file = new File(dir, "run.profile");
+        Profiler.getTimer("test", "file").record(1000);
+
+        Profiler.writeProfile(file);
+        assertTrue(new String(Files.readAllBytes(file.toPath())).contains("test\tfile\t"));
+        assertEquals(1, dir.listFiles().length);
+
+        // a non-empty directory cannot be replaced, so the move fails
+        final File blocked = new File(dir, "blocked");
+        assertTrue(new File(blocked, "child").mkdirs());
+        Profiler.writeProfile(blocked);
+        assertEquals("temporary file left behind", 2, dir.listFiles().length);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * BinaryTraceReaderTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package beast.inference.trace;
+
+import beast.app.tools.LogConverter;
+import beast.inference.loggers.BinaryLogFormatter;
+import beast.inference.loggers.MCLogger;
+import beast.inference.loggers.NumberColumn;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round trips values through the binary trace format.
+ */
+public class BinaryTraceReaderTest {
+
+    private static final int STATES = 40000;
+    private static final int LOG_EVERY = 10;
+
+    private final double[] current = new double[3];
+
+    private static double value(int column, long state) {
+        switch (column) {
+            case 0:
+                return Math.sin(state * 0.001) * 1e-300;
+            case 1:
+                return Math.floor(state / 1000.0); // mostly unchanged between rows
+            default:
+                return state % 3 == 0 ? Double.NaN : -state / 7.0;
+        }
+    }
+
+    private File writeLog(boolean asynchronous) throws Exception {
+        File file = File.createTempFile("trace", BinaryLogFormatter.FILE_EXTENSION);
+        file.deleteOnExit();
+
+        MCLogger logger = createLogger(file, asynchronous);
+        logger.startLogging();
+        logStates(logger, 0, STATES);
+        logger.stopLogging();
+        return file;
+    }
+
+    private MCLogger createLogger(File file, boolean asynchronous) throws Exception {
+        MCLogger logger = new MCLogger(new BinaryLogFormatter(new FileOutputStream(file)), LOG_EVERY, false);
+        logger.addFile(file);
+        logger.setBinary(true);
+        logger.setAsynchronous(asynchronous);
+        logger.setTitle("binary\ntrace");
+        for (int i = 0; i < current.length; i++) {
+            final int column = i;
+            logger.addColumn(new NumberColumn("column" + i) {
+                public double getDoubleValue() {
+                    return current[column];
+                }
+            });
+        }
+        return logger;
+    }
+
+    private void logStates(MCLogger logger, long from, long to) {
+        for (long state = from; state < to; state++) {
+            for (int i = 0; i < current.length; i++) {
+                current[i] = value(i, state);
+            }
+            logger.log(state);
+        }
+    }
+
+    private static void assertTrace(File file, int rows) throws Exception {
+        try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+            assertEquals(rows, reader.getRowCount());
+            assertArrayEquals(new String[]{"column0", "column1", "column2"}, reader.getLabels());
+
+            long[] states = reader.getStates();
+            double[][] values = reader.readColumns(new int[]{2, 0, 1});
+            for (int row = 0; row < rows; row++) {
+                assertEquals(row * LOG_EVERY, states[row]);
+                assertEquals(value(2, states[row]), values[0][row], 0.0);
+                assertEquals(value(0, states[row]), values[1][row], 0.0);
+                assertEquals(value(1, states[row]), values[2][row], 0.0);
+            }
+            assertEquals((rows - 1) * LOG_EVERY, reader.getLastState());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = writeLog(false);
+        try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+            assertEquals("binary\ntrace", reader.getTitle());
+        }
+        assertTrace(file, STATES / LOG_EVERY);
+        assertTrace(writeLog(true), STATES / LOG_EVERY);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        for (boolean asynchronous : new boolean[]{false, true}) {
+            File file = File.createTempFile("trace", BinaryLogFormatter.FILE_EXTENSION);
+            file.deleteOnExit();
+
+            MCLogger logger = createLogger(file, asynchronous);
+            logger.startLogging();
+            logStates(logger, 0, STATES / 2);
+            logger.stopLogging();
+
+            // as after a checkpoint resume: startLogging is not called again
+            logger.resume();
+            logStates(logger, STATES / 2, STATES);
+            logger.stopLogging();
+
+            assertTrace(file, STATES / LOG_EVERY);
+        }
+    }
+
+    @Test
+    public void testTextConversion() throws Exception {
+        File binary = writeLog(false);
+        File text = File.createTempFile("trace", ".log");
+        text.deleteOnExit();
+        File again = File.createTempFile("trace", BinaryLogFormatter.FILE_EXTENSION);
+        again.deleteOnExit();
+
+        LogConverter.binaryToText(binary, text);
+        LogConverter.textToBinary(text, again);
+        assertTrace(again, STATES / LOG_EVERY);
+    }
+
+    @Test
+    public void testTruncatedChunkIgnored() throws Exception {
+        File file = File.createTempFile("trace", BinaryLogFormatter.FILE_EXTENSION);
+        file.deleteOnExit();
+
+        BinaryLogFormatter formatter = new BinaryLogFormatter(new FileOutputStream(file));
+        formatter.logLabels(new String[]{"state", "x"});
+        for (long state = 0; state < 200; state++) {
+            formatter.logValues(state, new double[]{state * 0.5});
+            if (state == 99) {
+                formatter.flush(); // ends the first chunk
+            }
+        }
+        formatter.stopLogging();
+
+        long length;
+        try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+            assertEquals(200, reader.getRowCount());
+            length = reader.getValidLength();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 5);
+        }
+        try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+            assertEquals(100, reader.getRowCount());
+            assertEquals(99, reader.getLastState());
+            assertEquals(49.5, reader.readColumn(0)[99], 0.0);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * OnlineTraceStatisticsTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.trace;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the incremental mean, variance and batch-means ESS against
+ * independent and autocorrelated series with known properties.
+ */
+public class OnlineTraceStatisticsTest {
+
+    private static final int N = 200000;
+
+    @Test
+    public void testMeanAndVariance() {
+        final Random random = new Random(123);
+        final double[] values = new double[1000];
+        final OnlineTraceStatistics statistics = new OnlineTraceStatistics();
+        double sum = 0.0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 5.0 + 2.0 * random.nextGaussian();
+            statistics.add(values[i]);
+            sum += values[i];
+        }
+        final double mean = sum / values.length;
+        double ss = 0.0;
+        for (double v : values) {
+            ss += (v - mean) * (v - mean);
+        }
+
+        assertEquals(values.length, statistics.getCount());
+        assertEquals(mean, statistics.getMean(), 1E-10);
+        assertEquals(ss / (values.length - 1), statistics.getVariance(), 1E-10);
+    }
+
+    @Test
+    public void testIndependentSamples() {
+        final Random random = new Random(456);
+        final OnlineTraceStatistics statistics = new OnlineTraceStatistics();
+        for (int i = 0; i < N; i++) {
+            statistics.add(random.nextGaussian());
+        }
+        assertEquals(1.0, statistics.getESS() / N, 0.35);
+    }
+
+    @Test
+    public void testAutocorrelatedSamples() {
+        // AR(1) process has an autocorrelation time of (1 + phi) / (1 - phi)
+        final double phi = 0.9;
+        final Random random = new Random(789);
+        final OnlineTraceStatistics statistics = new OnlineTraceStatistics();
+        double x = 0.0;
+        for (int i = 0; i < N; i++) {
+            x = phi * x + random.nextGaussian();
+            statistics.add(x);
+        }
+        final double expectedACT = (1.0 + phi) / (1.0 - phi);
+        assertEquals(1.0, statistics.getACT() / expectedACT, 0.35);
+        assertEquals(0.0, statistics.getMean(), 3.0 * statistics.getStdErrorOfMean());
+    }
+
+    @Test
+    public void testReset() {
+        final OnlineTraceStatistics statistics = new OnlineTraceStatistics();
+        statistics.add(1.0);
+        statistics.add(2.0);
+        statistics.reset();
+        assertEquals(0, statistics.getCount());
+        assertEquals(0.0, statistics.getESS(), 0.0);
+    }
+}
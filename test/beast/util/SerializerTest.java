@@ -0,0 +1,135 @@
+/*
+ * SerializerTest.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2014 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.util;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that asynchronous checkpoints capture the state at the time they are requested
+ * and that both compressed and older uncompressed state files can be read back.
+ */
+public class SerializerTest {
+
+    public static class State implements Serializable {
+        public long iteration;
+        public double[] values;
+
+        public State() {
+        }
+
+        public State(long iteration, double[] values) {
+            this.iteration = iteration;
+            this.values = values;
+        }
+    }
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("serializer", ".state");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testAsynchronousSnapshot() throws Exception {
+        final State state = new State(10, new double[]{1.0, 2.0, 3.0});
+        final Serializer<State> serializer = new Serializer<>(file, state);
+
+        serializer.serializeAsync();
+        // changes made after the snapshot must not appear in the checkpoint
+        state.iteration = 20;
+        state.values[0] = -1.0;
+        serializer.flush();
+
+        final State restored = new Serializer<>(file, State.class).getObject();
+        assertEquals(10, restored.iteration);
+        assertArrayEquals(new double[]{1.0, 2.0, 3.0}, restored.values, 0.0);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        serializer.serialize();
+        assertEquals(20, new Serializer<>(file, State.class).getObject().iteration);
+    }
+
+    @Test
+    public void testUncompressedState() throws Exception {
+        final Kryo kryo = new Kryo();
+        kryo.setDefaultSerializer(Serializer.SyntheticFieldSerializer.class);
+        try (final Output out = new Output(new FileOutputStream(file))) {
+            kryo.writeObject(out, new State(5, new double[]{4.0}));
+        }
+
+        final Serializer<State> reader = new Serializer<>(file, State.class);
+        final State restored = reader.getObject();
+        assertEquals(5, restored.iteration);
+        assertArrayEquals(new double[]{4.0}, restored.values, 0.0);
+        assertEquals(-1, reader.getCheckpoint());
+    }
+
+    @Test
+    public void testPairedCheckpoint() throws Exception {
+        final File other = File.createTempFile("serializer", ".random");
+        try {
+            final State chain = new State(30, new double[]{1.0});
+            final State random = new State(31, new double[]{2.0});
+            final Serializer<State> chainSerializer = new Serializer<>(file, chain);
+            final Serializer<State> randomSerializer = new Serializer<>(other, random);
+
+            Serializer.serializeAsync(30, randomSerializer, chainSerializer);
+            chain.iteration = 40;
+            random.iteration = 41;
+            Serializer.serializeAsync(40, randomSerializer, chainSerializer);
+            chainSerializer.flush();
+
+            final Serializer<State> chainReader = new Serializer<>(file, State.class);
+            final Serializer<State> randomReader = new Serializer<>(other, State.class);
+            assertEquals(40, chainReader.getCheckpoint());
+            assertEquals(40, randomReader.getCheckpoint());
+            assertEquals(40, chainReader.getObject().iteration);
+            assertEquals(41, randomReader.getObject().iteration);
+
+            Serializer.serialize(50, randomSerializer, chainSerializer);
+            assertEquals(50, new Serializer<>(file, State.class).getCheckpoint());
+            assertEquals(50, new Serializer<>(other, State.class).getCheckpoint());
+        } finally {
+            other.delete();
+            new File(other.getPath() + ".tmp").delete();
+        }
+    }
+}